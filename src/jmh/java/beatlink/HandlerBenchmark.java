@@ -0,0 +1,149 @@
+package beatlink;
+
+import com.cycling74.max.MaxClock;
+import org.deepsymmetry.beatlink.Beat;
+import org.deepsymmetry.beatlink.BeatListener;
+import org.deepsymmetry.beatlink.CdjStatus;
+import org.deepsymmetry.beatlink.DeviceUpdateListener;
+import org.deepsymmetry.beatlink.data.TrackMetadataListener;
+import org.deepsymmetry.beatlink.data.TrackMetadataUpdate;
+import org.deepsymmetry.beatlink.data.TrackPositionListener;
+import org.deepsymmetry.beatlink.data.TrackPositionUpdate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long the handlers of real {@link Tempo}, {@link Position} and {@link Metadata} objects take to
+ * process each kind of update, and how many updates per second they can keep up with, by delivering pre-built
+ * events through the same {@link Dispatcher} code that live events take. Like those built by {@link Warmup}, the
+ * objects belong to no patch and their mailboxes are muted, and the test stub of {@link MaxClock} stands in for
+ * the Max scheduler, so nothing outside this JVM is needed. Run with the JMH {@code -prof gc} option (the default
+ * for the {@code benchmarks} Maven profile) to see how much each update allocates.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@org.openjdk.jmh.annotations.Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HandlerBenchmark {
+
+    /**
+     * How many distinct events of each kind we cycle through, which must be a power of two.
+     */
+    private static final int EVENTS = 16;
+
+    private final Dispatcher dispatcher = Dispatcher.getInstance();
+
+    private Tempo tempo;
+    private Position position;
+    private Metadata metadata;
+
+    private List<BeatListener> tempoBeatListeners;
+    private List<DeviceUpdateListener> tempoUpdateListeners;
+    private List<TrackPositionListener> positionListeners;
+    private List<TrackMetadataListener> metadataListeners;
+
+    private final Beat[] beats = new Beat[EVENTS];
+    private final CdjStatus[] statuses = new CdjStatus[EVENTS];
+    private final TrackPositionUpdate[] positions = new TrackPositionUpdate[EVENTS];
+    private TrackMetadataUpdate noMetadata;
+
+    /**
+     * Which of the events to deliver next.
+     */
+    private int next;
+
+    /**
+     * Creates the objects whose handlers we measure, and parses the events we will deliver to them, so that
+     * neither is part of the measurement.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        tempo = new Tempo(Warmup.DEVICE);
+        position = new Position();
+        metadata = new Metadata();
+        tempo.getMailbox().mute();
+        position.getMailbox().mute();
+        metadata.getMailbox().mute();
+        tempoBeatListeners = Collections.singletonList(tempo.getBeatListener());
+        tempoUpdateListeners = Collections.singletonList(tempo.getUpdateListener());
+        positionListeners = Collections.singletonList(position.getPositionListener());
+        metadataListeners = Collections.singletonList(metadata.getMetadataListener());
+
+        final InetAddress address = InetAddress.getLoopbackAddress();
+        for (int i = 0; i < EVENTS; i++) {
+            final byte[] beat = Warmup.beatPacket((i % 4) + 1);
+            beats[i] = new Beat(new DatagramPacket(beat, beat.length, address, 50001));
+            final byte[] status = Warmup.statusPacket(1, i + 1);  // The same track throughout, as during a live set.
+            statuses[i] = new CdjStatus(new DatagramPacket(status, status.length, address, 50002));
+            positions[i] = new TrackPositionUpdate(System.nanoTime(), (i + 1) * 500L, i + 1, true, true, 1.0,
+                    false, null, true, false);
+        }
+        noMetadata = new TrackMetadataUpdate(Warmup.DEVICE, null);
+    }
+
+    /**
+     * Lets {@link Delivery} drain what the objects posted during the iteration, as the Max scheduler would.
+     */
+    @TearDown(Level.Iteration)
+    public void drain() {
+        MaxClock.fireAll();
+    }
+
+    /**
+     * Deletes the objects, as Max would when they are removed from a patch.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        MaxClock.fireAll();
+        tempo.notifyDeleted();
+        position.notifyDeleted();
+        metadata.notifyDeleted();
+    }
+
+    /**
+     * Choose the next of the events to deliver.
+     *
+     * @return the index of the events to use
+     */
+    private int next() {
+        next = (next + 1) & (EVENTS - 1);
+        return next;
+    }
+
+    @Benchmark
+    public void tempoBeat() {
+        dispatcher.deliverBeat(tempoBeatListeners, beats[next()]);
+    }
+
+    @Benchmark
+    public void tempoStatus() {
+        dispatcher.deliverUpdate(tempoUpdateListeners, statuses[next()]);
+    }
+
+    @Benchmark
+    public void positionUpdate() {
+        dispatcher.deliverPosition(positionListeners, positions[next()]);
+    }
+
+    @Benchmark
+    public void metadataUpdate() {
+        dispatcher.deliverMetadata(metadataListeners, noMetadata);
+    }
+}
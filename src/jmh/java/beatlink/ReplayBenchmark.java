@@ -0,0 +1,182 @@
+package beatlink;
+
+import com.cycling74.max.MaxClock;
+import org.deepsymmetry.beatlink.Beat;
+import org.deepsymmetry.beatlink.CdjStatus;
+import org.deepsymmetry.beatlink.DeviceUpdate;
+import org.deepsymmetry.beatlink.data.TrackPositionUpdate;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a recording made by a {@link Recorder} object as fast as it can be handled, through the same
+ * {@link Dispatcher} methods that the {@code VirtualCdj}, {@code BeatFinder}, {@code TimeFinder} and
+ * {@code MetadataFinder} listeners call, to real {@link Tempo}, {@link Position} and {@link Metadata} objects
+ * watching player 1 and the tempo master. Each operation replays the whole recording, and the {@code events}
+ * counter reports how many events per second that amounts to. Set the {@code recording} parameter to the path of
+ * a file recorded from real equipment (with {@code -p recording=...}); if it is left empty, a recording of a
+ * player playing a few tracks at 120 BPM is synthesized from the packets {@link Warmup} builds.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@org.openjdk.jmh.annotations.Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ReplayBenchmark {
+
+    /**
+     * How many beats the synthesized recording lasts, which is a little over half an hour at 120 BPM.
+     */
+    private static final int SYNTHETIC_BEATS = 4000;
+
+    /**
+     * How many beats each track in the synthesized recording lasts.
+     */
+    private static final int BEATS_PER_TRACK = 1000;
+
+    /**
+     * How many status and position updates the synthesized recording holds for each beat, matching the rate at
+     * which players send them.
+     */
+    private static final int UPDATES_PER_BEAT = 3;
+
+    /**
+     * The recording to replay, or an empty string to synthesize one.
+     */
+    @Param("")
+    public String recording;
+
+    /**
+     * Counts the events replayed, so JMH can report them per second alongside the replays themselves.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long events;
+    }
+
+    private File file;
+
+    /**
+     * Whether we synthesized the recording, and so should delete it when done.
+     */
+    private boolean synthesized;
+
+    private Tempo tempo;
+    private Tempo masterTempo;
+    private Position position;
+    private Metadata metadata;
+
+    /**
+     * Synthesizes the recording if needed, creates the objects that will receive it, and puts the
+     * {@link Dispatcher} in replay mode.
+     *
+     * @throws IOException if the recording cannot be written
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if (recording.isEmpty()) {
+            file = File.createTempFile("beat-link-max-replay", ".blr");
+            synthesized = true;
+            synthesize(file);
+        } else {
+            file = new File(recording);
+        }
+        tempo = new Tempo(Warmup.DEVICE);
+        masterTempo = new Tempo();
+        position = new Position();
+        metadata = new Metadata();
+        tempo.getMailbox().mute();
+        masterTempo.getMailbox().mute();
+        position.getMailbox().mute();
+        metadata.getMailbox().mute();
+        Dispatcher.getInstance().setReplaying(true);
+    }
+
+    /**
+     * Writes a recording of one player playing {@link #SYNTHETIC_BEATS} beats as the tempo master, with the
+     * status and position updates that would accompany them.
+     *
+     * @param file where to write the recording
+     *
+     * @throws IOException if there is a problem writing the recording
+     */
+    private static void synthesize(File file) throws IOException {
+        final InetAddress address = InetAddress.getLoopbackAddress();
+        try (EventLog log = new EventLog(file, true)) {
+            log.writeMetadata(Warmup.DEVICE, null);
+            for (int i = 1; i <= SYNTHETIC_BEATS; i++) {
+                final byte[] beat = Warmup.beatPacket(((i - 1) % 4) + 1);
+                log.writePacket(new Beat(new DatagramPacket(beat, beat.length, address, 50001)));
+                final byte[] status = Warmup.statusPacket(1 + i / BEATS_PER_TRACK, i);
+                final CdjStatus update = new CdjStatus(new DatagramPacket(status, status.length, address, 50002));
+                if (i == 1) {
+                    log.writeMaster(Warmup.DEVICE, 120.0);
+                }
+                for (int j = 0; j < UPDATES_PER_BEAT; j++) {
+                    log.writePacket(update);
+                    final long milliseconds = (i - 1) * 500L + j * 500L / UPDATES_PER_BEAT;
+                    log.writePosition(Warmup.DEVICE, new TrackPositionUpdate(System.nanoTime(), milliseconds, i,
+                            true, true, 1.0, false, null, true, j == 0));
+                }
+                log.writeMasterTempo(120.0);
+            }
+        }
+    }
+
+    /**
+     * Lets {@link Delivery} drain what the objects posted during the iteration, as the Max scheduler would.
+     */
+    @TearDown(Level.Iteration)
+    public void drain() {
+        MaxClock.fireAll();
+    }
+
+    /**
+     * Deletes the objects, leaves replay mode, and removes any recording we synthesized.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        MaxClock.fireAll();
+        Dispatcher.getInstance().setReplaying(false);
+        tempo.notifyDeleted();
+        masterTempo.notifyDeleted();
+        position.notifyDeleted();
+        metadata.notifyDeleted();
+        if (synthesized && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public void replay(Counters counters) throws IOException {
+        final EventLog.Event event = new EventLog.Event();
+        final Map<Integer, DeviceUpdate> statuses = new HashMap<>();
+        try (EventLog log = new EventLog(file, false)) {
+            while (log.read(event)) {
+                Recorder.deliver(event, statuses);
+                counters.events++;
+            }
+        }
+    }
+}
@@ -0,0 +1,1010 @@
+package beatlink;
+
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.CdjStatus;
+import org.deepsymmetry.beatlink.DeviceUpdate;
+import org.deepsymmetry.beatlink.VirtualCdj;
+import org.deepsymmetry.beatlink.data.*;
+import org.deepsymmetry.cratedigger.pdb.RekordboxAnlz;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers what we have learned about tracks across sessions, in a memory-mapped file in the {@code cache} folder
+ * of our Max package, so that {@link Metadata} and {@link Position} objects can report a track we have seen before
+ * as soon as a player loads it, rather than waiting for Beat Link to fetch and parse everything again. Objects only
+ * use the cache when their {@code diskcache} attribute is set, since learning signatures means fetching waveforms
+ * and beat grids for every track that is loaded. Tracks are
+ * stored under their {@link SignatureFinder} signature, which identifies the same music no matter which media or
+ * player it is loaded from. Since the signature is only known once everything has been fetched, we also remember
+ * which signature each rekordbox ID on each piece of media had, which is what lets us find a track at load time.
+ * <p>
+ * Along with the values our objects report, each track's raw beat grid, waveform preview and cue list analysis
+ * tags are kept, and offered back to Beat Link through a {@link MetadataProvider} while the cache is in use, so the
+ * finders can rebuild them instead of fetching them from the player again. Cue lists that Beat Link obtained by
+ * querying the player's database server, rather than from its analysis files, have no tags and are not offered.
+ * <p>
+ * The file is a header followed by records that are only ever appended. A record's type byte is written last, so
+ * a record that was interrupted by a crash is simply ignored the next time the file is read.
+ */
+@API(status = API.Status.INTERNAL)
+final class AnalysisCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(AnalysisCache.class);
+
+    /**
+     * The name of the folder, within our package folder, in which the cache file is kept.
+     */
+    private static final String FOLDER_NAME = "cache";
+
+    /**
+     * The name of the cache file.
+     */
+    private static final String FILE_NAME = "analysis.dat";
+
+    /**
+     * Identifies our files; the bytes "BLAC".
+     */
+    private static final int MAGIC = 0x424c4143;
+
+    /**
+     * The version of the file format.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * The size of the magic number and version that begin the file.
+     */
+    private static final int FILE_HEADER_SIZE = 8;
+
+    /**
+     * The size of the type byte and payload length that begin each record.
+     */
+    private static final int RECORD_HEADER_SIZE = 5;
+
+    /**
+     * Record types. A zero type byte marks the end of the records.
+     */
+    private static final byte TRACK = 1;
+    private static final byte REFERENCE = 2;
+
+    /**
+     * How much of the file we map when it is first created.
+     */
+    private static final int INITIAL_SIZE = 1024 * 1024;
+
+    /**
+     * The largest we will let the file grow; beyond this, new tracks are simply not remembered.
+     */
+    private static final int MAX_SIZE = 256 * 1024 * 1024;
+
+    /**
+     * The longest string we store, in characters, which keeps its encoded form within an unsigned short length.
+     */
+    private static final int MAX_STRING = 16383;
+
+    /**
+     * What we remember about a single track.
+     */
+    static final class Entry {
+
+        /**
+         * The title, artist, album, comment and genre of the track.
+         */
+        final String title;
+        final String artist;
+        final String album;
+        final String comment;
+        final String genre;
+
+        /**
+         * The tempo of the track, in beats per minute.
+         */
+        final double tempo;
+
+        /**
+         * The duration of the track, in seconds, as reported in its metadata.
+         */
+        final int duration;
+
+        /**
+         * The musical key of the track.
+         */
+        final String key;
+
+        /**
+         * The rating of the track, from zero to five stars.
+         */
+        final int rating;
+
+        /**
+         * The name of the track's color, or {@code null} if it has none, followed by its red, green and blue
+         * components.
+         */
+        final String colorName;
+        final int red;
+        final int green;
+        final int blue;
+
+        /**
+         * The rekordbox ID of the track's album art.
+         */
+        final int artworkId;
+
+        /**
+         * Each cue point as a triple of hot cue number (zero for memory points), cue time in milliseconds, and
+         * loop end time in milliseconds (zero if it is not a loop).
+         */
+        final long[] cues;
+
+        /**
+         * The total length of the track in milliseconds, from its waveform, or zero if we did not know it.
+         */
+        final long trackLength;
+
+        /**
+         * The raw bytes of the track's beat grid, as Beat Link received them, or {@code null} if we did not have
+         * them.
+         */
+        final byte[] beatGrid;
+
+        /**
+         * The raw bytes of the track's waveform preview, or {@code null} if we did not have them, and the style
+         * of the preview.
+         */
+        final byte[] waveformPreview;
+        final WaveformStyle previewStyle;
+
+        /**
+         * The raw rekordbox analysis tags from which the track's cue list was parsed, followed by any extended
+         * (nxs2) cue tags, or {@code null} if the cue list was not read from analysis files.
+         */
+        final List<byte[]> cueTags;
+        final List<byte[]> extendedCueTags;
+
+        /**
+         * Create an entry from the values to be remembered.
+         *
+         * @param title the title of the track
+         * @param artist the artist
+         * @param album the album
+         * @param comment the comment
+         * @param genre the genre
+         * @param tempo the tempo, in beats per minute
+         * @param duration the duration, in seconds
+         * @param key the musical key
+         * @param rating the rating, from zero to five stars
+         * @param colorName the name of the track's color, or {@code null} if it has none
+         * @param red the red component of the color
+         * @param green the green component of the color
+         * @param blue the blue component of the color
+         * @param artworkId the rekordbox ID of the album art
+         * @param cues the cue points, as described for {@link #cues}
+         * @param trackLength the total length of the track in milliseconds, or zero if unknown
+         * @param beatGrid the raw beat grid bytes, or {@code null} if unknown
+         * @param waveformPreview the raw waveform preview bytes, or {@code null} if unknown
+         * @param previewStyle the style of the waveform preview, or {@code null} if there is none
+         * @param cueTags the raw cue list tags, or {@code null} if the cue list was not read from analysis files
+         * @param extendedCueTags the raw extended cue list tags, or {@code null} along with {@code cueTags}
+         */
+        Entry(String title, String artist, String album, String comment, String genre, double tempo, int duration,
+              String key, int rating, String colorName, int red, int green, int blue, int artworkId, long[] cues,
+              long trackLength, byte[] beatGrid, byte[] waveformPreview, WaveformStyle previewStyle,
+              List<byte[]> cueTags, List<byte[]> extendedCueTags) {
+            this.title = title;
+            this.artist = artist;
+            this.album = album;
+            this.comment = comment;
+            this.genre = genre;
+            this.tempo = tempo;
+            this.duration = duration;
+            this.key = key;
+            this.rating = rating;
+            this.colorName = colorName;
+            this.red = red;
+            this.green = green;
+            this.blue = blue;
+            this.artworkId = artworkId;
+            this.cues = cues;
+            this.trackLength = trackLength;
+            this.beatGrid = beatGrid;
+            this.waveformPreview = (previewStyle == null) ? null : waveformPreview;
+            this.previewStyle = (waveformPreview == null) ? null : previewStyle;
+            this.cueTags = cueTags;
+            this.extendedCueTags = (cueTags == null) ? null : extendedCueTags;
+        }
+
+        /**
+         * Gather what we want to remember about a track from what Beat Link has found out about it.
+         *
+         * @param metadata the track metadata
+         * @param detail the detailed waveform of the track, or {@code null} if we don't have it
+         * @param grid the beat grid of the track, or {@code null} if we don't have it
+         * @param preview the waveform preview of the track, or {@code null} if we don't have it
+         *
+         * @return the entry describing the track
+         */
+        private static Entry of(TrackMetadata metadata, WaveformDetail detail, BeatGrid grid,
+                                WaveformPreview preview) {
+            final ColorItem colorItem = metadata.getColor();
+            final boolean colored = colorItem != null && colorItem.color != null;
+            final CueList cueList = metadata.getCueList();
+            final List<CueList.Entry> cueEntries = (cueList == null) ? new ArrayList<>() : cueList.entries;
+            final long[] cues = new long[cueEntries.size() * 3];
+            for (int i = 0; i < cueEntries.size(); i++) {
+                final CueList.Entry cue = cueEntries.get(i);
+                cues[i * 3] = cue.hotCueNumber;
+                cues[i * 3 + 1] = cue.cueTime;
+                cues[i * 3 + 2] = cue.isLoop ? cue.loopTime : 0;
+            }
+            return new Entry(Util.stringIfNotNull(metadata.getTitle()), Util.labelIfNotNull(metadata.getArtist()),
+                    Util.labelIfNotNull(metadata.getAlbum()), Util.stringIfNotNull(metadata.getComment()),
+                    Util.labelIfNotNull(metadata.getGenre()), metadata.getTempo() / 100.0, metadata.getDuration(),
+                    Util.labelIfNotNull(metadata.getKey()), metadata.getRating(),
+                    colored ? Util.labelIfNotNull(colorItem) : null, colored ? colorItem.color.getRed() : 0,
+                    colored ? colorItem.color.getGreen() : 0, colored ? colorItem.color.getBlue() : 0,
+                    metadata.getArtworkId(), cues, (detail == null) ? 0 : detail.getTotalTime(),
+                    (grid == null) ? null : bytesOf(grid.getRawData()),
+                    (preview == null) ? null : bytesOf(preview.getData()), (preview == null) ? null : preview.style,
+                    (cueList == null) ? null : bytesOf(cueList.rawTags),
+                    (cueList == null || cueList.rawExtendedTags == null) ? new ArrayList<>() :
+                            bytesOf(cueList.rawExtendedTags));
+        }
+
+        /**
+         * Rebuild the track's beat grid from the bytes we remembered.
+         *
+         * @param track the track whose beat grid is wanted
+         *
+         * @return the beat grid, or {@code null} if we don't have one
+         */
+        BeatGrid beatGridFor(DataReference track) {
+            return (beatGrid == null) ? null : new BeatGrid(track, ByteBuffer.wrap(beatGrid));
+        }
+
+        /**
+         * Rebuild the track's waveform preview from the bytes we remembered, if it is in the style Beat Link wants.
+         *
+         * @param track the track whose waveform preview is wanted
+         * @param style the style in which the preview is wanted
+         *
+         * @return the waveform preview, or {@code null} if we don't have one in that style
+         */
+        WaveformPreview waveformPreviewFor(DataReference track, WaveformStyle style) {
+            if (waveformPreview == null || previewStyle != style) {
+                return null;
+            }
+            return new WaveformPreview(track, ByteBuffer.wrap(waveformPreview), previewStyle);
+        }
+
+        /**
+         * Rebuild the track's cue list from the analysis tags we remembered.
+         *
+         * @return the cue list, or {@code null} if we don't have its tags
+         */
+        CueList cueList() {
+            return (cueTags == null) ? null : new CueList(buffersOf(cueTags), buffersOf(extendedCueTags));
+        }
+
+        /**
+         * Read a track record from the cache file.
+         *
+         * @param buffer positioned at the start of the record's payload, after the signature
+         */
+        private Entry(ByteBuffer buffer) {
+            title = getString(buffer);
+            artist = getString(buffer);
+            album = getString(buffer);
+            comment = getString(buffer);
+            genre = getString(buffer);
+            tempo = buffer.getDouble();
+            duration = buffer.getInt();
+            key = getString(buffer);
+            rating = buffer.getInt();
+            final boolean hasColor = buffer.get() != 0;
+            final String name = getString(buffer);
+            colorName = hasColor ? name : null;
+            red = buffer.getInt();
+            green = buffer.getInt();
+            blue = buffer.getInt();
+            artworkId = buffer.getInt();
+            cues = new long[buffer.getInt() * 3];
+            for (int i = 0; i < cues.length; i++) {
+                cues[i] = buffer.getLong();
+            }
+            trackLength = buffer.getLong();
+            beatGrid = getBytes(buffer);
+            waveformPreview = getBytes(buffer);
+            final String style = getString(buffer);
+            previewStyle = (waveformPreview == null) ? null : WaveformStyle.valueOf(style);
+            cueTags = getTags(buffer);
+            extendedCueTags = getTags(buffer);
+        }
+
+        /**
+         * Calculate the largest number of bytes {@link #write(ByteBuffer)} could need for this entry.
+         *
+         * @return the size to allow for the payload
+         */
+        private int maxSize() {
+            int size = 64 + cues.length * 8 + 8 + sizeOf(beatGrid) + sizeOf(waveformPreview) + 8;
+            final String style = (previewStyle == null) ? null : previewStyle.name();
+            for (String s : new String[]{title, artist, album, comment, genre, key, colorName, style}) {
+                size += 2 + 4 * Math.min((s == null) ? 0 : s.length(), MAX_STRING);
+            }
+            for (List<byte[]> tags : Arrays.asList(cueTags, extendedCueTags)) {
+                if (tags != null) {
+                    for (byte[] tag : tags) {
+                        size += 4 + tag.length;
+                    }
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Write this entry as the payload of a track record.
+         *
+         * @param buffer where the payload should be written
+         */
+        private void write(ByteBuffer buffer) {
+            putString(buffer, title);
+            putString(buffer, artist);
+            putString(buffer, album);
+            putString(buffer, comment);
+            putString(buffer, genre);
+            buffer.putDouble(tempo);
+            buffer.putInt(duration);
+            putString(buffer, key);
+            buffer.putInt(rating);
+            buffer.put((byte) (colorName == null ? 0 : 1));
+            putString(buffer, colorName);
+            buffer.putInt(red).putInt(green).putInt(blue);
+            buffer.putInt(artworkId);
+            buffer.putInt(cues.length / 3);
+            for (long value : cues) {
+                buffer.putLong(value);
+            }
+            buffer.putLong(trackLength);
+            putBytes(buffer, beatGrid);
+            putBytes(buffer, waveformPreview);
+            putString(buffer, (previewStyle == null) ? null : previewStyle.name());
+            putTags(buffer, cueTags);
+            putTags(buffer, extendedCueTags);
+        }
+    }
+
+    /**
+     * The folder holding the cache file, or {@code null} to use the cache folder of our Max package.
+     */
+    private final File location;
+
+    /**
+     * The file we are using, or {@code null} if it is not open.
+     */
+    private FileChannel channel = null;
+
+    /**
+     * The mapped contents of the file, positioned where the next record will be written.
+     */
+    private MappedByteBuffer buffer = null;
+
+    /**
+     * The file offset of the payload of each track we know, keyed by signature.
+     */
+    private final Map<String, Integer> trackOffsets = new HashMap<>();
+
+    /**
+     * The signature of each track we know, keyed by {@link #referenceKey(DataReference)}.
+     */
+    private final Map<String, String> signatures = new HashMap<>();
+
+    /**
+     * Tracks we have already read back from the file, keyed by signature, so each is decoded only once.
+     */
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * How many objects are currently using the cache.
+     */
+    private int users = 0;
+
+    /**
+     * Set once we have warned that the file has reached its maximum size, so we only do so once.
+     */
+    private boolean fullReported = false;
+
+    /**
+     * Keeps track of the listener we register while the cache is in use.
+     */
+    private final Registrations registrations = new Registrations();
+
+    /**
+     * Learns the signatures of newly loaded tracks, so we can remember them.
+     */
+    private final SignatureListener signatureListener = update -> {
+        if (update.signature != null) {
+            store(update.player, update.signature);
+        }
+    };
+
+    /**
+     * Offers the beat grids, waveform previews and cue lists we remember to Beat Link, so that the finders do not
+     * need to fetch them again for tracks we have seen before.
+     */
+    private final MetadataProvider metadataProvider = new MetadataProvider() {
+        @Override
+        public List<MediaDetails> supportedMedia() {
+            return Collections.emptyList();  // We might have tracks from any media.
+        }
+
+        @Override
+        public TrackMetadata getTrackMetadata(MediaDetails sourceMedia, DataReference track) {
+            return null;  // We don't keep enough to rebuild this.
+        }
+
+        @Override
+        public AlbumArt getAlbumArt(MediaDetails sourceMedia, DataReference art) {
+            return null;
+        }
+
+        @Override
+        public BeatGrid getBeatGrid(MediaDetails sourceMedia, DataReference track) {
+            final Entry entry = lookupKey(mediaKey(sourceMedia, track));
+            return (entry == null) ? null : entry.beatGridFor(track);
+        }
+
+        @Override
+        public CueList getCueList(MediaDetails sourceMedia, DataReference track) {
+            final Entry entry = lookupKey(mediaKey(sourceMedia, track));
+            return (entry == null) ? null : entry.cueList();
+        }
+
+        @Override
+        public WaveformPreview getWaveformPreview(MediaDetails sourceMedia, DataReference track) {
+            final Entry entry = lookupKey(mediaKey(sourceMedia, track));
+            return (entry == null) ? null :
+                    entry.waveformPreviewFor(track, WaveformFinder.getInstance().getPreferredStyle());
+        }
+
+        @Override
+        public WaveformDetail getWaveformDetail(MediaDetails sourceMedia, DataReference track) {
+            return null;
+        }
+
+        @Override
+        public RekordboxAnlz.TaggedSection getAnalysisSection(MediaDetails sourceMedia, DataReference track,
+                                                              String fileExtension, String typeTag) {
+            return null;
+        }
+    };
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final AnalysisCache instance = new AnalysisCache(null);
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists
+     */
+    static AnalysisCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Create a cache. Our objects all share the singleton instance; others are only useful for keeping a cache
+     * somewhere other than our Max package.
+     *
+     * @param location the folder in which the cache file should be kept, or {@code null} to use the cache folder
+     *                 of our Max package
+     */
+    AnalysisCache(File location) {
+        this.location = location;
+    }
+
+    /**
+     * Write a string, preceded by the length of its encoded form.
+     *
+     * @param buffer where the string should be written
+     * @param s the string, or {@code null} to write an empty string
+     */
+    private static void putString(ByteBuffer buffer, String s) {
+        final String value = (s == null) ? "" : s;
+        final byte[] bytes = value.substring(0, Math.min(value.length(), MAX_STRING)).getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Read a string written by {@link #putString(ByteBuffer, String)}.
+     *
+     * @param buffer positioned at the string's length
+     *
+     * @return the string
+     */
+    private static String getString(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copy the contents of a buffer Beat Link has given us, from its start, without disturbing it.
+     *
+     * @param buffer the buffer, or {@code null}
+     *
+     * @return its contents, or {@code null} if there was no buffer
+     */
+    private static byte[] bytesOf(ByteBuffer buffer) {
+        if (buffer == null) {
+            return null;
+        }
+        final ByteBuffer view = buffer.duplicate();
+        view.rewind();
+        final byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Copy the contents of a list of buffers Beat Link has given us.
+     *
+     * @param buffers the buffers, or {@code null}
+     *
+     * @return their contents, or {@code null} if there was no list
+     */
+    private static List<byte[]> bytesOf(List<ByteBuffer> buffers) {
+        if (buffers == null) {
+            return null;
+        }
+        final List<byte[]> result = new ArrayList<>(buffers.size());
+        for (ByteBuffer buffer : buffers) {
+            result.add(bytesOf(buffer));
+        }
+        return result;
+    }
+
+    /**
+     * Wrap remembered byte arrays as buffers Beat Link can parse.
+     *
+     * @param tags the byte arrays, or {@code null}
+     *
+     * @return the buffers, or {@code null} if there was no list
+     */
+    private static List<ByteBuffer> buffersOf(List<byte[]> tags) {
+        if (tags == null) {
+            return null;
+        }
+        final List<ByteBuffer> result = new ArrayList<>(tags.size());
+        for (byte[] tag : tags) {
+            result.add(ByteBuffer.wrap(tag).asReadOnlyBuffer());
+        }
+        return result;
+    }
+
+    /**
+     * Calculate the space needed to write a byte array, beyond its length.
+     *
+     * @param bytes the array, or {@code null}
+     *
+     * @return the number of bytes it will occupy after its length
+     */
+    private static int sizeOf(byte[] bytes) {
+        return (bytes == null) ? 0 : bytes.length;
+    }
+
+    /**
+     * Write a byte array, preceded by its length, which is -1 for {@code null}.
+     *
+     * @param buffer where the array should be written
+     * @param bytes the array, or {@code null}
+     */
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    /**
+     * Read a byte array written by {@link #putBytes(ByteBuffer, byte[])}.
+     *
+     * @param buffer positioned at the array's length
+     *
+     * @return the array, or {@code null} if none was written
+     */
+    private static byte[] getBytes(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Write a list of byte arrays, preceded by their count, which is -1 for {@code null}.
+     *
+     * @param buffer where the list should be written
+     * @param tags the arrays, or {@code null}
+     */
+    private static void putTags(ByteBuffer buffer, List<byte[]> tags) {
+        if (tags == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(tags.size());
+            for (byte[] tag : tags) {
+                putBytes(buffer, tag);
+            }
+        }
+    }
+
+    /**
+     * Read a list of byte arrays written by {@link #putTags(ByteBuffer, List)}.
+     *
+     * @param buffer positioned at the count of arrays
+     *
+     * @return the arrays, or {@code null} if no list was written
+     */
+    private static List<byte[]> getTags(ByteBuffer buffer) {
+        final int count = buffer.getInt();
+        if (count < 0) {
+            return null;
+        }
+        final List<byte[]> tags = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tags.add(getBytes(buffer));
+        }
+        return tags;
+    }
+
+    /**
+     * Find the rekordbox track that a player status says is loaded.
+     *
+     * @param status the status packet from the player
+     *
+     * @return the loaded track, or {@code null} if no rekordbox track is loaded
+     */
+    static DataReference referenceFor(CdjStatus status) {
+        if (status.getTrackType() != CdjStatus.TrackType.REKORDBOX || status.getRekordboxId() == 0) {
+            return null;
+        }
+        return new DataReference(status.getTrackSourcePlayer(), status.getTrackSourceSlot(),
+                status.getRekordboxId());
+    }
+
+    /**
+     * Build the key under which we remember the signature of a track, which identifies the media it is on
+     * independently of which player that media is inserted in.
+     *
+     * @param reference the track
+     *
+     * @return the key, or {@code null} if we don't know which media the track is on
+     */
+    private static String referenceKey(DataReference reference) {
+        if (!MetadataFinder.getInstance().isRunning()) {
+            return null;
+        }
+        return mediaKey(MetadataFinder.getInstance().getMediaDetailsFor(reference.getSlotReference()), reference);
+    }
+
+    /**
+     * Build the key under which we remember the signature of a track, given the media it is on.
+     *
+     * @param media the media holding the track, or {@code null} if unknown
+     * @param reference the track
+     *
+     * @return the key, or {@code null} if we don't know which media the track is on
+     */
+    private static String mediaKey(MediaDetails media, DataReference reference) {
+        return (media == null) ? null : media.hashKey() + "/" + reference.rekordboxId;
+    }
+
+    /**
+     * Record that an object needs the cache. The first one causes us to open the file and start remembering tracks.
+     */
+    synchronized void acquire() {
+        users++;
+        if (users > 1) {
+            return;
+        }
+        Finders.getInstance().require(Finders.Feature.SIGNATURES);
+        try {
+            open();
+        } catch (Exception e) {
+            logger.error("Unable to open track analysis cache, tracks will not be remembered", e);
+            closeFile();
+        }
+        registrations.register("SignatureFinder", signatureListener,
+                () -> SignatureFinder.getInstance().addSignatureListener(signatureListener),
+                () -> SignatureFinder.getInstance().removeSignatureListener(signatureListener));
+        registrations.register("MetadataFinder", metadataProvider,
+                () -> MetadataFinder.getInstance().addMetadataProvider(metadataProvider),
+                () -> MetadataFinder.getInstance().removeMetadataProvider(metadataProvider));
+    }
+
+    /**
+     * Record that an object no longer needs the cache. When the last one is gone, we stop remembering tracks and
+     * close the file.
+     */
+    synchronized void release() {
+        if (users < 1) {
+            return;
+        }
+        users--;
+        if (users == 0) {
+            registrations.unregisterAll();
+            Finders.getInstance().release(Finders.Feature.SIGNATURES);
+            closeFile();
+        }
+    }
+
+    /**
+     * Open and map the cache file, creating it if needed, and find all the records in it.
+     *
+     * @throws Exception if there is a problem finding, creating or mapping the file
+     */
+    private void open() throws Exception {
+        final File folder = (location != null) ? location : new File(Util.findPackageFolder(), FOLDER_NAME);
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Failed to create cache folder " + folder.getCanonicalPath());
+        }
+        final File file = new File(folder, FILE_NAME);
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        final long size = channel.size();
+        if (size > MAX_SIZE) {
+            throw new IOException("Track analysis cache is larger than expected: " + file);
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_SIZE, size));
+        if (size < FILE_HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            if (size > 0) {
+                logger.warn("Discarding track analysis cache in unrecognized format: {}", file);
+            }
+            for (int i = 0; i < buffer.capacity(); i++) {
+                buffer.put(i, (byte) 0);
+            }
+            buffer.putInt(0, MAGIC).putInt(4, VERSION);
+        }
+        buffer.position(FILE_HEADER_SIZE);
+        scan();
+        logger.info("Track analysis cache {} holds {} tracks", file, trackOffsets.size());
+    }
+
+    /**
+     * Read through the records in the file, remembering where each track is and the signatures of known track
+     * references, and leave the buffer positioned after the last complete record.
+     */
+    private void scan() {
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            final int start = buffer.position();
+            final byte type = buffer.get();
+            final int length = buffer.getInt();
+            if (type == 0 || length < 0 || length > buffer.remaining()) {
+                buffer.position(start);  // We have reached the end of the complete records.
+                return;
+            }
+            final int payload = buffer.position();
+            final String signature = getString(buffer);
+            if (type == TRACK) {
+                trackOffsets.put(signature, buffer.position());
+            } else if (type == REFERENCE) {
+                signatures.put(getString(buffer), signature);
+            }
+            buffer.position(payload + length);
+        }
+    }
+
+    /**
+     * Unmap and close the cache file, and forget its contents.
+     */
+    private void closeFile() {
+        if (channel != null) {
+            try {
+                buffer.force();
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Problem closing track analysis cache", e);
+            }
+        }
+        channel = null;
+        buffer = null;
+        trackOffsets.clear();
+        signatures.clear();
+        entries.clear();
+    }
+
+    /**
+     * Make sure there is room in the mapped file for another record, growing it if needed.
+     *
+     * @param length the size of the record's payload
+     *
+     * @return {@code true} if the record can be written
+     *
+     * @throws IOException if the file could not be grown
+     */
+    private boolean makeRoom(int length) throws IOException {
+        final int needed = RECORD_HEADER_SIZE + length + 1;  // Leave room for the zero type byte marking the end.
+        if (buffer.remaining() >= needed) {
+            return true;
+        }
+        final int position = buffer.position();
+        final long size = Math.max(buffer.capacity() * 2L, (long) position + needed);
+        if (size > MAX_SIZE) {
+            if (!fullReported) {
+                logger.warn("Track analysis cache is full, no more tracks will be remembered");
+                fullReported = true;
+            }
+            return false;
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.position(position);
+        return true;
+    }
+
+    /**
+     * Append a record to the file. The payload is written before the type byte, so the record only becomes visible
+     * to {@link #scan()} once it is complete.
+     *
+     * @param type the record type
+     * @param payload the contents of the record
+     *
+     * @return the file offset at which the payload was written, or -1 if there was no room for it
+     *
+     * @throws IOException if the file could not be grown
+     */
+    private int append(byte type, ByteBuffer payload) throws IOException {
+        payload.flip();
+        if (!makeRoom(payload.remaining())) {
+            return -1;
+        }
+        final int start = buffer.position();
+        buffer.position(start + 1);
+        buffer.putInt(payload.remaining());
+        final int offset = buffer.position();
+        buffer.put(payload);
+        buffer.put(start, type);
+        return offset;
+    }
+
+    /**
+     * Remember the track that a player has loaded, now that we have learned its signature.
+     *
+     * @param player the player whose track signature is now known
+     * @param signature the signature
+     */
+    private synchronized void store(int player, String signature) {
+        if (buffer == null || !MetadataFinder.getInstance().isRunning() || !VirtualCdj.getInstance().isRunning()) {
+            return;
+        }
+        if (!signature.equals(SignatureFinder.getInstance().getLatestSignatureFor(player))) {
+            return;  // The player has already loaded another track.
+        }
+        final DeviceUpdate status = VirtualCdj.getInstance().getLatestStatusFor(player);
+        final DataReference loaded = (status instanceof CdjStatus) ? referenceFor((CdjStatus) status) : null;
+        final TrackMetadata metadata = MetadataFinder.getInstance().getLatestMetadataFor(player);
+        if (loaded == null || metadata == null || !loaded.equals(metadata.trackReference)) {
+            return;  // The metadata isn't for the track the signature describes.
+        }
+        WaveformDetail detail = WaveformFinder.getInstance().isRunning() ?
+                WaveformFinder.getInstance().getLatestDetailFor(player) : null;
+        if (detail != null && !loaded.equals(detail.dataReference)) {
+            detail = null;  // The waveform belongs to a different track.
+        }
+        WaveformPreview preview = WaveformFinder.getInstance().isRunning() ?
+                WaveformFinder.getInstance().getLatestPreviewFor(player) : null;
+        if (preview != null && !loaded.equals(preview.dataReference)) {
+            preview = null;  // The preview belongs to a different track.
+        }
+        BeatGrid grid = BeatGridFinder.getInstance().isRunning() ?
+                BeatGridFinder.getInstance().getLatestBeatGridFor(player) : null;
+        if (grid != null && !loaded.equals(grid.dataReference)) {
+            grid = null;  // The beat grid belongs to a different track.
+        }
+        remember(signature, Entry.of(metadata, detail, grid, preview), referenceKey(metadata.trackReference));
+    }
+
+    /**
+     * Write a track, and the media location from which it was loaded, to the file unless they are already there.
+     *
+     * @param signature the track signature
+     * @param entry what we want to remember about the track
+     * @param key identifies the media and rekordbox ID from which the track was loaded, or {@code null} if unknown
+     */
+    synchronized void remember(String signature, Entry entry, String key) {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            if (!trackOffsets.containsKey(signature)) {
+                final ByteBuffer payload = ByteBuffer.allocate(2 + 4 * signature.length() + entry.maxSize());
+                putString(payload, signature);
+                final int signatureLength = payload.position();
+                entry.write(payload);
+                final int offset = append(TRACK, payload);
+                if (offset >= 0) {
+                    trackOffsets.put(signature, offset + signatureLength);
+                    entries.put(signature, entry);
+                }
+            }
+            if (key != null && !signature.equals(signatures.get(key))) {
+                final ByteBuffer payload = ByteBuffer.allocate(4 + 4 * (signature.length() + key.length()));
+                putString(payload, signature);
+                putString(payload, key);
+                if (append(REFERENCE, payload) >= 0) {
+                    signatures.put(key, signature);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Problem writing to track analysis cache, tracks will no longer be remembered", e);
+            closeFile();
+        }
+    }
+
+    /**
+     * Look up what we remember about a track, given its signature.
+     *
+     * @param signature the track signature
+     *
+     * @return the entry for the track, or {@code null} if we have not seen it
+     */
+    synchronized Entry lookup(String signature) {
+        if (signature == null || buffer == null) {
+            return null;
+        }
+        Entry entry = entries.get(signature);
+        if (entry == null) {
+            final Integer offset = trackOffsets.get(signature);
+            if (offset != null) {
+                final ByteBuffer view = buffer.duplicate();
+                view.position(offset);
+                entry = new Entry(view);
+                entries.put(signature, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Look up what we remember about a track that has just been loaded, before its signature is known.
+     *
+     * @param reference the loaded track
+     *
+     * @return the entry for the track, or {@code null} if we have not seen it on this media before
+     */
+    synchronized Entry lookup(DataReference reference) {
+        if (reference == null || buffer == null) {
+            return null;
+        }
+        return lookupKey(referenceKey(reference));
+    }
+
+    /**
+     * Look up what we remember about a track, given the media and rekordbox ID from which it was loaded.
+     *
+     * @param key identifies the media and rekordbox ID, as built by {@link #referenceKey(DataReference)}
+     *
+     * @return the entry for the track, or {@code null} if we have not seen it there before
+     */
+    synchronized Entry lookupKey(String key) {
+        return (key == null) ? null : lookup(signatures.get(key));
+    }
+}
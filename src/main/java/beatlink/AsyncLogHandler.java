@@ -0,0 +1,269 @@
+package beatlink;
+
+import org.apiguardian.api.API;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * A logging handler that never makes the thread doing the logging wait for the disk. Records are placed in a
+ * bounded queue and written to the real handler by a dedicated daemon thread; if the queue is full because the disk
+ * has stalled, records are discarded (and counted) rather than blocking. Each logger is also limited to a maximum
+ * number of records per second, so that a flapping device cannot flood the log with the same error; the number of
+ * records suppressed is logged once the logger is allowed to speak again, or by the writer thread once the window in
+ * which they were suppressed has ended, if the logger has gone quiet by then.
+ */
+@API(status = API.Status.INTERNAL)
+final class AsyncLogHandler extends Handler {
+
+    /**
+     * How often, in milliseconds, the writer thread looks for suppressed records that have not yet been reported.
+     */
+    private static final long SWEEP_MILLIS = 250;
+
+    /**
+     * Tracks how many records a logger has published in the current one-second window.
+     */
+    private static final class Window {
+
+        /**
+         * The {@link System#nanoTime()} at which the current window began.
+         */
+        private long start;
+
+        /**
+         * The number of records published in the current window.
+         */
+        private int count;
+
+        /**
+         * The number of records discarded in the current window because the limit had been reached.
+         */
+        private int suppressed;
+    }
+
+    /**
+     * The handler that actually writes records to disk, used only by our writer thread.
+     */
+    private final Handler target;
+
+    /**
+     * The records waiting to be written.
+     */
+    private final BlockingQueue<LogRecord> queue;
+
+    /**
+     * The maximum number of records each logger may publish per second, or zero for no limit.
+     */
+    private final int rateLimit;
+
+    /**
+     * The rate limiting windows of each logger, keyed by logger name.
+     */
+    private final Map<String, Window> windows = new HashMap<>();
+
+    /**
+     * Counts the records discarded because the queue was full.
+     */
+    private final AtomicLong overflowed = new AtomicLong();
+
+    /**
+     * Writes queued records to the target handler.
+     */
+    private final Thread writer;
+
+    /**
+     * Set when we are closed, so the writer thread can finish.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Create a handler that writes asynchronously to another.
+     *
+     * @param target the handler that will do the actual writing
+     * @param capacity the maximum number of records that can be waiting to be written
+     * @param rateLimit the maximum number of records each logger may publish per second, or zero for no limit
+     */
+    AsyncLogHandler(Handler target, int capacity, int rateLimit) {
+        this.target = target;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.rateLimit = rateLimit;
+        writer = new Thread(this::write, "beat-link-max logging");
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+    }
+
+    /**
+     * Decide whether a record fits within its logger's rate limit, and whether we need to report that earlier
+     * records were suppressed.
+     *
+     * @param record the record being published
+     *
+     * @return the number of records suppressed in the previous window that should now be reported (zero if none),
+     *         or -1 if this record should itself be suppressed
+     */
+    private synchronized int checkRate(LogRecord record) {
+        if (rateLimit < 1) {
+            return 0;
+        }
+        final String name = (record.getLoggerName() == null) ? "" : record.getLoggerName();
+        final long now = System.nanoTime();
+        final Window window = windows.computeIfAbsent(name, k -> new Window());
+        int wasSuppressed = 0;
+        if (now - window.start >= 1000000000L) {
+            wasSuppressed = window.suppressed;
+            window.start = now;
+            window.count = 0;
+            window.suppressed = 0;
+        }
+        if (window.count >= rateLimit) {
+            window.suppressed++;
+            return -1;
+        }
+        window.count++;
+        return wasSuppressed;
+    }
+
+    /**
+     * Build the record that reports how many records were suppressed for a logger.
+     *
+     * @param loggerName the name of the logger whose records were suppressed
+     * @param suppressed how many records were suppressed
+     *
+     * @return the record to be written
+     */
+    private static LogRecord suppressionSummary(String loggerName, int suppressed) {
+        final LogRecord summary = new LogRecord(Level.WARNING,
+                "Suppressed " + suppressed + " log messages from this logger in the previous second");
+        summary.setLoggerName(loggerName);
+        return summary;
+    }
+
+    /**
+     * Gather the suppression counts of windows that have ended, so loggers that stop publishing after being
+     * limited still have their suppressed records reported. Called periodically by the writer thread.
+     *
+     * @param all {@code true} to gather the counts of every window, even those that have not yet ended, because
+     *            we are closing
+     *
+     * @return the summaries to be written, or {@code null} if there are none
+     */
+    private synchronized List<LogRecord> takeSuppressionSummaries(boolean all) {
+        final long now = System.nanoTime();
+        List<LogRecord> summaries = null;
+        for (Map.Entry<String, Window> entry : windows.entrySet()) {
+            final Window window = entry.getValue();
+            if (window.suppressed > 0 && (all || now - window.start >= 1000000000L)) {
+                if (summaries == null) {
+                    summaries = new ArrayList<>();
+                }
+                summaries.add(suppressionSummary(entry.getKey(), window.suppressed));
+                window.suppressed = 0;
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Add a record to the queue if there is room, counting it if there is not.
+     *
+     * @param record the record to be written
+     */
+    private void enqueue(LogRecord record) {
+        if (!queue.offer(record)) {
+            overflowed.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        final int suppressed = checkRate(record);
+        if (suppressed < 0) {
+            return;
+        }
+        if (suppressed > 0) {
+            enqueue(suppressionSummary(record.getLoggerName(), suppressed));
+        }
+        record.getSourceClassName();  // Work out the caller now, while we are still on the caller's thread.
+        enqueue(record);
+    }
+
+    /**
+     * Write any suppression summaries that are due to the target handler.
+     *
+     * @param all {@code true} to write every pending count, because we are closing
+     */
+    private void writeSuppressionSummaries(boolean all) {
+        final List<LogRecord> summaries = takeSuppressionSummaries(all);
+        if (summaries != null) {
+            for (LogRecord summary : summaries) {
+                target.publish(summary);
+            }
+        }
+    }
+
+    /**
+     * The body of our writer thread: waits for records and passes them to the target handler, reporting any that
+     * had to be discarded, and any suppressed by rate limiting whose logger has not published since.
+     */
+    private void write() {
+        long nextSweep = System.nanoTime();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                final LogRecord record = queue.poll(SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+                final long lost = overflowed.getAndSet(0);
+                if (lost > 0) {
+                    target.publish(new LogRecord(Level.WARNING,
+                            "Discarded " + lost + " log messages because the log could not be written fast enough"));
+                }
+                if (record != null) {
+                    target.publish(record);
+                }
+                if (System.nanoTime() - nextSweep >= 0) {
+                    writeSuppressionSummaries(false);
+                    nextSweep = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SWEEP_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                reportError("Problem writing log record", e, ErrorManager.WRITE_FAILURE);
+            }
+        }
+        try {
+            writeSuppressionSummaries(true);
+        } catch (Exception e) {
+            reportError("Problem writing log record", e, ErrorManager.WRITE_FAILURE);
+        }
+    }
+
+    @Override
+    public void flush() {
+        // The writer thread flushes the target as it goes; there is nothing useful we can do without blocking.
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        target.close();
+    }
+}
@@ -0,0 +1,580 @@
+package beatlink;
+
+import com.cycling74.max.Atom;
+import com.cycling74.max.DataTypes;
+import com.cycling74.max.MaxObject;
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.*;
+import org.deepsymmetry.beatlink.data.BeatGrid;
+import org.deepsymmetry.beatlink.data.TimeFinder;
+import org.deepsymmetry.beatlink.data.TrackPositionUpdate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.midi.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An MXJ object that sends MIDI clock, following the tempo master, directly to a MIDI output device. Unlike clock
+ * generated inside a patch, the clock messages are timed by a dedicated high-priority thread rather than the Max
+ * scheduler, so they are not delayed when Max is busy. The clock runs at 24 pulses per quarter note at the master
+ * tempo, and is kept in phase with the master's beats by a phase-locked loop which gently adjusts the pulse rate,
+ * rather than jumping, so that receiving devices see a steady clock. When the master starts playing we send its
+ * position as a song position pointer followed by a continue (or a start, at the top of the track), and when it
+ * stops we send a stop.
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class Clock extends MaxObject {
+
+    private static final Logger logger = LoggerFactory.getLogger(Clock.class);
+
+    /**
+     * The number of clock pulses in each beat.
+     */
+    private static final int PULSES_PER_BEAT = 24;
+
+    /**
+     * The number of clock pulses in each song position (a sixteenth note).
+     */
+    private static final int PULSES_PER_POSITION = 6;
+
+    /**
+     * How close to a pulse we stop sleeping and start spinning, so that the pulse is sent on time even though the
+     * operating system may wake us late.
+     */
+    private static final long SPIN_NANOS = 500000;
+
+    /**
+     * The largest adjustment the phase-locked loop can make to the pulse rate, as a fraction of the tempo.
+     */
+    private static final double MAX_CORRECTION = 0.08;
+
+    /**
+     * The fraction of the remaining phase error that the integral part of the phase-locked loop accumulates at
+     * each beat, which lets it absorb a steady tempo difference.
+     */
+    private static final double INTEGRAL_GAIN = 0.02;
+
+    /**
+     * How many beat periods can pass without a beat from the master before the phase-locked loop gives up on its
+     * correction and returns to the nominal pulse rate.
+     */
+    private static final int BEATS_BEFORE_RESET = 2;
+
+    /**
+     * The mailbox slot used to deliver phase error reports to the patch.
+     */
+    private static final int ERROR_SLOT = 0;
+
+    /**
+     * Holds status and phase error reports until they can be sent to the patch from the Max scheduler thread.
+     * Status reports are queued in order, and only the most recent phase error is delivered.
+     */
+    private final Mailbox mailbox = new Mailbox(1, 8);
+
+    /**
+     * Keeps track of the listeners we have registered, so they can all be removed when we are deleted.
+     */
+    private final Registrations registrations = new Registrations();
+
+    /**
+     * The attribute that identifies the MIDI output device we send to, by all or part of its name.
+     */
+    private String device = "";
+
+    /**
+     * The attribute that controls how quickly the phase-locked loop corrects phase errors: the fraction of the
+     * error it tries to remove over the following beat.
+     */
+    private volatile float loopgain = 0.3f;
+
+    /**
+     * The MIDI device we have opened, if any.
+     */
+    private MidiDevice midiDevice = null;
+
+    /**
+     * Where we send our MIDI messages, or {@code null} if we have no output.
+     */
+    private volatile Receiver receiver = null;
+
+    /**
+     * The thread which sends clock pulses, running whenever we have an output.
+     */
+    private Thread timingThread = null;
+
+    /**
+     * The {@link System#nanoTime()} at which the most recent beat from the tempo master was received, or zero if
+     * the timing thread has already taken it into account.
+     */
+    private final AtomicLong pendingBeat = new AtomicLong();
+
+    /**
+     * The clock pulse message, which never changes, so it is built once.
+     */
+    private final ShortMessage clockMessage = shortMessage(ShortMessage.TIMING_CLOCK);
+
+    /**
+     * The start message.
+     */
+    private final ShortMessage startMessage = shortMessage(ShortMessage.START);
+
+    /**
+     * The continue message.
+     */
+    private final ShortMessage continueMessage = shortMessage(ShortMessage.CONTINUE);
+
+    /**
+     * The stop message.
+     */
+    private final ShortMessage stopMessage = shortMessage(ShortMessage.STOP);
+
+    /**
+     * Build a MIDI system real time message.
+     *
+     * @param status the status byte of the message
+     *
+     * @return the message
+     */
+    private static ShortMessage shortMessage(int status) {
+        try {
+            return new ShortMessage(status);
+        } catch (InvalidMidiDataException e) {
+            throw new IllegalStateException("Invalid MIDI status " + status, e);
+        }
+    }
+
+    /**
+     * Tells the timing thread about beats from the tempo master, so it can keep our pulses in phase with them.
+     */
+    private final MasterListener masterListener = new MasterAdapter() {
+        @Override
+        public void newBeat(Beat beat) {
+            pendingBeat.set(beat.getTimestamp());
+        }
+    };
+
+    /**
+     * Everything the timing thread keeps track of between pulses. Only ever touched by that thread (or by tests,
+     * in its place).
+     */
+    static final class TimingState {
+
+        /**
+         * The number of pulses since the start of the song, according to the position we last sent, so that every
+         * 24th pulse falls on a beat.
+         */
+        long pulses = 0;
+
+        /**
+         * The {@link System#nanoTime()} at which the most recent pulse was sent.
+         */
+        long lastPulse = 0;
+
+        /**
+         * The {@link System#nanoTime()} at which the next pulse is due.
+         */
+        long nextPulse = 0;
+
+        /**
+         * The interval between pulses at the master tempo, before any correction.
+         */
+        double nominalInterval = 0.0;
+
+        /**
+         * The accumulated integral part of the phase-locked loop's correction.
+         */
+        double integral = 0.0;
+
+        /**
+         * The current correction to the pulse interval, as a fraction of it; positive values slow us down.
+         */
+        double correction = 0.0;
+
+        /**
+         * The {@link System#nanoTime()} at which the most recent beat the loop locked to was received, or zero if
+         * there has been none since the loop was last reset.
+         */
+        long lastBeat = 0;
+
+        /**
+         * The device number of the tempo master at the previous pulse, or zero if there was none.
+         */
+        int masterDevice = 0;
+
+        /**
+         * Whether the master was playing at the previous pulse.
+         */
+        boolean playing = false;
+    }
+
+    /**
+     * Choose where our MIDI messages are sent. Used directly by tests, which have no MIDI device to open.
+     *
+     * @param target the receiver that should get our messages, or {@code null} to send nothing
+     */
+    void setReceiver(Receiver target) {
+        receiver = target;
+    }
+
+    /**
+     * Send a message to our output, if we still have one.
+     *
+     * @param message the message to send
+     */
+    private void send(MidiMessage message) {
+        final Receiver target = receiver;
+        if (target != null) {
+            target.send(message, -1);
+        }
+    }
+
+    /**
+     * Find out how far into the track the tempo master is, in pulses, interpolating from its most recent position
+     * update and looking up the beat in its beat grid.
+     *
+     * @param master the most recent status from the tempo master
+     *
+     * @return the number of pulses from the start of the track to the master's current position, rounded down to a
+     *         song position (sixteenth note) boundary
+     */
+    private static long masterPositionPulses(CdjStatus master) {
+        int beat = master.getBeatNumber();
+        double fraction = 0.0;
+        if (TimeFinder.getInstance().isRunning()) {
+            final TrackPositionUpdate position = TimeFinder.getInstance().getLatestPositionFor(master.getDeviceNumber());
+            final BeatGrid grid = (position == null) ? null : position.beatGrid;
+            if (grid != null) {
+                final double time = Util.interpolateTime(position, System.nanoTime());
+                final int found = grid.findBeatAtTime(Math.round(time));
+                if (found > 0) {
+                    beat = found;
+                    if (found < grid.beatCount) {
+                        final long start = grid.getTimeWithinTrack(found);
+                        final long end = grid.getTimeWithinTrack(found + 1);
+                        fraction = (end > start) ? Math.min(1.0, Math.max(0.0, (time - start) / (end - start))) : 0.0;
+                    }
+                }
+            }
+        }
+        final long sixteenths = Math.max(0, beat - 1) * 4L + (long) (fraction * 4);
+        return Math.min(sixteenths, 0x3fff) * PULSES_PER_POSITION;
+    }
+
+    /**
+     * Forget the phase-locked loop's correction, returning to the nominal pulse rate. Done whenever the beats we
+     * were locking to stop or come from a different player, since the correction no longer means anything.
+     *
+     * @param state the timing state
+     */
+    private static void resetLoop(TimingState state) {
+        state.correction = 0.0;
+        state.integral = 0.0;
+        state.lastBeat = 0;
+    }
+
+    /**
+     * Send the transport messages needed when the master starts or stops playing, and reset the phase-locked loop
+     * when the master changes or goes away.
+     *
+     * @param state the timing state
+     * @param master the most recent status from the tempo master, or {@code null} if there is none
+     */
+    private void updateTransport(TimingState state, DeviceUpdate master) {
+        final int device = (master == null) ? 0 : master.getDeviceNumber();
+        if (device != state.masterDevice) {
+            state.masterDevice = device;
+            resetLoop(state);  // A handoff, or the master is gone.
+        }
+        final boolean playing = (master instanceof CdjStatus) && ((CdjStatus) master).isPlaying();
+        if (playing == state.playing) {
+            return;
+        }
+        if (playing) {
+            startTransport(state, masterPositionPulses((CdjStatus) master));
+        } else {
+            stopTransport(state);
+        }
+    }
+
+    /**
+     * Tell receivers that the master has started playing, by sending its position as a song position pointer
+     * followed by a start (at the top of the track) or a continue.
+     *
+     * @param state the timing state
+     * @param pulses the number of pulses from the start of the track to the master's position, which must fall on
+     *               a song position boundary
+     */
+    void startTransport(TimingState state, long pulses) {
+        state.playing = true;
+        final int position = (int) (pulses / PULSES_PER_POSITION);
+        state.pulses = pulses;
+        try {
+            send(new ShortMessage(ShortMessage.SONG_POSITION_POINTER, position & 0x7f, (position >> 7) & 0x7f));
+        } catch (InvalidMidiDataException e) {
+            logger.error("Unable to build song position pointer for position {}", position, e);
+        }
+        send((position == 0) ? startMessage : continueMessage);
+        mailbox.enqueue(() -> outlet(0, "start", new Atom[]{Atom.newAtom(position)}));
+    }
+
+    /**
+     * Tell receivers that the master has stopped playing, and reset the phase-locked loop.
+     *
+     * @param state the timing state
+     */
+    void stopTransport(TimingState state) {
+        state.playing = false;
+        resetLoop(state);
+        send(stopMessage);
+        mailbox.enqueue(() -> outlet(0, "stop"));
+    }
+
+    /**
+     * Adjust the pulse rate to pull our pulses into phase with a beat from the tempo master. Our phase at the
+     * moment of the beat, worked out from when we sent our most recent pulse, should be a whole number of beats;
+     * whatever is left over is the error the loop works to remove.
+     *
+     * @param state the timing state
+     * @param beatTime the {@link System#nanoTime()} at which the master's beat was received
+     */
+    private void lockToBeat(TimingState state, long beatTime) {
+        if (state.nominalInterval <= 0.0 || state.lastPulse == 0) {
+            return;
+        }
+        final double interval = state.nominalInterval * (1.0 + state.correction);
+        final double pulsePhase = state.pulses + (beatTime - state.lastPulse) / interval;
+        double error = (pulsePhase / PULSES_PER_BEAT) % 1.0;
+        if (error >= 0.5) {
+            error -= 1.0;
+        } else if (error < -0.5) {
+            error += 1.0;
+        }
+        state.lastBeat = beatTime;
+        state.integral = clampCorrection(state.integral + INTEGRAL_GAIN * error);
+        state.correction = clampCorrection(loopgain * error + state.integral);
+        final double errorMillis = error * state.nominalInterval * PULSES_PER_BEAT / 1000000.0;
+        mailbox.post(ERROR_SLOT, () -> outlet(1, errorMillis));
+    }
+
+    /**
+     * Limit a pulse rate correction to the range the phase-locked loop is allowed to use.
+     *
+     * @param correction the proposed correction
+     *
+     * @return the correction, limited to plus or minus {@link #MAX_CORRECTION}
+     */
+    private static double clampCorrection(double correction) {
+        return Math.max(-MAX_CORRECTION, Math.min(MAX_CORRECTION, correction));
+    }
+
+    /**
+     * Send a clock pulse, lock to the master's beat if one has arrived since the previous pulse, and work out when
+     * the next pulse is due. If no beat has arrived for {@link #BEATS_BEFORE_RESET} beat periods, the loop is
+     * reset rather than holding on to a correction that can no longer be checked.
+     *
+     * @param state the timing state
+     * @param now the {@link System#nanoTime()} at which the pulse is being sent
+     * @param beatTime the {@link System#nanoTime()} at which the master's most recent beat was received, or zero
+     *                 if there has been none since the previous pulse
+     */
+    void pulse(TimingState state, long now, long beatTime) {
+        send(clockMessage);
+        state.lastPulse = now;
+        state.pulses++;
+
+        if (beatTime != 0) {
+            lockToBeat(state, beatTime);
+        } else if (state.lastBeat != 0 &&
+                now - state.lastBeat > BEATS_BEFORE_RESET * PULSES_PER_BEAT * state.nominalInterval) {
+            resetLoop(state);
+        }
+
+        state.nextPulse += Math.round(state.nominalInterval * (1.0 + state.correction));
+        if (now - state.nextPulse > state.nominalInterval * PULSES_PER_BEAT) {
+            state.nextPulse = now;  // We were held up for over a beat; don't send a burst to catch up.
+        }
+    }
+
+    /**
+     * The body of our timing thread: sends a clock pulse whenever one is due, and between pulses follows the
+     * master's tempo, beats and transport.
+     */
+    private void sendPulses() {
+        final TimingState state = new TimingState();
+        state.nextPulse = System.nanoTime();
+        while (!Thread.currentThread().isInterrupted()) {
+            final double tempo = VirtualCdj.getInstance().isRunning() ? VirtualCdj.getInstance().getMasterTempo() : 0.0;
+            if (tempo > 0.0 && !Double.isNaN(tempo)) {
+                state.nominalInterval = 60000000000.0 / tempo / PULSES_PER_BEAT;
+            }
+            if (state.nominalInterval <= 0.0) {
+                LockSupport.parkNanos(10000000);  // No tempo yet, so nothing to send.
+                state.nextPulse = System.nanoTime();
+                continue;
+            }
+
+            Util.sleepUntil(state.nextPulse, SPIN_NANOS);
+            updateTransport(state, VirtualCdj.getInstance().isRunning() ?
+                    VirtualCdj.getInstance().getTempoMaster() : null);
+            pulse(state, System.nanoTime(), pendingBeat.getAndSet(0));
+        }
+    }
+
+    /**
+     * Start the timing thread, if it is not already running.
+     */
+    private synchronized void startTiming() {
+        if (timingThread == null) {
+            pendingBeat.set(0);
+            timingThread = new Thread(this::sendPulses, "beat-link-max MIDI clock");
+            timingThread.setDaemon(true);
+            timingThread.setPriority(Thread.MAX_PRIORITY);
+            timingThread.start();
+        }
+    }
+
+    /**
+     * Stop the timing thread, if it is running, and wait for it to finish.
+     */
+    private synchronized void stopTiming() {
+        if (timingThread != null) {
+            timingThread.interrupt();
+            try {
+                timingThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            timingThread = null;
+        }
+    }
+
+    /**
+     * Stop sending clock and close the MIDI device we have been sending to, if any.
+     */
+    private void closeOutput() {
+        stopTiming();
+        final Receiver oldReceiver = receiver;
+        receiver = null;
+        if (oldReceiver != null) {
+            oldReceiver.close();
+        }
+        if (midiDevice != null) {
+            midiDevice.close();
+            midiDevice = null;
+        }
+    }
+
+    /**
+     * Find a MIDI output device by name.
+     *
+     * @param name all or part of the device name, ignoring case
+     *
+     * @return the first device whose name contains the text and which can receive messages, or {@code null}
+     */
+    private static MidiDevice findOutput(String name) {
+        final String wanted = name.toLowerCase();
+        for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+            if (info.getName().toLowerCase().contains(wanted)) {
+                try {
+                    final MidiDevice candidate = MidiSystem.getMidiDevice(info);
+                    if (candidate.getMaxReceivers() != 0) {
+                        return candidate;
+                    }
+                } catch (MidiUnavailableException e) {
+                    logger.warn("Unable to examine MIDI device {}", info.getName(), e);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the device attribute, which chooses the MIDI output to which we send clock. Even though this appears
+     * not to be used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param name all or part of the name of the MIDI output device, or an empty symbol to stop sending clock
+     */
+    @SuppressWarnings("unused")
+    private void setDevice(String name) {
+        closeOutput();
+        device = (name == null) ? "" : name.trim();
+        if (device.isEmpty()) {
+            return;
+        }
+        final MidiDevice found = findOutput(device);
+        if (found == null) {
+            MaxObject.error("Clock object unable to find MIDI output device " + device);
+            return;
+        }
+        try {
+            found.open();
+            midiDevice = found;
+            receiver = found.getReceiver();
+        } catch (MidiUnavailableException e) {
+            found.close();
+            midiDevice = null;
+            MaxObject.error("Clock object unable to open MIDI output device " + device + ": " + e.getMessage());
+            return;
+        }
+        startTiming();
+        outlet(0, "device", new Atom[]{Atom.newAtom(found.getDeviceInfo().getName())});
+    }
+
+    /**
+     * Sets the loopgain attribute, which controls how quickly phase errors are corrected. Even though this appears
+     * not to be used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param gain the fraction of the phase error to try to remove over each beat
+     */
+    @SuppressWarnings("unused")
+    private void setLoopgain(float gain) {
+        if (gain < 0.0f || gain > 1.0f) {
+            MaxObject.error("Clock object's loopgain attribute must be in range 0.0-1.0");
+            return;
+        }
+        loopgain = gain;
+    }
+
+    /**
+     * When we receive a devices message, we report the names of the MIDI devices that can receive clock.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void devices() {
+        for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+            try {
+                if (MidiSystem.getMidiDevice(info).getMaxReceivers() != 0) {
+                    outlet(0, "available", new Atom[]{Atom.newAtom(info.getName())});
+                }
+            } catch (MidiUnavailableException e) {
+                logger.warn("Unable to examine MIDI device {}", info.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Sets up and describes the inlets, outlets, and attributes, and registers our listener.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public Clock() {
+        declareInlets(new int[]{DataTypes.ALL});
+        setInletAssist(new String[]{"devices to list MIDI outputs"});
+        declareOutlets(new int[]{DataTypes.ALL, DataTypes.FLOAT});
+        setOutletAssist(new String[]{"reports device opened, available devices, start with song position, and stop",
+                "phase error in ms at each master beat (positive when clock is ahead)"});
+        declareAttribute("device", null, "setDevice");
+        declareAttribute("loopgain", null, "setLoopgain");
+        registrations.register("Dispatcher", masterListener,
+                () -> Dispatcher.getInstance().addMasterListener(masterListener),
+                () -> Dispatcher.getInstance().removeMasterListener(masterListener));
+    }
+
+    @Override
+    protected void notifyDeleted() {
+        closeOutput();
+        mailbox.close();
+        registrations.unregisterAll();
+        super.notifyDeleted();
+    }
+}
@@ -0,0 +1,258 @@
+package beatlink;
+
+import com.cycling74.max.Atom;
+import com.cycling74.max.DataTypes;
+import com.cycling74.max.MaxObject;
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.VirtualCdj;
+import org.deepsymmetry.electro.Metronome;
+import org.deepsymmetry.electro.Snapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An MXJ object that lets a patch lead the DJ Link network rather than follow it: it can ask for our virtual CDJ to
+ * become tempo master, set the tempo, and send beat packets. Beats are timed by a dedicated high-priority thread
+ * that sleeps until just before each beat is due and then spins, so they go out within a fraction of a millisecond
+ * of when they should, and how late each one actually was is reported so the timing can be checked. In loopback
+ * mode the same timing thread runs but beats are not sent to the network, so a patch can be developed and its
+ * timing measured without any players.
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class Conductor extends MaxObject {
+
+    private static final Logger logger = LoggerFactory.getLogger(Conductor.class);
+
+    /**
+     * How close to a beat we stop sleeping and start spinning.
+     */
+    private static final long SPIN_NANOS = 500000;
+
+    /**
+     * The mailbox slot used to deliver jitter measurements to the patch.
+     */
+    private static final int JITTER_SLOT = 0;
+
+    /**
+     * Holds beats, jitter measurements and status reports until they can be sent to the patch from the Max
+     * scheduler thread. Beats and status reports are queued in order, and only the most recent jitter measurement
+     * is delivered.
+     */
+    private final Mailbox mailbox = new Mailbox(1, 8);
+
+    /**
+     * The attribute that holds the tempo at which we send beats, and which we ask our virtual CDJ to report.
+     */
+    private volatile float tempo = 120.0f;
+
+    /**
+     * The attribute that controls whether beats are kept on this computer rather than sent to the network.
+     */
+    private volatile boolean loopback = false;
+
+    /**
+     * Builds the beat, bar and phase information for each beat in loopback mode, when our virtual CDJ is not
+     * involved. Only used by the timing thread.
+     */
+    private final Metronome metronome = new Metronome();
+
+    /**
+     * The thread which sends beats, running while we are playing.
+     */
+    private Thread timingThread = null;
+
+    /**
+     * Whether we have marked our virtual CDJ as playing, so it needs to be stopped when we stop. Only used by the
+     * timing thread.
+     */
+    private boolean drivingVirtualCdj = false;
+
+    /**
+     * Move to a beat and send it to the network, unless we are in loopback mode. When sending, the beat comes from
+     * our virtual CDJ's own metronome, which we mark as playing and move to the beat, so that the beat number, tempo
+     * and play state in its status packets agree with the beats we send.
+     *
+     * @param beat the number of the beat being sent
+     * @param bpm the tempo at which we are sending beats
+     *
+     * @return the snapshot describing the beat, or {@code null} if it could not be sent because our virtual CDJ
+     *         is not online and sending status
+     */
+    private Snapshot sendBeat(long beat, double bpm) {
+        if (loopback) {
+            metronome.setTempo(bpm);
+            metronome.jumpToBeat(beat);
+            return metronome.getSnapshot();
+        }
+        final VirtualCdj virtualCdj = VirtualCdj.getInstance();
+        if (!virtualCdj.isRunning() || !virtualCdj.isSendingStatus()) {
+            return null;
+        }
+        if (virtualCdj.getTempo() != bpm) {
+            virtualCdj.setTempo(bpm);
+        }
+        virtualCdj.setPlaying(true);
+        drivingVirtualCdj = true;
+        virtualCdj.jumpToBeat((int) Math.min(beat, Integer.MAX_VALUE));
+        final Snapshot snapshot = virtualCdj.getPlaybackPosition();
+        virtualCdj.sendBeat(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * The body of our timing thread: waits for each beat to be due, sends it, and reports how late it was.
+     * Tempo changes take effect from the next beat, so the beats never jump. If we were playing through our virtual
+     * CDJ, it is marked as stopped when we finish.
+     */
+    private void sendBeats() {
+        long beat = 1;
+        long due = System.nanoTime();
+        boolean warned = false;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Util.sleepUntil(due, SPIN_NANOS);
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                final double bpm = tempo;
+                final Snapshot snapshot = sendBeat(beat, bpm);
+                final long sent = System.nanoTime();  // After sending, so the time taken to send counts as jitter.
+                if (snapshot != null) {
+                    warned = false;
+                    final double jitter = (sent - due) / 1000000.0;
+                    final int beatWithinBar = snapshot.getBeatWithinBar();
+                    mailbox.post(JITTER_SLOT, () -> outlet(1, jitter));
+                    mailbox.enqueue(() -> outlet(0, beatWithinBar));
+                } else if (!warned) {
+                    logger.warn("Unable to send beats because our virtual CDJ is not online and sending status");
+                    mailbox.enqueue(() -> outlet(2, "offline"));
+                    warned = true;
+                }
+
+                beat++;
+                final long interval = Math.round(60000000000.0 / bpm);
+                due += interval;
+                if (sent - due > interval) {
+                    due = sent;  // We were held up for over a beat; carry on from now rather than sending a burst.
+                }
+            }
+        } finally {
+            if (drivingVirtualCdj) {
+                drivingVirtualCdj = false;
+                if (VirtualCdj.getInstance().isRunning()) {
+                    VirtualCdj.getInstance().setPlaying(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * When we receive a master message, we ask for our virtual CDJ to become tempo master, first turning on its
+     * status packets if needed, since players only follow a master they can see. This happens on the thread that
+     * starts and stops finders, so the patch is not held up.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void master() {
+        if (!VirtualCdj.getInstance().isRunning()) {
+            MaxObject.error("Conductor object can only become tempo master while online");
+            return;
+        }
+        Finders.getInstance().execute(() -> {
+            final VirtualCdj virtualCdj = VirtualCdj.getInstance();
+            try {
+                if (!virtualCdj.isSendingStatus()) {
+                    virtualCdj.setSendingStatus(true);
+                }
+                virtualCdj.setTempo(tempo);
+                virtualCdj.becomeTempoMaster();
+                mailbox.enqueue(() -> outlet(2, "master"));
+            } catch (Exception e) {
+                logger.error("Unable to become tempo master", e);
+                mailbox.enqueue(() -> outlet(2, "error", new Atom[]{Atom.newAtom(String.valueOf(e.getMessage()))}));
+            }
+        });
+    }
+
+    /**
+     * When we receive a play message, we start sending beats, with the first one right away.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized void play() {
+        if (timingThread == null) {
+            timingThread = new Thread(this::sendBeats, "beat-link-max beat sender");
+            timingThread.setDaemon(true);
+            timingThread.setPriority(Thread.MAX_PRIORITY);
+            timingThread.start();
+            outlet(2, "playing");
+        }
+    }
+
+    /**
+     * When we receive a stop message, we stop sending beats.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized void stop() {
+        if (timingThread != null) {
+            timingThread.interrupt();
+            try {
+                timingThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            timingThread = null;
+            outlet(2, "stopped");
+        }
+    }
+
+    /**
+     * Sets the tempo attribute, which controls how fast we send beats, and passes it on to our virtual CDJ so it
+     * is reported in our status packets. Even though this appears not to be used, {@link MaxObject} will invoke it
+     * reflectively.
+     *
+     * @param bpm the tempo in beats per minute
+     */
+    @SuppressWarnings("unused")
+    private void setTempo(float bpm) {
+        if (bpm < 20.0f || bpm > 300.0f) {
+            MaxObject.error("Conductor object's tempo attribute must be in range 20-300");
+            return;
+        }
+        tempo = bpm;
+        if (!loopback && VirtualCdj.getInstance().isRunning()) {
+            VirtualCdj.getInstance().setTempo(bpm);
+        }
+    }
+
+    /**
+     * Sets the loopback attribute, which controls whether beats are kept on this computer rather than sent to the
+     * network. Even though this appears not to be used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param n nonzero to keep beats local, zero to send them through our virtual CDJ
+     */
+    @SuppressWarnings("unused")
+    private void setLoopback(int n) {
+        loopback = n != 0;
+    }
+
+    /**
+     * Sets up and describes the inlets, outlets, and attributes.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public Conductor() {
+        declareInlets(new int[]{DataTypes.ALL});
+        setInletAssist(new String[]{"master to become tempo master, play or stop to control beats"});
+        declareOutlets(new int[]{DataTypes.INT, DataTypes.FLOAT, DataTypes.ALL});
+        setOutletAssist(new String[]{"beat within bar of each beat sent",
+                "how late each beat was sent, in ms",
+                "reports master, playing, stopped, offline, or error"});
+        declareAttribute("tempo", null, "setTempo");
+        declareAttribute("loopback", null, "setLoopback");
+    }
+
+    @Override
+    protected void notifyDeleted() {
+        stop();
+        mailbox.close();
+        super.notifyDeleted();
+    }
+}
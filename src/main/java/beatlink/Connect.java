@@ -5,13 +5,19 @@ import com.cycling74.max.DataTypes;
 import com.cycling74.max.MaxObject;
 import org.apiguardian.api.API;
 import org.deepsymmetry.beatlink.*;
-import org.deepsymmetry.beatlink.data.CrateDigger;
-import org.deepsymmetry.beatlink.data.MetadataFinder;
-import org.deepsymmetry.beatlink.data.SignatureFinder;
 import org.deepsymmetry.beatlink.data.TimeFinder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -28,6 +34,87 @@ public class Connect extends MaxObject {
      */
     private static final AtomicReference<String> state = new AtomicReference<>("stopped");
 
+    /**
+     * Creates daemon threads with recognizable names, so they never keep Max from exiting.
+     *
+     * @param name the name to give the threads
+     *
+     * @return the thread factory
+     */
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Starts finders that don't depend on each other in parallel while we are going online.
+     */
+    private static final ExecutorService startupExecutor =
+            Executors.newFixedThreadPool(4, daemonThreads("beat-link-max startup"));
+
+    /**
+     * The longest we will wait between attempts to start the virtual CDJ, in milliseconds.
+     */
+    private static final long MAX_BACKOFF = 30000;
+
+    /**
+     * The attribute that controls how many more times we will try to start the virtual CDJ if the first attempt
+     * fails.
+     */
+    private volatile int retries = 0;
+
+    /**
+     * The attribute that controls how long we wait before the first retry when the virtual CDJ fails to start,
+     * in milliseconds. Each later retry waits twice as long as the one before it.
+     */
+    private volatile long backoff = 1000;
+
+    /**
+     * The attribute that controls how many synthetic events of each kind are used to warm up event handling when
+     * the patch loads, or zero (the default) to skip the warm-up.
+     */
+    private volatile int warmup = 0;
+
+    /**
+     * The largest number of synthetic events of each kind we will use for warm-up.
+     */
+    private static final int MAX_WARMUP = 100000;
+
+    /**
+     * Holds status and device reports until they can be sent to the patch from the Max scheduler thread. They are
+     * queued so that the patch sees every transition, in order.
+     */
+    private final Mailbox mailbox = new Mailbox(0, 64);
+
+    /**
+     * Keeps track of the listeners we have registered, so they can all be removed when we are deleted.
+     */
+    private final Registrations registrations = new Registrations();
+
+    /**
+     * Arrange for a status report to be sent through our first outlet.
+     *
+     * @param status the current state of the DJ Link connection
+     */
+    private void reportState(String status) {
+        mailbox.enqueue(() -> outlet(0, status));
+    }
+
+    /**
+     * Arrange for a device report to be sent through our second outlet.
+     *
+     * @param message identifies whether the device was found or lost
+     * @param announcement the device that came or went
+     */
+    private void reportDevice(String message, DeviceAnnouncement announcement) {
+        mailbox.enqueue(() -> outlet(1, message,
+                new Atom[]{Atom.newAtom(announcement.getDeviceName()),
+                        Atom.newAtom(announcement.getDeviceNumber())}));
+    }
+
     /**
      * Allows us to notice when the {@link DeviceFinder} shuts down, so we can mark ourselves as offline.
      */
@@ -40,7 +127,7 @@ public class Connect extends MaxObject {
         @Override
         public void stopped(LifecycleParticipant sender) {
             state.set("stopped");
-            outlet(0, "stopped");
+            reportState("stopped");
         }
     };
 
@@ -51,7 +138,7 @@ public class Connect extends MaxObject {
         @Override
         public void started(LifecycleParticipant sender) {
             state.set("started");
-            outlet(0, "started");
+            reportState("started");
         }
 
         @Override
@@ -66,16 +153,12 @@ public class Connect extends MaxObject {
     private final DeviceAnnouncementListener deviceListener = new DeviceAnnouncementListener() {
         @Override
         public void deviceFound(DeviceAnnouncement announcement) {
-            outlet(1, "found",
-                    new Atom[]{Atom.newAtom(announcement.getDeviceName()),
-                            Atom.newAtom(announcement.getDeviceNumber())});
+            reportDevice("found", announcement);
         }
 
         @Override
         public void deviceLost(DeviceAnnouncement announcement) {
-            outlet(1, "lost",
-                    new Atom[]{Atom.newAtom(announcement.getDeviceName()),
-                            Atom.newAtom(announcement.getDeviceNumber())});
+            reportDevice("lost", announcement);
         }
     };
 
@@ -85,13 +168,67 @@ public class Connect extends MaxObject {
     public Connect() {
         Util.initializeLogging();
         declareInlets(new int[]{DataTypes.ALL});
-        setInletAssist(new String[] {"send \"start\" to go online, \"stop\" to go offline"});
+        setInletAssist(new String[] {"send \"start\" to go online, \"stop\" to go offline, \"delivery\" or \"listeners\" for counters"});
         declareOutlets(new int[]{DataTypes.ALL, DataTypes.ALL});
-        setOutletAssist(new String[]{"reports status changes", "reports devices found/lost"});
+        setOutletAssist(new String[]{"reports status changes and startup timings", "reports devices found/lost"});
+        declareAttribute("retries", null, "setRetries");
+        declareAttribute("backoff", null, "setBackoff");
+        declareAttribute("warmup", null, "setWarmup");
+
+        registrations.register("DeviceFinder", deviceFinderLifecycleListener,
+                () -> DeviceFinder.getInstance().addLifecycleListener(deviceFinderLifecycleListener),
+                () -> DeviceFinder.getInstance().removeLifecycleListener(deviceFinderLifecycleListener));
+        registrations.register("TimeFinder", timeFinderLifecycleListener,
+                () -> TimeFinder.getInstance().addLifecycleListener(timeFinderLifecycleListener),
+                () -> TimeFinder.getInstance().removeLifecycleListener(timeFinderLifecycleListener));
+        registrations.register("DeviceFinder", deviceListener,
+                () -> DeviceFinder.getInstance().addDeviceAnnouncementListener(deviceListener),
+                () -> DeviceFinder.getInstance().removeDeviceAnnouncementListener(deviceListener));
+    }
+
+    /**
+     * Sets the retries attribute. Even though this appears not to be used, {@link MaxObject} will invoke it
+     * reflectively.
+     *
+     * @param n the number of times to retry starting the virtual CDJ if it fails.
+     */
+    @SuppressWarnings("unused")
+    private void setRetries(int n) {
+        if (n < 0) {
+            MaxObject.error("Connect object's retries attribute must not be negative");
+            return;
+        }
+        retries = n;
+    }
 
-        DeviceFinder.getInstance().addLifecycleListener(deviceFinderLifecycleListener);
-        TimeFinder.getInstance().addLifecycleListener(timeFinderLifecycleListener);
-        DeviceFinder.getInstance().addDeviceAnnouncementListener(deviceListener);
+    /**
+     * Sets the backoff attribute. Even though this appears not to be used, {@link MaxObject} will invoke it
+     * reflectively.
+     *
+     * @param ms how long to wait before the first retry, in milliseconds.
+     */
+    @SuppressWarnings("unused")
+    private void setBackoff(int ms) {
+        if (ms < 0 || ms > MAX_BACKOFF) {
+            MaxObject.error("Connect object's backoff attribute must be in range 0-" + MAX_BACKOFF);
+            return;
+        }
+        backoff = ms;
+    }
+
+    /**
+     * Sets the warmup attribute. Even though this appears not to be used, {@link MaxObject} will invoke it
+     * reflectively.
+     *
+     * @param n how many synthetic events of each kind to deliver when the patch loads, or zero to skip warm-up.
+     */
+    @SuppressWarnings("unused")
+    private void setWarmup(int n) {
+        if (n < 0 || n > MAX_WARMUP) {
+            MaxObject.error("Connect object's warmup attribute must be in range 0-" + MAX_WARMUP);
+            return;
+        }
+        warmup = n;
     }
 
     @Override
@@ -100,44 +237,162 @@ public class Connect extends MaxObject {
 
         // Report on the current connection state.
         outlet(0, state.get());
+
+        // Warm up event handling if asked to. This runs on the lifecycle thread, so a start message that arrives
+        // while it is underway waits for it to finish before bringing us online.
+        final int rounds = warmup;
+        if (rounds > 0) {
+            Finders.getInstance().execute(() -> {
+                final long began = System.nanoTime();
+                if (Warmup.run(rounds)) {
+                    reportTiming("warmup", began);
+                }
+            });
+        }
     }
 
     @Override
     protected void notifyDeleted() {
-        DeviceFinder.getInstance().removeLifecycleListener(deviceFinderLifecycleListener);
-        TimeFinder.getInstance().removeLifecycleListener(timeFinderLifecycleListener);
-        DeviceFinder.getInstance().removeDeviceAnnouncementListener(deviceListener);
+        mailbox.close();
+        registrations.unregisterAll();
         super.notifyDeleted();
     }
 
     /**
-     * Joins a Pro DJ Link network. Separated into its own method so it can be run on a background thread.
+     * Something that must be started to bring us online, which might fail.
+     */
+    private interface Stage {
+        void start() throws Exception;
+    }
+
+    /**
+     * Wraps a startup stage so that it reports how long it took through our status outlet, and can be run as part
+     * of a {@link CompletableFuture} chain.
+     *
+     * @param name identifies the stage in the timing report
+     * @param stage the work to be performed
+     *
+     * @return a task that performs the stage and reports its duration, wrapping any failure in a
+     *         {@link CompletionException}
+     */
+    private Runnable timed(String name, Stage stage) {
+        return () -> {
+            final long began = System.nanoTime();
+            try {
+                stage.start();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+            reportTiming(name, began);
+        };
+    }
+
+    /**
+     * Arrange for a stage timing report to be sent through our first outlet.
+     *
+     * @param stage identifies the stage that finished
+     * @param began the {@link System#nanoTime()} at which the stage started
+     */
+    private void reportTiming(String stage, long began) {
+        final double ms = (System.nanoTime() - began) / 1000000.0;
+        mailbox.enqueue(() -> outlet(0, "timing", new Atom[]{Atom.newAtom(stage), Atom.newAtom(ms)}));
+    }
+
+    /**
+     * Tries to start the {@link VirtualCdj}, retrying as many times as our retries attribute allows, doubling the
+     * delay between attempts each time (starting from our backoff attribute).
+     *
+     * @return {@code true} if the virtual CDJ is running
+     *
+     * @throws InterruptedException if we are interrupted while waiting to retry
+     */
+    private boolean startVirtualCdj() throws InterruptedException {
+        long delay = backoff;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (VirtualCdj.getInstance().start()) {
+                    return true;
+                }
+                logger.warn("Attempt {} to start VirtualCdj failed", attempt);
+            } catch (Exception e) {
+                logger.warn("Attempt {} to start VirtualCdj failed", attempt, e);
+            }
+            if (attempt > retries) {
+                return false;
+            }
+            final long retryDelay = delay;
+            mailbox.enqueue(() -> outlet(0, "retrying", new Atom[]{Atom.newAtom(retryDelay)}));
+            Thread.sleep(delay);
+            delay = Math.min(delay * 2, MAX_BACKOFF);
+        }
+    }
+
+    /**
+     * Starts the finders on which the {@link TimeFinder} depends, followed by the optional finders needed by the
+     * objects that currently exist. Each optional finder is started as soon as the finders it depends on are
+     * running, so those that don't depend on each other start in parallel.
+     *
+     * @return the tasks starting the finders, which will all be complete when they are running
+     */
+    private List<CompletableFuture<Void>> startRequiredFinders() {
+        final List<CompletableFuture<Void>> result = new ArrayList<>();
+        final CompletableFuture<Void> core = CompletableFuture.runAsync(
+                timed("MetadataFinder", Finders::startCore), startupExecutor);
+        result.add(core);
+        final Map<Finders.Feature, CompletableFuture<Void>> started = new EnumMap<>(Finders.Feature.class);
+        for (Finders.Feature feature : Finders.getInstance().getRequired()) {  // Prerequisites come first.
+            CompletableFuture<Void> ready = core;
+            for (Finders.Feature prerequisite : feature.prerequisites) {
+                ready = ready.thenCombine(started.get(prerequisite), (a, b) -> null);
+            }
+            final CompletableFuture<Void> starting =
+                    ready.thenRunAsync(timed(feature.finderName, feature::start), startupExecutor);
+            started.put(feature, starting);
+            result.add(starting);
+        }
+        return result;
+    }
+
+    /**
+     * Joins a Pro DJ Link network. Separated into its own method so it can be run on our lifecycle thread. Once
+     * the virtual CDJ is running, the {@link BeatFinder}, the finders the {@link TimeFinder} depends on, and any
+     * optional finders needed by existing objects are started in parallel, and the {@link TimeFinder} is started
+     * last, so that its lifecycle event means we are fully online.
      */
     private void tryGoingOnline() {
         if (state.compareAndSet("stopped", "starting")) {
-            outlet(0, "starting");
+            reportState("starting");
+            final long began = System.nanoTime();
             try {
                 DeviceFinder.getInstance().start();
+                reportTiming("DeviceFinder", began);
             } catch (Exception e) {
                 state.set("stopped");
-                outlet(0, "stopped");
+                reportState("stopped");
                 logger.error("Unable to start DeviceFinder", e);
                 MaxObject.error("Unable to go online: " + e);
                 return;
             }
             try {
-                if (VirtualCdj.getInstance().start()){
+                final long virtualCdjBegan = System.nanoTime();
+                if (startVirtualCdj()) {
+                    reportTiming("VirtualCdj", virtualCdjBegan);
                     logger.info("Virtual CDJ running as Player {}", VirtualCdj.getInstance().getDeviceNumber());
-                    MetadataFinder.getInstance().start();
-                    MetadataFinder.getInstance().setPassive(true);  // Start out conservatively.
-                    CrateDigger.getInstance().start();
-                    SignatureFinder.getInstance().start();
-                    TimeFinder.getInstance().start();
+                    final List<CompletableFuture<Void>> starting = startRequiredFinders();
+                    starting.add(CompletableFuture.runAsync(timed("BeatFinder", () -> BeatFinder.getInstance().start()),
+                            startupExecutor));
+                    CompletableFuture.allOf(starting.toArray(new CompletableFuture<?>[0])).join();
+                    timed("TimeFinder", () -> TimeFinder.getInstance().start()).run();
+                    reportTiming("online", began);
                 } else {
                     logger.error("Unable to start VirtualCdj");
                     MaxObject.error("Unable to go online.");
                     DeviceFinder.getInstance().stop();
                 }
+            } catch (CompletionException e) {
+                logger.error("Unable to start finders", e.getCause());
+                MaxObject.error("Unable to go online: " + e.getCause());
+                DeviceFinder.getInstance().stop();
             } catch (Exception e) {
                 logger.error("Unable to start VirtualCdj", e);
                 MaxObject.error("Unable to go online: " + e);
@@ -153,7 +408,7 @@ public class Connect extends MaxObject {
      */
     private void goOffline() {
         if (state.compareAndSet("started", "stopping")) {
-            outlet(0, "stopping");
+            reportState("stopping");
             DeviceFinder.getInstance().stop();
         } else {
             MaxObject.error("Can only stop if current state is started");
@@ -165,7 +420,7 @@ public class Connect extends MaxObject {
      */
     @API(status = API.Status.EXPERIMENTAL)
     public void start() {
-        new Thread(this::tryGoingOnline).start();
+        Finders.getInstance().execute(this::tryGoingOnline);
     }
 
     /**
@@ -173,7 +428,32 @@ public class Connect extends MaxObject {
      */
     @API(status = API.Status.EXPERIMENTAL)
     public void stop() {
-        new Thread(this::goOffline).start();
+        Finders.getInstance().execute(this::goOffline);
+    }
+
+    /**
+     * When we receive a listeners message, we report how many listeners all of our objects currently have
+     * registered with each finder, as a series of messages with the finder name and count. These should stay flat
+     * as patches are closed and reopened.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void listeners() {
+        for (Map.Entry<String, Integer> entry : Registrations.getCounts().entrySet()) {
+            outlet(0, "listeners", new Atom[]{Atom.newAtom(entry.getKey()), Atom.newAtom(entry.getValue())});
+        }
+    }
+
+    /**
+     * When we receive a delivery message, we report how many values have been sent to patches by all objects, how
+     * many were replaced by newer values before they could be sent, and how many queued events (such as beats)
+     * had to be discarded. Growth in the latter two means patches are not keeping up.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void delivery() {
+        final Delivery delivery = Delivery.getInstance();
+        outlet(0, "delivery", new Atom[]{Atom.newAtom(delivery.getDeliveredCount()),
+                Atom.newAtom(delivery.getCoalescedCount()),
+                Atom.newAtom(delivery.getDroppedCount())});
     }
 
 }
@@ -0,0 +1,148 @@
+package beatlink;
+
+import com.cycling74.max.MaxClock;
+import org.apiguardian.api.API;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Moves output from Beat Link's network threads onto the Max scheduler. Listener callbacks leave what they want to
+ * send in a {@link Mailbox}, which is cheap and never blocks, and this single dispatcher drains every mailbox that
+ * has something waiting on its clock, so a slow patch can never hold up the threads receiving DJ Link packets.
+ */
+@API(status = API.Status.INTERNAL)
+final class Delivery {
+
+    private static final Logger logger = LoggerFactory.getLogger(Delivery.class);
+
+    /**
+     * The mailboxes that have something waiting to be delivered.
+     */
+    private final Queue<Mailbox> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Tracks whether our clock has been set to drain the pending mailboxes, so we only set it once no matter how many
+     * events arrive before it fires.
+     */
+    private final AtomicBoolean armed = new AtomicBoolean(false);
+
+    /**
+     * Runs our drain loop on the Max scheduler thread.
+     */
+    private final MaxClock clock = new MaxClock(this::drain);
+
+    /**
+     * Counts the values that were actually sent to the patch.
+     */
+    private final LongAdder delivered = new LongAdder();
+
+    /**
+     * Counts the values that were replaced by newer ones before we had a chance to send them.
+     */
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Counts the queued events that were discarded because a mailbox queue was full.
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final Delivery instance = new Delivery();
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists
+     */
+    static Delivery getInstance() {
+        return instance;
+    }
+
+    /**
+     * Prevent direct instantiation.
+     */
+    private Delivery() {
+        // Nothing to do.
+    }
+
+    /**
+     * Called by a mailbox when it goes from empty to having something to deliver. Arranges for our clock to
+     * fire as soon as the scheduler can get to it, unless it is already set.
+     *
+     * @param mailbox the mailbox that needs to be drained
+     */
+    void ready(Mailbox mailbox) {
+        pending.offer(mailbox);
+        if (armed.compareAndSet(false, true)) {
+            clock.delay(0);
+        }
+    }
+
+    /**
+     * Sends everything that is waiting in any of our mailboxes to the patch. Runs on the Max scheduler thread.
+     */
+    private void drain() {
+        armed.set(false);
+        Mailbox mailbox;
+        while ((mailbox = pending.poll()) != null) {
+            final long began = System.nanoTime();
+            try {
+                delivered.add(mailbox.drain());
+            } catch (Throwable t) {
+                logger.warn("Problem delivering events to patch", t);
+            }
+            Metrics.getInstance().recordDuration("Delivery", System.nanoTime() - began);
+        }
+    }
+
+    /**
+     * Record that a mailbox value was replaced before it could be delivered.
+     */
+    void recordCoalesced() {
+        coalesced.increment();
+    }
+
+    /**
+     * Record that a queued mailbox event had to be discarded.
+     */
+    void recordDropped() {
+        dropped.increment();
+    }
+
+    /**
+     * Get the number of values that have been sent to patches through mailboxes.
+     *
+     * @return the count of delivered values since startup
+     */
+    long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    /**
+     * Get the number of values that were replaced by newer ones before they could be delivered. A steadily growing
+     * count means that the patch is not keeping up with the rate at which things are changing, but it is only
+     * missing intermediate values.
+     *
+     * @return the count of coalesced values since startup
+     */
+    long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * Get the number of queued events (such as beats) that were discarded because they could not be delivered fast
+     * enough. Any growth in this count means the patch is falling behind.
+     *
+     * @return the count of dropped events since startup
+     */
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+}
@@ -0,0 +1,314 @@
+package beatlink;
+
+import com.cycling74.max.Atom;
+import com.cycling74.max.DataTypes;
+import com.cycling74.max.MaxClock;
+import com.cycling74.max.MaxObject;
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.DeviceAnnouncement;
+import org.deepsymmetry.beatlink.DeviceAnnouncementListener;
+import org.deepsymmetry.beatlink.DeviceFinder;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An MXJ object that keeps track of the Pro DJ Link devices on the network, so that patches don't need to build
+ * their own tables from the found and lost messages of {@link Connect}. A bang reports every device in a single
+ * list. Changes are reported as they settle: a device has to stay found or lost for the debounce attribute's time
+ * before we mention it, so a device flapping on a busy network produces at most one message per settled change,
+ * and none at all if it ends up back where it started.
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class Devices extends MaxObject {
+
+    /**
+     * What we know about a single device. Instances are never changed once built.
+     */
+    private static final class Device {
+
+        /**
+         * The device number.
+         */
+        final int number;
+
+        /**
+         * The name the device announces.
+         */
+        final String name;
+
+        /**
+         * The IP address of the device.
+         */
+        final String address;
+
+        /**
+         * The kind of device, worked out from its number.
+         */
+        final String type;
+
+        /**
+         * The time, according to {@link System#currentTimeMillis()}, at which we last heard from the device.
+         */
+        final long lastSeen;
+
+        /**
+         * Capture what an announcement tells us about a device.
+         *
+         * @param announcement the announcement
+         */
+        private Device(DeviceAnnouncement announcement) {
+            number = announcement.getDeviceNumber();
+            name = Util.stringIfNotNull(announcement.getDeviceName());
+            address = announcement.getAddress().getHostAddress();
+            type = typeOf(number);
+            lastSeen = announcement.getTimestamp();
+        }
+
+        /**
+         * Check whether another device record describes the same device at the same address.
+         *
+         * @param other the other record, which may be {@code null}
+         *
+         * @return {@code true} if the number, name and address all match
+         */
+        private boolean sameAs(Device other) {
+            return other != null && number == other.number && name.equals(other.name) &&
+                    address.equals(other.address);
+        }
+
+        /**
+         * Add the atoms describing this device to a list.
+         *
+         * @param atoms the list being built
+         * @param heard the {@link System#currentTimeMillis()} at which we last heard from the device
+         * @param now the current {@link System#currentTimeMillis()}
+         */
+        private void addAtoms(List<Atom> atoms, long heard, long now) {
+            atoms.add(Atom.newAtom(number));
+            atoms.add(Atom.newAtom(name));
+            atoms.add(Atom.newAtom(type));
+            atoms.add(Atom.newAtom(address));
+            atoms.add(Atom.newAtom(Math.max(0, now - heard)));
+        }
+    }
+
+    /**
+     * The devices currently on the network, keyed and ordered by device number. The map is never changed; each
+     * change replaces it with an updated copy, so a bang can report it without any locking.
+     */
+    private final AtomicReference<SortedMap<Integer, Device>> devices =
+            new AtomicReference<>(Collections.unmodifiableSortedMap(new TreeMap<>()));
+
+    /**
+     * The devices as we last reported them to the patch. Only used on the Max scheduler thread.
+     */
+    private final Map<Integer, Device> reported = new TreeMap<>();
+
+    /**
+     * The {@link System#nanoTime()} at which each device most recently changed, keyed by device number, for those
+     * whose changes have not yet been reported.
+     */
+    private final Map<Integer, Long> pending = new ConcurrentHashMap<>();
+
+    /**
+     * The attribute that controls how long, in milliseconds, a change must last before we report it.
+     */
+    private volatile int debounce = 1000;
+
+    /**
+     * Reports settled changes. Runs on the Max scheduler thread.
+     */
+    private final MaxClock clock = new MaxClock(this::reportChanges);
+
+    /**
+     * Tracks whether {@link #clock} is already set, so that a flapping device can't keep pushing back the reports
+     * of other devices' changes.
+     */
+    private final AtomicBoolean clockSet = new AtomicBoolean(false);
+
+    /**
+     * Keeps track of the listeners we have registered, so they can all be removed when we are deleted.
+     */
+    private final Registrations registrations = new Registrations();
+
+    /**
+     * Work out what kind of device has a particular device number.
+     *
+     * @param number the device number
+     *
+     * @return player, computer, mixer or other
+     */
+    private static String typeOf(int number) {
+        if (number >= 1 && number <= 16) {
+            return "player";
+        }
+        if (number == 33) {
+            return "mixer";
+        }
+        if (number > 16 && number < 33) {
+            return "computer";
+        }
+        return "other";
+    }
+
+    /**
+     * Replace the registry with a copy to which a change has been applied, retrying if another thread changed it
+     * at the same time, and arrange for the change to be reported once it settles.
+     *
+     * @param number the device number that changed
+     * @param device the device's new details, or {@code null} if it has been lost
+     */
+    private void update(int number, Device device) {
+        SortedMap<Integer, Device> current;
+        SortedMap<Integer, Device> replacement;
+        do {
+            current = devices.get();
+            final TreeMap<Integer, Device> copy = new TreeMap<>(current);
+            if (device == null) {
+                copy.remove(number);
+            } else {
+                copy.put(number, device);
+            }
+            replacement = Collections.unmodifiableSortedMap(copy);
+        } while (!devices.compareAndSet(current, replacement));
+        pending.put(number, System.nanoTime());
+        if (clockSet.compareAndSet(false, true)) {
+            clock.delay(debounce);
+        }
+    }
+
+    /**
+     * Keeps the registry up to date as devices come and go.
+     */
+    private final DeviceAnnouncementListener deviceListener = new DeviceAnnouncementListener() {
+        @Override
+        public void deviceFound(DeviceAnnouncement announcement) {
+            update(announcement.getDeviceNumber(), new Device(announcement));
+        }
+
+        @Override
+        public void deviceLost(DeviceAnnouncement announcement) {
+            update(announcement.getDeviceNumber(), null);
+        }
+    };
+
+    /**
+     * Send the patch a message about a device that has been added or removed.
+     *
+     * @param message what happened to the device
+     * @param device the device
+     * @param now the current {@link System#currentTimeMillis()}
+     */
+    private void reportChange(String message, Device device, long now) {
+        final List<Atom> atoms = new ArrayList<>(5);
+        device.addAtoms(atoms, device.lastSeen, now);
+        outlet(1, message, atoms.toArray(new Atom[0]));
+    }
+
+    /**
+     * Called by our clock to report the changes that have lasted for the debounce time, comparing each device with
+     * how we last reported it, so that changes which undo themselves are never mentioned. If some changes have not
+     * yet settled, the clock is set again for when the first of them will.
+     */
+    private void reportChanges() {
+        clockSet.set(false);
+        final long now = System.nanoTime();
+        final long wall = System.currentTimeMillis();
+        final long settle = debounce * 1000000L;
+        final SortedMap<Integer, Device> current = devices.get();
+        long nextDue = Long.MAX_VALUE;
+        for (Map.Entry<Integer, Long> entry : pending.entrySet()) {
+            final int number = entry.getKey();
+            final long changed = entry.getValue();
+            if (now - changed < settle) {
+                nextDue = Math.min(nextDue, changed + settle - now);
+                continue;
+            }
+            pending.remove(number, changed);  // Leaves it if it has changed again in the meantime.
+            final Device was = reported.get(number);
+            final Device is = current.get(number);
+            if (is == null) {
+                if (was != null) {
+                    reported.remove(number);
+                    reportChange("removed", was, wall);
+                }
+            } else if (!is.sameAs(was)) {
+                if (was != null) {
+                    reportChange("removed", was, wall);
+                }
+                reported.put(number, is);
+                reportChange("added", is, wall);
+            } else {
+                reported.put(number, is);  // Nothing the patch needs to hear about, but keep the latest details.
+            }
+        }
+        if (nextDue != Long.MAX_VALUE && clockSet.compareAndSet(false, true)) {
+            clock.delay(nextDue / 1000000.0);
+        }
+    }
+
+    /**
+     * Sets the debounce attribute, which controls how long a device must stay found or lost before we report the
+     * change. Even though this appears not to be used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param ms the settling time in milliseconds
+     */
+    @SuppressWarnings("unused")
+    private void setDebounce(int ms) {
+        if (ms < 0) {
+            MaxObject.error("Devices object's debounce attribute must not be negative");
+            return;
+        }
+        debounce = ms;
+    }
+
+    /**
+     * Sets up and describes the inlets, outlets, and attributes, registers our listener, and loads the devices
+     * that are already on the network.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public Devices() {
+        declareInlets(new int[]{DataTypes.ALL});
+        setInletAssist(new String[]{"bang to report all devices"});
+        declareOutlets(new int[]{DataTypes.LIST, DataTypes.ALL});
+        setOutletAssist(new String[]{"all devices as groups of number, name, type, address, ms since last seen",
+                "added or removed followed by number, name, type, address, ms since last seen"});
+        declareAttribute("debounce", null, "setDebounce");
+        registrations.register("DeviceFinder", deviceListener,
+                () -> DeviceFinder.getInstance().addDeviceAnnouncementListener(deviceListener),
+                () -> DeviceFinder.getInstance().removeDeviceAnnouncementListener(deviceListener));
+        if (DeviceFinder.getInstance().isRunning()) {
+            for (DeviceAnnouncement announcement : DeviceFinder.getInstance().getCurrentDevices()) {
+                update(announcement.getDeviceNumber(), new Device(announcement));
+            }
+        }
+    }
+
+    @Override
+    protected void bang() {
+        final SortedMap<Integer, Device> current = devices.get();
+        final Map<Integer, Long> lastSeen = new HashMap<>();
+        if (DeviceFinder.getInstance().isRunning()) {
+            // Our records only change when devices come and go; the finder knows when each was last heard from.
+            for (DeviceAnnouncement announcement : DeviceFinder.getInstance().getCurrentDevices()) {
+                lastSeen.put(announcement.getDeviceNumber(), announcement.getTimestamp());
+            }
+        }
+        final long now = System.currentTimeMillis();
+        final List<Atom> atoms = new ArrayList<>(current.size() * 5);
+        for (Device device : current.values()) {
+            device.addAtoms(atoms, lastSeen.getOrDefault(device.number, device.lastSeen), now);
+        }
+        outlet(0, atoms.toArray(new Atom[0]));
+    }
+
+    @Override
+    protected void notifyDeleted() {
+        registrations.unregisterAll();
+        clock.release();
+        super.notifyDeleted();
+    }
+}
@@ -0,0 +1,742 @@
+package beatlink;
+
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.*;
+import org.deepsymmetry.beatlink.data.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds a single listener registration with each of the Beat Link finders that our MXJ objects care about, and
+ * routes the events it receives to only the objects that are watching the player they concern. This way the work
+ * done for each packet grows with the number of objects interested in that player, rather than with the total
+ * number of objects in all open patches.
+ */
+@API(status = API.Status.INTERNAL)
+final class Dispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(Dispatcher.class);
+
+    /**
+     * The highest player number for which we route events. Events from devices with larger numbers (such as
+     * mixers or rekordbox) are only of interest to listeners that are not tied to a particular player.
+     */
+    static final int MAX_PLAYER = 6;
+
+    /**
+     * Receives notice when the tempo master announces that it is about to hand the role to another device, or
+     * when such a handoff is over.
+     */
+    interface HandoffListener {
+
+        /**
+         * Called when the device to which the tempo master is yielding changes.
+         *
+         * @param from the device number of the current tempo master
+         * @param to the device number it is yielding to, or zero if there is no longer a handoff pending
+         */
+        void handoffChanged(int from, int to);
+    }
+
+    /**
+     * Holds the listeners of a particular type that are interested in each player, indexed by player number.
+     *
+     * @param <T> the type of listener being tracked
+     */
+    private static final class PlayerListeners<T> {
+
+        /**
+         * The listeners registered for each player number, with the unused zero slot simplifying the lookup.
+         */
+        private final List<List<T>> byPlayer = new ArrayList<>(MAX_PLAYER + 1);
+
+        private PlayerListeners() {
+            for (int i = 0; i <= MAX_PLAYER; i++) {
+                byPlayer.add(new CopyOnWriteArrayList<>());
+            }
+        }
+
+        /**
+         * Registers a listener for a player, replacing any registration it may have had for a different player.
+         *
+         * @param player the player whose events should be delivered to the listener
+         * @param listener the listener to register
+         */
+        private synchronized void add(int player, T listener) {
+            remove(listener);
+            byPlayer.get(player).add(listener);
+        }
+
+        /**
+         * Removes a listener, no matter which player it was registered for.
+         *
+         * @param listener the listener to remove
+         */
+        private synchronized void remove(T listener) {
+            for (List<T> listeners : byPlayer) {
+                listeners.remove(listener);
+            }
+        }
+
+        /**
+         * Finds the listeners interested in a particular device.
+         *
+         * @param player the device number whose event is being delivered
+         *
+         * @return the listeners to which the event should be delivered, which will be empty if the device is not
+         *         a player that can be watched
+         */
+        private List<T> get(int player) {
+            if (player < 1 || player > MAX_PLAYER) {
+                return Collections.emptyList();
+            }
+            return byPlayer.get(player);
+        }
+    }
+
+    /**
+     * The objects interested in beats from each player.
+     */
+    private final PlayerListeners<BeatListener> beatListeners = new PlayerListeners<>();
+
+    /**
+     * Records packet counts and how long each listener takes to handle the events we deliver.
+     */
+    private final Metrics metrics = Metrics.getInstance();
+
+    /**
+     * The objects interested in status updates from each player.
+     */
+    private final PlayerListeners<DeviceUpdateListener> updateListeners = new PlayerListeners<>();
+
+    /**
+     * The objects interested in metadata changes on each player.
+     */
+    private final PlayerListeners<TrackMetadataListener> metadataListeners = new PlayerListeners<>();
+
+    /**
+     * The objects interested in waveform changes on each player.
+     */
+    private final PlayerListeners<WaveformListener> waveformListeners = new PlayerListeners<>();
+
+    /**
+     * The objects interested in album art changes on each player.
+     */
+    private final PlayerListeners<AlbumArtListener> artListeners = new PlayerListeners<>();
+
+    /**
+     * The objects interested in position updates for each player, from the {@link TimeFinder} or a replay. Those
+     * which implement {@link TrackPositionBeatListener} also receive the position at each beat.
+     */
+    private final PlayerListeners<TrackPositionListener> positionListeners = new PlayerListeners<>();
+
+    /**
+     * Set while recorded events are being replayed, so that objects know to report them even though the finders
+     * that would normally supply them are not running.
+     */
+    private volatile boolean replaying = false;
+
+    /**
+     * The objects interested in tempo master events. These are not tied to any particular player, so every one of
+     * them receives every event.
+     */
+    private final CopyOnWriteArrayList<MasterListener> masterListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * The objects interested in pending tempo master handoffs.
+     */
+    private final CopyOnWriteArrayList<HandoffListener> handoffListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * The device to which the tempo master has most recently told us it is yielding, or zero if none.
+     */
+    private int handoffTarget = 0;
+
+    /**
+     * Checks whether a status update from the tempo master announces a change in a pending handoff, and if so,
+     * tells the interested objects.
+     *
+     * @param update a status update that was just received
+     */
+    private void checkHandoff(DeviceUpdate update) {
+        if (!update.isTempoMaster()) {
+            return;
+        }
+        final int yielding = update.getDeviceMasterIsBeingYieldedTo();
+        final int target = (yielding == 0xff) ? 0 : yielding;
+        synchronized (handoffListeners) {
+            if (target == handoffTarget) {
+                return;
+            }
+            handoffTarget = target;
+        }
+        for (HandoffListener listener : handoffListeners) {
+            final long began = System.nanoTime();
+            try {
+                listener.handoffChanged(update.getDeviceNumber(), target);
+            } catch (Throwable t) {
+                logger.warn("Problem delivering master handoff to listener", t);
+            }
+            metrics.recordCallback(listener, System.nanoTime() - began);
+        }
+    }
+
+    /**
+     * Delivers a beat to a list of listeners, timing each one. Also used by {@link Warmup} to exercise
+     * this path with the handlers of objects that belong to no patch.
+     *
+     * @param listeners the listeners interested in the beat
+     * @param beat the beat to deliver
+     */
+    void deliverBeat(List<BeatListener> listeners, Beat beat) {
+        for (BeatListener listener : listeners) {
+            final long began = System.nanoTime();
+            try {
+                listener.newBeat(beat);
+            } catch (Throwable t) {
+                logger.warn("Problem delivering beat to listener", t);
+            }
+            metrics.recordCallback(listener, System.nanoTime() - began);
+        }
+    }
+
+    /**
+     * Delivers a device update to a list of listeners, timing each one. Also used by {@link Warmup} to exercise
+     * this path with the handlers of objects that belong to no patch.
+     *
+     * @param listeners the listeners interested in the update
+     * @param update the status update to deliver
+     */
+    void deliverUpdate(List<DeviceUpdateListener> listeners, DeviceUpdate update) {
+        for (DeviceUpdateListener listener : listeners) {
+            final long began = System.nanoTime();
+            try {
+                listener.received(update);
+            } catch (Throwable t) {
+                logger.warn("Problem delivering device update to listener", t);
+            }
+            metrics.recordCallback(listener, System.nanoTime() - began);
+        }
+    }
+
+    /**
+     * Delivers a position update to a list of listeners, timing each one. Also used by {@link Warmup} to exercise
+     * this path with the handlers of objects that belong to no patch.
+     *
+     * @param listeners the listeners interested in the position
+     * @param update the new position, or {@code null} if it is no longer known
+     */
+    void deliverPosition(List<TrackPositionListener> listeners, TrackPositionUpdate update) {
+        for (TrackPositionListener listener : listeners) {
+            final long began = System.nanoTime();
+            try {
+                listener.movementChanged(update);
+            } catch (Throwable t) {
+                logger.warn("Problem delivering position update to listener", t);
+            }
+            metrics.recordCallback(listener, System.nanoTime() - began);
+        }
+    }
+    /**
+     * Delivers a track metadata change to a list of listeners, timing each one. Also used by {@link Warmup} to
+     * exercise this path with the handlers of objects that belong to no patch.
+     *
+     * @param listeners the listeners interested in the change
+     * @param update the metadata change
+     */
+    void deliverMetadata(List<TrackMetadataListener> listeners, TrackMetadataUpdate update) {
+        for (TrackMetadataListener listener : listeners) {
+            final long began = System.nanoTime();
+            try {
+                listener.metadataChanged(update);
+            } catch (Throwable t) {
+                logger.warn("Problem delivering track metadata update to listener", t);
+            }
+            metrics.recordCallback(listener, System.nanoTime() - began);
+        }
+    }
+
+
+    /**
+     * Delivers the position of a player at a beat to the listeners that asked for it, timing each one.
+     *
+     * @param listeners the listeners interested in the player
+     * @param beat the beat that was received
+     * @param update the position of the player at that beat
+     */
+    private void deliverPositionBeat(List<TrackPositionListener> listeners, Beat beat, TrackPositionUpdate update) {
+        for (TrackPositionListener listener : listeners) {
+            if (listener instanceof TrackPositionBeatListener) {
+                final long began = System.nanoTime();
+                try {
+                    ((TrackPositionBeatListener) listener).newBeat(beat, update);
+                } catch (Throwable t) {
+                    logger.warn("Problem delivering beat position to listener", t);
+                }
+                metrics.recordCallback(listener, System.nanoTime() - began);
+            }
+        }
+    }
+
+    /**
+     * Counts a position update for a player and delivers it to the objects watching that player.
+     *
+     * @param player the player whose position changed
+     * @param update the new position, or {@code null} if it is no longer known
+     */
+    private void positionChanged(int player, TrackPositionUpdate update) {
+        metrics.recordPosition(player);
+        deliverPosition(positionListeners.get(player), update);
+    }
+
+    /**
+     * Our single registration with the {@link BeatFinder}.
+     */
+    private final BeatListener beatListener = beat -> {
+        metrics.recordPacket(beat.getDeviceNumber());
+        deliverBeat(beatListeners.get(beat.getDeviceNumber()), beat);
+    };
+
+    /**
+     * Our single registration for device updates with the {@link VirtualCdj}.
+     */
+    private final DeviceUpdateListener updateListener = update -> {
+        metrics.recordPacket(update.getDeviceNumber());
+        checkHandoff(update);
+        deliverUpdate(updateListeners.get(update.getDeviceNumber()), update);
+    };
+
+    /**
+     * Our single registration with the {@link MetadataFinder}.
+     */
+    private final TrackMetadataListener metadataListener =
+            update -> deliverMetadata(metadataListeners.get(update.player), update);
+
+    /**
+     * Our single registration with the {@link WaveformFinder}.
+     */
+    private final WaveformListener waveformListener = new WaveformListener() {
+        @Override
+        public void previewChanged(WaveformPreviewUpdate update) {
+            for (WaveformListener listener : waveformListeners.get(update.player)) {
+                final long began = System.nanoTime();
+                try {
+                    listener.previewChanged(update);
+                } catch (Throwable t) {
+                    logger.warn("Problem delivering waveform preview update to listener", t);
+                }
+                metrics.recordCallback(listener, System.nanoTime() - began);
+            }
+        }
+
+        @Override
+        public void detailChanged(WaveformDetailUpdate update) {
+            for (WaveformListener listener : waveformListeners.get(update.player)) {
+                final long began = System.nanoTime();
+                try {
+                    listener.detailChanged(update);
+                } catch (Throwable t) {
+                    logger.warn("Problem delivering waveform detail update to listener", t);
+                }
+                metrics.recordCallback(listener, System.nanoTime() - began);
+            }
+        }
+    };
+
+    /**
+     * Our single registration with the {@link ArtFinder}.
+     */
+    private final AlbumArtListener artListener = update -> {
+        for (AlbumArtListener listener : artListeners.get(update.player)) {
+            final long began = System.nanoTime();
+            try {
+                listener.albumArtChanged(update);
+            } catch (Throwable t) {
+                logger.warn("Problem delivering album art update to listener", t);
+            }
+            metrics.recordCallback(listener, System.nanoTime() - began);
+        }
+    };
+
+    /**
+     * Our single registration for tempo master events with the {@link VirtualCdj}.
+     */
+    private final MasterListener masterListener = new MasterListener() {
+        @Override
+        public void masterChanged(DeviceUpdate update) {
+            for (MasterListener listener : masterListeners) {
+                final long began = System.nanoTime();
+                try {
+                    listener.masterChanged(update);
+                } catch (Throwable t) {
+                    logger.warn("Problem delivering master change to listener", t);
+                }
+                metrics.recordCallback(listener, System.nanoTime() - began);
+            }
+        }
+
+        @Override
+        public void tempoChanged(double tempo) {
+            for (MasterListener listener : masterListeners) {
+                final long began = System.nanoTime();
+                try {
+                    listener.tempoChanged(tempo);
+                } catch (Throwable t) {
+                    logger.warn("Problem delivering master tempo change to listener", t);
+                }
+                metrics.recordCallback(listener, System.nanoTime() - began);
+            }
+        }
+
+        @Override
+        public void newBeat(Beat beat) {
+            for (MasterListener listener : masterListeners) {
+                final long began = System.nanoTime();
+                try {
+                    listener.newBeat(beat);
+                } catch (Throwable t) {
+                    logger.warn("Problem delivering master beat to listener", t);
+                }
+                metrics.recordCallback(listener, System.nanoTime() - began);
+            }
+        }
+    };
+
+    /**
+     * Delivers a beat to the objects watching its player, and to those watching the tempo master if it came from
+     * the master, exactly as if it had been received from the network. This allows recorded or synthetic events
+     * to be fed through the same paths as live ones, with no DJ Link devices present.
+     *
+     * @param beat the beat to deliver
+     */
+    void injectBeat(Beat beat) {
+        beatListener.newBeat(beat);
+        if (beat.isTempoMaster()) {
+            masterListener.newBeat(beat);
+        }
+    }
+
+    /**
+     * Delivers a device update to the objects watching its player, exactly as if it had been received from the
+     * network.
+     *
+     * @param update the status update to deliver
+     */
+    void injectUpdate(DeviceUpdate update) {
+        updateListener.received(update);
+    }
+
+    /**
+     * Delivers tempo master events to the objects watching the master, exactly as if {@link VirtualCdj} had
+     * reported them.
+     *
+     * @param master the new tempo master, or {@code null} if there is none
+     * @param tempo the new master tempo
+     */
+    void injectMaster(DeviceUpdate master, double tempo) {
+        masterListener.masterChanged(master);
+        masterListener.tempoChanged(tempo);
+    }
+
+    /**
+     * Delivers a master tempo change to the objects watching the master, exactly as if {@link VirtualCdj} had
+     * reported it, without implying that the master itself has changed.
+     *
+     * @param tempo the new master tempo
+     */
+    void injectMasterTempo(double tempo) {
+        masterListener.tempoChanged(tempo);
+    }
+
+    /**
+     * Delivers a metadata change to the objects watching its player, exactly as if {@link MetadataFinder} had
+     * reported it.
+     *
+     * @param update the metadata change to deliver
+     */
+    void injectMetadata(TrackMetadataUpdate update) {
+        metadataListener.metadataChanged(update);
+    }
+
+    /**
+     * Delivers a position update to the objects watching its player, exactly as if {@link TimeFinder} had
+     * reported it.
+     *
+     * @param player the player whose position changed
+     * @param update the new position, or {@code null} if it is no longer known
+     */
+    void injectPosition(int player, TrackPositionUpdate update) {
+        positionChanged(player, update);
+    }
+
+    /**
+     * Record whether recorded events are currently being replayed.
+     *
+     * @param replaying {@code true} when a replay begins, {@code false} when it ends
+     */
+    void setReplaying(boolean replaying) {
+        this.replaying = replaying;
+    }
+
+    /**
+     * Check whether recorded events are currently being replayed, in which case objects should report what they
+     * receive even though the finders that would normally supply it are not running.
+     *
+     * @return {@code true} during a replay
+     */
+    boolean isReplaying() {
+        return replaying;
+    }
+
+    /**
+     * Keeps track of our single registration with each finder, so they show up in the live listener counts.
+     */
+    private final Registrations registrations = new Registrations();
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final Dispatcher instance = new Dispatcher();
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists
+     */
+    static Dispatcher getInstance() {
+        return instance;
+    }
+
+    /**
+     * Prevent direct instantiation, and register our single set of listeners with the finders. The
+     * {@link TimeFinder} only reports positions to listeners registered for a particular player, so we register one
+     * listener for each player with it.
+     */
+    private Dispatcher() {
+        registrations.register("BeatFinder", beatListener,
+                () -> BeatFinder.getInstance().addBeatListener(beatListener),
+                () -> BeatFinder.getInstance().removeBeatListener(beatListener));
+        registrations.register("VirtualCdj", updateListener,
+                () -> VirtualCdj.getInstance().addUpdateListener(updateListener),
+                () -> VirtualCdj.getInstance().removeUpdateListener(updateListener));
+        registrations.register("VirtualCdj", masterListener,
+                () -> VirtualCdj.getInstance().addMasterListener(masterListener),
+                () -> VirtualCdj.getInstance().removeMasterListener(masterListener));
+        registrations.register("MetadataFinder", metadataListener,
+                () -> MetadataFinder.getInstance().addTrackMetadataListener(metadataListener),
+                () -> MetadataFinder.getInstance().removeTrackMetadataListener(metadataListener));
+        registrations.register("WaveformFinder", waveformListener,
+                () -> WaveformFinder.getInstance().addWaveformListener(waveformListener),
+                () -> WaveformFinder.getInstance().removeWaveformListener(waveformListener));
+        registrations.register("ArtFinder", artListener,
+                () -> ArtFinder.getInstance().addAlbumArtListener(artListener),
+                () -> ArtFinder.getInstance().removeAlbumArtListener(artListener));
+        for (int player = 1; player <= MAX_PLAYER; player++) {
+            final int watchedPlayer = player;
+            final TrackPositionBeatListener positionListener = new TrackPositionBeatListener() {
+                @Override
+                public void movementChanged(TrackPositionUpdate update) {
+                    positionChanged(watchedPlayer, update);
+                }
+
+                @Override
+                public void newBeat(Beat beat, TrackPositionUpdate update) {
+                    metrics.recordPosition(watchedPlayer);
+                    deliverPositionBeat(positionListeners.get(watchedPlayer), beat, update);
+                }
+            };
+            registrations.register("TimeFinder", positionListener,
+                    () -> TimeFinder.getInstance().addTrackPositionListener(watchedPlayer, positionListener),
+                    () -> TimeFinder.getInstance().removeTrackPositionListener(positionListener));
+        }
+    }
+
+    /**
+     * Checks that a player number is one for which we can route events.
+     *
+     * @param player the player number being registered for
+     *
+     * @throws IllegalArgumentException if the player number is out of range
+     */
+    private static void validatePlayer(int player) {
+        if (player < 1 || player > MAX_PLAYER) {
+            throw new IllegalArgumentException("player must be in range 1-" + MAX_PLAYER);
+        }
+    }
+
+    /**
+     * Registers a listener to receive beats from a particular player. If the listener was already registered for
+     * a different player, it is moved to the new one.
+     *
+     * @param player the player whose beats are of interest
+     * @param listener the listener to be informed of beats
+     */
+    void addBeatListener(int player, BeatListener listener) {
+        validatePlayer(player);
+        beatListeners.add(player, listener);
+    }
+
+    /**
+     * Stops delivering beats to a listener, no matter which player it was registered for.
+     *
+     * @param listener the listener to remove
+     */
+    void removeBeatListener(BeatListener listener) {
+        beatListeners.remove(listener);
+    }
+
+    /**
+     * Registers a listener to receive status updates from a particular player. If the listener was already
+     * registered for a different player, it is moved to the new one.
+     *
+     * @param player the player whose updates are of interest
+     * @param listener the listener to be informed of updates
+     */
+    void addUpdateListener(int player, DeviceUpdateListener listener) {
+        validatePlayer(player);
+        updateListeners.add(player, listener);
+    }
+
+    /**
+     * Stops delivering status updates to a listener, no matter which player it was registered for.
+     *
+     * @param listener the listener to remove
+     */
+    void removeUpdateListener(DeviceUpdateListener listener) {
+        updateListeners.remove(listener);
+    }
+
+    /**
+     * Registers a listener to receive metadata changes for a particular player. If the listener was already
+     * registered for a different player, it is moved to the new one.
+     *
+     * @param player the player whose metadata is of interest
+     * @param listener the listener to be informed of metadata changes
+     */
+    void addTrackMetadataListener(int player, TrackMetadataListener listener) {
+        validatePlayer(player);
+        metadataListeners.add(player, listener);
+    }
+
+    /**
+     * Stops delivering metadata changes to a listener, no matter which player it was registered for.
+     *
+     * @param listener the listener to remove
+     */
+    void removeTrackMetadataListener(TrackMetadataListener listener) {
+        metadataListeners.remove(listener);
+    }
+
+    /**
+     * Registers a listener to receive waveform changes for a particular player. If the listener was already
+     * registered for a different player, it is moved to the new one.
+     *
+     * @param player the player whose waveforms are of interest
+     * @param listener the listener to be informed of waveform changes
+     */
+    void addWaveformListener(int player, WaveformListener listener) {
+        validatePlayer(player);
+        waveformListeners.add(player, listener);
+    }
+
+    /**
+     * Stops delivering waveform changes to a listener, no matter which player it was registered for.
+     *
+     * @param listener the listener to remove
+     */
+    void removeWaveformListener(WaveformListener listener) {
+        waveformListeners.remove(listener);
+    }
+
+    /**
+     * Registers a listener to receive album art changes for a particular player. If the listener was already
+     * registered for a different player, it is moved to the new one.
+     *
+     * @param player the player whose album art is of interest
+     * @param listener the listener to be informed of album art changes
+     */
+    void addAlbumArtListener(int player, AlbumArtListener listener) {
+        validatePlayer(player);
+        artListeners.add(player, listener);
+    }
+
+    /**
+     * Stops delivering album art changes to a listener, no matter which player it was registered for.
+     *
+     * @param listener the listener to remove
+     */
+    void removeAlbumArtListener(AlbumArtListener listener) {
+        artListeners.remove(listener);
+    }
+
+    /**
+     * Registers a listener to receive position updates for a player, moving it from any other player. Like the
+     * {@link TimeFinder}, if the player's position is already known, it is delivered to the listener right away.
+     *
+     * @param player the player number of interest
+     * @param listener the listener to be informed of position updates for that player, and of the position at each
+     *                 beat if it is a {@link TrackPositionBeatListener}
+     */
+    void addPositionListener(int player, TrackPositionListener listener) {
+        validatePlayer(player);
+        positionListeners.add(player, listener);
+        final TimeFinder timeFinder = TimeFinder.getInstance();
+        if (!replaying && timeFinder.isRunning()) {
+            final TrackPositionUpdate current = timeFinder.getLatestPositionFor(player);
+            if (current != null) {
+                deliverPosition(Collections.singletonList(listener), current);
+            }
+        }
+    }
+
+    /**
+     * Stops delivering position updates to a listener.
+     *
+     * @param listener the listener to remove
+     */
+    void removePositionListener(TrackPositionListener listener) {
+        positionListeners.remove(listener);
+    }
+
+    /**
+     * Registers a listener to receive tempo master events. Has no effect if it was already registered.
+     *
+     * @param listener the listener to be informed of tempo master events
+     */
+    void addMasterListener(MasterListener listener) {
+        masterListeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Stops delivering tempo master events to a listener.
+     *
+     * @param listener the listener to remove
+     */
+    void removeMasterListener(MasterListener listener) {
+        masterListeners.remove(listener);
+    }
+
+    /**
+     * Registers a listener to learn about pending tempo master handoffs. Has no effect if it was already
+     * registered.
+     *
+     * @param listener the listener to be informed when the master announces or finishes a handoff
+     */
+    void addHandoffListener(HandoffListener listener) {
+        handoffListeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Stops delivering pending tempo master handoffs to a listener.
+     *
+     * @param listener the listener to remove
+     */
+    void removeHandoffListener(HandoffListener listener) {
+        handoffListeners.remove(listener);
+    }
+}
@@ -0,0 +1,507 @@
+package beatlink;
+
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.Beat;
+import org.deepsymmetry.beatlink.CdjStatus;
+import org.deepsymmetry.beatlink.DeviceUpdate;
+import org.deepsymmetry.beatlink.MixerStatus;
+import org.deepsymmetry.beatlink.data.DataReference;
+import org.deepsymmetry.beatlink.data.TrackMetadata;
+import org.deepsymmetry.beatlink.data.TrackPositionUpdate;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A compact, append-only binary file of the events seen by the bridge, written through a memory-mapped buffer so
+ * that recording an event is little more than copying its bytes. Each record is a type byte, a payload length,
+ * and the {@link System#nanoTime()} at which the event was received, followed by the payload. Beats and status
+ * updates are stored as their raw packets, so they can be reconstructed exactly; position, metadata and master
+ * events are stored as just the values needed to recreate them. The file is written in fixed-size segments, and a
+ * record that would not fit in the rest of a segment starts the next one instead, leaving the rest zeroed. Each
+ * segment is mapped in the background before it is needed, so the threads recording events never wait for that.
+ */
+@API(status = API.Status.INTERNAL)
+final class EventLog implements Closeable {
+
+    /**
+     * Record types.
+     */
+    static final byte BEAT = 1;
+    static final byte CDJ_STATUS = 2;
+    static final byte MIXER_STATUS = 3;
+    static final byte POSITION = 4;
+    static final byte METADATA = 5;
+    static final byte MASTER = 6;
+    static final byte MASTER_TEMPO = 7;
+
+    /**
+     * Identifies our files; the bytes "BLMR".
+     */
+    private static final int MAGIC = 0x424c4d52;
+
+    /**
+     * The version of the file format. Version 1 files never have zeroed gaps between records, so can be read the
+     * same way.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * The size of the type, length and timestamp that begin each record.
+     */
+    private static final int HEADER_SIZE = 11;
+
+    /**
+     * How much of the file we map at a time while writing.
+     */
+    private static final long SEGMENT_SIZE = 16L * 1024 * 1024;
+
+    /**
+     * Bits in the flags byte of position records.
+     */
+    private static final int KNOWN = 1;
+    private static final int PLAYING = 2;
+    private static final int REVERSE = 4;
+    private static final int PRECISE = 8;
+    private static final int DEFINITIVE = 16;
+    private static final int FROM_BEAT = 32;
+
+    /**
+     * A single event read back from a log. Readers reuse one instance for every event.
+     */
+    static final class Event {
+
+        /**
+         * The type of record.
+         */
+        byte type;
+
+        /**
+         * The {@link System#nanoTime()} at which the event was originally received.
+         */
+        long timestamp;
+
+        /**
+         * For packet records, the address of the device that sent it.
+         */
+        final byte[] address = new byte[4];
+
+        /**
+         * For packet records, the packet bytes; only the first {@link #length} are meaningful.
+         */
+        final byte[] packet = new byte[1500];
+
+        /**
+         * The number of packet bytes.
+         */
+        int length;
+
+        /**
+         * The player number for position and metadata records, or the device number for master records (zero when
+         * there is no master).
+         */
+        int device;
+
+        /**
+         * Whether a position or metadata record describes something, rather than its absence.
+         */
+        boolean known;
+
+        /**
+         * For position records, the playback position in milliseconds.
+         */
+        long milliseconds;
+
+        /**
+         * For position records, the beat number.
+         */
+        int beatNumber;
+
+        /**
+         * For position records, the playback pitch; for master and master tempo records, the master tempo.
+         */
+        double value;
+
+        /**
+         * For position records, the remaining details, as a combination of the flag bits.
+         */
+        int flags;
+
+        /**
+         * For metadata records, the slot from which the track was loaded.
+         */
+        int slot;
+
+        /**
+         * For metadata records, the rekordbox ID of the track.
+         */
+        int rekordboxId;
+
+        /**
+         * For metadata records, the type of track.
+         */
+        int trackType;
+
+        /**
+         * Recreate a position update from a position record.
+         *
+         * @param now the timestamp to give the update, since the original timestamp is meaningless during replay
+         *
+         * @return the position, or {@code null} if the record says the position was unknown
+         */
+        TrackPositionUpdate toPositionUpdate(long now) {
+            if (!known) {
+                return null;
+            }
+            return new TrackPositionUpdate(now, milliseconds, beatNumber, (flags & DEFINITIVE) != 0,
+                    (flags & PLAYING) != 0, value, (flags & REVERSE) != 0, null, (flags & PRECISE) != 0,
+                    (flags & FROM_BEAT) != 0);
+        }
+
+        /**
+         * Recreate the track reference from a metadata record.
+         *
+         * @return the reference, or {@code null} if the record says no track was loaded
+         */
+        DataReference toDataReference() {
+            if (!known) {
+                return null;
+            }
+            return new DataReference(device, CdjStatus.TrackSourceSlot.values()[slot], rekordboxId);
+        }
+
+        /**
+         * Find the type of track from a metadata record.
+         *
+         * @return the track type
+         */
+        CdjStatus.TrackType toTrackType() {
+            return CdjStatus.TrackType.values()[trackType];
+        }
+    }
+
+    /**
+     * The file we are reading or writing.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Whether we are writing (rather than reading) the file.
+     */
+    private final boolean writing;
+
+    /**
+     * The file offset at which {@link #buffer} begins.
+     */
+    private long base = 0;
+
+    /**
+     * The currently mapped region of the file.
+     */
+    private MappedByteBuffer buffer;
+
+    /**
+     * When writing, the segment following the current one, if it has been mapped in advance.
+     */
+    private MappedByteBuffer next = null;
+
+    /**
+     * When writing, whether the segment following the current one is being mapped in the background.
+     */
+    private boolean mapping = false;
+
+    /**
+     * Open a log.
+     *
+     * @param file the file to be read or written
+     * @param writing {@code true} to create a new log, replacing any existing file, or {@code false} to read one
+     *
+     * @throws IOException if there is a problem opening or mapping the file, or it is not one of our logs
+     */
+    EventLog(File file, boolean writing) throws IOException {
+        this.writing = writing;
+        if (writing) {
+            final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(0);
+            channel = randomAccessFile.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+        } else {
+            channel = new RandomAccessFile(file, "r").getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                channel.close();
+                throw new IOException("Event log is too large to replay: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+                channel.close();
+                throw new IOException("Not a beat-link-max event log: " + file);
+            }
+            final int version = buffer.getInt();
+            if (version < 1 || version > VERSION) {
+                channel.close();
+                throw new IOException("Unsupported event log version " + version + ": " + file);
+            }
+        }
+    }
+
+    /**
+     * Map the segment following the current one on the lifecycle thread, so that it is ready before we need it.
+     */
+    private void prepareNextSegment() {
+        final long nextBase = base + SEGMENT_SIZE;
+        mapping = true;
+        Finders.getInstance().execute(() -> {
+            MappedByteBuffer mapped = null;
+            try {
+                mapped = channel.map(FileChannel.MapMode.READ_WRITE, nextBase, SEGMENT_SIZE);
+            } catch (IOException e) {
+                // We have been closed, or the file can't be extended; beginRecord will find out which.
+            }
+            synchronized (this) {
+                mapping = false;
+                if (buffer != null && base + SEGMENT_SIZE == nextBase) {
+                    next = mapped;
+                }
+            }
+        });
+    }
+
+    /**
+     * Make sure there is room in the current segment for a record, moving on to the next segment if needed, and
+     * arranging for the one after that to be mapped once we are halfway through. Records never span segments.
+     *
+     * @param type the type of the record about to be written
+     * @param length the size of its payload
+     * @param timestamp when the event was received
+     *
+     * @throws IOException if the file could not be extended
+     */
+    private void beginRecord(byte type, int length, long timestamp) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE + length) {
+            base += SEGMENT_SIZE;  // The rest of this segment stays zeroed, which readers skip.
+            if (next != null) {
+                buffer = next;
+                next = null;
+            } else {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, base, SEGMENT_SIZE);  // Wasn't ready in time.
+            }
+        } else if (next == null && !mapping && buffer.position() > SEGMENT_SIZE / 2) {
+            prepareNextSegment();
+        }
+        buffer.put(type);
+        buffer.putShort((short) length);
+        buffer.putLong(timestamp);
+    }
+
+    /**
+     * Record a beat or status packet.
+     *
+     * @param update the beat or status update
+     *
+     * @throws IOException if there is a problem writing to the file
+     */
+    synchronized void writePacket(DeviceUpdate update) throws IOException {
+        final byte type;
+        if (update instanceof Beat) {
+            type = BEAT;
+        } else if (update instanceof CdjStatus) {
+            type = CDJ_STATUS;
+        } else if (update instanceof MixerStatus) {
+            type = MIXER_STATUS;
+        } else {
+            return;  // Not something we know how to reconstruct.
+        }
+        final byte[] address = update.getAddress().getAddress();
+        final byte[] packet = update.getPacketBytes();
+        if (buffer == null || address.length != 4 || packet.length > 1500) {
+            return;
+        }
+        beginRecord(type, 4 + packet.length, update.getTimestamp());
+        buffer.put(address);
+        buffer.put(packet);
+    }
+
+    /**
+     * Record a change in playback position.
+     *
+     * @param player the player whose position changed
+     * @param update the new position, or {@code null} if it is no longer known
+     *
+     * @throws IOException if there is a problem writing to the file
+     */
+    synchronized void writePosition(int player, TrackPositionUpdate update) throws IOException {
+        if (buffer == null) {
+            return;  // We have been closed.
+        }
+        beginRecord(POSITION, 22, System.nanoTime());
+        buffer.put((byte) player);
+        if (update == null) {
+            buffer.putLong(0).putInt(0).putDouble(0.0).put((byte) 0);
+        } else {
+            buffer.putLong(update.milliseconds);
+            buffer.putInt(update.beatNumber);
+            buffer.putDouble(update.pitch);
+            buffer.put((byte) (KNOWN | (update.playing ? PLAYING : 0) | (update.reverse ? REVERSE : 0) |
+                    (update.precise ? PRECISE : 0) | (update.definitive ? DEFINITIVE : 0) |
+                    (update.fromBeat ? FROM_BEAT : 0)));
+        }
+    }
+
+    /**
+     * Record a change in the track loaded in a player.
+     *
+     * @param player the player whose track changed
+     * @param metadata the metadata of the new track, or {@code null} if none
+     *
+     * @throws IOException if there is a problem writing to the file
+     */
+    synchronized void writeMetadata(int player, TrackMetadata metadata) throws IOException {
+        if (buffer == null) {
+            return;  // We have been closed.
+        }
+        beginRecord(METADATA, 8, System.nanoTime());
+        buffer.put((byte) player);
+        if (metadata == null) {
+            buffer.put((byte) 0).put((byte) 0).put((byte) 0).putInt(0);
+        } else {
+            buffer.put((byte) 1);
+            buffer.put((byte) metadata.trackReference.slot.ordinal());
+            buffer.put((byte) metadata.trackType.ordinal());
+            buffer.putInt(metadata.trackReference.rekordboxId);
+        }
+    }
+
+    /**
+     * Record a change in the tempo master.
+     *
+     * @param device the device number of the new tempo master, or zero if there is none
+     * @param tempo the master tempo
+     *
+     * @throws IOException if there is a problem writing to the file
+     */
+    synchronized void writeMaster(int device, double tempo) throws IOException {
+        if (buffer == null) {
+            return;  // We have been closed.
+        }
+        beginRecord(MASTER, 9, System.nanoTime());
+        buffer.put((byte) device);
+        buffer.putDouble(tempo);
+    }
+
+    /**
+     * Record a change in the master tempo.
+     *
+     * @param tempo the new master tempo
+     *
+     * @throws IOException if there is a problem writing to the file
+     */
+    synchronized void writeMasterTempo(double tempo) throws IOException {
+        if (buffer == null) {
+            return;  // We have been closed.
+        }
+        beginRecord(MASTER_TEMPO, 8, System.nanoTime());
+        buffer.putDouble(tempo);
+    }
+
+    /**
+     * Read the next event from the log.
+     *
+     * @param event where the event should be stored
+     *
+     * @return {@code false} if there are no more events
+     */
+    boolean read(Event event) {
+        try {
+            do {
+                if (buffer.remaining() < HEADER_SIZE) {
+                    return false;
+                }
+                event.type = buffer.get();
+                if (event.type == 0) {
+                    // The unused end of a segment, or of a recording that was not closed cleanly. Work from the
+                    // position of the zero we just read, in case it was the last byte of its segment.
+                    final long boundary = ((buffer.position() - 1) / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+                    if (boundary >= buffer.limit()) {
+                        return false;
+                    }
+                    buffer.position((int) boundary);
+                }
+            } while (event.type == 0);
+            final int length = buffer.getShort() & 0xffff;
+            event.timestamp = buffer.getLong();
+            final int end = buffer.position() + length;
+            switch (event.type) {
+                case BEAT:
+                case CDJ_STATUS:
+                case MIXER_STATUS:
+                    buffer.get(event.address);
+                    event.length = length - 4;
+                    buffer.get(event.packet, 0, event.length);
+                    break;
+
+                case POSITION:
+                    event.device = buffer.get();
+                    event.milliseconds = buffer.getLong();
+                    event.beatNumber = buffer.getInt();
+                    event.value = buffer.getDouble();
+                    event.flags = buffer.get();
+                    event.known = (event.flags & KNOWN) != 0;
+                    break;
+
+                case METADATA:
+                    event.device = buffer.get();
+                    event.known = buffer.get() != 0;
+                    event.slot = buffer.get();
+                    event.trackType = buffer.get();
+                    event.rekordboxId = buffer.getInt();
+                    break;
+
+                case MASTER:
+                    event.device = buffer.get() & 0xff;
+                    event.value = buffer.getDouble();
+                    break;
+
+                case MASTER_TEMPO:
+                    event.value = buffer.getDouble();
+                    break;
+
+                default:
+                    break;  // A record type from a later version; skip it.
+            }
+            buffer.position(end);
+            return true;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            return false;  // The final record was cut short.
+        }
+    }
+
+    /**
+     * Finish with the log. When writing, trims the file to the records actually written if the operating system
+     * allows that while the file is still mapped; otherwise the unused end of the file is left zeroed, which
+     * readers recognize as the end of the log.
+     *
+     * @throws IOException if there is a problem closing the file
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (writing && buffer != null) {
+            final long end = base + buffer.position();
+            buffer.force();
+            buffer = null;
+            next = null;
+            try {
+                channel.truncate(end);
+            } catch (IOException e) {
+                // Windows refuses to truncate mapped files; the zeroed tail is harmless.
+            }
+        }
+        channel.close();
+    }
+}
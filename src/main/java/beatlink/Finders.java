@@ -0,0 +1,261 @@
+package beatlink;
+
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.VirtualCdj;
+import org.deepsymmetry.beatlink.data.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps track of which of the optional Beat Link finders are needed by the MXJ objects that currently exist, so that
+ * {@link Connect} only starts those, and so that they can be started when the first object that needs them is
+ * created while we are already online, and stopped when the last one is deleted. The core finders are always
+ * started by {@link Connect}, and run for as long as we are online: {@code DeviceFinder}, {@code VirtualCdj},
+ * {@code BeatFinder}, and the {@code TimeFinder} along with the {@link MetadataFinder} (in passive mode) and
+ * {@link BeatGridFinder} on which it depends, since stopping either of those would stop the {@code TimeFinder} too.
+ */
+@API(status = API.Status.INTERNAL)
+final class Finders {
+
+    private static final Logger logger = LoggerFactory.getLogger(Finders.class);
+
+    /**
+     * The optional capabilities that objects can ask for, in an order where each one comes after everything it
+     * depends on.
+     */
+    enum Feature {
+        /**
+         * Track metadata and beat grids, which the passive {@link MetadataFinder} and {@link BeatGridFinder} can
+         * only obtain from rekordbox exports downloaded by the {@link CrateDigger}.
+         */
+        METADATA("CrateDigger") {
+            @Override
+            void start() throws Exception {
+                CrateDigger.getInstance().start();
+            }
+
+            @Override
+            void stop() {
+                CrateDigger.getInstance().stop();
+            }
+        },
+
+        /**
+         * Detailed waveforms, which also tell us track lengths.
+         */
+        WAVEFORMS("WaveformFinder", METADATA) {
+            @Override
+            void start() throws Exception {
+                WaveformFinder.getInstance().start();
+            }
+
+            @Override
+            void stop() {
+                WaveformFinder.getInstance().stop();
+            }
+        },
+
+        /**
+         * Album art.
+         */
+        ART("ArtFinder", METADATA) {
+            @Override
+            void start() throws Exception {
+                ArtFinder.getInstance().start();
+            }
+
+            @Override
+            void stop() {
+                ArtFinder.getInstance().stop();
+            }
+        },
+
+        /**
+         * Extra track analysis sections, such as the song structure (phrase) information.
+         */
+        ANALYSIS_TAGS("AnalysisTagFinder", METADATA) {
+            @Override
+            void start() throws Exception {
+                AnalysisTagFinder.getInstance().start();
+            }
+
+            @Override
+            void stop() {
+                AnalysisTagFinder.getInstance().stop();
+            }
+        },
+
+        /**
+         * Track signatures, which identify tracks independently of where they are loaded from.
+         */
+        SIGNATURES("SignatureFinder", METADATA, WAVEFORMS) {
+            @Override
+            void start() throws Exception {
+                SignatureFinder.getInstance().start();
+            }
+
+            @Override
+            void stop() {
+                SignatureFinder.getInstance().stop();
+            }
+        };
+
+        /**
+         * The name used to identify this feature in startup timing reports.
+         */
+        final String finderName;
+
+        /**
+         * The other features that must be running for this one to work.
+         */
+        final Feature[] prerequisites;
+
+        Feature(String finderName, Feature... prerequisites) {
+            this.finderName = finderName;
+            this.prerequisites = prerequisites;
+        }
+
+        /**
+         * Start the finders that provide this feature.
+         *
+         * @throws Exception if there is a problem starting them
+         */
+        abstract void start() throws Exception;
+
+        /**
+         * Stop the finders that provide this feature.
+         */
+        abstract void stop();
+    }
+
+    /**
+     * Runs start and stop requests one at a time, in the order they were received, whether they come from
+     * {@link Connect} objects or from objects that need optional finders.
+     */
+    private final ExecutorService lifecycleExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "beat-link-max lifecycle");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * How many objects currently need each feature, including those that need it indirectly because they need a
+     * feature which depends on it.
+     */
+    private final Map<Feature, Integer> counts = new EnumMap<>(Feature.class);
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final Finders instance = new Finders();
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists
+     */
+    static Finders getInstance() {
+        return instance;
+    }
+
+    /**
+     * Prevent direct instantiation.
+     */
+    private Finders() {
+        for (Feature feature : Feature.values()) {
+            counts.put(feature, 0);
+        }
+    }
+
+    /**
+     * Start the finders on which the {@code TimeFinder} depends. These are not reference counted, because they
+     * must keep running for as long as it does. The {@link MetadataFinder} is started in passive mode, so that it
+     * never queries players, which can interfere with them.
+     *
+     * @throws Exception if there is a problem starting them
+     */
+    static void startCore() throws Exception {
+        MetadataFinder.getInstance().setPassive(true);  // Start out conservatively.
+        MetadataFinder.getInstance().start();
+        BeatGridFinder.getInstance().start();
+    }
+
+    /**
+     * Run a task on the single thread responsible for starting and stopping finders.
+     *
+     * @param task the work to be performed
+     */
+    void execute(Runnable task) {
+        lifecycleExecutor.execute(task);
+    }
+
+    /**
+     * Record that an object needs a feature (and everything it depends on). If this is the first object that
+     * needs it and we are already online, start it.
+     *
+     * @param feature the capability needed
+     */
+    synchronized void require(Feature feature) {
+        for (Feature prerequisite : feature.prerequisites) {
+            require(prerequisite);
+        }
+        final int count = counts.get(feature) + 1;
+        counts.put(feature, count);
+        if (count == 1 && VirtualCdj.getInstance().isRunning()) {
+            execute(() -> {
+                try {
+                    feature.start();
+                    logger.info("Started {} on demand", feature.finderName);
+                } catch (Exception e) {
+                    logger.error("Unable to start {}", feature.finderName, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Record that an object no longer needs a feature (or the things it depends on). If no other object needs it,
+     * stop it.
+     *
+     * @param feature the capability no longer needed
+     */
+    synchronized void release(Feature feature) {
+        final int count = counts.get(feature) - 1;
+        if (count < 0) {
+            logger.warn("Released {} more times than it was required", feature);
+            return;
+        }
+        counts.put(feature, count);
+        if (count == 0 && VirtualCdj.getInstance().isRunning()) {
+            execute(() -> {
+                feature.stop();
+                logger.info("Stopped {} because no objects need it", feature.finderName);
+            });
+        }
+        for (Feature prerequisite : feature.prerequisites) {
+            release(prerequisite);
+        }
+    }
+
+    /**
+     * Find out which features are needed by the objects that currently exist.
+     *
+     * @return the needed features, with each one following the features it depends on
+     */
+    synchronized List<Feature> getRequired() {
+        final List<Feature> result = new ArrayList<>();
+        for (Feature feature : Feature.values()) {
+            if (counts.get(feature) > 0) {
+                result.add(feature);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,160 @@
+package beatlink;
+
+import org.apiguardian.api.API;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Holds the output that an MXJ object wants to send to its patch until the {@link Delivery} dispatcher can send it
+ * from the Max scheduler thread. Values like tempo or position are kept in numbered slots where only the latest
+ * value matters, so a newer value replaces one that has not yet been sent. Events that must all be seen, in order,
+ * such as beats, are kept in a bounded queue, from which the oldest are discarded if the patch falls too far behind.
+ * Posting never blocks, so it is safe to do from Beat Link's network threads.
+ */
+@API(status = API.Status.INTERNAL)
+final class Mailbox {
+
+    /**
+     * The latest-value-wins slots, each holding the delivery which will send the most recent value, if it has not
+     * yet been sent.
+     */
+    private final AtomicReferenceArray<Runnable> slots;
+
+    /**
+     * The events which must be delivered in order.
+     */
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * How many events are currently in {@link #queue}, which is cheaper to track ourselves than to ask the queue.
+     */
+    private final AtomicInteger queueSize = new AtomicInteger(0);
+
+    /**
+     * The maximum number of events we will hold in {@link #queue}.
+     */
+    private final int capacity;
+
+    /**
+     * Tracks whether we have already asked the dispatcher to drain us, so we only ask once until it does.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * Set once the object that owns us has been deleted, after which nothing more will be delivered.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Set when the object that owns us exists only so {@link Warmup} can exercise its handlers, and has no patch to
+     * send anything to. Deliveries are still accepted and drained by the dispatcher, but never run.
+     */
+    private volatile boolean muted = false;
+
+    /**
+     * Create a mailbox.
+     *
+     * @param slots the number of latest-value-wins slots needed by the owning object
+     * @param capacity the maximum number of ordered events to hold before discarding the oldest ones
+     */
+    Mailbox(int slots, int capacity) {
+        this.slots = new AtomicReferenceArray<>(slots);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Asks the dispatcher to drain us, unless we have already done so.
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            Delivery.getInstance().ready(this);
+        }
+    }
+
+    /**
+     * Arrange for a value to be sent to the patch, replacing any value in the same slot that has not yet been sent.
+     *
+     * @param slot identifies the kind of value being sent
+     * @param delivery the code that will send the value when the dispatcher gets to us
+     */
+    void post(int slot, Runnable delivery) {
+        if (closed) {
+            return;
+        }
+        if (slots.getAndSet(slot, delivery) != null) {
+            Delivery.getInstance().recordCoalesced();
+        }
+        schedule();
+    }
+
+    /**
+     * Arrange for an event to be sent to the patch after any other queued events. If the queue is full, the oldest
+     * events are discarded to make room, since they would be arriving too late to be useful anyway.
+     *
+     * @param delivery the code that will send the event when the dispatcher gets to us
+     */
+    void enqueue(Runnable delivery) {
+        if (closed) {
+            return;
+        }
+        queue.offer(delivery);
+        if (queueSize.incrementAndGet() > capacity && queue.poll() != null) {
+            queueSize.decrementAndGet();
+            Delivery.getInstance().recordDropped();
+        }
+        schedule();
+    }
+
+    /**
+     * Sends everything we are holding to the patch. Called by the dispatcher on the Max scheduler thread.
+     *
+     * @return the number of values and events that were sent
+     */
+    int drain() {
+        scheduled.set(false);
+        int count = 0;
+        Runnable delivery;
+        while ((delivery = queue.poll()) != null) {
+            queueSize.decrementAndGet();
+            if (!closed && !muted) {
+                delivery.run();
+                count++;
+            }
+        }
+        for (int i = 0; i < slots.length(); i++) {
+            delivery = slots.getAndSet(i, null);
+            if (delivery != null && !closed && !muted) {
+                delivery.run();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Keep accepting and draining deliveries, but stop running them, because the object that owns us has no patch.
+     */
+    void mute() {
+        muted = true;
+    }
+
+    /**
+     * Check whether we are waiting for the dispatcher to drain us.
+     *
+     * @return {@code true} if nothing posted to us is still waiting for the dispatcher
+     */
+    boolean isIdle() {
+        return !scheduled.get();
+    }
+
+    /**
+     * Stop delivering anything further, because the object that owns us has been deleted.
+     */
+    void close() {
+        closed = true;
+    }
+}
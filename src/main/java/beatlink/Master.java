@@ -1,5 +1,6 @@
 package beatlink;
 
+import com.cycling74.max.Atom;
 import com.cycling74.max.DataTypes;
 import com.cycling74.max.MaxObject;
 import org.apiguardian.api.API;
@@ -16,35 +17,79 @@ import org.deepsymmetry.beatlink.VirtualCdj;
 @API(status = API.Status.EXPERIMENTAL)
 public class Master extends MaxObject {
 
+    /**
+     * Holds master change reports until they can be sent to the patch from the Max scheduler thread. Only the most
+     * recent report is delivered.
+     */
+    private final Mailbox mailbox = new Mailbox(2, 0);
+
+    /**
+     * The mailbox slot used to deliver master changes to the patch.
+     */
+    private static final int MASTER_SLOT = 0;
+
+    /**
+     * The mailbox slot used to deliver pending handoffs to the patch.
+     */
+    private static final int HANDOFF_SLOT = 1;
+
+    /**
+     * Keeps track of the listeners we have registered, so they can all be removed when we are deleted.
+     */
+    private final Registrations registrations = new Registrations();
+
+    /**
+     * Sends the player number of the tempo master to the patch.
+     *
+     * @param update a status update from the tempo master, or {@code null} if there is none
+     */
+    private void reportMaster(DeviceUpdate update) {
+        if (update == null) {
+            outlet(0, 0);
+        } else {
+            outlet(0, update.getDeviceNumber());
+        }
+    }
+
     /**
      * Allows us to learn about tempo master changes, so we can pass them on.
      */
     private final MasterListener listener = new MasterAdapter() {
         @Override
         public void masterChanged(DeviceUpdate update) {
-            if (update == null) {
-                outlet(0, 0);
-            } else {
-                outlet(0, update.getDeviceNumber());
-            }
+            mailbox.post(MASTER_SLOT, () -> reportMaster(update));
         }
     };
 
+    /**
+     * Allows us to learn when the tempo master announces that it is about to hand off to another player, so the
+     * patch can prepare for the change before it happens.
+     */
+    private final Dispatcher.HandoffListener handoffListener = (from, to) ->
+            mailbox.post(HANDOFF_SLOT, () -> outlet(1, new Atom[]{Atom.newAtom(from), Atom.newAtom(to)}));
+
     /**
      * Configures our single outlet and registers our listener.
      */
     public Master() {
         declareInlets(new int[] {DataTypes.ALL});
         setInletAssist(new String[] {"bang to report current master player"});
-        declareOutlets(new int[] {DataTypes.INT});
-        setOutletAssist(new String[] {"master player number, or 0 if none"});
+        declareOutlets(new int[] {DataTypes.INT, DataTypes.LIST});
+        setOutletAssist(new String[] {"master player number, or 0 if none",
+                "pending handoff as current master and player it is yielding to (0 when none)"});
         createInfoOutlet(false);
-        VirtualCdj.getInstance().addMasterListener(listener);
+        registrations.register("Dispatcher", listener,
+                () -> Dispatcher.getInstance().addMasterListener(listener),
+                () -> Dispatcher.getInstance().removeMasterListener(listener));
+        registrations.register("Dispatcher", handoffListener,
+                () -> Dispatcher.getInstance().addHandoffListener(handoffListener),
+                () -> Dispatcher.getInstance().removeHandoffListener(handoffListener));
     }
 
     @Override
     protected void notifyDeleted() {
-        VirtualCdj.getInstance().removeMasterListener(listener);
+        mailbox.close();
+        registrations.unregisterAll();
         super.notifyDeleted();
     }
 
@@ -54,7 +99,7 @@ public class Master extends MaxObject {
         if (VirtualCdj.getInstance().isRunning()) {
             masterUpdate = VirtualCdj.getInstance().getTempoMaster();
         }
-        listener.masterChanged(masterUpdate);
+        reportMaster(masterUpdate);
     }
 
     @Override
@@ -63,7 +108,7 @@ public class Master extends MaxObject {
         if (VirtualCdj.getInstance().isRunning()) {
             masterUpdate = VirtualCdj.getInstance().getTempoMaster();
         }
-        listener.masterChanged(masterUpdate);
+        reportMaster(masterUpdate);
         super.loadbang();
     }
 }
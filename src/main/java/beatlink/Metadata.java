@@ -4,9 +4,9 @@ import com.cycling74.max.Atom;
 import com.cycling74.max.DataTypes;
 import com.cycling74.max.MaxObject;
 import org.apiguardian.api.API;
-import org.deepsymmetry.beatlink.data.MetadataFinder;
-import org.deepsymmetry.beatlink.data.TrackMetadata;
-import org.deepsymmetry.beatlink.data.TrackMetadataUpdate;
+import org.deepsymmetry.beatlink.CdjStatus;
+import org.deepsymmetry.beatlink.DeviceUpdateListener;
+import org.deepsymmetry.beatlink.data.*;
 
 /**
  * An MXJ object that reports metadata about tracks on a particular player as it becomes available.
@@ -19,41 +19,203 @@ public class Metadata extends MaxObject {
      */
     private volatile int player = 1;
 
+    /**
+     * Holds metadata reports until they can be sent to the patch from the Max scheduler thread. Only the most
+     * recent report is delivered.
+     */
+    private final Mailbox mailbox = new Mailbox(2, 0);
+
+    /**
+     * The mailbox slot used to deliver metadata reports to the patch.
+     */
+    private static final int METADATA_SLOT = 0;
+
+    /**
+     * The mailbox slot used to deliver album art file paths to the patch.
+     */
+    private static final int ART_SLOT = 1;
+
+    /**
+     * The cached lists for the track currently loaded in the player we are watching, if we know it.
+     */
+    private volatile MetadataCache.Track currentTrack = null;
+
+    /**
+     * The track most recently reported as loaded in status packets from the player we are watching, so we can
+     * tell when a new one is loaded.
+     */
+    private volatile DataReference loadedTrack = null;
+
+    /**
+     * The attribute that controls whether we use the {@link AnalysisCache}, which remembers tracks on disk so that
+     * ones we have seen before can be reported as soon as they are loaded. This is off by default because learning
+     * track signatures requires downloading waveforms and beat grids for every loaded track.
+     */
+    private boolean diskcache = false;
+
+    /**
+     * Keeps track of the listeners we have registered, so they can all be removed when we are deleted.
+     */
+    private final Registrations registrations = new Registrations();
+
+    /**
+     * Records the track we are now reporting, letting the {@link MetadataCache} know so that it keeps the album
+     * art file we may have sent to the patch for as long as we are reporting the track.
+     *
+     * @param track the cached lists for the track, or {@code null} if there is none
+     */
+    private synchronized void setCurrentTrack(MetadataCache.Track track) {
+        final MetadataCache.Track previous = currentTrack;
+        currentTrack = track;
+        MetadataCache.getInstance().replaceHeld(previous, track);
+    }
+
     /**
      * Informs the patch that we have no metadata information available for the player.
      */
     private void reportNoMetadata() {
+        outlet(5, "");
+        outlet(4, new Atom[] {});
+        outlet(3, new Atom[] {});
+        outlet(2, 0);
+        outlet(1, "");
         outlet(0, new Atom[] {});
     }
 
     /**
-     * Informs the patch of the metadata available for the monitored player.
+     * Informs the patch of the path to the album art file for the current track, or an empty symbol if we don't
+     * have one.
+     *
+     * @param track the cached lists for the track, or {@code null} if there is none
      */
-    private void reportMetadata(TrackMetadata metadata) {
-        if (metadata == null) {
+    private void reportArt(MetadataCache.Track track) {
+        final String artPath = (track == null) ? null : track.artPath;
+        outlet(5, Util.stringIfNotNull(artPath));
+    }
+
+    /**
+     * Informs the patch of the metadata available for the monitored player, from lists that have already been
+     * built. Outlets are sent right to left, following the Max convention.
+     *
+     * @param track the cached lists for the track, or {@code null} if there is no metadata available
+     */
+    private void reportTrack(MetadataCache.Track track) {
+        if (track == null) {
             reportNoMetadata();
         } else {
-            outlet(0, new Atom[]{
-                    Atom.newAtom(metadata.getTitle()),
-                    Atom.newAtom(Util.labelIfNotNull(metadata.getArtist())),
-                    Atom.newAtom(Util.labelIfNotNull(metadata.getAlbum())),
-                    Atom.newAtom(Util.stringIfNotNull(metadata.getComment())),
-                    Atom.newAtom(Util.labelIfNotNull(metadata.getGenre())),
-                    Atom.newAtom(metadata.getTempo() / 100.0),
-                    Atom.newAtom(metadata.getDuration())
-            });
+            reportArt(track);
+            outlet(4, track.cues);
+            outlet(3, track.color);
+            outlet(2, track.rating);
+            outlet(1, track.key);
+            outlet(0, track.summary);
         }
     }
 
+    /**
+     * Finds or builds the cached lists for a track, and checks whether its album art is already available.
+     *
+     * @param metadata the metadata of the track loaded in our player, or {@code null} if there is none
+     *
+     * @return the cached lists to report
+     */
+    private MetadataCache.Track cacheTrack(TrackMetadata metadata) {
+        if (metadata == null) {
+            return null;
+        }
+        final MetadataCache.Track track = MetadataCache.getInstance().get(metadata);
+        if (track.artPath == null && ArtFinder.getInstance().isRunning()) {
+            final AlbumArt art = ArtFinder.getInstance().getLatestArtFor(player);
+            if (art != null) {
+                MetadataCache.getInstance().storeArt(track, art, this::artStored);
+            }
+        }
+        return track;
+    }
+
+    /**
+     * Called when an album art file has been written, to send its path to the patch if it belongs to the track
+     * we are now reporting.
+     */
+    private void artStored() {
+        mailbox.post(ART_SLOT, () -> reportArt(currentTrack));
+    }
+
     /**
      * Informs the patch of the metadata available if the player number matches the monitored player.
      */
     private void reportMetadata(TrackMetadataUpdate update) {
         if (update.player == player) {
-            reportMetadata(update.metadata);
+            final MetadataCache.Track track = cacheTrack(update.metadata);
+            setCurrentTrack(track);
+            mailbox.post(METADATA_SLOT, () -> reportTrack(track));
         }
     }
 
+    /**
+     * Used to send the album art file path when the art for our player becomes available.
+     */
+    private final AlbumArtListener artListener = update -> {
+        final MetadataCache.Track track = currentTrack;
+        if (update.player == player && track != null && update.art != null) {
+            MetadataCache.getInstance().storeArt(track, update.art, this::artStored);
+        }
+    };
+
+    /**
+     * Used to send updates when the metadata for our player changes. Held in a field so that we register and
+     * remove the same listener instance.
+     */
+    private final TrackMetadataListener metadataListener = this::reportMetadata;
+
+    /**
+     * When the player we are watching loads a track we have seen before, reports what the {@link AnalysisCache}
+     * remembered about it right away, rather than waiting for Beat Link to find its metadata.
+     *
+     * @param reference the newly loaded track
+     */
+    private void trackLoaded(DataReference reference) {
+        final MetadataCache.Track current = currentTrack;
+        if (current != null && reference.equals(current.reference)) {
+            return;  // The real metadata has already arrived.
+        }
+        final AnalysisCache.Entry entry = AnalysisCache.getInstance().lookup(reference);
+        if (entry != null) {
+            final MetadataCache.Track track = MetadataCache.getInstance().get(reference, entry);
+            setCurrentTrack(track);
+            mailbox.post(METADATA_SLOT, () -> reportTrack(track));
+        }
+    }
+
+    /**
+     * Used to notice when the player we are watching loads a new track.
+     */
+    private final DeviceUpdateListener updateListener = update -> {
+        if (update instanceof CdjStatus) {
+            final DataReference reference = AnalysisCache.referenceFor((CdjStatus) update);
+            if (reference != null && !reference.equals(loadedTrack)) {
+                trackLoaded(reference);
+            }
+            loadedTrack = reference;
+        }
+    };
+
+    /**
+     * Registers our listeners for the player we are watching, moving them from any other player.
+     */
+    private void subscribe() {
+        final Dispatcher dispatcher = Dispatcher.getInstance();
+        registrations.register("Dispatcher", updateListener,
+                () -> dispatcher.addUpdateListener(player, updateListener),
+                () -> dispatcher.removeUpdateListener(updateListener));
+        registrations.register("Dispatcher", metadataListener,
+                () -> dispatcher.addTrackMetadataListener(player, metadataListener),
+                () -> dispatcher.removeTrackMetadataListener(metadataListener));
+        registrations.register("Dispatcher", artListener,
+                () -> dispatcher.addAlbumArtListener(player, artListener),
+                () -> dispatcher.removeAlbumArtListener(artListener));
+    }
+
     /**
      * Sets the player attribute. If this represents a change, report a lack of metadata since we don't yet know it.
      * Even though this appears not to be used, {@link MaxObject} will invoke it reflectively.
@@ -68,10 +230,75 @@ public class Metadata extends MaxObject {
         }
         if (player != n) {
             player = n;
+            setCurrentTrack(null);
+            loadedTrack = null;
+            subscribe();
             bang();  // Report metadata if we have any available.
         }
     }
 
+    /**
+     * Sets the cachesize attribute, which limits the memory used to hold the lists reported for recently seen
+     * tracks. This is shared by all Metadata objects. Even though this appears not to be used, {@link MaxObject}
+     * will invoke it reflectively.
+     *
+     * @param kilobytes the approximate maximum size of the cache
+     */
+    @SuppressWarnings("unused")
+    private void setCachesize(int kilobytes) {
+        if (kilobytes < 0) {
+            MaxObject.error("Metadata object's cachesize attribute must not be negative");
+            return;
+        }
+        MetadataCache.getInstance().setMaxBytes(kilobytes * 1024L);
+    }
+
+    /**
+     * Sets the diskcache attribute, which controls whether tracks are remembered on disk. Even though this appears
+     * not to be used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param n nonzero to remember tracks and report them as soon as they are loaded, zero to not do so
+     */
+    @SuppressWarnings("unused")
+    private void setDiskcache(int n) {
+        final boolean wanted = n != 0;
+        if (wanted != diskcache) {
+            diskcache = wanted;
+            if (wanted) {
+                AnalysisCache.getInstance().acquire();
+            } else {
+                AnalysisCache.getInstance().release();
+            }
+        }
+    }
+
+    /**
+     * Get the listener that notices track changes in status updates, so {@link Warmup} can exercise it.
+     *
+     * @return our device update listener
+     */
+    DeviceUpdateListener getUpdateListener() {
+        return updateListener;
+    }
+
+    /**
+     * Get the listener that handles metadata changes for the player we watch, so {@link Warmup} can exercise it.
+     *
+     * @return our track metadata listener
+     */
+    TrackMetadataListener getMetadataListener() {
+        return metadataListener;
+    }
+
+    /**
+     * Get the mailbox through which we send everything to the patch, so {@link Warmup} can mute it.
+     *
+     * @return our mailbox
+     */
+    Mailbox getMailbox() {
+        return mailbox;
+    }
+
     /**
      * Sets up and describes the inlets, outlets, and attributes, and registers our listeners.
      */
@@ -79,22 +306,47 @@ public class Metadata extends MaxObject {
     public Metadata() {
         declareInlets(new int[]{DataTypes.ALL});
         setInletAssist(new String[] {"bang to query current metadata"});
-        declareOutlets(new int[]{DataTypes.LIST});
-        setOutletAssist(new String[]{"empty if no metadata, otherwise title, artist"});
+        declareOutlets(new int[]{DataTypes.LIST, DataTypes.ALL, DataTypes.INT, DataTypes.LIST, DataTypes.LIST,
+                DataTypes.ALL});
+        setOutletAssist(new String[]{"empty if no metadata, otherwise title, artist, album, comment, genre, tempo, duration",
+                "musical key",
+                "rating",
+                "color name, red, green, blue (empty if none)",
+                "cues as triples of hot cue number (0 for memory points), time in ms, loop end in ms (0 if not a loop)",
+                "path to album art file (empty if not available)"});
         declareAttribute("player", null, "setPlayer");
-        MetadataFinder.getInstance().addTrackMetadataListener(this::reportMetadata);
+        declareAttribute("cachesize", null, "setCachesize");
+        declareAttribute("diskcache", null, "setDiskcache");
+        subscribe();
+        Finders.getInstance().require(Finders.Feature.METADATA);
+        Finders.getInstance().require(Finders.Feature.ART);
     }
 
     @Override
     protected void bang() {
         if (MetadataFinder.getInstance().isRunning()) {
-            reportMetadata(MetadataFinder.getInstance().getLatestMetadataFor(player));
+            final TrackMetadata metadata = MetadataFinder.getInstance().getLatestMetadataFor(player);
+            final MetadataCache.Track remembered = currentTrack;
+            if (metadata == null && remembered != null && remembered.reference.equals(loadedTrack)) {
+                reportTrack(remembered);  // Still waiting for the real metadata of a track we remembered.
+                return;
+            }
+            final MetadataCache.Track track = cacheTrack(metadata);
+            setCurrentTrack(track);
+            reportTrack(track);
         }
     }
 
     @Override
     protected void notifyDeleted() {
-        MetadataFinder.getInstance().removeTrackMetadataListener(this::reportMetadata);
+        mailbox.close();
+        registrations.unregisterAll();
+        setCurrentTrack(null);
+        Finders.getInstance().release(Finders.Feature.METADATA);
+        Finders.getInstance().release(Finders.Feature.ART);
+        if (diskcache) {
+            AnalysisCache.getInstance().release();
+        }
         super.notifyDeleted();
     }
 }
@@ -0,0 +1,468 @@
+package beatlink;
+
+import com.cycling74.max.Atom;
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.data.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the lists we send to patches for recently seen tracks, so that they are built only once per track no matter
+ * how many {@link Metadata} objects report them, or how often they are banged. Entries are keyed by the track's
+ * {@link DataReference}, and the least recently used are discarded when the estimated memory used exceeds a
+ * configurable limit.
+ */
+@API(status = API.Status.INTERNAL)
+final class MetadataCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetadataCache.class);
+
+    /**
+     * The lists we report for a single track.
+     */
+    static final class Track {
+
+        /**
+         * The metadata from which the lists were built, so we can tell if it has been replaced, or {@code null} if
+         * they were built from what the {@link AnalysisCache} remembered about the track.
+         */
+        private final TrackMetadata source;
+
+        /**
+         * The track these lists describe.
+         */
+        final DataReference reference;
+
+        /**
+         * The rekordbox ID of the track's album art, so we can tell whether art belongs to this track.
+         */
+        private final int artworkId;
+
+        /**
+         * Title, artist, album, comment, genre, tempo, and duration.
+         */
+        final Atom[] summary;
+
+        /**
+         * The musical key, as a single symbol.
+         */
+        final Atom key;
+
+        /**
+         * The rating, from zero to five stars.
+         */
+        final Atom rating;
+
+        /**
+         * The color name, followed by its red, green and blue components, or empty if the track has no color.
+         */
+        final Atom[] color;
+
+        /**
+         * Each cue point as a triple of hot cue number (zero for memory points), cue time in milliseconds, and
+         * loop end time in milliseconds (zero if it is not a loop).
+         */
+        final Atom[] cues;
+
+        /**
+         * The path of a temporary file holding the track's album art, or {@code null} if we have not yet seen it.
+         * Only changed while holding the cache's lock.
+         */
+        volatile String artPath;
+
+        /**
+         * Set while the track's album art is being written to a file, so it is only written once. Guarded by the
+         * cache's lock.
+         */
+        private boolean artPending;
+
+        /**
+         * Our rough estimate of the memory used by this entry, in bytes.
+         */
+        private final long size;
+
+        /**
+         * Build the lists to report for a track.
+         *
+         * @param metadata the track metadata
+         */
+        private Track(TrackMetadata metadata) {
+            source = metadata;
+            reference = metadata.trackReference;
+            artworkId = metadata.getArtworkId();
+            summary = new Atom[]{
+                    Atom.newAtom(Util.stringIfNotNull(metadata.getTitle())),
+                    Atom.newAtom(Util.labelIfNotNull(metadata.getArtist())),
+                    Atom.newAtom(Util.labelIfNotNull(metadata.getAlbum())),
+                    Atom.newAtom(Util.stringIfNotNull(metadata.getComment())),
+                    Atom.newAtom(Util.labelIfNotNull(metadata.getGenre())),
+                    Atom.newAtom(metadata.getTempo() / 100.0),
+                    Atom.newAtom(metadata.getDuration())
+            };
+            key = Atom.newAtom(Util.labelIfNotNull(metadata.getKey()));
+            rating = Atom.newAtom(metadata.getRating());
+
+            final ColorItem colorItem = metadata.getColor();
+            if (colorItem == null || colorItem.color == null) {
+                color = new Atom[0];
+            } else {
+                color = new Atom[]{Atom.newAtom(Util.labelIfNotNull(colorItem)),
+                        Atom.newAtom(colorItem.color.getRed()),
+                        Atom.newAtom(colorItem.color.getGreen()),
+                        Atom.newAtom(colorItem.color.getBlue())};
+            }
+
+            final List<Atom> cueAtoms = new ArrayList<>();
+            final CueList cueList = metadata.getCueList();
+            if (cueList != null) {
+                for (CueList.Entry entry : cueList.entries) {
+                    cueAtoms.add(Atom.newAtom(entry.hotCueNumber));
+                    cueAtoms.add(Atom.newAtom(entry.cueTime));
+                    cueAtoms.add(Atom.newAtom(entry.isLoop ? entry.loopTime : 0));
+                }
+            }
+            cues = cueAtoms.toArray(new Atom[0]);
+            size = estimateSize();
+        }
+
+        /**
+         * Build the lists to report for a track from what the {@link AnalysisCache} remembered about it, so they
+         * can be reported before Beat Link has found the track's metadata.
+         *
+         * @param reference the track
+         * @param entry what we remembered about it
+         */
+        private Track(DataReference reference, AnalysisCache.Entry entry) {
+            source = null;
+            this.reference = reference;
+            artworkId = entry.artworkId;
+            summary = new Atom[]{
+                    Atom.newAtom(entry.title),
+                    Atom.newAtom(entry.artist),
+                    Atom.newAtom(entry.album),
+                    Atom.newAtom(entry.comment),
+                    Atom.newAtom(entry.genre),
+                    Atom.newAtom(entry.tempo),
+                    Atom.newAtom(entry.duration)
+            };
+            key = Atom.newAtom(entry.key);
+            rating = Atom.newAtom(entry.rating);
+            if (entry.colorName == null) {
+                color = new Atom[0];
+            } else {
+                color = new Atom[]{Atom.newAtom(entry.colorName), Atom.newAtom(entry.red),
+                        Atom.newAtom(entry.green), Atom.newAtom(entry.blue)};
+            }
+            cues = new Atom[entry.cues.length];
+            for (int i = 0; i < cues.length; i++) {
+                cues[i] = (i % 3 == 0) ? Atom.newAtom((int) entry.cues[i]) : Atom.newAtom(entry.cues[i]);
+            }
+            size = estimateSize();
+        }
+
+        /**
+         * Roughly estimate the memory used by this entry.
+         *
+         * @return the estimated size in bytes
+         */
+        private long estimateSize() {
+            long textSize = 0;
+            for (Atom atom : summary) {
+                if (atom.isString()) {
+                    textSize += atom.getString().length() * 2L;
+                }
+            }
+            return 512 + textSize + 32L * (summary.length + color.length + cues.length + 2);
+        }
+    }
+
+    /**
+     * The cached tracks, in least-recently-used order.
+     */
+    private final LinkedHashMap<DataReference, Track> tracks = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The tracks currently being reported by {@link Metadata} objects, with how many objects are reporting each.
+     * Their album art files have been sent to patches, so must not be deleted until no object reports them.
+     */
+    private final Map<Track, Integer> held = new IdentityHashMap<>();
+
+    /**
+     * The maximum number of bytes we want to use for cached tracks.
+     */
+    private long maxBytes = 4L * 1024 * 1024;
+
+    /**
+     * Our estimate of the number of bytes currently used by cached tracks.
+     */
+    private long currentBytes = 0;
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final MetadataCache instance = new MetadataCache();
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists
+     */
+    static MetadataCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Prevent direct instantiation.
+     */
+    private MetadataCache() {
+        // Nothing to do.
+    }
+
+    /**
+     * Check whether an album art file might still be needed, because a track in the cache or one being reported
+     * by a {@link Metadata} object uses it. Tracks share a file when their lists are rebuilt with new metadata.
+     *
+     * @param artPath the path of the album art file
+     *
+     * @return {@code true} if the file must be kept
+     */
+    private boolean artInUse(String artPath) {
+        for (Track track : held.keySet()) {
+            if (artPath.equals(track.artPath)) {
+                return true;
+            }
+        }
+        for (Track track : tracks.values()) {
+            if (artPath.equals(track.artPath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deletes a track's album art file, if it has one that is no longer needed. Files that are still needed when
+     * Max exits are deleted then.
+     *
+     * @param track a track that is no longer cached or reported
+     */
+    private void deleteArt(Track track) {
+        final String artPath = track.artPath;
+        if (artPath != null && !artInUse(artPath) && !new File(artPath).delete()) {
+            logger.warn("Unable to delete cached album art file {}", artPath);
+        }
+    }
+
+    /**
+     * Removes a track from the cache, cleaning up its album art file unless a {@link Metadata} object is still
+     * reporting it, in which case that happens once the object moves on.
+     *
+     * @param track the track being discarded, which has already been removed from {@link #tracks}
+     */
+    private void discard(Track track) {
+        currentBytes -= track.size;
+        if (!held.containsKey(track)) {
+            deleteArt(track);
+        }
+    }
+
+    /**
+     * Record that a {@link Metadata} object has stopped reporting one track and started reporting another, so
+     * that the album art files it has sent to its patch are kept until it no longer reports them.
+     *
+     * @param previous the track the object was reporting, or {@code null} if none
+     * @param current the track it is now reporting, or {@code null} if none
+     */
+    synchronized void replaceHeld(Track previous, Track current) {
+        if (previous == current) {
+            return;
+        }
+        if (current != null) {
+            held.merge(current, 1, Integer::sum);
+        }
+        if (previous != null && held.merge(previous, -1, Integer::sum) == 0) {
+            held.remove(previous);
+            if (tracks.get(previous.reference) != previous) {
+                deleteArt(previous);  // It was evicted or replaced while being reported.
+            }
+        }
+    }
+
+    /**
+     * Discards the least recently used tracks until we are back within our memory limit.
+     */
+    private void evict() {
+        final Iterator<Map.Entry<DataReference, Track>> iterator = tracks.entrySet().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            final Track track = iterator.next().getValue();
+            iterator.remove();
+            discard(track);
+        }
+    }
+
+    /**
+     * Find the lists to report for a track, building them if we have not seen this metadata before.
+     *
+     * @param metadata the track metadata
+     *
+     * @return the cached lists for that track
+     */
+    synchronized Track get(TrackMetadata metadata) {
+        Track track = tracks.get(metadata.trackReference);
+        if (track == null || track.source != metadata) {
+            final Track replacement = new Track(metadata);
+            if (track != null) {
+                replacement.artPath = track.artPath;  // The art doesn't change when cues are edited, for example.
+                currentBytes -= track.size;
+            }
+            track = replacement;
+            tracks.put(metadata.trackReference, track);
+            currentBytes += track.size;
+            evict();
+        }
+        return track;
+    }
+
+    /**
+     * Find the lists to report for a track that has just been loaded, building them from what the
+     * {@link AnalysisCache} remembered if we don't already have them. Lists built from real metadata are
+     * preferred, and will replace these when that metadata arrives.
+     *
+     * @param reference the track
+     * @param entry what the analysis cache remembered about it
+     *
+     * @return the cached lists for that track
+     */
+    synchronized Track get(DataReference reference, AnalysisCache.Entry entry) {
+        Track track = tracks.get(reference);
+        if (track == null) {
+            track = new Track(reference, entry);
+            tracks.put(reference, track);
+            currentBytes += track.size;
+            evict();
+        }
+        return track;
+    }
+
+    /**
+     * Check whether a track is still in the cache or being reported by a {@link Metadata} object, so it is worth
+     * having a file holding its album art.
+     *
+     * @param track the track of interest
+     *
+     * @return {@code true} if the track may still report its art
+     */
+    private boolean artWanted(Track track) {
+        return tracks.get(track.reference) == track || held.containsKey(track);
+    }
+
+    /**
+     * Make sure we have a file holding the album art for a track. If we need to write one, that happens on the
+     * thread that starts and stops finders, so the thread that delivered the art is not held up by the disk.
+     *
+     * @param track the cached track
+     * @param art the album art for that track
+     * @param whenStored called once the file is available: right away if we already had it, otherwise on the
+     *                   finder lifecycle thread once the write has finished; not called if the art belongs to a
+     *                   different track, or the track has been evicted
+     */
+    void storeArt(Track track, AlbumArt art, Runnable whenStored) {
+        if (art.artReference.rekordboxId != track.artworkId) {
+            return;  // This art arrived before the metadata of the track it belongs to.
+        }
+        synchronized (this) {
+            if (track.artPath == null) {
+                if (!track.artPending) {
+                    if (!artWanted(track)) {
+                        return;  // It has been evicted, so the file would never be cleaned up.
+                    }
+                    track.artPending = true;
+                    Finders.getInstance().execute(() -> writeArt(track, art));
+                }
+                // The lifecycle thread runs tasks in order, so this runs once the file has been written.
+                Finders.getInstance().execute(whenStored);
+                return;
+            }
+        }
+        whenStored.run();
+    }
+
+    /**
+     * Write a track's album art to a temporary file, unless the track has been evicted by the time we get to it.
+     * Runs on the finder lifecycle thread.
+     *
+     * @param track the cached track
+     * @param art the album art for that track
+     */
+    private void writeArt(Track track, AlbumArt art) {
+        synchronized (this) {
+            if (!artWanted(track)) {
+                track.artPending = false;
+                return;
+            }
+        }
+        File file = null;
+        try {
+            file = File.createTempFile("beat-link-art-", ".jpg");
+            file.deleteOnExit();
+            final ByteBuffer bytes = art.getRawBytes();
+            try (FileOutputStream stream = new FileOutputStream(file);
+                 FileChannel channel = stream.getChannel()) {
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            }
+            final String path = file.getCanonicalPath();
+            synchronized (this) {
+                track.artPending = false;
+                boolean used = false;
+                if (artWanted(track)) {
+                    track.artPath = path;
+                    used = true;
+                }
+                final Track current = tracks.get(track.reference);
+                if (current != null && current != track && current.artworkId == track.artworkId &&
+                        current.artPath == null) {
+                    current.artPath = path;  // The lists were rebuilt with new metadata while we were writing.
+                    used = true;
+                }
+                if (used) {
+                    return;
+                }
+            }
+            if (!file.delete()) {
+                logger.warn("Unable to delete album art file {} for evicted track", path);
+            }
+        } catch (IOException e) {
+            logger.error("Unable to write album art to temporary file", e);
+            synchronized (this) {
+                track.artPending = false;
+            }
+            if (file != null && !file.delete()) {
+                logger.warn("Unable to delete incomplete album art file {}", file);
+            }
+        }
+    }
+
+    /**
+     * Set the amount of memory we should try to stay within, discarding tracks if we are now over it.
+     *
+     * @param bytes the maximum estimated size of the cached tracks
+     */
+    synchronized void setMaxBytes(long bytes) {
+        maxBytes = bytes;
+        evict();
+    }
+}
@@ -0,0 +1,400 @@
+package beatlink;
+
+import org.apiguardian.api.API;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Gathers the numbers needed to tell how busy the bridge is: packets received from each device, position updates
+ * delivered for each player, how long listener callbacks take for each MXJ class, how much is being sent to
+ * patches, and how hard the garbage collector is working. Everything is recorded with cheap atomic operations so it can stay on during a show. The numbers can be
+ * read by {@link Stats} objects, or over JMX through {@link MetricsMBean}.
+ */
+@API(status = API.Status.INTERNAL)
+final class Metrics implements MetricsMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(Metrics.class);
+
+    /**
+     * The name under which we are registered with the platform MBean server.
+     */
+    private static final String OBJECT_NAME = "beatlink:type=Metrics";
+
+    /**
+     * A lock-free histogram of durations, with four buckets for each power of two nanoseconds, so percentiles are
+     * accurate to within about 25%.
+     */
+    static final class Histogram {
+
+        /**
+         * Enough buckets to hold any positive long.
+         */
+        private static final int BUCKETS = 248;
+
+        /**
+         * The number of durations that fell into each bucket.
+         */
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        /**
+         * The longest duration recorded.
+         */
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Find the bucket that holds a duration.
+         *
+         * @param nanos the duration
+         *
+         * @return the index of the bucket
+         */
+        private static int bucketFor(long nanos) {
+            if (nanos < 4) {
+                return (int) Math.max(nanos, 0);
+            }
+            final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            return (exponent - 1) * 4 + (int) ((nanos >>> (exponent - 2)) & 3);
+        }
+
+        /**
+         * Find the smallest duration that falls into a bucket.
+         *
+         * @param bucket the index of the bucket
+         *
+         * @return the duration in nanoseconds
+         */
+        private static long lowerBound(int bucket) {
+            if (bucket < 4) {
+                return bucket;
+            }
+            return (long) (4 + bucket % 4) << (bucket / 4 - 1);
+        }
+
+        /**
+         * Record a duration.
+         *
+         * @param nanos how long something took
+         */
+        void record(long nanos) {
+            counts.incrementAndGet(bucketFor(nanos));
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        /**
+         * Get the number of durations recorded.
+         *
+         * @return the count
+         */
+        long getCount() {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        /**
+         * Estimate the duration below which a given fraction of the recorded durations fall.
+         *
+         * @param fraction the quantile of interest, such as 0.99
+         *
+         * @return the upper bound of the bucket containing that quantile, in nanoseconds, or 0 if nothing has been
+         *         recorded
+         */
+        long getPercentile(double fraction) {
+            final long total = getCount();
+            if (total == 0) {
+                return 0;
+            }
+            final long target = Math.max(1, (long) Math.ceil(total * fraction));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                seen += counts.get(i);
+                if (seen >= target) {
+                    return Math.min(lowerBound(i + 1), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        /**
+         * Get the longest duration recorded.
+         *
+         * @return the duration in nanoseconds
+         */
+        long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Forget everything that has been recorded.
+         */
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+            max.set(0);
+        }
+    }
+
+    /**
+     * The number of beat and status packets received from each device, indexed by device number.
+     */
+    private final AtomicLongArray packets = new AtomicLongArray(256);
+
+    /**
+     * The number of position updates delivered for each player, indexed by player number.
+     */
+    private final AtomicLongArray positions = new AtomicLongArray(Dispatcher.MAX_PLAYER + 1);
+
+    /**
+     * The callback durations for each MXJ class, keyed by simple class name.
+     */
+    private final Map<String, Histogram> callbacks = new ConcurrentSkipListMap<>();
+
+    /**
+     * Caches the name under which each listener class's callbacks are recorded, which is the simple name of the
+     * class that created it (lambdas and anonymous classes are named after their enclosing class).
+     */
+    private final Map<Class<?>, Histogram> callbacksByClass = new ConcurrentHashMap<>();
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final Metrics instance = new Metrics();
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists
+     */
+    static Metrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Prevent direct instantiation, and publish ourselves over JMX. If mxj has loaded our classes again, an
+     * earlier instance may already be registered, in which case we replace it.
+     */
+    private Metrics() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(this, MetricsMBean.class), name);
+        } catch (Exception e) {
+            logger.warn("Unable to publish metrics over JMX", e);
+        }
+    }
+
+    /**
+     * Record the arrival of a packet from a device.
+     *
+     * @param device the device number of the sender
+     */
+    void recordPacket(int device) {
+        packets.incrementAndGet(device & 0xff);
+    }
+
+    /**
+     * Record the delivery of a position update for a player.
+     *
+     * @param player the player whose position was reported
+     */
+    void recordPosition(int player) {
+        if (player > 0 && player < positions.length()) {
+            positions.incrementAndGet(player);
+        }
+    }
+
+    /**
+     * Find the histogram used for callbacks to a listener.
+     *
+     * @param listener the listener being called
+     *
+     * @return the histogram of callback durations for the MXJ class that created it
+     */
+    private Histogram histogramFor(Object listener) {
+        return callbacksByClass.computeIfAbsent(listener.getClass(), listenerClass -> {
+            final String name = listenerClass.getName();
+            final int start = name.lastIndexOf('.') + 1;
+            final int end = name.indexOf('$', start);
+            return callbacks.computeIfAbsent(name.substring(start, end < 0 ? name.length() : end),
+                    k -> new Histogram());
+        });
+    }
+
+    /**
+     * Record how long a listener took to handle an event.
+     *
+     * @param listener the listener that was called
+     * @param nanos how long it took
+     */
+    void recordCallback(Object listener, long nanos) {
+        histogramFor(listener).record(nanos);
+    }
+
+    /**
+     * Forget the callback durations recorded for a listener's class, so that listeners which exist only to
+     * exercise the delivery code don't show up alongside real objects.
+     *
+     * @param listener a listener whose callbacks should no longer be reported
+     */
+    void discardCallbacks(Object listener) {
+        final Histogram histogram = callbacksByClass.remove(listener.getClass());
+        if (histogram != null) {
+            callbacks.values().remove(histogram);
+        }
+    }
+
+    /**
+     * Record how long something other than a listener took, under an explicit name.
+     *
+     * @param name the name under which to report the duration
+     * @param nanos how long it took
+     */
+    void recordDuration(String name, long nanos) {
+        callbacks.computeIfAbsent(name, k -> new Histogram()).record(nanos);
+    }
+
+    /**
+     * Get the number of packets received from a device.
+     *
+     * @param device the device number
+     *
+     * @return the count since startup
+     */
+    long getPacketCount(int device) {
+        return packets.get(device & 0xff);
+    }
+
+    /**
+     * Get the number of position updates delivered for a player.
+     *
+     * @param player the player number
+     *
+     * @return the count since startup, or zero if the player number is out of range
+     */
+    long getPositionCount(int player) {
+        return (player > 0 && player < positions.length()) ? positions.get(player) : 0;
+    }
+
+    /**
+     * Get the callback duration histograms.
+     *
+     * @return the histograms, keyed by the name of the MXJ class whose callbacks they describe, in name order
+     */
+    Map<String, Histogram> getCallbacks() {
+        return callbacks;
+    }
+
+    @Override
+    public String[] getDevicePacketCounts() {
+        final List<String> result = new ArrayList<>();
+        for (int device = 0; device < packets.length(); device++) {
+            final long count = packets.get(device);
+            if (count > 0) {
+                result.add("device " + device + ": " + count);
+            }
+        }
+        return result.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getPlayerPositionCounts() {
+        final List<String> result = new ArrayList<>();
+        for (int player = 1; player < positions.length(); player++) {
+            final long count = positions.get(player);
+            if (count > 0) {
+                result.add("player " + player + ": " + count);
+            }
+        }
+        return result.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getCallbackLatencies() {
+        final List<String> result = new ArrayList<>();
+        for (Map.Entry<String, Histogram> entry : callbacks.entrySet()) {
+            final Histogram histogram = entry.getValue();
+            result.add(entry.getKey() + ": n=" + histogram.getCount() +
+                    " p50=" + histogram.getPercentile(0.5) / 1000 + "us" +
+                    " p99=" + histogram.getPercentile(0.99) / 1000 + "us" +
+                    " max=" + histogram.getMax() / 1000 + "us");
+        }
+        return result.toArray(new String[0]);
+    }
+
+    @Override
+    public long getDeliveredCount() {
+        return Delivery.getInstance().getDeliveredCount();
+    }
+
+    @Override
+    public long getCoalescedCount() {
+        return Delivery.getInstance().getCoalescedCount();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return Delivery.getInstance().getDroppedCount();
+    }
+
+    @Override
+    public long getGcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionCount());
+        }
+        return total;
+    }
+
+    @Override
+    public long getGcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionTime());
+        }
+        return total;
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        final com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        if (!sunThreads.isThreadAllocatedMemorySupported() || !sunThreads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for (long allocated : sunThreads.getThreadAllocatedBytes(sunThreads.getAllThreadIds())) {
+            total += Math.max(0, allocated);  // Threads that have ended report -1.
+        }
+        return total;
+    }
+
+    @Override
+    public void resetLatencies() {
+        for (Histogram histogram : callbacks.values()) {
+            histogram.reset();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package beatlink;
+
+import org.apiguardian.api.API;
+
+/**
+ * The management interface through which {@link Metrics} are published over JMX, so that the state of the bridge
+ * can be examined with tools like JConsole or VisualVM without disturbing the patch.
+ */
+@API(status = API.Status.INTERNAL)
+public interface MetricsMBean {
+
+    /**
+     * Get the number of beat and status packets received from each device.
+     *
+     * @return entries of the form {@code "device 3: 12345"}, in device number order
+     */
+    String[] getDevicePacketCounts();
+
+    /**
+     * Get the number of position updates delivered for each player, including the position at each beat.
+     *
+     * @return entries of the form {@code "player 2: 6789"}, in player number order
+     */
+    String[] getPlayerPositionCounts();
+
+    /**
+     * Get the distribution of the time spent in listener callbacks, for each MXJ class that registered them.
+     *
+     * @return entries of the form {@code "Tempo: n=1000 p50=12us p99=80us max=310us"}, in class name order
+     */
+    String[] getCallbackLatencies();
+
+    /**
+     * Get the number of values sent to patches through mailboxes.
+     *
+     * @return the count of delivered values since startup
+     */
+    long getDeliveredCount();
+
+    /**
+     * Get the number of mailbox values that were replaced by newer ones before they could be delivered.
+     *
+     * @return the count of coalesced values since startup
+     */
+    long getCoalescedCount();
+
+    /**
+     * Get the number of queued mailbox events that were discarded because they could not be delivered fast enough.
+     *
+     * @return the count of dropped events since startup
+     */
+    long getDroppedCount();
+
+    /**
+     * Get the number of garbage collections performed by the JVM hosting mxj.
+     *
+     * @return the total number of collections by all collectors
+     */
+    long getGcCount();
+
+    /**
+     * Get the time spent in garbage collection by the JVM hosting mxj.
+     *
+     * @return the total collection time in milliseconds
+     */
+    long getGcTime();
+
+    /**
+     * Get the number of bytes allocated by the threads that are currently alive, if the JVM can tell us.
+     *
+     * @return the total allocated bytes, or -1 if the measurement is not supported
+     */
+    long getAllocatedBytes();
+
+    /**
+     * Clear the callback latency distributions, so that they reflect only what happens from now on.
+     */
+    void resetLatencies();
+}
@@ -0,0 +1,401 @@
+package beatlink;
+
+import com.cycling74.max.Atom;
+import com.cycling74.max.DataTypes;
+import com.cycling74.max.MaxObject;
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.Beat;
+import org.deepsymmetry.beatlink.BeatListener;
+import org.deepsymmetry.beatlink.data.*;
+import org.deepsymmetry.cratedigger.pdb.RekordboxAnlz;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An MXJ object that reports the phrases (intro, verse, chorus, and so on) that rekordbox found in the track loaded
+ * in a particular player, so that lighting and video cues can follow the structure of the music without being
+ * programmed by hand for each track. When a track loads, its song structure is turned into a compact index of
+ * phrases ordered by starting beat; as the player moves, the phrase containing the current beat is found by binary
+ * search, so each position update costs the same no matter how many phrases the track has, or how often we are told
+ * about movement.
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class Phrases extends MaxObject {
+
+    /**
+     * The file extension of the analysis file which holds song structure information.
+     */
+    private static final String ANALYSIS_EXTENSION = ".EXT";
+
+    /**
+     * The type tag of the song structure section within the analysis file.
+     */
+    private static final String SONG_STRUCTURE_TAG = "PSSI";
+
+    /**
+     * The mailbox slot used to deliver upcoming phrase countdowns to the patch.
+     */
+    private static final int UPCOMING_SLOT = 0;
+
+    /**
+     * The phrases of a track, ordered by starting beat, in parallel arrays so that finding the phrase containing a
+     * beat is a binary search over primitive values. Instances are never changed once built, so they can be shared
+     * freely between threads.
+     */
+    private static final class PhraseIndex {
+
+        /**
+         * The beat at which each phrase starts.
+         */
+        private final int[] starts;
+
+        /**
+         * The beat at which each phrase ends, which is the start of the next phrase, or the end of the last phrase.
+         */
+        private final int[] ends;
+
+        /**
+         * The beat at which the fill-in at the end of each phrase begins, or zero if it has none.
+         */
+        private final int[] fills;
+
+        /**
+         * The name of each phrase, as rekordbox would display it.
+         */
+        private final String[] labels;
+
+        /**
+         * Build the index from the song structure rekordbox found in a track.
+         *
+         * @param structure the parsed song structure
+         */
+        private PhraseIndex(RekordboxAnlz.SongStructureTag structure) {
+            final RekordboxAnlz.SongStructureBody body = structure.body();
+            final List<RekordboxAnlz.SongStructureEntry> entries = new ArrayList<>(body.entries());
+            entries.sort(Comparator.comparingInt(RekordboxAnlz.SongStructureEntry::beat));
+            final int count = entries.size();
+            starts = new int[count];
+            ends = new int[count];
+            fills = new int[count];
+            labels = new String[count];
+            for (int i = 0; i < count; i++) {
+                final RekordboxAnlz.SongStructureEntry entry = entries.get(i);
+                starts[i] = entry.beat();
+                fills[i] = (entry.fill() != 0) ? entry.beatFill() : 0;
+                labels[i] = org.deepsymmetry.beatlink.Util.phraseLabel(entry);
+                if (i > 0) {
+                    ends[i - 1] = starts[i];
+                }
+            }
+            if (count > 0) {
+                ends[count - 1] = Math.max(body.endBeat(), starts[count - 1]);
+            }
+        }
+
+        /**
+         * Find the phrase that contains a beat.
+         *
+         * @param beat the beat number
+         *
+         * @return the index of the phrase containing it, or -1 if it is not within any phrase
+         */
+        private int phraseAt(int beat) {
+            final int found = Arrays.binarySearch(starts, beat);
+            final int phrase = (found >= 0) ? found : -found - 2;  // The last phrase starting at or before the beat.
+            return (phrase >= 0 && beat < ends[phrase]) ? phrase : -1;
+        }
+
+        /**
+         * Find the first phrase that starts after a beat.
+         *
+         * @param beat the beat number
+         *
+         * @return the index of the next phrase, or the number of phrases if there are none after the beat
+         */
+        private int nextAfter(int beat) {
+            final int found = Arrays.binarySearch(starts, beat);
+            return (found >= 0) ? found + 1 : -found - 1;
+        }
+    }
+
+    /**
+     * The attribute that keeps track of the player whose phrases we are interested in.
+     */
+    private int player = 1;
+
+    /**
+     * The attribute that controls how many beats before a phrase starts we begin counting down to it.
+     */
+    private volatile int lookahead = 8;
+
+    /**
+     * The phrases of the track loaded in the player we are watching, or {@code null} if we don't know them.
+     */
+    private volatile PhraseIndex phrases = null;
+
+    /**
+     * The index of the phrase we most recently reported entering, -1 if we reported being outside any phrase, or
+     * -2 if we have not reported anything about the current track yet.
+     */
+    private int currentPhrase = -2;
+
+    /**
+     * Whether we have reported the start of the fill-in of the current phrase.
+     */
+    private boolean fillReported = false;
+
+    /**
+     * The index of the phrase we are counting down to, or -1 if we are not counting down.
+     */
+    private int upcomingPhrase = -1;
+
+    /**
+     * The number of beats remaining that we most recently reported for {@link #upcomingPhrase}.
+     */
+    private int upcomingBeats = -1;
+
+    /**
+     * The beat number most recently reached by the player we are watching, so we can count beats during replay.
+     */
+    private int lastBeat = 0;
+
+    /**
+     * Keeps track of the listeners we have registered, so they can all be removed when we are deleted.
+     */
+    private final Registrations registrations = new Registrations();
+
+    /**
+     * Holds phrase reports until they can be sent to the patch from the Max scheduler thread. Phrase changes and
+     * fill-ins are queued in order, and only the most recent upcoming phrase countdown is delivered.
+     */
+    private final Mailbox mailbox = new Mailbox(1, 8);
+
+    /**
+     * Sends a phrase change to the patch.
+     *
+     * @param index the phrases of the current track
+     * @param phrase the index of the phrase we have entered, or -1 if we are not within any phrase
+     */
+    private void reportPhrase(PhraseIndex index, int phrase) {
+        if (phrase < 0) {
+            outlet(0, new Atom[] {});
+        } else {
+            outlet(0, new Atom[]{Atom.newAtom(index.labels[phrase]), Atom.newAtom(phrase + 1),
+                    Atom.newAtom(index.starts[phrase]), Atom.newAtom(index.ends[phrase])});
+        }
+    }
+
+    /**
+     * Works out which phrase a position update falls in, and informs the patch of any phrase change, fill-in, or
+     * upcoming phrase countdown that results.
+     *
+     * @param update the latest position of the player we are watching
+     */
+    private void positionChanged(TrackPositionUpdate update) {
+        if (update != null) {
+            beatReached(update.beatNumber);
+        }
+    }
+
+    /**
+     * Works out which phrase a beat falls in, and informs the patch of any phrase change, fill-in, or upcoming
+     * phrase countdown that results. Called on every beat, and whenever the player jumps or starts or stops.
+     *
+     * @param beat the beat number the player we are watching has reached
+     */
+    private synchronized void beatReached(int beat) {
+        lastBeat = beat;
+        final PhraseIndex index = phrases;
+        if (index == null) {
+            return;
+        }
+        final int phrase = index.phraseAt(beat);
+
+        if (phrase != currentPhrase) {
+            currentPhrase = phrase;
+            fillReported = false;
+            mailbox.enqueue(() -> reportPhrase(index, phrase));
+        }
+
+        if (phrase >= 0 && !fillReported && index.fills[phrase] > 0 && beat >= index.fills[phrase]) {
+            fillReported = true;
+            final int remaining = index.ends[phrase] - beat;
+            mailbox.enqueue(() -> outlet(2, new Atom[]{Atom.newAtom(index.labels[phrase]), Atom.newAtom(remaining)}));
+        }
+
+        final int next = index.nextAfter(beat);
+        final int until = (next < index.starts.length) ? index.starts[next] - beat : -1;
+        if (until > 0 && until <= lookahead) {
+            if (next != upcomingPhrase || until != upcomingBeats) {
+                upcomingPhrase = next;
+                upcomingBeats = until;
+                mailbox.post(UPCOMING_SLOT,
+                        () -> outlet(1, new Atom[]{Atom.newAtom(index.labels[next]), Atom.newAtom(until)}));
+            }
+        } else {
+            upcomingPhrase = -1;
+            upcomingBeats = -1;
+        }
+    }
+
+    /**
+     * Replaces the phrases we are tracking, when a new track is loaded or we start watching a different player.
+     *
+     * @param section the song structure section of the track's analysis, or {@code null} if there is none
+     */
+    private synchronized void analysisChanged(RekordboxAnlz.TaggedSection section) {
+        PhraseIndex index = null;
+        if (section != null && section.body() instanceof RekordboxAnlz.SongStructureTag) {
+            index = new PhraseIndex((RekordboxAnlz.SongStructureTag) section.body());
+        }
+        phrases = index;
+        currentPhrase = -2;
+        upcomingPhrase = -1;
+        upcomingBeats = -1;
+        lastBeat = 0;
+        if (index == null) {
+            mailbox.enqueue(() -> reportPhrase(null, -1));
+        } else if (TimeFinder.getInstance().isRunning()) {
+            positionChanged(TimeFinder.getInstance().getLatestPositionFor(player));
+        }
+    }
+
+    /**
+     * Looks up the phrases of the track currently loaded in the player we are watching.
+     */
+    private void refreshPhrases() {
+        final AnalysisTagFinder finder = AnalysisTagFinder.getInstance();
+        analysisChanged(finder.isRunning() ?
+                finder.getLatestTrackAnalysisFor(player, ANALYSIS_EXTENSION, SONG_STRUCTURE_TAG) : null);
+    }
+
+    /**
+     * Used to learn about the song structure of newly loaded tracks.
+     */
+    private final AnalysisTagListener analysisListener = update -> {
+        if (update.player == player) {
+            analysisChanged(update.taggedSection);
+        }
+    };
+
+    /**
+     * Used to follow the movement of the player we are watching. The {@link TimeFinder} only reports movement
+     * when the player jumps, changes speed, or starts or stops, so we also ask to be told the position at every
+     * beat, which is what keeps phrase changes, fill-ins and countdowns coming during steady playback. Positions
+     * replayed from a recording arrive here too.
+     */
+    private final TrackPositionBeatListener trackPositionListener = new TrackPositionBeatListener() {
+        @Override
+        public void movementChanged(TrackPositionUpdate update) {
+            positionChanged(update);
+        }
+
+        @Override
+        public void newBeat(Beat beat, TrackPositionUpdate update) {
+            positionChanged(update);
+        }
+    };
+
+    /**
+     * Counts beats being replayed from a recording. Recorded positions, like live ones, only arrive when the
+     * player's movement changes, and replayed beats don't carry beat numbers, so we count on from the last one.
+     */
+    private final BeatListener replayBeatListener = beat -> {
+        if (Dispatcher.getInstance().isReplaying()) {
+            synchronized (this) {
+                if (lastBeat > 0) {
+                    beatReached(lastBeat + 1);
+                }
+            }
+        }
+    };
+
+    /**
+     * Registers our position listeners for the player we are watching, moving them from any other player.
+     */
+    private void subscribe() {
+        registrations.register("Dispatcher", trackPositionListener,
+                () -> Dispatcher.getInstance().addPositionListener(player, trackPositionListener),
+                () -> Dispatcher.getInstance().removePositionListener(trackPositionListener));
+        registrations.register("Dispatcher", replayBeatListener,
+                () -> Dispatcher.getInstance().addBeatListener(player, replayBeatListener),
+                () -> Dispatcher.getInstance().removeBeatListener(replayBeatListener));
+    }
+
+    /**
+     * Sets the player attribute, which controls the player whose phrases we are tracking. Even though this appears
+     * not to be used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param n the player number of interest.
+     */
+    @SuppressWarnings("unused")
+    private void setPlayer(int n) {
+        if (n < 1 || n > 6) {
+            MaxObject.error("Phrases object's player attribute must be in range 1-6");
+            return;
+        }
+        if (player != n) {
+            player = n;
+            subscribe();
+            refreshPhrases();
+        }
+    }
+
+    /**
+     * Sets the lookahead attribute, which controls how many beats before a phrase starts we begin counting down to
+     * it. Even though this appears not to be used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param beats the length of the countdown, or 0 for no countdown
+     */
+    @SuppressWarnings("unused")
+    private void setLookahead(int beats) {
+        if (beats < 0) {
+            MaxObject.error("Phrases object's lookahead attribute must not be negative");
+            return;
+        }
+        lookahead = beats;
+    }
+
+    /**
+     * Sets up and describes the inlets, outlets, and attributes, and registers our listeners.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public Phrases() {
+        declareInlets(new int[]{DataTypes.ALL});
+        setInletAssist(new String[] {"bang to query current phrase"});
+        declareOutlets(new int[]{DataTypes.LIST, DataTypes.LIST, DataTypes.LIST});
+        setOutletAssist(new String[]{"phrase entered as label, number, start beat, end beat (empty if none)",
+                "upcoming phrase as label, beats until it starts",
+                "fill-in started as phrase label, beats until phrase ends"});
+        declareAttribute("player", null, "setPlayer");
+        declareAttribute("lookahead", null, "setLookahead");
+
+        registrations.register("AnalysisTagFinder", analysisListener,
+                () -> AnalysisTagFinder.getInstance().addAnalysisTagListener(analysisListener,
+                        ANALYSIS_EXTENSION, SONG_STRUCTURE_TAG),
+                () -> AnalysisTagFinder.getInstance().removeAnalysisTagListener(analysisListener,
+                        ANALYSIS_EXTENSION, SONG_STRUCTURE_TAG));
+        subscribe();
+        Finders.getInstance().require(Finders.Feature.ANALYSIS_TAGS);
+        Finders.getInstance().require(Finders.Feature.METADATA);
+        refreshPhrases();
+    }
+
+    @Override
+    protected synchronized void bang() {
+        final PhraseIndex index = phrases;
+        reportPhrase(index, (index == null) ? -1 : Math.max(currentPhrase, -1));
+    }
+
+    @Override
+    protected void notifyDeleted() {
+        mailbox.close();
+        registrations.unregisterAll();
+        Finders.getInstance().release(Finders.Feature.ANALYSIS_TAGS);
+        Finders.getInstance().release(Finders.Feature.METADATA);
+        super.notifyDeleted();
+    }
+}
@@ -2,8 +2,11 @@ package beatlink;
 
 import com.cycling74.max.Atom;
 import com.cycling74.max.DataTypes;
+import com.cycling74.max.MaxClock;
 import com.cycling74.max.MaxObject;
 import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.CdjStatus;
+import org.deepsymmetry.beatlink.DeviceUpdateListener;
 import org.deepsymmetry.beatlink.data.*;
 
 /**
@@ -17,10 +20,122 @@ public class Position extends MaxObject {
      */
     private int player = 1;
 
+    /**
+     * The attribute that controls how many times per second we report interpolated playback positions on our own,
+     * while the player is moving. Zero means we only report when Beat Link tells us about movement, or when we
+     * receive a bang.
+     */
+    private int rate = 0;
+
+    /**
+     * Drives the interpolated position reports when {@link #rate} is nonzero. Runs on the Max scheduler thread.
+     */
+    private final MaxClock clock = new MaxClock(this::tick);
+
+    /**
+     * The most recent position update we have received for the player we are watching, used as the starting point
+     * for interpolation so that clock ticks don't need to look anything up in {@link TimeFinder}.
+     */
+    private volatile TrackPositionUpdate latestUpdate = null;
+
+    /**
+     * The last position reported by a clock tick, so that ticks can be skipped when the playhead has not moved.
+     */
+    private double lastTickTime = -1.0;
+
+    /**
+     * The attribute that controls whether we report positions as fractional milliseconds, interpolated from the
+     * nanosecond timestamp of the latest update to the moment of reporting, rather than as whole milliseconds.
+     */
+    private volatile boolean precision = false;
+
+    /**
+     * The attribute that controls whether we report everything as a single list through our final outlet, rather
+     * than sending separate messages through each of the individual outlets.
+     */
+    private boolean packed = false;
+
+    /**
+     * The list we send when we are in packed mode. It is allocated once and refilled for each report, so access
+     * is synchronized on it.
+     */
+    private final Atom[] packedList = new Atom[8];
+
+    /**
+     * The total length of the track loaded in the player we are watching, in milliseconds, or zero if we don't
+     * know it. Updated when we learn about a new waveform detail rather than looked up for every position report.
+     */
+    private volatile long trackLength = 0;
+
+    /**
+     * The track most recently reported as loaded in status packets from the player we are watching, so we can
+     * tell when a new one is loaded.
+     */
+    private volatile DataReference loadedTrack = null;
+
+    /**
+     * The attribute that controls whether we use the {@link AnalysisCache}, which remembers track lengths on disk
+     * so that tracks we have seen before have a length as soon as they are loaded. Off by default, because learning
+     * track signatures requires downloading beat grids as well as waveforms for every loaded track.
+     */
+    private boolean diskcache = false;
+
+    /**
+     * Keeps track of the listeners we have registered, so they can all be removed when we are deleted.
+     */
+    private final Registrations registrations = new Registrations();
+
+    /**
+     * The mailbox slot used to deliver position reports to the patch.
+     */
+    private static final int POSITION_SLOT = 0;
+
+    /**
+     * Holds position reports until they can be sent to the patch from the Max scheduler thread. Only the most
+     * recent report is delivered.
+     */
+    private final Mailbox mailbox = new Mailbox(1, 0);
+
+    /**
+     * Used to deliver the most recent position update through our mailbox.
+     */
+    private final Runnable positionDelivery = () -> reportPosition(latestUpdate);
+
+    /**
+     * Informs the patch of everything we know about the playback position in a single list, when we are in
+     * packed mode.
+     *
+     * @param time the playback position in ms (rounded unless we are in precision mode), or -1 if unknown
+     * @param pitch the playback pitch
+     * @param playing whether the player is playing
+     * @param beat the beat number
+     * @param reverse whether the player is playing backwards
+     * @param definitive whether we are certain of the time
+     * @param precise whether the time came from a precise position packet
+     */
+    private void reportPacked(double time, double pitch, boolean playing, int beat, boolean reverse,
+                              boolean definitive, boolean precise) {
+        synchronized (packedList) {
+            packedList[0] = precision ? Atom.newAtom(time) : Atom.newAtom(Math.round(time));
+            packedList[1] = Atom.newAtom(time < 0 ? 0 : trackLength);
+            packedList[2] = Atom.newAtom(pitch);
+            packedList[3] = Atom.newAtom(playing);
+            packedList[4] = Atom.newAtom(beat);
+            packedList[5] = Atom.newAtom(reverse);
+            packedList[6] = Atom.newAtom(definitive);
+            packedList[7] = Atom.newAtom(precise);
+            outlet(5, packedList);
+        }
+    }
+
     /**
      * Informs the patch that we have no position information for the player.
      */
     private void reportNoPosition() {
+        if (packed) {
+            reportPacked(-1, 0.0, false, 0, false, false, false);
+            return;
+        }
         outlet(0, -1);   // Playback position in ms
         outlet(1, 0);    // Track length in ms
         outlet(2, 0.0);  // Playback pitch
@@ -32,29 +147,32 @@ public class Position extends MaxObject {
     /**
      * Informs the patch of the current interpolated playback position of the monitored player.
      *
-     * @param time the (possibly interpolated) playback position of the player
+     * @param time the (possibly interpolated) playback position of the player, rounded to whole milliseconds unless
+     *             we are in precision mode
      * @param definitive indicates whether we are certain of the time, only ever {@code true} when this report comes directly from a received update
      *                  that is itself definitive
      * @param lastUpdate the most recent position update received from the player
      */
-    private void reportPosition(long time, boolean definitive, TrackPositionUpdate lastUpdate) {
+    private void reportPosition(double time, boolean definitive, TrackPositionUpdate lastUpdate) {
 
-        if (lastUpdate == null || !TimeFinder.getInstance().isRunning() || time < 0) {
+        if (lastUpdate == null || time < 0 ||
+                (!TimeFinder.getInstance().isRunning() && !Dispatcher.getInstance().isReplaying())) {
             reportNoPosition();
             return;
         }
 
-        outlet(0, time);  // Playback position in ms
-        WaveformDetail waveform = null;
-        if (WaveformFinder.getInstance().isRunning()) {
-            waveform = WaveformFinder.getInstance().getLatestDetailFor(player);
+        if (packed) {
+            reportPacked(time, lastUpdate.pitch, lastUpdate.playing, lastUpdate.beatNumber, lastUpdate.reverse,
+                    definitive, lastUpdate.precise);
+            return;
         }
-        // Track length in ms
-        if (waveform == null) {
-            outlet(1, 0);
+
+        if (precision) {
+            outlet(0, time);  // Playback position in fractional ms
         } else {
-            outlet(1, waveform.getTotalTime());
+            outlet(0, Math.round(time));  // Playback position in ms
         }
+        outlet(1, trackLength);  // Track length in ms
         outlet(2, lastUpdate.pitch);
         outlet(3, lastUpdate.playing);
         outlet(4, new Atom[] {Atom.newAtom(lastUpdate.beatNumber),
@@ -64,18 +182,110 @@ public class Position extends MaxObject {
     }
 
     /**
-     * Informs the patch of the current track position just reported by the monitored player.
+     * Informs the patch of the current track position just reported by the monitored player. In precision mode,
+     * the position is interpolated to the moment the report is sent.
      *
      * @param update the current track position information just received from Beat Link, or {@code null} if we have lost position information for the player.
      */
     private void reportPosition(TrackPositionUpdate update) {
-        if (update != null) {
-            reportPosition(update.milliseconds, update.definitive, update);
-        } else {
+        if (update == null) {
             reportPosition(-1, false, null);
+        } else if (precision) {
+            reportPosition(Util.interpolateTime(update, System.nanoTime()), update.definitive, update);
+        } else {
+            reportPosition(update.milliseconds, update.definitive, update);
+        }
+    }
+
+    /**
+     * Calculates the position to report at a given moment, interpolated from a position update.
+     *
+     * @param update the most recent position update received from the player
+     * @param now the current value of {@link System#nanoTime()}
+     *
+     * @return the interpolated position, with a fractional part only in precision mode
+     */
+    private double interpolateTime(TrackPositionUpdate update, long now) {
+        final double time = Util.interpolateTime(update, now);
+        return precision ? time : Math.round(time);
+    }
+
+    /**
+     * Called by our clock when we are configured to report positions at a fixed rate. Re-arms the clock, then
+     * reports the interpolated position, as long as the player is playing and the playhead has actually moved
+     * since the last tick.
+     */
+    private void tick() {
+        if (rate < 1) {
+            return;
+        }
+        clock.delay(1000.0 / rate);
+        final TrackPositionUpdate update = latestUpdate;
+        if (update != null && update.playing) {
+            final double time = interpolateTime(update, System.nanoTime());
+            if (time != lastTickTime) {
+                lastTickTime = time;
+                reportPosition(time, false, update);
+            }
         }
     }
 
+    /**
+     * Sets the rate attribute, which controls how many interpolated position reports we send per second while
+     * the player is moving. Even though this appears not to be used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param hz the number of reports per second, or 0 to report only when Beat Link sees movement.
+     */
+    @SuppressWarnings("unused")
+    private void setRate(int hz) {
+        if (hz < 0 || hz > 1000) {
+            MaxObject.error("Position object's rate attribute must be in range 0-1000");
+            return;
+        }
+        final boolean wasRunning = rate > 0;
+        rate = hz;
+        if (rate < 1) {
+            clock.unset();
+        } else if (!wasRunning) {
+            lastTickTime = -1.0;
+            clock.delay(0);
+        }
+    }
+
+    /**
+     * Looks up the length of the track loaded in the player we are watching, for use when we first start or
+     * change players. After that, {@link #waveformListener} keeps it up to date.
+     */
+    private void refreshTrackLength() {
+        WaveformDetail waveform = null;
+        if (WaveformFinder.getInstance().isRunning()) {
+            waveform = WaveformFinder.getInstance().getLatestDetailFor(player);
+        }
+        trackLength = (waveform == null) ? 0 : waveform.getTotalTime();
+    }
+
+    /**
+     * Sets the packed attribute, which controls whether we report everything as a single list through our final
+     * outlet. Even though this appears not to be used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param n nonzero to send packed lists, zero to send separate messages through the individual outlets.
+     */
+    @SuppressWarnings("unused")
+    private void setPacked(int n) {
+        packed = (n != 0);
+    }
+
+    /**
+     * Sets the precision attribute, which controls whether we report positions as fractional milliseconds. Even
+     * though this appears not to be used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param n nonzero to report fractional milliseconds, zero to report whole milliseconds.
+     */
+    @SuppressWarnings("unused")
+    private void setPrecision(int n) {
+        precision = (n != 0);
+    }
+
     /**
      * Sets the player attribute. If this represents a change, report a zero tempo since we don't yet know it.
      * Even though this appears not to be used, {@link MaxObject} will invoke it reflectively.
@@ -90,14 +300,20 @@ public class Position extends MaxObject {
         }
         if (player != n) {
             player = n;
-            TimeFinder.getInstance().addTrackPositionListener(player, this::reportPosition);  // Replaces old registration with new player number.
+            latestUpdate = null;
+            loadedTrack = null;
+            refreshTrackLength();
+            subscribe();
         }
     }
 
     /**
-     * Used to send updates when movement is reported by Beat Link.
+     * Used to send updates when movement is reported by Beat Link, or replayed from a recording.
      */
-    private final TrackPositionListener trackPositionListener = this::reportPosition;
+    private final TrackPositionListener trackPositionListener = update -> {
+        latestUpdate = update;
+        mailbox.post(POSITION_SLOT, positionDelivery);
+    };
 
     /**
      * Used to send updates when we gain information about the track length from its waveform.
@@ -111,11 +327,106 @@ public class Position extends MaxObject {
         @Override
         public void detailChanged(WaveformDetailUpdate update) {
             if (update.player == player) {
-                reportPosition(null);
+                trackLength = (update.detail == null) ? 0 : update.detail.getTotalTime();
+                mailbox.post(POSITION_SLOT, positionDelivery);
             }
         }
     };
 
+    /**
+     * When the player we are watching loads a track we have seen before, uses the length the
+     * {@link AnalysisCache} remembered for it until the waveform arrives.
+     *
+     * @param reference the newly loaded track
+     */
+    private void trackLoaded(DataReference reference) {
+        if (WaveformFinder.getInstance().isRunning()) {
+            final WaveformDetail detail = WaveformFinder.getInstance().getLatestDetailFor(player);
+            if (detail != null && reference.equals(detail.dataReference)) {
+                return;  // The real waveform has already arrived.
+            }
+        }
+        final AnalysisCache.Entry entry = AnalysisCache.getInstance().lookup(reference);
+        if (entry != null && entry.trackLength > 0) {
+            trackLength = entry.trackLength;
+            mailbox.post(POSITION_SLOT, positionDelivery);
+        }
+    }
+
+    /**
+     * Used to notice when the player we are watching loads a new track.
+     */
+    private final DeviceUpdateListener updateListener = update -> {
+        if (update instanceof CdjStatus) {
+            final DataReference reference = AnalysisCache.referenceFor((CdjStatus) update);
+            if (reference != null && !reference.equals(loadedTrack)) {
+                trackLoaded(reference);
+            }
+            loadedTrack = reference;
+        }
+    };
+
+    /**
+     * Sets the diskcache attribute, which controls whether tracks are remembered on disk. Even though this appears
+     * not to be used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param n nonzero to remember tracks and report them as soon as they are loaded, zero to not do so
+     */
+    @SuppressWarnings("unused")
+    private void setDiskcache(int n) {
+        final boolean wanted = n != 0;
+        if (wanted != diskcache) {
+            diskcache = wanted;
+            if (wanted) {
+                AnalysisCache.getInstance().acquire();
+            } else {
+                AnalysisCache.getInstance().release();
+            }
+        }
+    }
+
+    /**
+     * Registers our listeners for the player we are watching, moving them from any other player.
+     */
+    private void subscribe() {
+        registrations.register("Dispatcher", updateListener,
+                () -> Dispatcher.getInstance().addUpdateListener(player, updateListener),
+                () -> Dispatcher.getInstance().removeUpdateListener(updateListener));
+        registrations.register("Dispatcher", trackPositionListener,
+                () -> Dispatcher.getInstance().addPositionListener(player, trackPositionListener),
+                () -> Dispatcher.getInstance().removePositionListener(trackPositionListener));
+        registrations.register("Dispatcher", waveformListener,
+                () -> Dispatcher.getInstance().addWaveformListener(player, waveformListener),
+                () -> Dispatcher.getInstance().removeWaveformListener(waveformListener));
+    }
+
+    /**
+     * Get the listener that notices track changes in status updates, so {@link Warmup} can exercise it.
+     *
+     * @return our device update listener
+     */
+    DeviceUpdateListener getUpdateListener() {
+        return updateListener;
+    }
+
+    /**
+     * Get the listener that handles movement of the player we watch, so {@link Warmup} can exercise it.
+     *
+     * @return our track position listener
+     */
+    TrackPositionListener getPositionListener() {
+        return trackPositionListener;
+    }
+
+    /**
+     * Get the mailbox through which we send everything to the patch, so {@link Warmup} can mute it.
+     *
+     * @return our mailbox
+     */
+    Mailbox getMailbox() {
+        return mailbox;
+    }
+
     /**
      * Sets up and describes the inlets, outlets, and attributes, and registers our listeners.
      */
@@ -123,23 +434,38 @@ public class Position extends MaxObject {
     public Position() {
         declareInlets(new int[]{DataTypes.ALL});
         setInletAssist(new String[] {"bang to query current position"});
-        declareOutlets(new int[]{DataTypes.INT, DataTypes.INT, DataTypes.FLOAT, DataTypes.INT, DataTypes.LIST});
-        setOutletAssist(new String[]{"track position in milliseconds",
+        declareOutlets(new int[]{DataTypes.ALL, DataTypes.INT, DataTypes.FLOAT, DataTypes.INT, DataTypes.LIST,
+                DataTypes.LIST});
+        setOutletAssist(new String[]{"track position in milliseconds (fractional in precision mode)",
                 "total track length in milliseconds",
                 "playback pitch (1.0 = normal speed)",
                 "playing flag (track playing if nonzero)",
-                "list of beat number, reverse flag, definitive flag, precise flag"
+                "list of beat number, reverse flag, definitive flag, precise flag",
+                "in packed mode, list of position, length, pitch, playing, beat, reverse, definitive, precise"
         });
         declareAttribute("player", null, "setPlayer");
+        declareAttribute("rate", null, "setRate");
+        declareAttribute("packed", null, "setPacked");
+        declareAttribute("precision", null, "setPrecision");
+        declareAttribute("diskcache", null, "setDiskcache");
 
-        TimeFinder.getInstance().addTrackPositionListener(player, trackPositionListener);
-        WaveformFinder.getInstance().addWaveformListener(waveformListener);
+        subscribe();
+        Finders.getInstance().require(Finders.Feature.WAVEFORMS);
+        Finders.getInstance().require(Finders.Feature.METADATA);
+        refreshTrackLength();
     }
 
     @Override
     protected void bang() {
         if (TimeFinder.getInstance().isRunning()) {
-            reportPosition(TimeFinder.getInstance().getTimeFor(player), false, TimeFinder.getInstance().getLatestPositionFor(player));
+            final TrackPositionUpdate update = TimeFinder.getInstance().getLatestPositionFor(player);
+            if (precision && update != null) {
+                reportPosition(Util.interpolateTime(update, System.nanoTime()), false, update);
+            } else {
+                reportPosition(TimeFinder.getInstance().getTimeFor(player), false, update);
+            }
+        } else if (Dispatcher.getInstance().isReplaying()) {
+            reportPosition(latestUpdate);
         } else {
             reportPosition(null);
         }
@@ -147,8 +473,14 @@ public class Position extends MaxObject {
 
     @Override
     protected void notifyDeleted() {
-        TimeFinder.getInstance().removeTrackPositionListener(trackPositionListener);
-        WaveformFinder.getInstance().removeWaveformListener(waveformListener);
+        clock.release();
+        mailbox.close();
+        registrations.unregisterAll();
+        Finders.getInstance().release(Finders.Feature.WAVEFORMS);
+        Finders.getInstance().release(Finders.Feature.METADATA);
+        if (diskcache) {
+            AnalysisCache.getInstance().release();
+        }
         super.notifyDeleted();
     }
 }
@@ -0,0 +1,444 @@
+package beatlink;
+
+import com.cycling74.max.Atom;
+import com.cycling74.max.DataTypes;
+import com.cycling74.max.MaxObject;
+import com.cycling74.max.MaxSystem;
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.*;
+import org.deepsymmetry.beatlink.data.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An MXJ object that records everything the bridge sees to a compact binary file, and replays such recordings
+ * through the same paths as live events, so that {@link Tempo}, {@link Position}, {@link Metadata} and
+ * {@link Master} objects behave exactly as they did during the show, with no DJ Link devices present. Recording
+ * listens to Beat Link directly rather than through the {@link Dispatcher}, and writing an event is just a copy
+ * into a memory-mapped file, so it adds nothing noticeable to live delivery.
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class Recorder extends MaxObject {
+
+    private static final Logger logger = LoggerFactory.getLogger(Recorder.class);
+
+    /**
+     * The port to which beat packets are sent, used when reconstructing them.
+     */
+    private static final int BEAT_PORT = 50001;
+
+    /**
+     * The port to which status packets are sent, used when reconstructing them.
+     */
+    private static final int STATUS_PORT = 50002;
+
+    /**
+     * Holds status reports until they can be sent to the patch from the Max scheduler thread.
+     */
+    private final Mailbox mailbox = new Mailbox(0, 16);
+
+    /**
+     * Keeps track of the listeners we have registered while recording, so they can all be removed.
+     */
+    private final Registrations registrations = new Registrations();
+
+    /**
+     * The log we are recording to, or {@code null} if we are not recording.
+     */
+    private volatile EventLog recording = null;
+
+    /**
+     * The thread replaying a recording, or {@code null} if we are not replaying.
+     */
+    private Thread replayThread = null;
+
+    /**
+     * The attribute that controls how fast recordings are replayed, relative to how they were recorded.
+     */
+    private volatile float speed = 1.0f;
+
+    /**
+     * A step that writes an event to the recording.
+     */
+    private interface RecordingStep {
+
+        /**
+         * Write the event.
+         *
+         * @param log the recording to write it to
+         *
+         * @throws IOException if there is a problem writing
+         */
+        void write(EventLog log) throws IOException;
+    }
+
+    /**
+     * Helper method to report our status to the patch, along with the file involved.
+     *
+     * @param status what we are doing
+     * @param path the file we are doing it with
+     */
+    private void reportStatus(String status, String path) {
+        mailbox.enqueue(() -> outlet(0, status, new Atom[]{Atom.newAtom(path)}));
+    }
+
+    /**
+     * Writes an event to the recording, if we are recording. If the write fails, stops recording. Our listeners are
+     * registered directly with the finders rather than through the {@link Dispatcher}, so that replayed events are
+     * never recorded, which means we time them ourselves.
+     *
+     * @param step writes the event
+     */
+    private void capture(RecordingStep step) {
+        final EventLog log = recording;
+        if (log != null) {
+            final long began = System.nanoTime();
+            try {
+                step.write(log);
+            } catch (IOException e) {
+                logger.error("Problem writing to recording, stopping", e);
+                mailbox.enqueue(() -> outlet(0, "error", new Atom[]{Atom.newAtom(e.getMessage())}));
+                Finders.getInstance().execute(this::stopRecording);
+            }
+            Metrics.getInstance().recordDuration("Recorder", System.nanoTime() - began);
+        }
+    }
+
+    /**
+     * Records beats.
+     */
+    private final BeatListener beatListener = beat -> capture(log -> log.writePacket(beat));
+
+    /**
+     * Records status packets.
+     */
+    private final DeviceUpdateListener updateListener = update -> capture(log -> log.writePacket(update));
+
+    /**
+     * Records track metadata changes.
+     */
+    private final TrackMetadataListener metadataListener =
+            update -> capture(log -> log.writeMetadata(update.player, update.metadata));
+
+    /**
+     * Records tempo master and master tempo changes. Beats from the master are recorded by {@link #beatListener}.
+     */
+    private final MasterListener masterListener = new MasterAdapter() {
+        @Override
+        public void masterChanged(DeviceUpdate update) {
+            final int device = (update == null) ? 0 : update.getDeviceNumber();
+            capture(log -> log.writeMaster(device, VirtualCdj.getInstance().getMasterTempo()));
+        }
+
+        @Override
+        public void tempoChanged(double tempo) {
+            capture(log -> log.writeMasterTempo(tempo));
+        }
+    };
+
+    /**
+     * Records position changes, one listener for each player.
+     */
+    private final TrackPositionListener[] positionListeners = new TrackPositionListener[Dispatcher.MAX_PLAYER + 1];
+
+    {
+        for (int player = 1; player <= Dispatcher.MAX_PLAYER; player++) {
+            final int watchedPlayer = player;
+            positionListeners[player] = update -> capture(log -> log.writePosition(watchedPlayer, update));
+        }
+    }
+
+    /**
+     * Converts a path given to us by the patch into a file.
+     *
+     * @param path the path, which may be in Max's format
+     *
+     * @return the file it refers to
+     */
+    private static File fileFor(String path) {
+        final String nativePath = MaxSystem.maxPathToNativePath(path);
+        return new File(nativePath == null ? path : nativePath);
+    }
+
+    /**
+     * When we receive a record message, we start recording everything we see to the specified file, replacing it
+     * if it exists. Any recording or replay in progress is stopped first.
+     *
+     * @param path the file to record to
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void record(String path) {
+        stop();
+        final EventLog log;
+        try {
+            log = new EventLog(fileFor(path), true);
+        } catch (IOException e) {
+            MaxObject.error("Recorder unable to create " + path + ": " + e.getMessage());
+            return;
+        }
+        recording = log;
+        registrations.register("BeatFinder", beatListener,
+                () -> BeatFinder.getInstance().addBeatListener(beatListener),
+                () -> BeatFinder.getInstance().removeBeatListener(beatListener));
+        registrations.register("VirtualCdj", updateListener,
+                () -> VirtualCdj.getInstance().addUpdateListener(updateListener),
+                () -> VirtualCdj.getInstance().removeUpdateListener(updateListener));
+        registrations.register("VirtualCdj", masterListener,
+                () -> VirtualCdj.getInstance().addMasterListener(masterListener),
+                () -> VirtualCdj.getInstance().removeMasterListener(masterListener));
+        registrations.register("MetadataFinder", metadataListener,
+                () -> MetadataFinder.getInstance().addTrackMetadataListener(metadataListener),
+                () -> MetadataFinder.getInstance().removeTrackMetadataListener(metadataListener));
+        for (int player = 1; player <= Dispatcher.MAX_PLAYER; player++) {
+            final int watchedPlayer = player;
+            final TrackPositionListener listener = positionListeners[player];
+            registrations.register("TimeFinder", listener,
+                    () -> TimeFinder.getInstance().addTrackPositionListener(watchedPlayer, listener),
+                    () -> TimeFinder.getInstance().removeTrackPositionListener(listener));
+        }
+        reportStatus("recording", path);
+    }
+
+    /**
+     * Stops recording, if we are, and closes the recording file.
+     */
+    private synchronized void stopRecording() {
+        final EventLog log = recording;
+        if (log != null) {
+            registrations.unregisterAll();
+            recording = null;
+            try {
+                log.close();
+            } catch (IOException e) {
+                logger.error("Problem closing recording", e);
+            }
+            mailbox.enqueue(() -> outlet(0, "stopped"));
+        }
+    }
+
+    /**
+     * Reconstructs a beat or status packet from a recorded event.
+     *
+     * @param event the recorded packet
+     * @param port the port to which the packet was sent
+     *
+     * @return the packet
+     *
+     * @throws IOException if the recorded address is invalid
+     */
+    private static DatagramPacket packetFor(EventLog.Event event, int port) throws IOException {
+        return new DatagramPacket(Arrays.copyOf(event.packet, event.length), event.length,
+                InetAddress.getByAddress(event.address), port);
+    }
+
+    /**
+     * Looks up the metadata for a track that was loaded during the recording. This is only possible if the
+     * {@link MetadataFinder} is running and can reach the media (for example through a metadata cache or a
+     * rekordbox export attached to it); otherwise the track is reported as having no metadata.
+     *
+     * @param event the recorded metadata change
+     *
+     * @return the metadata, or {@code null} if it is not available
+     */
+    private static TrackMetadata findMetadata(EventLog.Event event) {
+        final DataReference reference = event.toDataReference();
+        if (reference == null || !MetadataFinder.getInstance().isRunning()) {
+            return null;
+        }
+        try {
+            return MetadataFinder.getInstance().requestMetadataFrom(reference, event.toTrackType());
+        } catch (Exception e) {
+            logger.warn("Unable to find metadata for replayed track {}", reference, e);
+            return null;
+        }
+    }
+
+    /**
+     * Delivers a recorded event through the {@link Dispatcher}, as if it had just been received. Also used by the
+     * replay benchmark, which feeds recordings through as fast as they can be handled.
+     *
+     * @param event the event to deliver
+     * @param statuses the most recent status replayed from each device, used for master changes
+     *
+     * @throws IOException if a recorded packet cannot be reconstructed
+     */
+    static void deliver(EventLog.Event event, Map<Integer, DeviceUpdate> statuses) throws IOException {
+        final Dispatcher dispatcher = Dispatcher.getInstance();
+        switch (event.type) {
+            case EventLog.BEAT:
+                dispatcher.injectBeat(new Beat(packetFor(event, BEAT_PORT)));
+                break;
+
+            case EventLog.CDJ_STATUS:
+            case EventLog.MIXER_STATUS:
+                final DatagramPacket packet = packetFor(event, STATUS_PORT);
+                final DeviceUpdate update = (event.type == EventLog.CDJ_STATUS) ?
+                        new CdjStatus(packet) : new MixerStatus(packet);
+                statuses.put(update.getDeviceNumber(), update);
+                dispatcher.injectUpdate(update);
+                break;
+
+            case EventLog.POSITION:
+                dispatcher.injectPosition(event.device, event.toPositionUpdate(System.nanoTime()));
+                break;
+
+            case EventLog.METADATA:
+                dispatcher.injectMetadata(new TrackMetadataUpdate(event.device, findMetadata(event)));
+                break;
+
+            case EventLog.MASTER:
+                dispatcher.injectMaster(statuses.get(event.device), event.value);
+                break;
+
+            case EventLog.MASTER_TEMPO:
+                dispatcher.injectMasterTempo(event.value);
+                break;
+
+            default:
+                break;  // Not something we know how to replay.
+        }
+    }
+
+    /**
+     * The body of our replay thread: reads each event from the recording, waits until it is due (relative to the
+     * first event, and scaled by the speed attribute), and delivers it.
+     *
+     * @param log the recording to replay
+     * @param path the file it came from, for status reports
+     */
+    private void replayEvents(EventLog log, String path) {
+        final Dispatcher dispatcher = Dispatcher.getInstance();
+        final EventLog.Event event = new EventLog.Event();
+        final Map<Integer, DeviceUpdate> statuses = new HashMap<>();
+        final double rate = speed;
+        final long began = System.nanoTime();
+        long first = 0;
+        boolean started = false;
+        dispatcher.setReplaying(true);
+        try {
+            while (log.read(event)) {
+                if (!started) {
+                    first = event.timestamp;
+                    started = true;
+                }
+                final long due = began + Math.round((event.timestamp - first) / rate);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                }
+                try {
+                    deliver(event, statuses);
+                } catch (Exception e) {
+                    logger.warn("Problem replaying recorded event of type {}", event.type, e);
+                }
+            }
+            reportStatus("finished", path);
+        } finally {
+            dispatcher.setReplaying(false);
+            try {
+                log.close();
+            } catch (IOException e) {
+                logger.warn("Problem closing replayed recording", e);
+            }
+        }
+    }
+
+    /**
+     * When we receive a replay message, we start replaying the specified recording through the same paths as
+     * live events. Any recording or replay in progress is stopped first. This is meant to be used while offline,
+     * since live events would be mixed in with the replayed ones.
+     *
+     * @param path the recording to replay
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void replay(String path) {
+        stop();
+        final EventLog log;
+        try {
+            log = new EventLog(fileFor(path), false);
+        } catch (IOException e) {
+            MaxObject.error("Recorder unable to open " + path + ": " + e.getMessage());
+            return;
+        }
+        reportStatus("replaying", path);  // Before the thread starts, so it can't be reported after we finish.
+        synchronized (this) {
+            replayThread = new Thread(() -> replayEvents(log, path), "beat-link-max replay");
+            replayThread.setDaemon(true);
+            replayThread.start();
+        }
+    }
+
+    /**
+     * Stops replaying, if we are, and waits for the replay thread to finish.
+     */
+    private void stopReplay() {
+        final Thread thread;
+        synchronized (this) {
+            thread = replayThread;
+            replayThread = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * When we receive a stop message, we stop any recording or replay in progress.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void stop() {
+        stopRecording();
+        stopReplay();
+    }
+
+    /**
+     * Sets the speed attribute, which controls how fast recordings are replayed. Takes effect when the next replay
+     * begins. Even though this appears not to be used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param multiplier 1 to replay at the original pace, 2 to replay twice as fast, and so on
+     */
+    @SuppressWarnings("unused")
+    private void setSpeed(float multiplier) {
+        if (multiplier < 0.01f || multiplier > 1000.0f) {
+            MaxObject.error("Recorder object's speed attribute must be in range 0.01-1000");
+            return;
+        }
+        speed = multiplier;
+    }
+
+    /**
+     * Sets up and describes the inlets, outlets, and attributes.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public Recorder() {
+        declareInlets(new int[]{DataTypes.ALL});
+        setInletAssist(new String[]{"record <file>, replay <file>, or stop"});
+        declareOutlets(new int[]{DataTypes.ALL});
+        setOutletAssist(new String[]{"reports recording, replaying, finished, stopped, or error"});
+        declareAttribute("speed", null, "setSpeed");
+    }
+
+    @Override
+    protected void notifyDeleted() {
+        stop();
+        mailbox.close();
+        super.notifyDeleted();
+    }
+}
@@ -0,0 +1,117 @@
+package beatlink;
+
+import org.apiguardian.api.API;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of the listeners an MXJ object has registered with Beat Link finders (or our own {@link Dispatcher}),
+ * so that every registration is removed exactly once, using the same listener instance that was added, when the
+ * object is deleted. Also maintains a live count of registrations with each finder across all objects, so we can
+ * confirm that they stay flat as patches are closed and reopened.
+ */
+@API(status = API.Status.INTERNAL)
+final class Registrations {
+
+    /**
+     * The number of listeners currently registered with each finder by all of our objects, keyed by finder name.
+     */
+    private static final Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+    /**
+     * Describes a single listener registration.
+     */
+    private static final class Registration {
+
+        /**
+         * The name of the finder with which the listener is registered.
+         */
+        private final String finder;
+
+        /**
+         * Removes the listener from the finder.
+         */
+        private final Runnable remover;
+
+        private Registration(String finder, Runnable remover) {
+            this.finder = finder;
+            this.remover = remover;
+        }
+    }
+
+    /**
+     * The listeners this object currently has registered, keyed by the listener instances themselves.
+     */
+    private final Map<Object, Registration> registrations = new IdentityHashMap<>();
+
+    /**
+     * Find the counter for a finder, creating it if needed.
+     *
+     * @param finder the name of the finder
+     *
+     * @return the count of listeners registered with it
+     */
+    private static AtomicInteger countFor(String finder) {
+        return counts.computeIfAbsent(finder, k -> new AtomicInteger(0));
+    }
+
+    /**
+     * Registers a listener with a finder. If the same listener instance is already registered, the adder is run
+     * again without counting a new registration; this is how finders like {@link Dispatcher} and
+     * {@link org.deepsymmetry.beatlink.data.TimeFinder} move a listener to a different player.
+     *
+     * @param finder the name of the finder, used for the live registration counts
+     * @param listener the listener being registered, which must be the same instance the remover will remove
+     * @param adder adds the listener to the finder
+     * @param remover removes the listener from the finder
+     */
+    synchronized void register(String finder, Object listener, Runnable adder, Runnable remover) {
+        adder.run();
+        if (!registrations.containsKey(listener)) {
+            registrations.put(listener, new Registration(finder, remover));
+            countFor(finder).incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes a listener that was registered through us. Does nothing if it is not currently registered.
+     *
+     * @param listener the listener to remove
+     */
+    synchronized void unregister(Object listener) {
+        final Registration registration = registrations.remove(listener);
+        if (registration != null) {
+            registration.remover.run();
+            countFor(registration.finder).decrementAndGet();
+        }
+    }
+
+    /**
+     * Removes every listener that was registered through us. Called when the owning object is deleted.
+     */
+    synchronized void unregisterAll() {
+        for (Registration registration : registrations.values()) {
+            registration.remover.run();
+            countFor(registration.finder).decrementAndGet();
+        }
+        registrations.clear();
+    }
+
+    /**
+     * Get a snapshot of the number of listeners registered with each finder by all of our objects.
+     *
+     * @return the registration counts, sorted by finder name
+     */
+    static SortedMap<String, Integer> getCounts() {
+        final SortedMap<String, Integer> result = new TreeMap<>();
+        for (Map.Entry<String, AtomicInteger> entry : counts.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+}
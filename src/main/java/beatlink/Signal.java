@@ -0,0 +1,146 @@
+package beatlink;
+
+import com.cycling74.max.DataTypes;
+import com.cycling74.max.MaxObject;
+import com.cycling74.msp.MSPPerformer;
+import com.cycling74.msp.MSPSignal;
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.DeviceUpdate;
+import org.deepsymmetry.beatlink.VirtualCdj;
+
+import java.util.Arrays;
+
+/**
+ * An {@code mxj~} object that outputs the playback position, beat and bar phase, tempo, and playing state of a player
+ * as audio signals, interpolated for every sample, so that effects can be synchronized to the decks with sample
+ * accuracy. State is read from the {@link StateTable} once per signal vector, without locks or allocation.
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class Signal extends MSPPerformer {
+
+    /**
+     * The attribute that keeps track of the player we are following. Zero means the current tempo master.
+     */
+    private volatile int player = 1;
+
+    /**
+     * The sample rate of the signals we produce, captured when the DSP chain is set up.
+     */
+    private double sampleRate = 44100.0;
+
+    /**
+     * Receives the state of the player at the start of each signal vector.
+     */
+    private final StateTable.Reading reading = new StateTable.Reading();
+
+    /**
+     * Sets the player attribute. Even though this appears not to be used, {@link MaxObject} will invoke it
+     * reflectively.
+     *
+     * @param n the device number of the player to follow, 1 through 6, or 0 to follow the tempo master.
+     */
+    @SuppressWarnings("unused")
+    private void setPlayer(int n) {
+        if (n < 0 || n > 6) {
+            MaxObject.error("Signal object's player attribute must be in range 0-6");
+            return;
+        }
+        player = n;
+    }
+
+    /**
+     * Figures out which device we are actually following: the player attribute, or if that is zero, the current
+     * tempo master.
+     *
+     * @return the device number, or zero if we are following the master and there isn't one
+     */
+    private int followedDevice() {
+        final int n = player;
+        if (n != 0) {
+            return n;
+        }
+        final DeviceUpdate master = VirtualCdj.getInstance().isRunning() ?
+                VirtualCdj.getInstance().getTempoMaster() : null;
+        return (master == null || master.getDeviceNumber() > Dispatcher.MAX_PLAYER) ? 0 : master.getDeviceNumber();
+    }
+
+    /**
+     * Sets up and describes the inlets, outlets, and attributes, and starts keeping the state table up to date.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public Signal() {
+        declareInlets(new int[]{DataTypes.ALL});
+        setInletAssist(new String[]{"attribute messages"});
+        declareOutlets(new int[]{SIGNAL, SIGNAL, SIGNAL, SIGNAL, SIGNAL});
+        setOutletAssist(new String[]{"(signal) track position in milliseconds",
+                "(signal) beat phase (0-1)",
+                "(signal) bar phase (0-1)",
+                "(signal) tempo",
+                "(signal) playing flag"});
+        declareAttribute("player", null, "setPlayer");
+        StateTable.getInstance().acquire();
+    }
+
+    @Override
+    public void dspsetup(MSPSignal[] in, MSPSignal[] out) {
+        sampleRate = out[0].sr;
+    }
+
+    @Override
+    public void perform(MSPSignal[] in, MSPSignal[] out) {
+        final float[] position = out[0].vec;
+        final float[] beatPhase = out[1].vec;
+        final float[] barPhase = out[2].vec;
+        final float[] tempo = out[3].vec;
+        final float[] playing = out[4].vec;
+        final int n = out[0].n;
+
+        final int device = followedDevice();
+        if (device == 0) {
+            reading.known = false;
+        } else {
+            StateTable.getInstance().read(device, reading);
+        }
+        if (!reading.known) {
+            Arrays.fill(position, 0, n, -1.0f);
+            Arrays.fill(beatPhase, 0, n, 0.0f);
+            Arrays.fill(barPhase, 0, n, 0.0f);
+            Arrays.fill(tempo, 0, n, 0.0f);
+            Arrays.fill(playing, 0, n, 0.0f);
+            return;
+        }
+
+        Arrays.fill(tempo, 0, n, (float) reading.tempo);
+        Arrays.fill(playing, 0, n, reading.playing ? 1.0f : 0.0f);
+        double time = reading.timeAt(System.nanoTime());
+        double step = 0.0;
+        if (reading.playing) {
+            step = 1000.0 * reading.pitch / sampleRate;
+            if (reading.reverse) {
+                step = -step;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            final double now = Math.max(0.0, time);
+            position[i] = (float) now;
+            if (reading.beatLength > 0.0) {
+                final double beats = (now - reading.beatStart) / reading.beatLength;
+                final double elapsed = Math.floor(beats);
+                final double phase = beats - elapsed;
+                final int beatWithinBar = Math.floorMod(reading.beatWithinBar - 1 + (int) elapsed, 4);
+                beatPhase[i] = (float) phase;
+                barPhase[i] = (float) ((beatWithinBar + phase) / 4.0);
+            } else {
+                beatPhase[i] = 0.0f;
+                barPhase[i] = 0.0f;
+            }
+            time += step;
+        }
+    }
+
+    @Override
+    protected void notifyDeleted() {
+        StateTable.getInstance().release();
+        super.notifyDeleted();
+    }
+}
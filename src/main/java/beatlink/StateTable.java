@@ -0,0 +1,348 @@
+package beatlink;
+
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.DeviceUpdate;
+import org.deepsymmetry.beatlink.DeviceUpdateListener;
+import org.deepsymmetry.beatlink.VirtualCdj;
+import org.deepsymmetry.beatlink.data.BeatGrid;
+import org.deepsymmetry.beatlink.data.TrackPositionListener;
+import org.deepsymmetry.beatlink.data.TrackPositionUpdate;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Keeps a block of playback state for each player in a primitive array, so that {@link Signal} objects can read it
+ * from the audio thread every signal vector without taking locks or allocating anything. Each block is protected by
+ * a sequence lock: writers (Beat Link threads, which update it a few dozen times a second at most) make the block's
+ * sequence number odd while they change it, and readers simply try again if the number was odd or changed while
+ * they were copying the block.
+ */
+@API(status = API.Status.INTERNAL)
+final class StateTable {
+
+    /**
+     * The state of a player as copied out of the table by a reader. Readers allocate one of these up front and
+     * reuse it.
+     */
+    static final class Reading {
+
+        /**
+         * Whether we have any position information for the player.
+         */
+        boolean known;
+
+        /**
+         * The {@link System#nanoTime()} at which {@link #time} was the playback position.
+         */
+        long timestamp;
+
+        /**
+         * The playback position in milliseconds at {@link #timestamp}.
+         */
+        double time;
+
+        /**
+         * The playback pitch multiplier.
+         */
+        double pitch;
+
+        /**
+         * The effective tempo of the player, in beats per minute.
+         */
+        double tempo;
+
+        /**
+         * The time within the track, in milliseconds, of the beat that was current at {@link #timestamp}.
+         */
+        double beatStart;
+
+        /**
+         * The length of that beat in milliseconds of track time, or zero if there is no beat grid.
+         */
+        double beatLength;
+
+        /**
+         * The number of that beat within the track, or zero if unknown.
+         */
+        int beat;
+
+        /**
+         * The position of that beat within its bar, from 1 to 4.
+         */
+        int beatWithinBar;
+
+        /**
+         * Whether the player is playing.
+         */
+        boolean playing;
+
+        /**
+         * Whether the player is playing backwards.
+         */
+        boolean reverse;
+
+        /**
+         * Calculates the playback position at a moment after (or before) this reading was taken.
+         *
+         * @param now the {@link System#nanoTime()} of interest
+         *
+         * @return the interpolated playback position in milliseconds
+         */
+        double timeAt(long now) {
+            if (!playing) {
+                return time;
+            }
+            final double moved = (now - timestamp) * pitch / 1000000.0;
+            return reverse ? Math.max(0.0, time - moved) : time + moved;
+        }
+    }
+
+    /**
+     * Offsets of the individual values within a player's block. Floating point values are stored as their raw
+     * long bits.
+     */
+    private static final int TIMESTAMP = 0;
+    private static final int TIME = 1;
+    private static final int PITCH = 2;
+    private static final int TEMPO = 3;
+    private static final int BEAT_START = 4;
+    private static final int BEAT_LENGTH = 5;
+    private static final int BEAT = 6;
+    private static final int BEAT_WITHIN_BAR = 7;
+    private static final int FLAGS = 8;
+
+    /**
+     * The number of values in each player's block.
+     */
+    private static final int STRIDE = 9;
+
+    /**
+     * Bits within the {@link #FLAGS} value.
+     */
+    private static final long KNOWN = 1;
+    private static final long PLAYING = 2;
+    private static final long REVERSE = 4;
+
+    /**
+     * The blocks of state for each player, indexed by player number times {@link #STRIDE}. Block zero is unused.
+     */
+    private final long[] data = new long[(Dispatcher.MAX_PLAYER + 1) * STRIDE];
+
+    /**
+     * The sequence number of each player's block, which is odd while the block is being written.
+     */
+    private final AtomicIntegerArray sequences = new AtomicIntegerArray(Dispatcher.MAX_PLAYER + 1);
+
+    /**
+     * The listeners that receive position updates for each player, indexed by player number.
+     */
+    private final TrackPositionListener[] positionListeners = new TrackPositionListener[Dispatcher.MAX_PLAYER + 1];
+
+    /**
+     * The listeners that receive status updates for each player, indexed by player number.
+     */
+    private final DeviceUpdateListener[] updateListeners = new DeviceUpdateListener[Dispatcher.MAX_PLAYER + 1];
+
+    /**
+     * Keeps track of the listeners we have registered, so they can be removed when no readers remain.
+     */
+    private final Registrations registrations = new Registrations();
+
+    /**
+     * Serializes changes to the table. Separate from the lock on the table itself, which protects the reader count
+     * and listener registrations, so that Beat Link threads delivering updates never wait for registration.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * How many readers currently need the table to be kept up to date.
+     */
+    private int readers = 0;
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final StateTable instance = new StateTable();
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists
+     */
+    static StateTable getInstance() {
+        return instance;
+    }
+
+    /**
+     * Prevent direct instantiation, and create the listeners for each player.
+     */
+    private StateTable() {
+        for (int player = 1; player <= Dispatcher.MAX_PLAYER; player++) {
+            final int watchedPlayer = player;
+            positionListeners[player] = update -> positionChanged(watchedPlayer, update);
+            updateListeners[player] = update -> {
+                if (update.getBpm() != 0xffff) {
+                    tempoChanged(watchedPlayer, update);
+                }
+            };
+        }
+    }
+
+    /**
+     * Marks a player's block as being written. Must be followed by a call to {@link #endWrite(int, int)}, and
+     * called only while synchronized on {@link #writeLock}, so there is never more than one writer.
+     *
+     * @param player the player whose block is about to change
+     *
+     * @return the sequence number to pass to {@link #endWrite(int, int)}
+     */
+    private int beginWrite(int player) {
+        final int sequence = sequences.get(player) + 1;
+        sequences.set(player, sequence);
+        VarHandle.storeStoreFence();  // Make sure nobody can see our changes before they can see the odd sequence.
+        return sequence;
+    }
+
+    /**
+     * Marks a player's block as consistent again, publishing the changes made since {@link #beginWrite(int)}.
+     *
+     * @param player the player whose block was changed
+     * @param sequence the value returned by {@link #beginWrite(int)}
+     */
+    private void endWrite(int player, int sequence) {
+        sequences.set(player, sequence + 1);
+    }
+
+    /**
+     * Records a new playback position for a player.
+     *
+     * @param player the player that moved
+     * @param update the new position, or {@code null} if we no longer know it
+     */
+    void positionChanged(int player, TrackPositionUpdate update) {
+        final int base = player * STRIDE;
+        long beatStart = 0;
+        long beatLength = 0;
+        int beat = 0;
+        int beatWithinBar = 1;
+        if (update != null) {
+            beat = update.beatNumber;
+            final BeatGrid grid = update.beatGrid;
+            if (grid != null && grid.beatCount > 1) {
+                beat = Math.min(Math.max(grid.findBeatAtTime(update.milliseconds), 1), grid.beatCount);
+                final int next = Math.min(beat, grid.beatCount - 1);
+                beatStart = grid.getTimeWithinTrack(beat);
+                beatLength = grid.getTimeWithinTrack(next + 1) - grid.getTimeWithinTrack(next);
+                beatWithinBar = grid.getBeatWithinBar(beat);
+            }
+        }
+        synchronized (writeLock) {
+            final int sequence = beginWrite(player);
+            if (update == null) {
+                data[base + FLAGS] = 0;
+            } else {
+                data[base + TIMESTAMP] = update.timestamp;
+                data[base + TIME] = Double.doubleToRawLongBits(update.milliseconds);
+                data[base + PITCH] = Double.doubleToRawLongBits(update.pitch);
+                data[base + BEAT_START] = Double.doubleToRawLongBits(beatStart);
+                data[base + BEAT_LENGTH] = Double.doubleToRawLongBits(beatLength);
+                data[base + BEAT] = beat;
+                data[base + BEAT_WITHIN_BAR] = beatWithinBar;
+                data[base + FLAGS] = KNOWN | (update.playing ? PLAYING : 0) | (update.reverse ? REVERSE : 0);
+            }
+            endWrite(player, sequence);
+        }
+    }
+
+    /**
+     * Records a new effective tempo for a player.
+     *
+     * @param player the player whose tempo was reported
+     * @param update the status packet reporting it
+     */
+    private void tempoChanged(int player, DeviceUpdate update) {
+        synchronized (writeLock) {
+            final int sequence = beginWrite(player);
+            data[player * STRIDE + TEMPO] = Double.doubleToRawLongBits(update.getEffectiveTempo());
+            endWrite(player, sequence);
+        }
+    }
+
+    /**
+     * Copies the state of a player into a reading, without locking or allocating. If the state is being changed,
+     * waits for the change to finish and tries again, which will only ever take a few microseconds.
+     *
+     * @param player the player of interest, 1 through {@link Dispatcher#MAX_PLAYER}
+     * @param reading where the state should be copied
+     */
+    void read(int player, Reading reading) {
+        final int base = player * STRIDE;
+        while (true) {
+            final int sequence = sequences.get(player);
+            if ((sequence & 1) == 0) {
+                final long flags = data[base + FLAGS];
+                reading.timestamp = data[base + TIMESTAMP];
+                reading.time = Double.longBitsToDouble(data[base + TIME]);
+                reading.pitch = Double.longBitsToDouble(data[base + PITCH]);
+                reading.tempo = Double.longBitsToDouble(data[base + TEMPO]);
+                reading.beatStart = Double.longBitsToDouble(data[base + BEAT_START]);
+                reading.beatLength = Double.longBitsToDouble(data[base + BEAT_LENGTH]);
+                reading.beat = (int) data[base + BEAT];
+                reading.beatWithinBar = (int) data[base + BEAT_WITHIN_BAR];
+                VarHandle.loadLoadFence();  // Finish copying before checking whether the block changed.
+                if (sequences.get(player) == sequence) {
+                    reading.known = (flags & KNOWN) != 0;
+                    reading.playing = (flags & PLAYING) != 0;
+                    reading.reverse = (flags & REVERSE) != 0;
+                    return;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Record that a reader needs the table to be kept up to date. The first one causes us to start listening for
+     * updates from every player.
+     */
+    synchronized void acquire() {
+        readers++;
+        if (readers > 1) {
+            return;
+        }
+        Finders.getInstance().require(Finders.Feature.METADATA);
+        final Dispatcher dispatcher = Dispatcher.getInstance();
+        for (int player = 1; player <= Dispatcher.MAX_PLAYER; player++) {
+            final int watchedPlayer = player;
+            final TrackPositionListener positionListener = positionListeners[player];
+            final DeviceUpdateListener updateListener = updateListeners[player];
+            registrations.register("Dispatcher", positionListener,  // Delivers the current position right away.
+                    () -> dispatcher.addPositionListener(watchedPlayer, positionListener),
+                    () -> dispatcher.removePositionListener(positionListener));
+            registrations.register("Dispatcher", updateListener,
+                    () -> dispatcher.addUpdateListener(watchedPlayer, updateListener),
+                    () -> dispatcher.removeUpdateListener(updateListener));
+            if (VirtualCdj.getInstance().isRunning()) {
+                final DeviceUpdate update = VirtualCdj.getInstance().getLatestStatusFor(player);
+                if (update != null && update.getBpm() != 0xffff) {
+                    tempoChanged(player, update);
+                }
+            }
+        }
+    }
+
+    /**
+     * Record that a reader no longer needs the table. When the last one is gone, we stop listening for updates.
+     */
+    synchronized void release() {
+        if (readers < 1) {
+            return;
+        }
+        readers--;
+        if (readers == 0) {
+            registrations.unregisterAll();
+            Finders.getInstance().release(Finders.Feature.METADATA);
+        }
+    }
+}
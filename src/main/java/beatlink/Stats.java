@@ -0,0 +1,219 @@
+package beatlink;
+
+import com.cycling74.max.Atom;
+import com.cycling74.max.DataTypes;
+import com.cycling74.max.MaxClock;
+import com.cycling74.max.MaxObject;
+import org.apiguardian.api.API;
+
+import java.util.Map;
+
+/**
+ * An MXJ object that reports how busy the bridge is, so that stutters during a show can be diagnosed without
+ * attaching a profiler: packet rates from each device, position update rates for each player, how long listener callbacks take for each MXJ class, how
+ * many values are being sent to patches (and how many are being coalesced or dropped), and how hard the garbage
+ * collector is working. Rates are calculated over the time since the previous report. The same numbers are
+ * available over JMX as {@code beatlink:type=Metrics}.
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class Stats extends MaxObject {
+
+    /**
+     * The attribute that controls how often, in milliseconds, we report on our own. Zero means we only report
+     * when we receive a bang.
+     */
+    private int interval = 0;
+
+    /**
+     * Drives the periodic reports when {@link #interval} is nonzero. Runs on the Max scheduler thread.
+     */
+    private final MaxClock clock = new MaxClock(this::tick);
+
+    /**
+     * The {@link System#nanoTime()} of our previous report, from which rates are calculated.
+     */
+    private long lastReportTime;
+
+    /**
+     * The packet count of each device at the time of our previous report.
+     */
+    private final long[] lastPackets = new long[256];
+
+    /**
+     * The position update count of each player at the time of our previous report.
+     */
+    private final long[] lastPositions = new long[Dispatcher.MAX_PLAYER + 1];
+
+    /**
+     * The number of delivered values at the time of our previous report.
+     */
+    private long lastDelivered;
+
+    /**
+     * The number of coalesced values at the time of our previous report.
+     */
+    private long lastCoalesced;
+
+    /**
+     * The number of dropped events at the time of our previous report.
+     */
+    private long lastDropped;
+
+    /**
+     * The number of garbage collections at the time of our previous report.
+     */
+    private long lastGcCount;
+
+    /**
+     * The garbage collection time, in milliseconds, at the time of our previous report.
+     */
+    private long lastGcTime;
+
+    /**
+     * The number of bytes allocated at the time of our previous report, or -1 if that is not supported.
+     */
+    private long lastAllocated;
+
+    /**
+     * Records the current values of all the counters, as the starting point for the next rates we report.
+     */
+    private void takeBaseline() {
+        final Metrics metrics = Metrics.getInstance();
+        lastReportTime = System.nanoTime();
+        for (int device = 0; device < lastPackets.length; device++) {
+            lastPackets[device] = metrics.getPacketCount(device);
+        }
+        for (int player = 1; player < lastPositions.length; player++) {
+            lastPositions[player] = metrics.getPositionCount(player);
+        }
+        lastDelivered = metrics.getDeliveredCount();
+        lastCoalesced = metrics.getCoalescedCount();
+        lastDropped = metrics.getDroppedCount();
+        lastGcCount = metrics.getGcCount();
+        lastGcTime = metrics.getGcTime();
+        lastAllocated = metrics.getAllocatedBytes();
+    }
+
+    /**
+     * Calculates a rate from the change in a counter since our previous report.
+     *
+     * @param current the current value of the counter
+     * @param previous its value at the time of the previous report
+     * @param seconds the time since the previous report
+     *
+     * @return the change per second
+     */
+    private static double rate(long current, long previous, double seconds) {
+        return (current - previous) / seconds;
+    }
+
+    /**
+     * Sends everything we know to the patch, then starts measuring rates again from now.
+     */
+    private void report() {
+        final Metrics metrics = Metrics.getInstance();
+        final double seconds = Math.max(0.001, (System.nanoTime() - lastReportTime) / 1000000000.0);
+
+        for (int device = 0; device < lastPackets.length; device++) {
+            final long count = metrics.getPacketCount(device);
+            if (count > 0) {
+                outlet(0, "packets", new Atom[]{Atom.newAtom(device),
+                        Atom.newAtom(rate(count, lastPackets[device], seconds))});
+            }
+        }
+
+        for (int player = 1; player < lastPositions.length; player++) {
+            final long count = metrics.getPositionCount(player);
+            if (count > 0) {
+                outlet(0, "positions", new Atom[]{Atom.newAtom(player),
+                        Atom.newAtom(rate(count, lastPositions[player], seconds))});
+            }
+        }
+
+        for (Map.Entry<String, Metrics.Histogram> entry : metrics.getCallbacks().entrySet()) {
+            final Metrics.Histogram histogram = entry.getValue();
+            outlet(0, "callback", new Atom[]{Atom.newAtom(entry.getKey()),
+                    Atom.newAtom(histogram.getCount()),
+                    Atom.newAtom(histogram.getPercentile(0.5) / 1000.0),
+                    Atom.newAtom(histogram.getPercentile(0.99) / 1000.0),
+                    Atom.newAtom(histogram.getMax() / 1000.0)});
+        }
+
+        outlet(0, "delivered", new Atom[]{Atom.newAtom(rate(metrics.getDeliveredCount(), lastDelivered, seconds))});
+        outlet(0, "coalesced", new Atom[]{Atom.newAtom(rate(metrics.getCoalescedCount(), lastCoalesced, seconds))});
+        outlet(0, "dropped", new Atom[]{Atom.newAtom(rate(metrics.getDroppedCount(), lastDropped, seconds))});
+        outlet(0, "gc", new Atom[]{Atom.newAtom(rate(metrics.getGcCount(), lastGcCount, seconds)),
+                Atom.newAtom(rate(metrics.getGcTime(), lastGcTime, seconds))});
+        final long allocated = metrics.getAllocatedBytes();
+        if (allocated >= 0 && lastAllocated >= 0) {
+            outlet(0, "allocation", new Atom[]{Atom.newAtom(rate(allocated, lastAllocated, seconds))});
+        }
+
+        takeBaseline();
+    }
+
+    /**
+     * Called by our clock when we are configured to report periodically. Re-arms the clock, then reports.
+     */
+    private void tick() {
+        if (interval < 1) {
+            return;
+        }
+        clock.delay(interval);
+        report();
+    }
+
+    /**
+     * Sets the interval attribute, which controls how often we report on our own. Even though this appears not
+     * to be used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param ms the number of milliseconds between reports, or 0 to report only when banged.
+     */
+    @SuppressWarnings("unused")
+    private void setInterval(int ms) {
+        if (ms < 0) {
+            MaxObject.error("Stats object's interval attribute must not be negative");
+            return;
+        }
+        final boolean wasRunning = interval > 0;
+        interval = ms;
+        if (interval < 1) {
+            clock.unset();
+        } else if (!wasRunning) {
+            clock.delay(interval);
+        }
+    }
+
+    /**
+     * Sets up and describes the inlets, outlets, and attributes.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public Stats() {
+        declareInlets(new int[]{DataTypes.ALL});
+        setInletAssist(new String[]{"bang to report statistics, reset to clear callback timings"});
+        declareOutlets(new int[]{DataTypes.ALL});
+        setOutletAssist(new String[]{"packets, positions, callback, delivered, coalesced, dropped, gc and allocation reports"});
+        declareAttribute("interval", null, "setInterval");
+        takeBaseline();
+    }
+
+    @Override
+    protected void bang() {
+        report();
+    }
+
+    /**
+     * When we receive a reset message, we clear the callback duration distributions, so they reflect only what
+     * happens from now on.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void reset() {
+        Metrics.getInstance().resetLatencies();
+    }
+
+    @Override
+    protected void notifyDeleted() {
+        clock.release();
+        super.notifyDeleted();
+    }
+}
@@ -0,0 +1,417 @@
+package beatlink;
+
+import com.cycling74.max.Atom;
+import com.cycling74.max.DataTypes;
+import com.cycling74.max.MaxObject;
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.*;
+
+/**
+ * An MXJ object that watches every player at once to tell whether the decks that are playing are in sync with each
+ * other. Whenever a player reports a beat, the phase of each other playing deck is measured against it and reported
+ * as a pair offset; the tempos of all playing decks are averaged into a consensus tempo; and a drift alarm is raised
+ * while any pair is further apart than the threshold attribute. All of this is calculated as each beat or status
+ * packet arrives, from a small fixed amount of state per player, so it costs the same no matter how long the show
+ * has been running.
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class Sync extends MaxObject {
+
+    /**
+     * The number of distinct pairs of players we can report on.
+     */
+    private static final int PAIRS = Dispatcher.MAX_PLAYER * (Dispatcher.MAX_PLAYER - 1) / 2;
+
+    /**
+     * The mailbox slot used to deliver consensus tempo changes to the patch; pair offsets use the slots before it.
+     */
+    private static final int CONSENSUS_SLOT = PAIRS;
+
+    /**
+     * The mailbox slot used to deliver drift alarm changes to the patch.
+     */
+    private static final int ALARM_SLOT = PAIRS + 1;
+
+    /**
+     * Once raised, the drift alarm is only cleared when every pair is back within this fraction of the threshold,
+     * so that a pair hovering right at the threshold does not make the alarm flicker.
+     */
+    private static final double HYSTERESIS = 0.75;
+
+    /**
+     * A player is no longer compared with others if it has missed this many beats, which happens when it stops or
+     * disappears without us seeing a status packet saying so.
+     */
+    private static final double MISSED_BEATS = 2.0;
+
+    /**
+     * Holds pair offsets, consensus tempo changes and alarm changes until they can be sent to the patch from the Max
+     * scheduler thread. Only the most recent value of each is delivered.
+     */
+    private final Mailbox mailbox = new Mailbox(PAIRS + 2, 0);
+
+    /**
+     * Keeps track of the listeners we have registered, so they can all be removed when we are deleted.
+     */
+    private final Registrations registrations = new Registrations();
+
+    /**
+     * The attribute that controls how far apart, in milliseconds, the beats of two playing decks can be before the
+     * drift alarm is raised.
+     */
+    private volatile float threshold = 20.0f;
+
+    /**
+     * The {@link System#nanoTime()} of the most recent beat from each player, indexed by player number, or zero
+     * if we have not seen one.
+     */
+    private final long[] beatTimes = new long[Dispatcher.MAX_PLAYER + 1];
+
+    /**
+     * The effective tempo of each player, indexed by player number.
+     */
+    private final double[] tempos = new double[Dispatcher.MAX_PLAYER + 1];
+
+    /**
+     * Whether each player is playing, indexed by player number.
+     */
+    private final boolean[] playing = new boolean[Dispatcher.MAX_PLAYER + 1];
+
+    /**
+     * The total of the tempos of the playing players, kept up to date as tempos change.
+     */
+    private double tempoTotal = 0.0;
+
+    /**
+     * The number of players contributing to {@link #tempoTotal}.
+     */
+    private int tempoCount = 0;
+
+    /**
+     * The most recent consensus tempo reported, so we only report changes.
+     */
+    private double lastConsensus = 0.0;
+
+    /**
+     * The most recent phase offset measured for each pair, as a fraction of a beat by which the higher-numbered
+     * player is ahead of the lower-numbered one, indexed by {@link #pairIndex(int, int)}.
+     */
+    private final double[] pairPhases = new double[PAIRS];
+
+    /**
+     * The most recent offset measured for each pair, in milliseconds, indexed by {@link #pairIndex(int, int)}.
+     */
+    private final double[] pairMillis = new double[PAIRS];
+
+    /**
+     * Whether each pair currently has a meaningful offset, because both players are playing.
+     */
+    private final boolean[] pairValid = new boolean[PAIRS];
+
+    /**
+     * Whether each pair is currently counted as drifting.
+     */
+    private final boolean[] pairDrifting = new boolean[PAIRS];
+
+    /**
+     * The number of pairs currently counted as drifting; the alarm is raised while this is nonzero.
+     */
+    private int driftingPairs = 0;
+
+    /**
+     * Find the array index used for a pair of players.
+     *
+     * @param a one player number
+     * @param b a different player number
+     *
+     * @return the index at which the pair's state is stored
+     */
+    static int pairIndex(int a, int b) {
+        final int low = Math.min(a, b) - 1;
+        final int high = Math.max(a, b) - 1;
+        return low * (2 * Dispatcher.MAX_PLAYER - low - 1) / 2 + (high - low - 1);
+    }
+
+    /**
+     * Calculate how far a player has moved through its beat since it last reported one, expressed as the nearest
+     * offset from a beat boundary.
+     *
+     * @param elapsed the nanoseconds since the player's most recent beat
+     * @param interval the length of the player's beats in nanoseconds
+     *
+     * @return the fraction of a beat, from -0.5 (inclusive) to 0.5 (exclusive), by which the player is ahead
+     */
+    static double phaseSinceBeat(long elapsed, double interval) {
+        double phase = (elapsed / interval) % 1.0;
+        if (phase >= 0.5) {
+            phase -= 1.0;
+        } else if (phase < -0.5) {
+            phase += 1.0;
+        }
+        return phase;
+    }
+
+    /**
+     * Calculate the length of a player's beats.
+     *
+     * @param player the player number
+     *
+     * @return the number of nanoseconds per beat at the player's current tempo, or zero if the tempo is unknown
+     */
+    private double beatNanos(int player) {
+        return (tempos[player] > 0.0) ? 60000000000.0 / tempos[player] : 0.0;
+    }
+
+    /**
+     * Check whether a player is currently taking part in our comparisons.
+     *
+     * @param player the player number
+     * @param now the current {@link System#nanoTime()}
+     *
+     * @return {@code true} if the player is playing and has recently reported a beat
+     */
+    private boolean isActive(int player, long now) {
+        final double interval = beatNanos(player);
+        return playing[player] && beatTimes[player] != 0 && interval > 0.0 &&
+                now - beatTimes[player] < interval * MISSED_BEATS;
+    }
+
+    /**
+     * Update the tempo we are tracking for a player, keeping the consensus total in step.
+     *
+     * @param player the player number
+     * @param tempo its effective tempo
+     * @param isPlaying whether it is playing
+     */
+    private void updateTempo(int player, double tempo, boolean isPlaying) {
+        if (playing[player]) {
+            tempoTotal -= tempos[player];
+            tempoCount--;
+        }
+        tempos[player] = tempo;
+        playing[player] = isPlaying;
+        if (isPlaying) {
+            tempoTotal += tempo;
+            tempoCount++;
+        } else {
+            for (int other = 1; other <= Dispatcher.MAX_PLAYER; other++) {
+                if (other != player) {
+                    invalidatePair(pairIndex(player, other));
+                }
+            }
+        }
+        final double consensus = (tempoCount > 0) ? tempoTotal / tempoCount : 0.0;
+        if (Math.abs(consensus - lastConsensus) > 0.005) {
+            lastConsensus = consensus;
+            mailbox.post(CONSENSUS_SLOT, () -> outlet(1, consensus));
+        }
+    }
+
+    /**
+     * Record that a pair of players no longer has a meaningful offset, clearing its contribution to the alarm.
+     *
+     * @param pair the pair index
+     */
+    private void invalidatePair(int pair) {
+        pairValid[pair] = false;
+        setDrifting(pair, false);
+    }
+
+    /**
+     * Update whether a pair is counted as drifting, raising or clearing the alarm if that changes the overall state.
+     *
+     * @param pair the pair index
+     * @param drifting whether the pair is now drifting
+     */
+    private void setDrifting(int pair, boolean drifting) {
+        if (pairDrifting[pair] == drifting) {
+            return;
+        }
+        pairDrifting[pair] = drifting;
+        driftingPairs += drifting ? 1 : -1;
+        if (driftingPairs == (drifting ? 1 : 0)) {
+            final int alarm = drifting ? 1 : 0;
+            mailbox.post(ALARM_SLOT, () -> outlet(2, alarm));
+        }
+    }
+
+    /**
+     * Sends the offset of a pair of players to the patch.
+     *
+     * @param low the lower-numbered player
+     * @param high the higher-numbered player
+     * @param phase the fraction of a beat by which the higher-numbered player is ahead
+     * @param millis the same offset in milliseconds
+     */
+    private void reportPair(int low, int high, double phase, double millis) {
+        outlet(0, new Atom[]{Atom.newAtom(low), Atom.newAtom(high), Atom.newAtom(phase), Atom.newAtom(millis)});
+    }
+
+    /**
+     * Measures the phase of every other active player against one that has just reported a beat, updating the
+     * pair offsets and drift alarm.
+     *
+     * @param player the player that reported the beat
+     * @param now the {@link System#nanoTime()} at which the beat was received
+     */
+    private void measurePairs(int player, long now) {
+        final double limit = threshold;
+        for (int other = 1; other <= Dispatcher.MAX_PLAYER; other++) {
+            if (other == player) {
+                continue;
+            }
+            final int pair = pairIndex(player, other);
+            if (!isActive(other, now)) {
+                invalidatePair(pair);
+                continue;
+            }
+            final double interval = beatNanos(other);
+            final double otherPhase = phaseSinceBeat(now - beatTimes[other], interval);
+            // otherPhase is how far the other player is ahead of this one; express it for the pair's order.
+            final double phase = (other > player) ? otherPhase : -otherPhase;
+            final double millis = phase * interval / 1000000.0;
+            pairPhases[pair] = phase;
+            pairMillis[pair] = millis;
+            pairValid[pair] = true;
+            final double distance = Math.abs(millis);
+            if (distance > limit) {
+                setDrifting(pair, true);
+            } else if (distance < limit * HYSTERESIS) {
+                setDrifting(pair, false);
+            }
+            final int low = Math.min(player, other);
+            final int high = Math.max(player, other);
+            mailbox.post(pair, () -> reportPair(low, high, phase, millis));
+        }
+    }
+
+    /**
+     * Handles a beat from a player.
+     *
+     * @param player the player number
+     * @param beat the beat it sent
+     */
+    private synchronized void beatReceived(int player, Beat beat) {
+        final double tempo = beat.getEffectiveTempo();
+        if (tempo != tempos[player] || !playing[player]) {
+            updateTempo(player, tempo, true);  // Players only send beats while playing.
+        }
+        beatTimes[player] = beat.getTimestamp();
+        measurePairs(player, beat.getTimestamp());
+    }
+
+    /**
+     * Handles a status packet from a player.
+     *
+     * @param player the player number
+     * @param update the status it sent
+     */
+    private synchronized void statusReceived(int player, DeviceUpdate update) {
+        if (!(update instanceof CdjStatus) || update.getBpm() == 0xffff) {
+            return;  // No track loaded, so no tempo.
+        }
+        final double tempo = update.getEffectiveTempo();
+        final boolean isPlaying = ((CdjStatus) update).isPlaying();
+        if (tempo != tempos[player] || isPlaying != playing[player]) {
+            updateTempo(player, tempo, isPlaying);
+        }
+    }
+
+    /**
+     * Receives beats from each player.
+     */
+    private final BeatListener[] beatListeners = new BeatListener[Dispatcher.MAX_PLAYER + 1];
+
+    /**
+     * Receives status packets from each player.
+     */
+    private final DeviceUpdateListener[] updateListeners = new DeviceUpdateListener[Dispatcher.MAX_PLAYER + 1];
+
+    {
+        for (int player = 1; player <= Dispatcher.MAX_PLAYER; player++) {
+            final int watchedPlayer = player;
+            beatListeners[player] = beat -> beatReceived(watchedPlayer, beat);
+            updateListeners[player] = update -> statusReceived(watchedPlayer, update);
+        }
+    }
+
+    /**
+     * Sets the threshold attribute, which controls how far apart the beats of two playing decks can be before the
+     * drift alarm is raised. Takes effect at the next beat. Even though this appears not to be used,
+     * {@link MaxObject} will invoke it reflectively.
+     *
+     * @param ms the largest acceptable offset in milliseconds
+     */
+    @SuppressWarnings("unused")
+    private void setThreshold(float ms) {
+        if (ms <= 0.0f) {
+            MaxObject.error("Sync object's threshold attribute must be positive");
+            return;
+        }
+        threshold = ms;
+    }
+
+    /**
+     * Sets up and describes the inlets, outlets, and attributes, and registers our listeners.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public Sync() {
+        declareInlets(new int[]{DataTypes.ALL});
+        setInletAssist(new String[]{"bang to report current offsets, consensus tempo and alarm"});
+        declareOutlets(new int[]{DataTypes.LIST, DataTypes.FLOAT, DataTypes.INT});
+        setOutletAssist(new String[]{"pair offsets as players, beat fraction and milliseconds higher player is ahead",
+                "consensus tempo of playing decks, or 0 if none", "drift alarm, 1 while any pair exceeds threshold"});
+        declareAttribute("threshold", null, "setThreshold");
+        final Dispatcher dispatcher = Dispatcher.getInstance();
+        for (int player = 1; player <= Dispatcher.MAX_PLAYER; player++) {
+            final int watchedPlayer = player;
+            final BeatListener beatListener = beatListeners[player];
+            final DeviceUpdateListener updateListener = updateListeners[player];
+            registrations.register("Dispatcher", beatListener,
+                    () -> dispatcher.addBeatListener(watchedPlayer, beatListener),
+                    () -> dispatcher.removeBeatListener(beatListener));
+            registrations.register("Dispatcher", updateListener,
+                    () -> dispatcher.addUpdateListener(watchedPlayer, updateListener),
+                    () -> dispatcher.removeUpdateListener(updateListener));
+        }
+    }
+
+    @Override
+    protected void bang() {
+        final long now = System.nanoTime();
+        final boolean[] valid = new boolean[PAIRS];
+        final double[] phases = new double[PAIRS];
+        final double[] millis = new double[PAIRS];
+        final double consensus;
+        final int alarm;
+        synchronized (this) {  // Copy what we need, so a slow patch can't hold up the network threads.
+            for (int low = 1; low < Dispatcher.MAX_PLAYER; low++) {
+                for (int high = low + 1; high <= Dispatcher.MAX_PLAYER; high++) {
+                    final int pair = pairIndex(low, high);
+                    valid[pair] = pairValid[pair] && isActive(low, now) && isActive(high, now);
+                    phases[pair] = pairPhases[pair];
+                    millis[pair] = pairMillis[pair];
+                }
+            }
+            consensus = lastConsensus;
+            alarm = (driftingPairs > 0) ? 1 : 0;
+        }
+        for (int low = 1; low < Dispatcher.MAX_PLAYER; low++) {
+            for (int high = low + 1; high <= Dispatcher.MAX_PLAYER; high++) {
+                final int pair = pairIndex(low, high);
+                if (valid[pair]) {
+                    reportPair(low, high, phases[pair], millis[pair]);
+                }
+            }
+        }
+        outlet(1, consensus);
+        outlet(2, alarm);
+    }
+
+    @Override
+    protected void notifyDeleted() {
+        mailbox.close();
+        registrations.unregisterAll();
+        super.notifyDeleted();
+    }
+}
@@ -1,9 +1,15 @@
 package beatlink;
 
+import com.cycling74.max.Atom;
 import com.cycling74.max.DataTypes;
+import com.cycling74.max.MaxClock;
 import com.cycling74.max.MaxObject;
 import org.apiguardian.api.API;
 import org.deepsymmetry.beatlink.*;
+import org.deepsymmetry.beatlink.data.BeatGrid;
+import org.deepsymmetry.beatlink.data.TimeFinder;
+import org.deepsymmetry.beatlink.data.TrackPositionListener;
+import org.deepsymmetry.beatlink.data.TrackPositionUpdate;
 
 /**
  * An MXJ object that allows you to track tempo and beats for a particular player or the current master player.
@@ -18,33 +24,112 @@ public class Tempo extends MaxObject {
     private int player = 0;
 
     /**
-     * Keeps track of the most recent tempo value we have seen for a player so we can report changes, or repeat
-     * it when we receive a bang.
+     * Keeps track of the most recent tempo value we have reported for a player so we can repeat it when we receive
+     * a bang.
      */
-    private double lastTempo = 0.0;
+    private volatile double lastTempo = 0.0;
 
     /**
-     * Helper method to send the last-known tempo to the tempo outlet.
+     * Keeps track of the most recent tempo value we have seen for a player, before any filtering.
+     */
+    private volatile double rawTempo = 0.0;
+
+    /**
+     * Keeps track of the most recent playback pitch multiplier reported in status packets by the device we are
+     * following, for use in precision mode.
+     */
+    private volatile double lastPitch = 0.0;
+
+    /**
+     * The attribute that controls whether tempo reports are lists of the tempo and the playback pitch multiplier,
+     * with the pitch taken from precise position packets when the player sends them.
+     */
+    private volatile boolean precision = false;
+
+    /**
+     * The mailbox slot used to deliver tempo changes to the patch.
+     */
+    private static final int TEMPO_SLOT = 0;
+
+    /**
+     * Holds tempo changes and beats until they can be sent to the patch from the Max scheduler thread. Beats are
+     * queued in order, and only the most recent tempo is delivered.
+     */
+    private final Mailbox mailbox = new Mailbox(1, 8);
+
+    /**
+     * Keeps track of the listeners we have registered, so they can all be removed when we are deleted.
+     */
+    private final Registrations registrations = new Registrations();
+
+    /**
+     * Helper method to send the last-known tempo to the tempo outlet. In precision mode, this is followed by the
+     * playback pitch, from the most recent precise position packet if the player is sending them, or from the
+     * most recent status packet otherwise.
      */
     private void reportTempo() {
-        outlet(0, lastTempo);
+        if (!precision) {
+            outlet(0, lastTempo);
+            return;
+        }
+        double pitch = lastPitch;
+        final int device = watchedDevice();
+        if (device > 0 && TimeFinder.getInstance().isRunning()) {
+            final TrackPositionUpdate update = TimeFinder.getInstance().getLatestPositionFor(device);
+            if (update != null && update.precise) {
+                pitch = update.pitch;
+            }
+        }
+        outlet(0, new Atom[]{Atom.newAtom(lastTempo), Atom.newAtom(pitch)});
     }
 
+    /**
+     * Used to deliver tempo changes through our mailbox.
+     */
+    private final Runnable tempoDelivery = this::reportTempo;
+
     /**
      * Keeps track if we have received our loadBang message, so we know that tempo changes can be safely reported.
      */
     private boolean loaded = false;
 
     /**
-     * Helper method to record a new tempo, and if is different from the last value we reported, send a new report.
+     * Decides which tempo changes are worth reporting, according to our smoothing, threshold and interval
+     * attributes.
+     */
+    private final TempoFilter filter = new TempoFilter(tempo -> {
+        lastTempo = tempo;
+        mailbox.post(TEMPO_SLOT, tempoDelivery);
+    });
+
+    /**
+     * Helper method to record a new tempo, and if it is different enough from the last value we reported, send a
+     * new report.
      *
      * @param tempo the updated tempo information we have received.
      */
     private void changeTempo(double tempo) {
-        final double prevTempo = lastTempo;
-        lastTempo = tempo;
-        if (lastTempo != prevTempo) {
-            reportTempo();
+        rawTempo = tempo;
+        filter.offer(tempo);
+    }
+
+    /**
+     * Helper method to record a new tempo along with the pitch reported by the device.
+     *
+     * @param update the status or beat packet that reported the tempo.
+     */
+    private void changeTempo(DeviceUpdate update) {
+        lastPitch = org.deepsymmetry.beatlink.Util.pitchToMultiplier(update.getPitch());
+        changeTempo(update.getEffectiveTempo());
+    }
+
+    /**
+     * Helper method to record the pitch of the current tempo master, if there is one.
+     */
+    private void recordMasterPitch() {
+        final DeviceUpdate master = VirtualCdj.getInstance().getTempoMaster();
+        if (master != null) {
+            lastPitch = org.deepsymmetry.beatlink.Util.pitchToMultiplier(master.getPitch());
         }
     }
 
@@ -54,6 +139,7 @@ public class Tempo extends MaxObject {
      */
     private void reportMasterTempoIfNeeded() {
         if (player == 0 && VirtualCdj.getInstance().isRunning()) {
+            recordMasterPitch();
             changeTempo(VirtualCdj.getInstance().getMasterTempo());
         }
     }
@@ -71,47 +157,735 @@ public class Tempo extends MaxObject {
             return;
         }
         if (player != n) {
+            filter.reset();
+            lastPitch = 0.0;
             changeTempo(0.0);
         }
         player = n;
+        subscribe();
+        updatePredictionSource();
         if (loaded) {
             reportMasterTempoIfNeeded();
         }
     }
 
+    /**
+     * The attribute that controls beat prediction. When negative (the default), beats are reported when their
+     * packets arrive. Otherwise, beats are predicted from the track's beat grid and the interpolated playback
+     * position, and reported this many milliseconds before they are due to occur. Either way, each beat is a list
+     * containing the beat within bar, the beat number (only known when predicting), and how late we were in
+     * microseconds.
+     */
+    private volatile int lookahead = -1;
+
+    /**
+     * Fires at the moment we have scheduled for the next predicted beat. Runs on the Max scheduler thread.
+     */
+    private final MaxClock beatClock = new MaxClock(this::predictedBeatDue);
+
+    /**
+     * Protects the state used to schedule predicted beats, which is updated both by Beat Link threads when position
+     * updates arrive and by the Max scheduler thread when beats fire.
+     */
+    private final Object predictionLock = new Object();
+
+    /**
+     * The device number whose position updates we are using to predict beats, or zero if we are not predicting.
+     */
+    private int predictedDevice = 0;
+
+    /**
+     * The most recent position update received from the device whose beats we are predicting.
+     */
+    private TrackPositionUpdate predictionSource = null;
+
+    /**
+     * The beat number that {@link #beatClock} is set to report, or zero if it is not set.
+     */
+    private int nextBeatNumber = 0;
+
+    /**
+     * The beat within bar of the beat that {@link #beatClock} is set to report.
+     */
+    private int nextBeatWithinBar = 0;
+
+    /**
+     * The {@link System#nanoTime()} at which the beat that {@link #beatClock} is set to report should be sent,
+     * which is the predicted time of the beat itself, less any lookahead.
+     */
+    private long nextBeatTarget = 0;
+
+    /**
+     * The beat number of the last predicted beat that we reported, so we never report the same one twice.
+     */
+    private int lastPredictedBeat = 0;
+
+    /**
+     * Tracks whether we are currently able to predict beats. When we can't (because we are watching a device with
+     * no beat grid, or the player is paused or playing backwards), we fall back to reporting beat packets.
+     */
+    private volatile boolean predicting = false;
+
+    /**
+     * Sends a beat to the patch, along with a downbeat if appropriate.
+     *
+     * @param beatWithinBar the beat within the bar, where 1 is the downbeat
+     * @param beatNumber the beat number within the track, or 0 if unknown
+     * @param lateness how many microseconds after the intended time we are reporting the beat (negative if early)
+     */
+    private void emitBeat(int beatWithinBar, int beatNumber, long lateness) {
+        outlet(1, new Atom[]{Atom.newAtom(beatWithinBar), Atom.newAtom(beatNumber), Atom.newAtom(lateness)});
+        if (beatWithinBar == 1) {
+            outlet(2, 1);
+        }
+    }
+
     /**
      * Report that a beat has occurred on the player we are configured to watch; if it is a downbeat, report that
-     * too.
+     * too. When we are predicting beats, the packet is ignored since we have already reported it.
      *
      * @param beat the beat event reported by Beat Link, so we can check the device number and beat within bar.
      */
     private void reportBeat(Beat beat) {
-        outlet(1, beat.getBeatWithinBar());
-        if (beat.getBeatWithinBar() == 1) {
-            outlet(2, 1);
+        if (!predicting) {
+            emitBeat(beat.getBeatWithinBar(), 0, (System.nanoTime() - beat.getTimestamp()) / 1000);
+        }
+    }
+
+    /**
+     * Figures out when the next beat after the current playback position will occur, and sets our beat clock to
+     * report it at that time (less any lookahead). If that is not possible, turns off prediction so beat packets
+     * will be reported instead.
+     */
+    private void scheduleNextBeat() {
+        synchronized (predictionLock) {
+            final TrackPositionUpdate update = predictionSource;
+            final BeatGrid grid = (update == null) ? null : update.beatGrid;
+            if (lookahead < 0 || grid == null || !update.playing || update.reverse || update.pitch <= 0.0) {
+                predicting = false;
+                nextBeatNumber = 0;
+                beatClock.unset();
+                return;
+            }
+            final long now = System.nanoTime();
+            final double time = Util.interpolateTime(update, now);
+            final int beatNumber = Math.max(grid.findBeatAtTime((long) time) + 1, Math.max(1, lastPredictedBeat + 1));
+            if (beatNumber > grid.beatCount) {
+                predicting = false;
+                nextBeatNumber = 0;
+                beatClock.unset();
+                return;
+            }
+            final double delay = (grid.getTimeWithinTrack(beatNumber) - time) / update.pitch - lookahead;
+            nextBeatNumber = beatNumber;
+            nextBeatWithinBar = grid.getBeatWithinBar(beatNumber);
+            nextBeatTarget = now + Math.round(delay * 1000000.0);
+            predicting = true;
+            beatClock.delay(Math.max(0.0, delay));
         }
     }
 
+    /**
+     * Called by our beat clock when it is time to report a predicted beat. Reports it, then schedules the next one.
+     */
+    private void predictedBeatDue() {
+        final int beatNumber;
+        final int beatWithinBar;
+        final long target;
+        synchronized (predictionLock) {
+            beatNumber = nextBeatNumber;
+            beatWithinBar = nextBeatWithinBar;
+            target = nextBeatTarget;
+            if (beatNumber < 1 || beatNumber == lastPredictedBeat) {
+                return;
+            }
+            lastPredictedBeat = beatNumber;
+        }
+        emitBeat(beatWithinBar, beatNumber, (System.nanoTime() - target) / 1000);
+        scheduleNextBeat();
+    }
+
+    /**
+     * Receives the position updates we use to predict beats.
+     */
+    private final TrackPositionListener predictionListener = update -> {
+        synchronized (predictionLock) {
+            if (update == null || predictionSource == null || update.beatGrid != predictionSource.beatGrid ||
+                    (update.beatGrid != null &&
+                            update.beatGrid.findBeatAtTime(update.milliseconds) < lastPredictedBeat - 1)) {
+                lastPredictedBeat = 0;  // The player jumped backwards or changed tracks, so beats can repeat.
+            }
+            predictionSource = update;
+        }
+        scheduleNextBeat();
+    };
+
+    /**
+     * Tracks whether we have told {@link Finders} that we need beat grids.
+     */
+    private boolean requiringBeatGrids = false;
+
+    /**
+     * Lets {@link Finders} know whether we need beat grids, which is the case when we are predicting beats or
+     * reporting phase. The beat grid finder itself always runs, but it can only get grids from rekordbox exports.
+     */
+    private void updateBeatGridRequirement() {
+        final boolean needed = lookahead >= 0 || phaserate > 0;
+        if (needed && !requiringBeatGrids) {
+            Finders.getInstance().require(Finders.Feature.METADATA);
+        } else if (!needed && requiringBeatGrids) {
+            Finders.getInstance().release(Finders.Feature.METADATA);
+        }
+        requiringBeatGrids = needed;
+    }
+
+    /**
+     * Figures out which device we are actually following: the player attribute, or if that is zero, the current
+     * tempo master.
+     *
+     * @return the device number, or zero if we are following the master and there isn't one
+     */
+    private int watchedDevice() {
+        if (player != 0) {
+            return player;
+        }
+        final DeviceUpdate master = VirtualCdj.getInstance().isRunning() ?
+                VirtualCdj.getInstance().getTempoMaster() : null;
+        return (master == null) ? 0 : master.getDeviceNumber();
+    }
+
+    /**
+     * The attribute that controls how many times per second we report the beat and bar phase. Zero (the default)
+     * means phase is not reported.
+     */
+    private int phaserate = 0;
+
+    /**
+     * Drives the phase reports when {@link #phaserate} is nonzero. Runs on the Max scheduler thread.
+     */
+    private final MaxClock phaseClock = new MaxClock(this::phaseTick);
+
+    /**
+     * The {@link System#nanoTime()} at which we received the most recent beat from the device we are following,
+     * used to calculate phase when there is no beat grid available.
+     */
+    private volatile long lastBeatTimestamp = 0;
+
+    /**
+     * The beat within bar of the most recent beat from the device we are following.
+     */
+    private volatile int lastBeatWithinBar = 1;
+
+    /**
+     * The beat phase we last reported, so we can avoid repeating ourselves when nothing has moved.
+     */
+    private double lastBeatPhase = -1.0;
+
+    /**
+     * The bar phase we last reported, so we can avoid repeating ourselves when nothing has moved.
+     */
+    private double lastBarPhase = -1.0;
+
+    /**
+     * Record the arrival of a beat from the device we are following, for use in calculating phase when we have no
+     * beat grid.
+     *
+     * @param beat the beat that was received
+     */
+    private void recordBeat(Beat beat) {
+        lastBeatTimestamp = beat.getTimestamp();
+        lastBeatWithinBar = beat.getBeatWithinBar();
+    }
+
+    /**
+     * Called by our phase clock when we are configured to report phase. Re-arms the clock, then calculates the
+     * phase of the current beat and bar, and reports them if they have changed. When the device we are following
+     * has a beat grid, phase comes from the interpolated playback position; otherwise it is estimated from the
+     * time since the last beat and the current tempo.
+     */
+    private void phaseTick() {
+        if (phaserate < 1) {
+            return;
+        }
+        phaseClock.delay(1000.0 / phaserate);
+        final long now = System.nanoTime();
+        final int device = watchedDevice();
+        final TrackPositionUpdate update = (device > 0 && TimeFinder.getInstance().isRunning()) ?
+                TimeFinder.getInstance().getLatestPositionFor(device) : null;
+        double beatPhase;
+        int beatWithinBar;
+        if (update != null && update.beatGrid != null && update.beatGrid.beatCount > 1) {
+            final BeatGrid grid = update.beatGrid;
+            final double time = Util.interpolateTime(update, now);
+            final int beat = Math.min(Math.max(grid.findBeatAtTime((long) time), 1), grid.beatCount - 1);
+            final long beatStart = grid.getTimeWithinTrack(beat);
+            final long beatEnd = grid.getTimeWithinTrack(beat + 1);
+            beatPhase = (time - beatStart) / (beatEnd - beatStart);
+            beatWithinBar = grid.getBeatWithinBar(beat);
+        } else if (rawTempo > 0.0 && lastBeatTimestamp != 0) {
+            beatPhase = (now - lastBeatTimestamp) * rawTempo / 60000000000.0;
+            beatWithinBar = lastBeatWithinBar;
+        } else {
+            return;  // We have no idea where we are.
+        }
+        beatPhase = Math.min(Math.max(beatPhase, 0.0), 0.999999);
+        double barPhase = (Math.min(Math.max(beatWithinBar, 1), 4) - 1 + beatPhase) / 4.0;
+        final double offset = crossfadePhaseOffset(barPhase, now);
+        if (offset != 0.0) {
+            barPhase += offset - Math.floor(barPhase + offset);
+            beatPhase = Math.min(barPhase * 4.0 - Math.floor(barPhase * 4.0), 0.999999);
+        }
+        if (beatPhase != lastBeatPhase || barPhase != lastBarPhase) {
+            lastBeatPhase = beatPhase;
+            lastBarPhase = barPhase;
+            outlet(4, barPhase);
+            outlet(3, beatPhase);
+        }
+    }
+
+    /**
+     * Sets the phaserate attribute, which controls how many times per second we report the beat and bar phase.
+     * Even though this appears not to be used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param hz the number of reports per second, or 0 to not report phase.
+     */
+    @SuppressWarnings("unused")
+    private void setPhaserate(int hz) {
+        if (hz < 0 || hz > 1000) {
+            MaxObject.error("Tempo object's phaserate attribute must be in range 0-1000");
+            return;
+        }
+        final boolean wasRunning = phaserate > 0;
+        phaserate = hz;
+        updateBeatGridRequirement();
+        if (phaserate < 1) {
+            phaseClock.unset();
+        } else if (!wasRunning) {
+            lastBeatPhase = -1.0;
+            lastBarPhase = -1.0;
+            phaseClock.delay(0);
+        }
+    }
+
+    /**
+     * Sets the smoothing attribute, which controls how tempo values are smoothed before being reported. Even though
+     * this appears not to be used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param mode {@code off} (the default) to report tempos as received, {@code exponential} for a moving average
+     *             with the time constant set by the smoothtime attribute, or {@code euro} for a One Euro filter,
+     *             which smooths like that while the tempo is steady, but follows faster changes more closely
+     *             according to the beta attribute
+     */
+    @SuppressWarnings("unused")
+    private void setSmoothing(String mode) {
+        switch (mode) {
+            case "off":
+                filter.setSmoothing(TempoFilter.Smoothing.OFF);
+                break;
+
+            case "exponential":
+                filter.setSmoothing(TempoFilter.Smoothing.EXPONENTIAL);
+                break;
+
+            case "euro":
+                filter.setSmoothing(TempoFilter.Smoothing.EURO);
+                break;
+
+            default:
+                MaxObject.error("Tempo object's smoothing attribute must be off, exponential, or euro");
+        }
+    }
+
+    /**
+     * Sets the smoothtime attribute, the time constant of tempo smoothing. Even though this appears not to be used,
+     * {@link MaxObject} will invoke it reflectively.
+     *
+     * @param ms the time constant in milliseconds, 100 by default
+     */
+    @SuppressWarnings("unused")
+    private void setSmoothtime(float ms) {
+        if (ms <= 0.0f) {
+            MaxObject.error("Tempo object's smoothtime attribute must be positive");
+            return;
+        }
+        filter.setTimeConstant(ms);
+    }
+
+    /**
+     * Sets the beta attribute, which controls how much less the euro smoothing mode smooths as the tempo changes
+     * faster. Even though this appears not to be used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param beta the speed coefficient, 0.01 by default
+     */
+    @SuppressWarnings("unused")
+    private void setBeta(float beta) {
+        if (beta < 0.0f) {
+            MaxObject.error("Tempo object's beta attribute must not be negative");
+            return;
+        }
+        filter.setBeta(beta);
+    }
+
+    /**
+     * Sets the threshold attribute, the smallest tempo change worth reporting. Even though this appears not to be
+     * used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param bpm the threshold in beats per minute, 0 (the default) to report every change
+     */
+    @SuppressWarnings("unused")
+    private void setThreshold(float bpm) {
+        if (bpm < 0.0f) {
+            MaxObject.error("Tempo object's threshold attribute must not be negative");
+            return;
+        }
+        filter.setThreshold(bpm);
+    }
+
+    /**
+     * Sets the interval attribute, the minimum time between tempo reports. A change that arrives too soon is
+     * reported when the interval has passed, unless it has been superseded. Even though this appears not to be
+     * used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param ms the interval in milliseconds, 0 (the default) for no limit
+     */
+    @SuppressWarnings("unused")
+    private void setInterval(int ms) {
+        if (ms < 0 || ms > 10000) {
+            MaxObject.error("Tempo object's interval attribute must be in range 0-10000");
+            return;
+        }
+        filter.setInterval(ms);
+    }
+
+    /**
+     * The attribute that controls what happens when the tempo master changes while we are watching the master
+     * player. Zero (the default) means we switch to the new master's tempo and phase immediately; otherwise we
+     * cross-fade to them over this many beats.
+     */
+    private volatile float crossfade = 0.0f;
+
+    /**
+     * How often, in milliseconds, we report the blended tempo during a cross-fade.
+     */
+    private static final double FADE_INTERVAL = 20.0;
+
+    /**
+     * Drives the blended tempo reports during a cross-fade. Runs on the Max scheduler thread.
+     */
+    private final MaxClock fadeClock = new MaxClock(this::fadeTick);
+
+    /**
+     * Protects the cross-fade state, which is updated by Beat Link threads when the master changes, and used by
+     * the Max scheduler thread to report tempo and phase.
+     */
+    private final Object fadeLock = new Object();
+
+    /**
+     * Whether a cross-fade between masters is in progress.
+     */
+    private boolean fading = false;
+
+    /**
+     * The {@link System#nanoTime()} at which the current cross-fade began.
+     */
+    private long fadeStart = 0;
+
+    /**
+     * The length of the current cross-fade, in nanoseconds.
+     */
+    private long fadeLength = 0;
+
+    /**
+     * The tempo we were reporting when the current cross-fade began.
+     */
+    private double fadeFromTempo = 0.0;
+
+    /**
+     * The tempo of the new master, which we are fading towards.
+     */
+    private double fadeToTempo = 0.0;
+
+    /**
+     * Whether we still need to measure how far the new master's bar phase is from the one we were reporting. This
+     * happens on the first phase report after the master changes.
+     */
+    private boolean fadePhasePending = false;
+
+    /**
+     * How far the bar phase we were reporting was ahead of the new master's when the cross-fade began, in bars,
+     * from -0.5 to 0.5. This shrinks to zero over the course of the cross-fade.
+     */
+    private double fadePhaseOffset = 0.0;
+
+    /**
+     * The device to which the tempo master has announced it is handing off, or zero if none.
+     */
+    private volatile int incomingDevice = 0;
+
+    /**
+     * The most recent tempo reported by {@link #incomingDevice}, so we know where to fade to the moment the
+     * handoff happens.
+     */
+    private volatile double incomingTempo = 0.0;
+
+    /**
+     * Keeps track of the tempo of the device that is about to become master.
+     */
+    private final DeviceUpdateListener incomingListener = update -> {
+        if (update.getDeviceNumber() == incomingDevice && update.getBpm() != 0xffff) {
+            incomingTempo = update.getEffectiveTempo();
+        }
+    };
+
+    /**
+     * Learns when the tempo master announces that it is about to hand off to another player.
+     */
+    private final Dispatcher.HandoffListener handoffListener = (from, to) -> prepareHandoff(to);
+
+    /**
+     * Starts tracking the state of a device that is about to become tempo master, so we are ready to cross-fade to
+     * it as soon as it takes over, or stops tracking if there is no longer a handoff pending.
+     *
+     * @param device the device number of the incoming master, or zero if none
+     */
+    private void prepareHandoff(int device) {
+        if (device < 1 || device > Dispatcher.MAX_PLAYER || crossfade <= 0.0f || player != 0) {
+            incomingDevice = 0;
+            registrations.unregister(incomingListener);
+            return;
+        }
+        incomingDevice = device;
+        incomingTempo = 0.0;
+        final DeviceUpdate latest = VirtualCdj.getInstance().isRunning() ?
+                VirtualCdj.getInstance().getLatestStatusFor(device) : null;
+        if (latest != null && latest.getBpm() != 0xffff) {
+            incomingTempo = latest.getEffectiveTempo();
+        }
+        registrations.register("Dispatcher", incomingListener,  // Replaces any registration for another player.
+                () -> Dispatcher.getInstance().addUpdateListener(device, incomingListener),
+                () -> Dispatcher.getInstance().removeUpdateListener(incomingListener));
+    }
+
+    /**
+     * Calculates how far the current cross-fade has progressed, easing in and out. Must be called while holding
+     * {@link #fadeLock}.
+     *
+     * @param now the current {@link System#nanoTime()}
+     *
+     * @return the progress, from 0 to 1
+     */
+    private double fadeProgress(long now) {
+        final double linear = Math.min(1.0, Math.max(0.0, (double) (now - fadeStart) / fadeLength));
+        return linear * linear * (3.0 - 2.0 * linear);
+    }
+
+    /**
+     * Stops any cross-fade in progress, so that the current master's tempo and phase are used directly.
+     */
+    private void cancelCrossfade() {
+        synchronized (fadeLock) {
+            fading = false;
+        }
+        fadeClock.unset();
+    }
+
+    /**
+     * Called when the tempo master changes while we are watching the master player. If we are configured to
+     * cross-fade and were already reporting a tempo, starts fading from that tempo (and the phase we were
+     * reporting) to those of the new master.
+     *
+     * @param update the status of the new master, or {@code null} if there is none
+     */
+    private void beginCrossfade(DeviceUpdate update) {
+        final int incoming = incomingDevice;
+        prepareHandoff(0);  // Any pending handoff is now complete.
+        final double from = rawTempo;
+        if (crossfade <= 0.0f || update == null || from <= 0.0) {
+            cancelCrossfade();
+            return;
+        }
+        double to = from;
+        if (update.getBpm() != 0xffff) {
+            to = update.getEffectiveTempo();
+        } else if (update.getDeviceNumber() == incoming && incomingTempo > 0.0) {
+            to = incomingTempo;
+        }
+        synchronized (fadeLock) {
+            fading = true;
+            fadeStart = System.nanoTime();
+            fadeLength = Math.round(crossfade * 60000000000.0 / from);
+            fadeFromTempo = from;
+            fadeToTempo = to;
+            fadePhasePending = true;
+        }
+        fadeClock.delay(0);
+    }
+
+    /**
+     * Records a new tempo from the master as the target of the cross-fade in progress, if there is one.
+     *
+     * @param tempo the new master tempo
+     *
+     * @return {@code true} if a cross-fade is in progress and will report the tempo in due course
+     */
+    private boolean retargetCrossfade(double tempo) {
+        synchronized (fadeLock) {
+            if (fading) {
+                fadeToTempo = tempo;
+            }
+            return fading;
+        }
+    }
+
+    /**
+     * Called by our fade clock during a cross-fade to report the blended tempo. Re-arms the clock until the
+     * cross-fade is complete.
+     */
+    private void fadeTick() {
+        final double tempo;
+        synchronized (fadeLock) {
+            if (!fading) {
+                return;
+            }
+            final double progress = fadeProgress(System.nanoTime());
+            tempo = fadeFromTempo + (fadeToTempo - fadeFromTempo) * progress;
+            if (progress >= 1.0) {
+                fading = false;
+            } else {
+                fadeClock.delay(FADE_INTERVAL);
+            }
+        }
+        changeTempo(tempo);
+    }
+
+    /**
+     * Figures out how much to shift the bar phase of the new master during a cross-fade, so that the phase we
+     * report glides from where the old master was to where the new one is rather than jumping.
+     *
+     * @param barPhase the bar phase of the current master
+     * @param now the current {@link System#nanoTime()}
+     *
+     * @return the amount to add to the bar phase, in bars
+     */
+    private double crossfadePhaseOffset(double barPhase, long now) {
+        synchronized (fadeLock) {
+            if (!fading) {
+                return 0.0;
+            }
+            if (fadePhasePending) {
+                fadePhasePending = false;
+                final double difference = lastBarPhase - barPhase;
+                fadePhaseOffset = (lastBarPhase < 0.0) ? 0.0 : difference - Math.floor(difference + 0.5);
+            }
+            return fadePhaseOffset * (1.0 - fadeProgress(now));
+        }
+    }
+
+    /**
+     * Sets the crossfade attribute, which controls how we move to a new tempo master when watching the master
+     * player. Even though this appears not to be used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param beats the number of beats over which to cross-fade tempo and phase, or 0 to switch immediately.
+     */
+    @SuppressWarnings("unused")
+    private void setCrossfade(float beats) {
+        if (beats < 0.0f || beats > 64.0f) {
+            MaxObject.error("Tempo object's crossfade attribute must be in range 0-64");
+            return;
+        }
+        crossfade = beats;
+        if (beats <= 0.0f) {
+            prepareHandoff(0);
+            cancelCrossfade();
+        }
+    }
+
+    /**
+     * Sets the precision attribute, which controls whether tempo reports include the playback pitch. Even though
+     * this appears not to be used, {@link MaxObject} will invoke it reflectively.
+     *
+     * @param n nonzero to report lists of tempo and pitch, zero to report only the tempo.
+     */
+    @SuppressWarnings("unused")
+    private void setPrecision(int n) {
+        precision = (n != 0);
+    }
+
+    /**
+     * Starts or stops watching position updates from the appropriate device, depending on whether beat prediction
+     * is enabled, the player attribute, and (if that is zero) the current tempo master.
+     */
+    private void updatePredictionSource() {
+        int device = watchedDevice();
+        if (lookahead < 0 || device < 1 || device > Dispatcher.MAX_PLAYER) {
+            device = 0;
+        }
+        synchronized (predictionLock) {
+            if (device == predictedDevice) {
+                return;
+            }
+            predictedDevice = device;
+            predictionSource = null;
+            lastPredictedBeat = 0;
+        }
+        if (device == 0) {
+            registrations.unregister(predictionListener);
+        } else {
+            final int watchedDevice = device;
+            registrations.register("Dispatcher", predictionListener,  // Replaces any registration for another player.
+                    () -> Dispatcher.getInstance().addPositionListener(watchedDevice, predictionListener),
+                    () -> Dispatcher.getInstance().removePositionListener(predictionListener));
+        }
+        scheduleNextBeat();
+    }
+
+    /**
+     * Sets the lookahead attribute, which controls whether beats are predicted, and if so, how many milliseconds
+     * early they are reported. Even though this appears not to be used, {@link MaxObject} will invoke it
+     * reflectively.
+     *
+     * @param ms the number of milliseconds before each beat that it should be reported, or a negative value to
+     *           report beats when their packets arrive
+     */
+    @SuppressWarnings("unused")
+    private void setLookahead(int ms) {
+        if (ms > 1000) {
+            MaxObject.error("Tempo object's lookahead attribute must be at most 1000");
+            return;
+        }
+        lookahead = ms;
+        updateBeatGridRequirement();
+        updatePredictionSource();
+        scheduleNextBeat();
+    }
+
     /**
      * Used to report tempo changes and beats when we are configured to watch the master player.
      */
     private final MasterListener masterListener = new MasterListener() {
         @Override
         public void masterChanged(DeviceUpdate update) {
-            // Nothing to do.
+            if (player == 0) {
+                beginCrossfade(update);
+                updatePredictionSource();
+            }
         }
 
         @Override
         public void tempoChanged(double tempo) {
             if (player == 0) {
-                changeTempo(tempo);
+                recordMasterPitch();
+                if (!retargetCrossfade(tempo)) {
+                    changeTempo(tempo);
+                }
             }
         }
 
         @Override
         public void newBeat(Beat beat) {
             if (player == 0) {
-                reportBeat(beat);
+                recordBeat(beat);
+                mailbox.enqueue(() -> reportBeat(beat));
             }
         }
     };
@@ -121,7 +895,8 @@ public class Tempo extends MaxObject {
      */
     private final BeatListener beatListener = beat -> {
         if (beat.getDeviceNumber() == player) {
-            reportBeat(beat);
+            recordBeat(beat);
+            mailbox.enqueue(() -> reportBeat(beat));
         }
     };
 
@@ -131,23 +906,104 @@ public class Tempo extends MaxObject {
     private final DeviceUpdateListener updateListener = update -> {
         if (update.getDeviceNumber() == player && update.getBpm() != 0xffff) {
             // It's the player we are configured to watch, and tempo is known.
-            changeTempo(update.getEffectiveTempo());
+            changeTempo(update);
         }
     };
 
+    /**
+     * Registers the listeners appropriate for the player we are watching with the {@link Dispatcher}, so we only
+     * hear about events we care about: tempo master events when watching the master player, or the beats and
+     * status updates of one specific player otherwise.
+     */
+    private void subscribe() {
+        final Dispatcher dispatcher = Dispatcher.getInstance();
+        if (player == 0) {
+            registrations.unregister(beatListener);
+            registrations.unregister(updateListener);
+            registrations.register("Dispatcher", masterListener,
+                    () -> dispatcher.addMasterListener(masterListener),
+                    () -> dispatcher.removeMasterListener(masterListener));
+            registrations.register("Dispatcher", handoffListener,
+                    () -> dispatcher.addHandoffListener(handoffListener),
+                    () -> dispatcher.removeHandoffListener(handoffListener));
+        } else {
+            final int watchedPlayer = player;
+            registrations.unregister(masterListener);
+            registrations.unregister(handoffListener);
+            prepareHandoff(0);
+            cancelCrossfade();
+            registrations.register("Dispatcher", beatListener,
+                    () -> dispatcher.addBeatListener(watchedPlayer, beatListener),
+                    () -> dispatcher.removeBeatListener(beatListener));
+            registrations.register("Dispatcher", updateListener,
+                    () -> dispatcher.addUpdateListener(watchedPlayer, updateListener),
+                    () -> dispatcher.removeUpdateListener(updateListener));
+        }
+    }
+
+    /**
+     * Get the listener that handles beats when we watch a specific player, so {@link Warmup} can exercise it.
+     *
+     * @return our beat listener
+     */
+    BeatListener getBeatListener() {
+        return beatListener;
+    }
+
+    /**
+     * Get the listener that handles status updates when we watch a specific player, so {@link Warmup} can exercise
+     * it.
+     *
+     * @return our device update listener
+     */
+    DeviceUpdateListener getUpdateListener() {
+        return updateListener;
+    }
+
+    /**
+     * Get the mailbox through which we send everything to the patch, so {@link Warmup} can mute it.
+     *
+     * @return our mailbox
+     */
+    Mailbox getMailbox() {
+        return mailbox;
+    }
+
     /**
      * Sets up and describes the inlets, outlets, and attributes, and registers our listeners.
      */
     public Tempo() {
+        this(0);
+    }
+
+    /**
+     * Sets up and describes the inlets, outlets, and attributes, and registers our listeners for a specific player.
+     * Used directly by {@link Warmup}, which has no way to set our player attribute.
+     *
+     * @param player the device number of the player to watch, 1 through 6, or 0 to watch the master player
+     */
+    Tempo(int player) {
+        this.player = player;
         declareInlets(new int[]{DataTypes.ALL});
         setInletAssist(new String[] {"bang to query current tempo"});
-        declareOutlets(new int[]{DataTypes.ALL, DataTypes.ALL, DataTypes.ALL});
-        setOutletAssist(new String[]{"reports tempo changes", "reports beats", "reports down beats"});
+        declareOutlets(new int[]{DataTypes.ALL, DataTypes.ALL, DataTypes.ALL, DataTypes.FLOAT, DataTypes.FLOAT});
+        setOutletAssist(new String[]{"reports tempo changes (in precision mode, list of tempo and pitch)",
+                "reports beats as list of beat within bar, beat number (0 if not predicted), lateness in microseconds",
+                "reports down beats",
+                "beat phase (0-1) when phaserate is nonzero",
+                "bar phase (0-1) when phaserate is nonzero"});
         declareAttribute("player", null, "setPlayer");
+        declareAttribute("lookahead", null, "setLookahead");
+        declareAttribute("phaserate", null, "setPhaserate");
+        declareAttribute("smoothing", null, "setSmoothing");
+        declareAttribute("smoothtime", null, "setSmoothtime");
+        declareAttribute("beta", null, "setBeta");
+        declareAttribute("threshold", null, "setThreshold");
+        declareAttribute("interval", null, "setInterval");
+        declareAttribute("precision", null, "setPrecision");
+        declareAttribute("crossfade", null, "setCrossfade");
 
-        VirtualCdj.getInstance().addMasterListener(masterListener);
-        VirtualCdj.getInstance().addUpdateListener(updateListener);
-        BeatFinder.getInstance().addBeatListener(beatListener);
+        subscribe();
     }
 
     @Override
@@ -164,9 +1020,15 @@ public class Tempo extends MaxObject {
 
     @Override
     protected void notifyDeleted() {
-        VirtualCdj.getInstance().removeMasterListener(masterListener);
-        VirtualCdj.getInstance().removeUpdateListener(updateListener);
-        BeatFinder.getInstance().removeBeatListener(beatListener);
+        beatClock.release();
+        phaseClock.release();
+        fadeClock.release();
+        filter.release();
+        mailbox.close();
+        registrations.unregisterAll();
+        if (requiringBeatGrids) {
+            Finders.getInstance().release(Finders.Feature.METADATA);
+        }
         super.notifyDeleted();
     }
 }
@@ -0,0 +1,344 @@
+package beatlink;
+
+import com.cycling74.max.MaxClock;
+import org.apiguardian.api.API;
+
+import java.util.function.DoubleConsumer;
+
+/**
+ * Decides which of the tempo values received by a {@link Tempo} object are worth reporting to the patch, so that
+ * pitch fader noise does not produce a storm of nearly identical messages. Values can optionally be smoothed, are
+ * withheld unless they differ from the last reported value by at least a threshold, and are reported no more often
+ * than a minimum interval. A value withheld only because of the interval is reported once the interval has passed,
+ * unless a later value replaces it first, so the patch always ends up with the current tempo. While a smoothed value
+ * is still catching up with the most recent tempo received, the filter keeps advancing it from a Max clock, since
+ * the tempo may not be received again until it next changes.
+ */
+@API(status = API.Status.INTERNAL)
+final class TempoFilter {
+
+    /**
+     * The ways in which incoming tempo values can be smoothed.
+     */
+    enum Smoothing {
+        /**
+         * Values are used exactly as received.
+         */
+        OFF,
+
+        /**
+         * An exponential moving average with a fixed time constant.
+         */
+        EXPONENTIAL,
+
+        /**
+         * The One Euro filter, which smooths heavily while the tempo is steady, but follows quickly when it is
+         * really changing.
+         */
+        EURO
+    }
+
+    /**
+     * The cutoff frequency, in Hz, used to smooth the rate of change estimated by the One Euro filter.
+     */
+    private static final double DERIVATIVE_CUTOFF = 1.0;
+
+    /**
+     * How often, in milliseconds, a smoothed value that has not yet caught up with the received tempo is advanced.
+     */
+    private static final double SETTLE_MS = 20.0;
+
+    /**
+     * How close, in beats per minute, a smoothed value needs to get to the received tempo before we stop smoothing
+     * and report the received tempo itself.
+     */
+    private static final double SETTLED_BPM = 0.0005;
+
+    /**
+     * Receives the values that should be reported.
+     */
+    private final DoubleConsumer reporter;
+
+    /**
+     * Fires when a value that was withheld because of the minimum interval can be reported.
+     */
+    private final MaxClock deferralClock = new MaxClock(this::deferralDue);
+
+    /**
+     * Fires while a smoothed value is still catching up with the most recent tempo received.
+     */
+    private final MaxClock settleClock = new MaxClock(this::settleDue);
+
+    /**
+     * How values are being smoothed.
+     */
+    private Smoothing smoothing = Smoothing.OFF;
+
+    /**
+     * The time constant of the smoothing, in seconds. For the One Euro filter, this is used while the tempo is
+     * steady.
+     */
+    private double timeConstant = 0.1;
+
+    /**
+     * How strongly the One Euro filter reduces smoothing as the tempo changes faster.
+     */
+    private double beta = 0.01;
+
+    /**
+     * The smallest change from the last reported value, in beats per minute, that is worth reporting.
+     */
+    private double threshold = 0.0;
+
+    /**
+     * The minimum time between reports, in nanoseconds.
+     */
+    private long intervalNanos = 0;
+
+    /**
+     * The current smoothed tempo, or {@code NaN} if we have not received any values since we were reset.
+     */
+    private double smoothed = Double.NaN;
+
+    /**
+     * The most recent tempo received, or {@code NaN} if we have not received any values since we were reset.
+     */
+    private double latest = Double.NaN;
+
+    /**
+     * Whether {@link #settleClock} is set.
+     */
+    private boolean settling = false;
+
+    /**
+     * The smoothed rate of change of the tempo, in beats per minute per second, used by the One Euro filter.
+     */
+    private double derivative = 0.0;
+
+    /**
+     * The {@link System#nanoTime()} at which we received the previous value.
+     */
+    private long lastSampleTime = 0;
+
+    /**
+     * The last value we reported, or {@code NaN} if we have not reported anything since we were reset.
+     */
+    private double reported = Double.NaN;
+
+    /**
+     * The {@link System#nanoTime()} at which we last reported a value.
+     */
+    private long lastReportTime = 0;
+
+    /**
+     * A value which is waiting for the minimum interval to pass, or {@code NaN} if there is none.
+     */
+    private double pending = Double.NaN;
+
+    /**
+     * Create a filter that will pass the values worth reporting to the specified consumer.
+     *
+     * @param reporter will be called with each value that should be reported, from whatever thread offered it, or
+     *                 from the Max scheduler thread for values which had to wait
+     */
+    TempoFilter(DoubleConsumer reporter) {
+        this.reporter = reporter;
+    }
+
+    /**
+     * Calculates the weight given to a new sample by a first order low-pass filter.
+     *
+     * @param seconds the time since the previous sample
+     * @param tau the time constant of the filter, in seconds
+     *
+     * @return the smoothing factor, from 0 to 1
+     */
+    private static double alpha(double seconds, double tau) {
+        return 1.0 / (1.0 + tau / seconds);
+    }
+
+    /**
+     * Applies the configured smoothing to a newly received value.
+     *
+     * @param tempo the value received
+     * @param now the {@link System#nanoTime()} at which it was received
+     *
+     * @return the smoothed value
+     */
+    private double smooth(double tempo, long now) {
+        final double seconds = (now - lastSampleTime) / 1000000000.0;
+        lastSampleTime = now;
+        if (smoothing == Smoothing.OFF || Double.isNaN(smoothed) || tempo == 0.0 || smoothed == 0.0) {
+            derivative = 0.0;
+            smoothed = tempo;  // Nothing to smooth from, or the player has no tempo.
+        } else if (seconds > 0.0) {
+            if (smoothing == Smoothing.EXPONENTIAL) {
+                smoothed += (tempo - smoothed) * (1.0 - Math.exp(-seconds / timeConstant));
+            } else {
+                final double rate = (tempo - smoothed) / seconds;
+                derivative += (rate - derivative) * alpha(seconds, 1.0 / (2.0 * Math.PI * DERIVATIVE_CUTOFF));
+                final double cutoff = 1.0 / (2.0 * Math.PI * timeConstant) + beta * Math.abs(derivative);
+                smoothed += (tempo - smoothed) * alpha(seconds, 1.0 / (2.0 * Math.PI * cutoff));
+            }
+        }
+        return smoothed;
+    }
+
+    /**
+     * Records that a value is being reported, and passes it on.
+     *
+     * @param value the value to report
+     * @param now the current {@link System#nanoTime()}
+     */
+    private void report(double value, long now) {
+        reported = value;
+        lastReportTime = now;
+        pending = Double.NaN;
+        reporter.accept(value);
+    }
+
+    /**
+     * Considers a smoothed value, reporting it right away if it is worth reporting and the minimum interval has
+     * passed, or arranging for it to be reported when the interval has passed.
+     *
+     * @param value the smoothed tempo
+     * @param now the current {@link System#nanoTime()}
+     */
+    private void consider(double value, long now) {
+        if (!Double.isNaN(reported) && (value == reported ||
+                (Math.abs(value - reported) < threshold && value != 0.0 && reported != 0.0))) {
+            pending = Double.NaN;  // Not enough of a change, and any value still waiting is now out of date.
+            return;
+        }
+        final long wait = lastReportTime + intervalNanos - now;
+        if (Double.isNaN(reported) || wait <= 0) {
+            report(value, now);
+        } else {
+            if (Double.isNaN(pending)) {
+                deferralClock.delay(wait / 1000000.0);
+            }
+            pending = value;
+        }
+    }
+
+    /**
+     * Arrange to keep advancing the smoothed value if it has not yet caught up with the received tempo.
+     */
+    private void scheduleSettle() {
+        if (!settling && smoothed != latest) {
+            settling = true;
+            settleClock.delay(SETTLE_MS);
+        }
+    }
+
+    /**
+     * Considers a newly received tempo, reporting it right away if it is worth reporting and the minimum interval
+     * has passed, or arranging for it to be reported when the interval has passed.
+     *
+     * @param tempo the tempo received
+     */
+    synchronized void offer(double tempo) {
+        final long now = System.nanoTime();
+        latest = tempo;
+        consider(smooth(tempo, now), now);
+        scheduleSettle();
+    }
+
+    /**
+     * Called on the Max scheduler thread while a smoothed value is catching up with the most recent tempo received,
+     * to advance it as if that tempo had been received again. Once it is close enough, the tempo itself is used.
+     */
+    private synchronized void settleDue() {
+        settling = false;
+        if (Double.isNaN(latest)) {
+            return;  // We have been reset.
+        }
+        final long now = System.nanoTime();
+        double value = smooth(latest, now);
+        if (Math.abs(value - latest) < SETTLED_BPM) {
+            smoothed = latest;
+            derivative = 0.0;
+            value = latest;
+        }
+        consider(value, now);
+        scheduleSettle();
+    }
+
+    /**
+     * Called on the Max scheduler thread when the minimum interval has passed after a value was withheld.
+     */
+    private synchronized void deferralDue() {
+        if (!Double.isNaN(pending)) {
+            report(pending, System.nanoTime());
+        }
+    }
+
+    /**
+     * Forget everything we have seen, so that the next value offered is reported immediately and without
+     * smoothing. Used when we start watching a different player.
+     */
+    synchronized void reset() {
+        smoothed = Double.NaN;
+        latest = Double.NaN;
+        derivative = 0.0;
+        reported = Double.NaN;
+        pending = Double.NaN;
+        deferralClock.unset();
+        settleClock.unset();
+        settling = false;
+    }
+
+    /**
+     * Set how incoming values are smoothed.
+     *
+     * @param smoothing the kind of smoothing to apply
+     */
+    synchronized void setSmoothing(Smoothing smoothing) {
+        this.smoothing = smoothing;
+        derivative = 0.0;
+    }
+
+    /**
+     * Set the time constant of the smoothing.
+     *
+     * @param ms the time constant, in milliseconds, which must be positive
+     */
+    synchronized void setTimeConstant(double ms) {
+        timeConstant = ms / 1000.0;
+    }
+
+    /**
+     * Set how strongly the One Euro filter reduces smoothing as the tempo changes faster.
+     *
+     * @param beta the speed coefficient, zero for none
+     */
+    synchronized void setBeta(double beta) {
+        this.beta = beta;
+    }
+
+    /**
+     * Set the smallest change in tempo worth reporting.
+     *
+     * @param bpm the threshold, in beats per minute
+     */
+    synchronized void setThreshold(double bpm) {
+        threshold = bpm;
+    }
+
+    /**
+     * Set the minimum time between reports.
+     *
+     * @param ms the interval, in milliseconds
+     */
+    synchronized void setInterval(int ms) {
+        intervalNanos = ms * 1000000L;
+    }
+
+    /**
+     * Stops the clocks used to report deferred and settling values. Called when the owning object is deleted.
+     */
+    void release() {
+        deferralClock.release();
+        settleClock.release();
+    }
+}
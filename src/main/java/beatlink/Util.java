@@ -2,43 +2,98 @@ package beatlink;
 
 import com.cycling74.max.MaxObject;
 import org.deepsymmetry.beatlink.data.SearchableItem;
+import org.deepsymmetry.beatlink.data.TrackPositionUpdate;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.FileHandler;
+import java.util.logging.Level;
 import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
 
 /**
  * Created by James Elliott on 11/16/24.
  */
 public class Util {
 
-    private static final String baseConfig = "handlers = java.util.logging.FileHandler\n" +
-            ".level = INFO\n" +
-            "java.util.logging.FileHandler.formatter = java.util.logging.SimpleFormatter\n" +
-            "java.util.logging.FileHandler.level = INFO\n" +
-            "java.util.logging.FileHandler.limit = 256000\n" +
-            "java.util.logging.FileHandler.append = true\n" +
-            "java.util.logging.FileHandler.count = 5\n";
+    /**
+     * The name of the optional file, in the top level of our Max package, that can be used to adjust logging.
+     */
+    private static final String LOGGING_PROPERTIES = "logging.properties";
+
+    /**
+     * The logging settings used unless they are overridden in the {@link #LOGGING_PROPERTIES} file: the level of
+     * messages to log, the approximate maximum size of each log file in bytes, the number of log files to keep,
+     * how many messages can be waiting to be written before we start discarding them, and how many messages each
+     * logger may write per second.
+     */
+    private static final String defaultConfig = "level = INFO\n" +
+            "limit = 256000\n" +
+            "count = 5\n" +
+            "queue = 1024\n" +
+            "ratelimit = 20\n";
 
     /**
      * Ensures initialization happens only once.
      */
     private static final AtomicBoolean isLoggingInitialized = new AtomicBoolean(false);
 
+    /**
+     * Loads our logging settings, starting with the defaults and applying anything found in the properties file
+     * in our package folder.
+     *
+     * @param ourPackage the top level folder of our Max package
+     *
+     * @return the logging settings
+     *
+     * @throws IOException if there is a problem reading the properties file
+     */
+    private static Properties loadLoggingProperties(File ourPackage) throws IOException {
+        final Properties properties = new Properties();
+        properties.load(new StringReader(defaultConfig));
+        final File overrides = new File(ourPackage, LOGGING_PROPERTIES);
+        if (overrides.canRead()) {
+            try (Reader reader = Files.newBufferedReader(overrides.toPath(), StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+            MaxObject.post("beat-link-max logging settings loaded from " + overrides.getCanonicalPath());
+        }
+        return properties;
+    }
+
+    /**
+     * Find the top level folder of our Max package, which holds folders like {@code logs} alongside the
+     * {@code java-classes} folder in which our jar is installed.
+     *
+     * @return the package folder
+     *
+     * @throws URISyntaxException if the location of our jar cannot be interpreted as a file
+     */
+    static File findPackageFolder() throws URISyntaxException {
+        final File ourJar = new File(Util.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        return ourJar.getParentFile().getParentFile().getParentFile();
+    }
+
     /**
      * Make sure that the logging environment has been properly established. Does nothing
-     * if another caller has already requested this.
+     * if another caller has already requested this. Log messages are written to a rolling set of files
+     * by a background thread, so that threads receiving DJ Link packets never wait for the disk.
      */
     public static synchronized void initializeLogging() {
         if (!isLoggingInitialized.get()) {
             // Configure logging here:
-            // Find path to our jar; write a temporary config file to configure Java logging to write a rollover Info-level log there.
+            // Find path to our jar; set up Java logging to write a rollover log in the logs folder next to it.
             try {
-                final File ourJar = new File(Util.class.getProtectionDomain().getCodeSource().getLocation().toURI());
-                final File ourPackage = ourJar.getParentFile().getParentFile().getParentFile();
+                final File ourPackage = findPackageFolder();
                 // Make sure the logs folder exists
                 final File logFolder = new File(ourPackage, "logs");
                 if (!logFolder.exists()) {
@@ -57,11 +112,24 @@ public class Util {
                     throw new IOException("Failed to create log file in folder " + logFolder.getCanonicalPath());
                 }
 
-                // Set the logging configuration
+                // Set up the asynchronous file logging
                 MaxObject.post("beat-link-max logs found in " + logFolder.getCanonicalPath());
-                final String config = baseConfig + "java.util.logging.FileHandler.pattern = " + logFolder.getCanonicalPath() +
-                        "/beat-link-max-%g.log";
-                LogManager.getLogManager().readConfiguration(new ByteArrayInputStream(config.getBytes(StandardCharsets.UTF_8)));
+                final Properties properties = loadLoggingProperties(ourPackage);
+                final Level level = Level.parse(properties.getProperty("level").trim());
+                final FileHandler fileHandler = new FileHandler(logFolder.getCanonicalPath() + "/beat-link-max-%g.log",
+                        Integer.parseInt(properties.getProperty("limit").trim()),
+                        Integer.parseInt(properties.getProperty("count").trim()), true);
+                fileHandler.setFormatter(new SimpleFormatter());
+                fileHandler.setLevel(level);
+                final AsyncLogHandler handler = new AsyncLogHandler(fileHandler,
+                        Integer.parseInt(properties.getProperty("queue").trim()),
+                        Integer.parseInt(properties.getProperty("ratelimit").trim()));
+                handler.setLevel(level);
+
+                LogManager.getLogManager().reset();
+                final Logger root = Logger.getLogger("");
+                root.setLevel(level);
+                root.addHandler(handler);
             } catch (Exception e) {
                 MaxObject.error("Unable to enable logging in beat-link-max: " + e);
             }
@@ -94,4 +162,46 @@ public class Util {
         }
         return s;
     }
+
+    /**
+     * Calculates where the playhead has moved since a position update was received, based on the nanosecond
+     * timestamp of the update, the elapsed time, and the playback pitch at the time of the update. Performs no
+     * allocation, so it is safe to call as often as needed.
+     *
+     * @param update the most recent position update received from the player
+     * @param now the current value of {@link System#nanoTime()}
+     *
+     * @return the interpolated playback position in milliseconds, with a fractional part
+     */
+    public static double interpolateTime(TrackPositionUpdate update, long now) {
+        if (!update.playing) {
+            return update.milliseconds;
+        }
+        final double moved = (now - update.timestamp) * update.pitch / 1000000.0;
+        if (update.reverse) {
+            return Math.max(0.0, update.milliseconds - moved);
+        }
+        return update.milliseconds + moved;
+    }
+
+    /**
+     * Wait until a moment in time, sleeping for most of the wait and spinning for the very end, so that timing
+     * threads are neither late (because the operating system woke them late) nor hogging a processor. Returns early
+     * if the calling thread is interrupted while sleeping.
+     *
+     * @param deadline the {@link System#nanoTime()} at which to return
+     * @param spinNanos how long before the deadline to stop sleeping and start spinning
+     */
+    static void sleepUntil(long deadline, long spinNanos) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > spinNanos) {
+            LockSupport.parkNanos(remaining - spinNanos);
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+        while (deadline - System.nanoTime() > 0) {
+            Thread.onSpinWait();
+        }
+    }
 }
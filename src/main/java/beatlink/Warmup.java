@@ -0,0 +1,282 @@
+package beatlink;
+
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.Beat;
+import org.deepsymmetry.beatlink.BeatListener;
+import org.deepsymmetry.beatlink.CdjStatus;
+import org.deepsymmetry.beatlink.DeviceUpdateListener;
+import org.deepsymmetry.beatlink.data.TrackMetadataListener;
+import org.deepsymmetry.beatlink.data.TrackMetadataUpdate;
+import org.deepsymmetry.beatlink.data.TrackPositionListener;
+import org.deepsymmetry.beatlink.data.TrackPositionUpdate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Gets the code that handles beats, status updates, position updates and metadata loaded and compiled before real
+ * traffic arrives, so the first events after going online are not held up by class loading and interpretation on
+ * Beat Link's receiver threads. The classes involved are loaded and initialized up front, then synthetic packets
+ * are parsed by Beat Link and delivered through the same {@link Dispatcher} code as live events to the handlers
+ * of real {@link Tempo}, {@link Position} and {@link Metadata} objects. Those objects belong to no patch, so their
+ * mailboxes are muted: what they post is drained by {@link Delivery} as usual, but never sent to an outlet. This
+ * only needs to happen once per Max session, and happens before we go online, so no live events reach the objects.
+ */
+@API(status = API.Status.INTERNAL)
+final class Warmup {
+
+    private static final Logger logger = LoggerFactory.getLogger(Warmup.class);
+
+    /**
+     * The classes to load and initialize before any events are exercised, beyond those the synthetic events and
+     * objects load themselves.
+     */
+    private static final String[] PRELOAD = {
+            "org.deepsymmetry.beatlink.Beat",
+            "org.deepsymmetry.beatlink.CdjStatus",
+            "org.deepsymmetry.beatlink.MixerStatus",
+            "org.deepsymmetry.beatlink.DeviceAnnouncement",
+            "org.deepsymmetry.beatlink.data.TrackPositionUpdate",
+            "org.deepsymmetry.beatlink.data.TrackMetadataUpdate",
+            "org.deepsymmetry.beatlink.data.BeatGrid",
+            "org.deepsymmetry.beatlink.data.DataReference",
+            "org.deepsymmetry.beatlink.data.SlotReference",
+            "org.deepsymmetry.beatlink.data.WaveformPreviewUpdate",
+            "org.deepsymmetry.beatlink.data.WaveformDetailUpdate",
+            "org.deepsymmetry.beatlink.data.AlbumArtUpdate",
+            "org.deepsymmetry.electro.Metronome",
+            "beatlink.TempoFilter",
+            "beatlink.MetadataCache",
+            "beatlink.AnalysisCache",
+            "beatlink.StateTable"
+    };
+
+    /**
+     * The bytes with which every DJ Link packet begins.
+     */
+    private static final byte[] HEADER = "Qspt1WmJOL".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The device name given to the synthetic packets.
+     */
+    private static final byte[] NAME = "beat-link-max warmup".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The device number given to the synthetic packets, which is also the player watched by the objects we
+     * create.
+     */
+    static final int DEVICE = 1;
+
+    /**
+     * The length of a beat packet.
+     */
+    private static final int BEAT_LENGTH = 0x60;
+
+    /**
+     * The length of the CDJ status packets we build, which is the shortest that Beat Link accepts.
+     */
+    private static final int STATUS_LENGTH = 0xd4;
+
+    /**
+     * Pitch values in DJ Link packets representing normal speed.
+     */
+    private static final int NORMAL_PITCH = 0x100000;
+
+    /**
+     * How long to wait for {@link Delivery} to drain the muted mailboxes before deleting the objects, in
+     * milliseconds.
+     */
+    private static final long DRAIN_TIMEOUT = 1000;
+
+    /**
+     * Ensures the warm-up only happens once, no matter how many {@link Connect} objects ask for it.
+     */
+    private static final AtomicBoolean done = new AtomicBoolean(false);
+
+    /**
+     * Store a big-endian number in a packet.
+     *
+     * @param bytes the packet
+     * @param offset where the number starts
+     * @param size how many bytes it occupies
+     * @param value the number
+     */
+    private static void put(byte[] bytes, int offset, int size, long value) {
+        for (int i = size - 1; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>= 8;
+        }
+    }
+
+    /**
+     * Build the parts of a packet common to beats and status updates.
+     *
+     * @param type the packet type
+     * @param subtype the byte that follows the device name
+     * @param length the length of the packet
+     *
+     * @return the packet bytes
+     */
+    private static byte[] packet(int type, int subtype, int length) {
+        final byte[] bytes = new byte[length];
+        System.arraycopy(HEADER, 0, bytes, 0, HEADER.length);
+        bytes[0x0a] = (byte) type;
+        System.arraycopy(NAME, 0, bytes, 0x0b, NAME.length);
+        bytes[0x1f] = 1;
+        bytes[0x20] = (byte) subtype;
+        bytes[0x21] = DEVICE;
+        put(bytes, 0x22, 2, length - 0x24);
+        return bytes;
+    }
+
+    /**
+     * Build a beat packet at 120 BPM. Also used by the benchmarks.
+     *
+     * @param beatWithinBar the beat number within the bar
+     *
+     * @return the packet bytes
+     */
+    static byte[] beatPacket(int beatWithinBar) {
+        final byte[] bytes = packet(0x28, 0x00, BEAT_LENGTH);
+        put(bytes, 0x24, 4, 500);  // Next beat.
+        put(bytes, 0x30, 4, 500 * (5 - beatWithinBar));  // Next bar.
+        put(bytes, 0x54, 4, NORMAL_PITCH);
+        put(bytes, 0x5a, 2, 12000);
+        bytes[0x5c] = (byte) beatWithinBar;
+        bytes[0x5f] = DEVICE;
+        return bytes;
+    }
+
+    /**
+     * Build a status packet from a player playing a rekordbox track from USB at 120 BPM. Also used by the
+     * benchmarks.
+     *
+     * @param track the rekordbox ID of the loaded track
+     * @param beat the beat number reached in the track
+     *
+     * @return the packet bytes
+     */
+    static byte[] statusPacket(int track, int beat) {
+        final byte[] bytes = packet(0x0a, 0x03, STATUS_LENGTH);
+        bytes[0x24] = DEVICE;
+        bytes[0x28] = DEVICE;
+        bytes[0x29] = 3;  // USB slot.
+        bytes[0x2a] = 1;  // Rekordbox track.
+        put(bytes, 0x2c, 4, track);
+        bytes[0x7b] = 3;  // Playing.
+        bytes[0x89] = 0x40;  // Playing flag.
+        bytes[0x8b] = 0x7a;  // Moving.
+        put(bytes, 0x8c, 4, NORMAL_PITCH);
+        put(bytes, 0x92, 2, 12000);
+        put(bytes, 0x98, 4, NORMAL_PITCH);
+        bytes[0x9d] = 9;  // Forward, vinyl mode.
+        bytes[0x9f] = (byte) 0xff;  // Not yielding master.
+        put(bytes, 0xa0, 4, beat);
+        bytes[0xa6] = (byte) (((beat - 1) % 4) + 1);
+        return bytes;
+    }
+
+    /**
+     * Load and initialize the classes that live events will need.
+     */
+    private static void preload() {
+        final ClassLoader loader = Warmup.class.getClassLoader();
+        for (String name : PRELOAD) {
+            try {
+                Class.forName(name, true, loader);
+            } catch (ClassNotFoundException | LinkageError e) {
+                logger.warn("Unable to preload class {}", name, e);
+            }
+        }
+    }
+
+    /**
+     * Give {@link Delivery} a chance to drain the mailboxes of the objects we exercised, so its code is warmed up
+     * too, before the objects are deleted and their mailboxes closed.
+     *
+     * @param mailboxes the mailboxes to wait for
+     */
+    private static void awaitDelivery(Mailbox... mailboxes) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT);
+        for (Mailbox mailbox : mailboxes) {
+            while (!mailbox.isIdle() && System.nanoTime() < deadline) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Perform the warm-up, unless it has already been done.
+     *
+     * @param rounds how many of each kind of synthetic event to deliver
+     *
+     * @return {@code true} if the warm-up was performed
+     */
+    static boolean run(int rounds) {
+        if (!done.compareAndSet(false, true)) {
+            return false;
+        }
+        preload();
+        final Dispatcher dispatcher = Dispatcher.getInstance();
+        final Tempo tempo = new Tempo(DEVICE);
+        final Position position = new Position();
+        final Metadata metadata = new Metadata();
+        tempo.getMailbox().mute();
+        position.getMailbox().mute();
+        metadata.getMailbox().mute();
+        final List<BeatListener> beatListeners = Collections.singletonList(tempo.getBeatListener());
+        final List<DeviceUpdateListener> updateListeners = Arrays.asList(tempo.getUpdateListener(),
+                position.getUpdateListener(), metadata.getUpdateListener());
+        final List<TrackPositionListener> positionListeners = Collections.singletonList(position.getPositionListener());
+        final List<TrackMetadataListener> metadataListeners =
+                Collections.singletonList(metadata.getMetadataListener());
+        final TrackMetadataUpdate noMetadata = new TrackMetadataUpdate(DEVICE, null);
+        final InetAddress address = InetAddress.getLoopbackAddress();
+        try {
+            for (int i = 1; i <= rounds; i++) {
+                final byte[] beat = beatPacket(((i - 1) % 4) + 1);
+                dispatcher.deliverBeat(beatListeners, new Beat(new DatagramPacket(beat, beat.length, address, 50001)));
+                final byte[] status = statusPacket(i, i);  // A different track each time, to exercise loading.
+                dispatcher.deliverUpdate(updateListeners,
+                        new CdjStatus(new DatagramPacket(status, status.length, address, 50002)));
+                dispatcher.deliverPosition(positionListeners, new TrackPositionUpdate(System.nanoTime(), i * 500L, i,
+                        true, true, 1.0, false, null, true, false));
+                dispatcher.deliverMetadata(metadataListeners, noMetadata);
+            }
+            awaitDelivery(tempo.getMailbox(), position.getMailbox(), metadata.getMailbox());
+        } catch (RuntimeException e) {
+            logger.warn("Beat Link rejected synthetic packets, so warm-up was limited to loading classes", e);
+        } finally {
+            tempo.notifyDeleted();
+            position.notifyDeleted();
+            metadata.notifyDeleted();
+            final Metrics metrics = Metrics.getInstance();
+            for (Object listener : beatListeners) {
+                metrics.discardCallbacks(listener);
+            }
+            for (Object listener : updateListeners) {
+                metrics.discardCallbacks(listener);
+            }
+            for (Object listener : positionListeners) {
+                metrics.discardCallbacks(listener);
+            }
+            for (Object listener : metadataListeners) {
+                metrics.discardCallbacks(listener);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,237 @@
+package beatlink;
+
+import org.deepsymmetry.beatlink.CdjStatus;
+import org.deepsymmetry.beatlink.data.BeatGrid;
+import org.deepsymmetry.beatlink.data.DataReference;
+import org.deepsymmetry.beatlink.data.WaveformStyle;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that tracks remembered by an {@link AnalysisCache} can be found again after the cache file is reopened.
+ */
+public class AnalysisCacheTest {
+
+    private File folder;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("beat-link-max-cache").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        assertTrue(folder.delete());
+    }
+
+    /**
+     * Build an entry describing a track.
+     *
+     * @param title the title to give it
+     * @param colorName the name of its color, or {@code null} for none
+     *
+     * @return the entry
+     */
+    private static AnalysisCache.Entry entry(String title, String colorName) {
+        return new AnalysisCache.Entry(title, "Artist", "Album", "", "Genre", 124.5, 371, "Am", 4, colorName,
+                (colorName == null) ? 0 : 255, 0, (colorName == null) ? 0 : 64, 17,
+                new long[]{0, 1000, 0, 1, 32000, 36000}, 371250, null, null, null, null, null);
+    }
+
+    @Test
+    public void findsTracksAfterReopening() {
+        final AnalysisCache cache = new AnalysisCache(folder);
+        cache.acquire();
+        try {
+            cache.remember("signature-1", entry("D\u00e9j\u00e0 Vu", "Pink"), "media-a/42");
+            cache.remember("signature-2", entry("Second", null), null);
+            assertEquals("D\u00e9j\u00e0 Vu", cache.lookup("signature-1").title);
+        } finally {
+            cache.release();
+        }
+        assertNull(cache.lookup("signature-1"));
+
+        final AnalysisCache reopened = new AnalysisCache(folder);
+        reopened.acquire();
+        try {
+            final AnalysisCache.Entry first = reopened.lookup("signature-1");
+            assertNotNull(first);
+            assertEquals("D\u00e9j\u00e0 Vu", first.title);
+            assertEquals("Artist", first.artist);
+            assertEquals("Album", first.album);
+            assertEquals("", first.comment);
+            assertEquals("Genre", first.genre);
+            assertEquals(124.5, first.tempo, 0.0);
+            assertEquals(371, first.duration);
+            assertEquals("Am", first.key);
+            assertEquals(4, first.rating);
+            assertEquals("Pink", first.colorName);
+            assertEquals(255, first.red);
+            assertEquals(0, first.green);
+            assertEquals(64, first.blue);
+            assertEquals(17, first.artworkId);
+            assertArrayEquals(new long[]{0, 1000, 0, 1, 32000, 36000}, first.cues);
+            assertEquals(371250, first.trackLength);
+            assertSame(first, reopened.lookupKey("media-a/42"));
+
+            final AnalysisCache.Entry second = reopened.lookup("signature-2");
+            assertNotNull(second);
+            assertNull(second.colorName);
+            assertEquals(0, second.red);
+
+            assertNull(reopened.lookup("signature-3"));
+            assertNull(reopened.lookupKey("media-b/42"));
+        } finally {
+            reopened.release();
+        }
+    }
+
+    @Test
+    public void rebuildsBeatLinkDataAfterReopening() {
+        final byte[] grid = new byte[20 + 16 * 3];
+        final byte[] preview = new byte[800];
+        for (int i = 0; i < preview.length; i++) {
+            preview[i] = (byte) i;
+        }
+        grid[20] = 1;
+        final byte[] tag = {'P', 'C', 'O', 'B', 0, 0, 0, 24};
+        final AnalysisCache cache = new AnalysisCache(folder);
+        cache.acquire();
+        try {
+            cache.remember("signature-1", new AnalysisCache.Entry("Title", "Artist", "Album", "", "Genre", 124.5,
+                    371, "Am", 4, null, 0, 0, 0, 17, new long[0], 371250, grid, preview, WaveformStyle.BLUE,
+                    Collections.singletonList(tag), Collections.emptyList()), "media-a/42");
+        } finally {
+            cache.release();
+        }
+
+        final AnalysisCache reopened = new AnalysisCache(folder);
+        reopened.acquire();
+        try {
+            final AnalysisCache.Entry entry = reopened.lookupKey("media-a/42");
+            assertArrayEquals(grid, entry.beatGrid);
+            assertArrayEquals(preview, entry.waveformPreview);
+            assertEquals(WaveformStyle.BLUE, entry.previewStyle);
+            assertEquals(1, entry.cueTags.size());
+            assertArrayEquals(tag, entry.cueTags.get(0));
+            assertTrue(entry.extendedCueTags.isEmpty());
+
+            final DataReference track = new DataReference(2, CdjStatus.TrackSourceSlot.USB_SLOT, 42);
+            final BeatGrid beatGrid = entry.beatGridFor(track);
+            assertNotNull(beatGrid);
+            assertSame(track, beatGrid.dataReference);
+            assertNotNull(entry.waveformPreviewFor(track, WaveformStyle.BLUE));
+            assertNull("Preview should only be offered in its own style",
+                    entry.waveformPreviewFor(track, WaveformStyle.RGB));
+        } finally {
+            reopened.release();
+        }
+    }
+
+    @Test
+    public void remembersWithoutBeatLinkData() {
+        final AnalysisCache cache = new AnalysisCache(folder);
+        cache.acquire();
+        try {
+            cache.remember("signature-1", entry("First", null), "media-a/42");
+        } finally {
+            cache.release();
+        }
+
+        final AnalysisCache reopened = new AnalysisCache(folder);
+        reopened.acquire();
+        try {
+            final AnalysisCache.Entry entry = reopened.lookupKey("media-a/42");
+            final DataReference track = new DataReference(2, CdjStatus.TrackSourceSlot.USB_SLOT, 42);
+            assertNull(entry.beatGridFor(track));
+            assertNull(entry.waveformPreviewFor(track, WaveformStyle.BLUE));
+            assertNull(entry.cueList());
+        } finally {
+            reopened.release();
+        }
+    }
+
+    @Test
+    public void remembersNewLocationOfKnownTrack() {
+        final AnalysisCache cache = new AnalysisCache(folder);
+        cache.acquire();
+        try {
+            cache.remember("signature-1", entry("First", null), "media-a/42");
+            cache.remember("signature-1", entry("Ignored", null), "media-b/7");
+        } finally {
+            cache.release();
+        }
+
+        final AnalysisCache reopened = new AnalysisCache(folder);
+        reopened.acquire();
+        try {
+            assertEquals("First", reopened.lookup("signature-1").title);
+            assertEquals("First", reopened.lookupKey("media-a/42").title);
+            assertEquals("First", reopened.lookupKey("media-b/7").title);
+        } finally {
+            reopened.release();
+        }
+    }
+
+    @Test
+    public void growsToHoldManyTracks() {
+        final AnalysisCache cache = new AnalysisCache(folder);
+        final int count = 10000;  // Enough to outgrow the initial size of the file.
+        cache.acquire();
+        try {
+            for (int i = 0; i < count; i++) {
+                cache.remember("signature-" + i, entry("Track " + i, null), "media-a/" + i);
+            }
+        } finally {
+            cache.release();
+        }
+        assertTrue(new File(folder, "analysis.dat").length() > 1024 * 1024);
+
+        final AnalysisCache reopened = new AnalysisCache(folder);
+        reopened.acquire();
+        try {
+            for (int i = 0; i < count; i++) {
+                assertEquals("Track " + i, reopened.lookupKey("media-a/" + i).title);
+            }
+        } finally {
+            reopened.release();
+        }
+    }
+
+    @Test
+    public void discardsUnrecognizedFile() throws IOException {
+        Files.write(new File(folder, "analysis.dat").toPath(),
+                "This is not an analysis cache".getBytes(StandardCharsets.US_ASCII));
+        final AnalysisCache cache = new AnalysisCache(folder);
+        cache.acquire();
+        try {
+            assertNull(cache.lookup("signature-1"));
+            cache.remember("signature-1", entry("First", null), null);
+        } finally {
+            cache.release();
+        }
+
+        final AnalysisCache reopened = new AnalysisCache(folder);
+        reopened.acquire();
+        try {
+            assertEquals("First", reopened.lookup("signature-1").title);
+        } finally {
+            reopened.release();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package beatlink;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that an {@link AsyncLogHandler} passes records on, and reports those it suppresses.
+ */
+public class AsyncLogHandlerTest {
+
+    /**
+     * Collects the records that reach it.
+     */
+    private static final class Collector extends Handler {
+
+        private final List<LogRecord> records = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void publish(LogRecord record) {
+            records.add(record);
+        }
+
+        @Override
+        public void flush() {
+            // Nothing to do.
+        }
+
+        @Override
+        public void close() {
+            // Nothing to do.
+        }
+    }
+
+    /**
+     * Build a record from a logger.
+     *
+     * @param loggerName the name of the logger
+     * @param message the message to log
+     *
+     * @return the record
+     */
+    private static LogRecord record(String loggerName, String message) {
+        final LogRecord record = new LogRecord(Level.INFO, message);
+        record.setLoggerName(loggerName);
+        return record;
+    }
+
+    /**
+     * Wait for the collector to hold a certain number of records.
+     *
+     * @param collector the collector to watch
+     * @param count the number of records expected
+     *
+     * @throws InterruptedException if we are interrupted while waiting
+     */
+    private static void awaitRecords(Collector collector, int count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (collector.records.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, collector.records.size());
+    }
+
+    @Test
+    public void passesRecordsOnInOrder() throws InterruptedException {
+        final Collector collector = new Collector();
+        final AsyncLogHandler handler = new AsyncLogHandler(collector, 16, 0);
+        try {
+            for (int i = 0; i < 10; i++) {
+                handler.publish(record("test", "Message " + i));
+            }
+            awaitRecords(collector, 10);
+            for (int i = 0; i < 10; i++) {
+                assertEquals("Message " + i, collector.records.get(i).getMessage());
+            }
+        } finally {
+            handler.close();
+        }
+    }
+
+    @Test
+    public void reportsSuppressionAfterLoggerGoesQuiet() throws InterruptedException {
+        final Collector collector = new Collector();
+        final AsyncLogHandler handler = new AsyncLogHandler(collector, 16, 2);
+        try {
+            for (int i = 0; i < 5; i++) {
+                handler.publish(record("flapping", "Message " + i));
+            }
+            handler.publish(record("quiet", "Only message"));
+            awaitRecords(collector, 3);
+
+            // Nothing more is logged by the flapping logger, so the writer thread must report what it dropped.
+            awaitRecords(collector, 4);
+            final LogRecord summary = collector.records.get(3);
+            assertEquals(Level.WARNING, summary.getLevel());
+            assertEquals("flapping", summary.getLoggerName());
+            assertTrue(summary.getMessage(), summary.getMessage().startsWith("Suppressed 3 log messages"));
+
+            Thread.sleep(1500);
+            assertEquals("Suppression should only be reported once", 4, collector.records.size());
+        } finally {
+            handler.close();
+        }
+    }
+
+    @Test
+    public void reportsPendingSuppressionWhenClosed() throws InterruptedException {
+        final Collector collector = new Collector();
+        final AsyncLogHandler handler = new AsyncLogHandler(collector, 16, 1);
+        handler.publish(record("flapping", "First"));
+        handler.publish(record("flapping", "Second"));
+        awaitRecords(collector, 1);
+        handler.close();
+        assertEquals(2, collector.records.size());
+        assertTrue(collector.records.get(1).getMessage().startsWith("Suppressed 1 log messages"));
+    }
+}
@@ -0,0 +1,182 @@
+package beatlink;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the timing logic of a {@link Clock} object with simulated time and master beats, checking the MIDI
+ * messages it sends to a receiver, with no MIDI device or DJ Link devices present.
+ */
+public class ClockTest {
+
+    /**
+     * The length of a beat at 120 BPM, in nanoseconds.
+     */
+    private static final long BEAT = 500000000L;
+
+    /**
+     * When our simulated time begins.
+     */
+    private static final long START = 1000000000L;
+
+    /**
+     * The messages the clock has sent.
+     */
+    private final List<MidiMessage> sent = new ArrayList<>();
+
+    private final Receiver sink = new Receiver() {
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+            sent.add(message);
+        }
+
+        @Override
+        public void close() {
+            // Nothing to do.
+        }
+    };
+
+    private Clock clock;
+
+    private Clock.TimingState state;
+
+    @Before
+    public void setUp() {
+        clock = new Clock();
+        clock.setReceiver(sink);
+        state = new Clock.TimingState();
+        state.nominalInterval = BEAT / 24.0;
+        state.nextPulse = START;
+    }
+
+    @After
+    public void tearDown() {
+        clock.notifyDeleted();
+    }
+
+    /**
+     * Send pulses whenever they are due, delivering master beats as they occur, until a given time.
+     *
+     * @param until when to stop
+     * @param firstBeat when the first master beat arrives, or zero if there are no beats
+     *
+     * @return the number of pulses sent between each pair of consecutive beats
+     */
+    private List<Integer> run(long until, long firstBeat) {
+        final List<Integer> pulsesPerBeat = new ArrayList<>();
+        long nextBeat = firstBeat;
+        int pulses = -1;
+        while (state.nextPulse < until) {
+            final long now = state.nextPulse;
+            long beatTime = 0;
+            if (nextBeat != 0 && nextBeat <= now) {
+                beatTime = nextBeat;
+                nextBeat += BEAT;
+                if (pulses >= 0) {
+                    pulsesPerBeat.add(pulses);
+                }
+                pulses = 0;
+            }
+            clock.pulse(state, now, beatTime);
+            if (pulses >= 0) {
+                pulses++;
+            }
+        }
+        return pulsesPerBeat;
+    }
+
+    /**
+     * Count the clock pulses among the messages sent.
+     *
+     * @return how many timing clock messages were sent
+     */
+    private int countPulses() {
+        int count = 0;
+        for (MidiMessage message : sent) {
+            if (message.getStatus() == ShortMessage.TIMING_CLOCK) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void sendsTwentyFourPulsesPerBeat() {
+        // The master's beats arrive a little after where our pulses would put them, so the loop has work to do.
+        final List<Integer> pulsesPerBeat = run(START + 40 * BEAT, START + BEAT / 10);
+        assertTrue(pulsesPerBeat.size() >= 38);
+        for (int count : pulsesPerBeat) {
+            assertTrue("Sent " + count + " pulses in a beat", Math.abs(count - 24) <= 1);
+        }
+        for (int count : pulsesPerBeat.subList(pulsesPerBeat.size() - 10, pulsesPerBeat.size())) {
+            assertEquals("Loop should have locked", 24, count);
+        }
+    }
+
+    @Test
+    public void sendsPositionThenStartOrContinueThenStop() {
+        final long margin = BEAT / 48;  // Half a pulse, so rounding cannot add one.
+        clock.startTransport(state, 0);
+        run(START + 2 * BEAT - margin, 0);
+        clock.stopTransport(state);
+        clock.startTransport(state, 24 * 33);
+        run(START + 4 * BEAT - margin, 0);
+        clock.stopTransport(state);
+
+        final List<String> transport = new ArrayList<>();
+        for (MidiMessage message : sent) {
+            final ShortMessage midi = (ShortMessage) message;
+            switch (midi.getStatus()) {
+                case ShortMessage.SONG_POSITION_POINTER:
+                    transport.add("position " + (midi.getData1() | (midi.getData2() << 7)));
+                    break;
+                case ShortMessage.START:
+                    transport.add("start");
+                    break;
+                case ShortMessage.CONTINUE:
+                    transport.add("continue");
+                    break;
+                case ShortMessage.STOP:
+                    transport.add("stop");
+                    break;
+                default:
+                    assertEquals(ShortMessage.TIMING_CLOCK, midi.getStatus());
+            }
+        }
+        assertEquals(Arrays.asList("position 0", "start", "stop", "position 132", "continue", "stop"), transport);
+        assertEquals(4 * 24, countPulses());
+        assertEquals(24 * 33 + 2 * 24, state.pulses);
+    }
+
+    @Test
+    public void resetsLoopWhenTransportStops() {
+        run(START + 4 * BEAT, START + BEAT / 10);
+        assertNotEquals(0.0, state.correction, 0.0);
+        clock.stopTransport(state);
+        assertEquals(0.0, state.correction, 0.0);
+        assertEquals(0.0, state.integral, 0.0);
+    }
+
+    @Test
+    public void resetsLoopWhenBeatsStop() {
+        run(START + BEAT + BEAT / 2, START + BEAT / 10);
+        assertNotEquals(0.0, state.correction, 0.0);
+        final long lastBeat = state.lastBeat;
+        run(lastBeat + 2 * BEAT - BEAT / 4, 0);
+        assertNotEquals("Loop should keep its correction between beats", 0.0, state.correction, 0.0);
+        run(lastBeat + 3 * BEAT, 0);
+        assertEquals(0.0, state.correction, 0.0);
+        assertEquals(0.0, state.integral, 0.0);
+        assertEquals(0, state.lastBeat);
+    }
+}
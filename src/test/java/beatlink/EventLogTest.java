@@ -0,0 +1,197 @@
+package beatlink;
+
+import org.deepsymmetry.beatlink.data.TrackPositionUpdate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that events written to an {@link EventLog} are read back as they were written.
+ */
+public class EventLogTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("beat-link-max", ".log");
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue(!file.exists() || file.delete());
+    }
+
+    @Test
+    public void roundTripsEvents() throws IOException {
+        try (EventLog log = new EventLog(file, true)) {
+            log.writeMasterTempo(128.5);
+            log.writeMaster(3, 126.0);
+            log.writePosition(2, new TrackPositionUpdate(System.nanoTime(), 61234L, 97, true, true, 1.04, false,
+                    null, true, false));
+            log.writePosition(4, new TrackPositionUpdate(System.nanoTime(), 500L, 2, false, false, 0.0, true,
+                    null, false, true));
+            log.writePosition(2, null);
+            log.writeMetadata(4, null);
+        }
+
+        try (EventLog log = new EventLog(file, false)) {
+            final EventLog.Event event = new EventLog.Event();
+            long timestamp = 0;
+
+            assertTrue(log.read(event));
+            assertEquals(EventLog.MASTER_TEMPO, event.type);
+            assertEquals(128.5, event.value, 0.0);
+            timestamp = event.timestamp;
+
+            assertTrue(log.read(event));
+            assertEquals(EventLog.MASTER, event.type);
+            assertEquals(3, event.device);
+            assertEquals(126.0, event.value, 0.0);
+            assertTrue(event.timestamp >= timestamp);
+            timestamp = event.timestamp;
+
+            assertTrue(log.read(event));
+            assertEquals(EventLog.POSITION, event.type);
+            assertEquals(2, event.device);
+            assertTrue(event.timestamp >= timestamp);
+            TrackPositionUpdate update = event.toPositionUpdate(42L);
+            assertNotNull(update);
+            assertEquals(42L, update.timestamp);
+            assertEquals(61234L, update.milliseconds);
+            assertEquals(97, update.beatNumber);
+            assertEquals(1.04, update.pitch, 0.0);
+            assertTrue(update.definitive);
+            assertTrue(update.playing);
+            assertFalse(update.reverse);
+            assertTrue(update.precise);
+            assertFalse(update.fromBeat);
+
+            assertTrue(log.read(event));
+            assertEquals(4, event.device);
+            update = event.toPositionUpdate(43L);
+            assertNotNull(update);
+            assertEquals(500L, update.milliseconds);
+            assertFalse(update.definitive);
+            assertFalse(update.playing);
+            assertTrue(update.reverse);
+            assertFalse(update.precise);
+            assertTrue(update.fromBeat);
+
+            assertTrue(log.read(event));
+            assertEquals(EventLog.POSITION, event.type);
+            assertEquals(2, event.device);
+            assertNull(event.toPositionUpdate(44L));
+
+            assertTrue(log.read(event));
+            assertEquals(EventLog.METADATA, event.type);
+            assertEquals(4, event.device);
+            assertNull(event.toDataReference());
+
+            assertFalse(log.read(event));
+        }
+    }
+
+    @Test
+    public void readsAcrossSegments() throws IOException {
+        final int count = 1000000;  // At 19 bytes each, these span two of the log's 16 MB segments.
+        try (EventLog log = new EventLog(file, true)) {
+            for (int i = 0; i < count; i++) {
+                log.writeMasterTempo(i);
+            }
+        }
+        assertTrue(file.length() > 16L * 1024 * 1024);
+
+        try (EventLog log = new EventLog(file, false)) {
+            final EventLog.Event event = new EventLog.Event();
+            int read = 0;
+            while (log.read(event)) {
+                assertEquals(EventLog.MASTER_TEMPO, event.type);
+                assertEquals(read, event.value, 0.0);
+                read++;
+            }
+            assertEquals(count, read);
+        }
+    }
+
+    @Test
+    public void readsPastSingleByteGap() throws IOException {
+        // After the 8-byte file header, these 20-byte and 19-byte records end one byte short of the first segment.
+        final int masters = 17;
+        final int tempos = 882993;
+        try (EventLog log = new EventLog(file, true)) {
+            for (int i = 0; i < masters; i++) {
+                log.writeMaster(2, i);
+            }
+            for (int i = 0; i < tempos; i++) {
+                log.writeMasterTempo(i);
+            }
+            log.writeMaster(4, 130.0);
+            log.writeMasterTempo(131.0);
+        }
+
+        try (EventLog log = new EventLog(file, false)) {
+            final EventLog.Event event = new EventLog.Event();
+            for (int i = 0; i < masters + tempos; i++) {
+                assertTrue(log.read(event));
+            }
+            assertEquals(EventLog.MASTER_TEMPO, event.type);
+            assertEquals(tempos - 1, event.value, 0.0);
+
+            assertTrue("Record after the gap was skipped", log.read(event));
+            assertEquals(EventLog.MASTER, event.type);
+            assertEquals(4, event.device);
+            assertEquals(130.0, event.value, 0.0);
+            assertTrue(log.read(event));
+            assertEquals(131.0, event.value, 0.0);
+            assertFalse(log.read(event));
+        }
+    }
+
+    @Test
+    public void stopsAtTruncatedRecord() throws IOException {
+        try (EventLog log = new EventLog(file, true)) {
+            log.writeMasterTempo(120.0);
+            log.writeMasterTempo(121.0);
+        }
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.setLength(raw.length() - 3);  // As if we crashed partway through writing the second record.
+        }
+
+        try (EventLog log = new EventLog(file, false)) {
+            final EventLog.Event event = new EventLog.Event();
+            assertTrue(log.read(event));
+            assertEquals(120.0, event.value, 0.0);
+            assertFalse(log.read(event));
+        }
+    }
+
+    @Test
+    public void writesNothingAfterClose() throws IOException {
+        final EventLog log = new EventLog(file, true);
+        log.writeMasterTempo(120.0);
+        log.close();
+        log.writeMasterTempo(121.0);
+        log.writePosition(1, null);
+
+        try (EventLog reader = new EventLog(file, false)) {
+            final EventLog.Event event = new EventLog.Event();
+            assertTrue(reader.read(event));
+            assertFalse(reader.read(event));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        Files.write(file.toPath(), "This is not an event log".getBytes(StandardCharsets.US_ASCII));
+        new EventLog(file, false).close();
+    }
+}
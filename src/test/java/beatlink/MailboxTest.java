@@ -0,0 +1,133 @@
+package beatlink;
+
+import com.cycling74.max.MaxClock;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how {@link Mailbox} and {@link Delivery} hold output until the Max scheduler sends it, which here is
+ * simulated by firing the test stub's clocks.
+ */
+public class MailboxTest {
+
+    /**
+     * The deliveries that have been run, in order.
+     */
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() {
+        MaxClock.fireAll();  // Deliver anything left by earlier tests, so the counters only reflect ours.
+    }
+
+    @Test
+    public void nothingIsSentUntilSchedulerRuns() {
+        final Mailbox mailbox = new Mailbox(1, 4);
+        mailbox.post(0, () -> sent.add("slot"));
+        mailbox.enqueue(() -> sent.add("queued"));
+        assertTrue(sent.isEmpty());
+        MaxClock.fireAll();
+        assertEquals(Arrays.asList("queued", "slot"), sent);
+    }
+
+    @Test
+    public void slotsKeepOnlyLatestValue() {
+        final Delivery delivery = Delivery.getInstance();
+        final long coalesced = delivery.getCoalescedCount();
+        final long delivered = delivery.getDeliveredCount();
+        final Mailbox mailbox = new Mailbox(2, 4);
+        mailbox.post(0, () -> sent.add("a1"));
+        mailbox.post(1, () -> sent.add("b1"));
+        mailbox.post(0, () -> sent.add("a2"));
+        mailbox.post(0, () -> sent.add("a3"));
+        MaxClock.fireAll();
+        assertEquals(Arrays.asList("a3", "b1"), sent);
+        assertEquals(coalesced + 2, delivery.getCoalescedCount());
+        assertEquals(delivered + 2, delivery.getDeliveredCount());
+    }
+
+    @Test
+    public void queueKeepsOrderAndDropsOldest() {
+        final Delivery delivery = Delivery.getInstance();
+        final long dropped = delivery.getDroppedCount();
+        final Mailbox mailbox = new Mailbox(0, 3);
+        for (int i = 1; i <= 5; i++) {
+            final String event = "e" + i;
+            mailbox.enqueue(() -> sent.add(event));
+        }
+        MaxClock.fireAll();
+        assertEquals(Arrays.asList("e3", "e4", "e5"), sent);
+        assertEquals(dropped + 2, delivery.getDroppedCount());
+    }
+
+    @Test
+    public void schedulesAgainAfterDraining() {
+        final Mailbox mailbox = new Mailbox(1, 4);
+        mailbox.post(0, () -> sent.add("first"));
+        MaxClock.fireAll();
+        mailbox.post(0, () -> sent.add("second"));
+        mailbox.enqueue(() -> sent.add("third"));
+        MaxClock.fireAll();
+        assertEquals(Arrays.asList("first", "third", "second"), sent);
+    }
+
+    @Test
+    public void closedMailboxSendsNothing() {
+        final Mailbox mailbox = new Mailbox(1, 4);
+        mailbox.post(0, () -> sent.add("before"));
+        mailbox.enqueue(() -> sent.add("before"));
+        mailbox.close();
+        mailbox.post(0, () -> sent.add("after"));
+        mailbox.enqueue(() -> sent.add("after"));
+        MaxClock.fireAll();
+        assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    public void mutedMailboxDrainsWithoutSending() {
+        final Mailbox mailbox = new Mailbox(1, 4);
+        mailbox.mute();
+        mailbox.post(0, () -> sent.add("slot"));
+        mailbox.enqueue(() -> sent.add("queued"));
+        assertFalse(mailbox.isIdle());
+        MaxClock.fireAll();
+        assertTrue(mailbox.isIdle());
+        assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    public void drainsEveryReadyMailbox() {
+        final Mailbox first = new Mailbox(1, 4);
+        final Mailbox second = new Mailbox(1, 4);
+        first.post(0, () -> sent.add("first"));
+        second.post(0, () -> sent.add("second"));
+        assertEquals(1, MaxClock.fireAll());
+        assertEquals(Arrays.asList("first", "second"), sent);
+    }
+
+    @Test
+    public void concurrentPostsAreNeverLost() throws InterruptedException {
+        final Mailbox mailbox = new Mailbox(0, 100000);
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    mailbox.enqueue(() -> sent.add(""));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        MaxClock.fireAll();
+        assertEquals(40000, sent.size());
+    }
+}
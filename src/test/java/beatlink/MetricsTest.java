@@ -0,0 +1,124 @@
+package beatlink;
+
+import org.deepsymmetry.beatlink.data.TrackPositionListener;
+import org.deepsymmetry.beatlink.data.TrackPositionUpdate;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the bookkeeping done by {@link Metrics} and its histograms.
+ */
+public class MetricsTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        final Metrics.Histogram histogram = new Metrics.Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.5));
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void histogramCountsAndTracksMaximum() {
+        final Metrics.Histogram histogram = new Metrics.Histogram();
+        histogram.record(100);
+        histogram.record(200);
+        histogram.record(1000000);
+        histogram.record(-5);  // Clock oddities must not break anything.
+        assertEquals(4, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(1000000, histogram.getPercentile(1.0));
+    }
+
+    @Test
+    public void percentilesAreWithinBucketAccuracy() {
+        final Metrics.Histogram histogram = new Metrics.Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        final long median = histogram.getPercentile(0.5);
+        assertTrue("Median " + median + " should be within 25% above 500us", median >= 500000 && median <= 625000);
+        final long p99 = histogram.getPercentile(0.99);
+        assertTrue("p99 " + p99 + " should be within 25% above 990us", p99 >= 990000 && p99 <= 1000000);
+    }
+
+    @Test
+    public void histogramHandlesExtremes() {
+        final Metrics.Histogram histogram = new Metrics.Histogram();
+        histogram.record(0);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(2, histogram.getCount());
+        assertEquals(1, histogram.getPercentile(0.5));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(1.0));
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        final Metrics.Histogram histogram = new Metrics.Histogram();
+        histogram.record(12345);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void countsPacketsByDevice() {
+        final Metrics metrics = Metrics.getInstance();
+        final long before = metrics.getPacketCount(33);
+        metrics.recordPacket(33);
+        metrics.recordPacket(33 + 256);
+        assertEquals(before + 2, metrics.getPacketCount(33));
+    }
+
+    @Test
+    public void countsAndTimesPositionUpdates() {
+        final Metrics metrics = Metrics.getInstance();
+        final Dispatcher dispatcher = Dispatcher.getInstance();
+        final TrackPositionListener listener = update -> {
+            // Only its class matters.
+        };
+        final long before = metrics.getPositionCount(5);
+        dispatcher.addPositionListener(5, listener);
+        try {
+            dispatcher.injectPosition(5, new TrackPositionUpdate(System.nanoTime(), 1000L, 3, true, true, 1.0,
+                    false, null, true, false));
+            dispatcher.injectPosition(5, null);
+        } finally {
+            dispatcher.removePositionListener(listener);
+        }
+        assertEquals(before + 2, metrics.getPositionCount(5));
+        assertEquals(0, metrics.getPositionCount(0));
+        assertEquals(0, metrics.getPositionCount(Dispatcher.MAX_PLAYER + 1));
+        final Metrics.Histogram histogram = metrics.getCallbacks().get("MetricsTest");
+        assertNotNull(histogram);
+        assertEquals(2, histogram.getCount());
+        metrics.discardCallbacks(listener);
+    }
+
+    @Test
+    public void namesCallbacksAfterEnclosingClass() {
+        final Metrics metrics = Metrics.getInstance();
+        final Runnable listener = new Runnable() {
+            @Override
+            public void run() {
+                // Only its class matters.
+            }
+        };
+        metrics.recordCallback(listener, 1000);
+        metrics.recordCallback(listener, 3000);
+        final Metrics.Histogram histogram = metrics.getCallbacks().get("MetricsTest");
+        assertNotNull(histogram);
+        assertEquals(2, histogram.getCount());
+        assertEquals(3000, histogram.getMax());
+        metrics.discardCallbacks(listener);
+        assertFalse(metrics.getCallbacks().containsKey("MetricsTest"));
+    }
+
+    @Test
+    public void recordsNamedDurations() {
+        final Metrics metrics = Metrics.getInstance();
+        metrics.recordDuration("MetricsTest duration", 500);
+        assertEquals(1, metrics.getCallbacks().get("MetricsTest duration").getCount());
+    }
+}
@@ -0,0 +1,164 @@
+package beatlink;
+
+import com.cycling74.max.MaxClock;
+import com.cycling74.max.MaxObject;
+import org.deepsymmetry.beatlink.MasterAdapter;
+import org.deepsymmetry.beatlink.MasterListener;
+import org.deepsymmetry.beatlink.data.TrackPositionListener;
+import org.deepsymmetry.beatlink.data.TrackPositionUpdate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays recordings through a {@link Recorder} object, checking that the recorded events reach listeners
+ * registered with the {@link Dispatcher} just as live events would, with no DJ Link devices present.
+ */
+public class RecorderTest {
+
+    /**
+     * How long to wait for replayed events before giving up.
+     */
+    private static final long TIMEOUT_SECONDS = 10;
+
+    /**
+     * The replayed position updates received for player 2.
+     */
+    private final BlockingQueue<TrackPositionUpdate> positions = new LinkedBlockingQueue<>();
+
+    /**
+     * The replayed master tempos received.
+     */
+    private final BlockingQueue<Double> tempos = new LinkedBlockingQueue<>();
+
+    /**
+     * The number of times player 2's position was replayed as unknown.
+     */
+    private final AtomicInteger unknownPositions = new AtomicInteger();
+
+    private final TrackPositionListener positionListener = update -> {
+        if (update == null) {
+            unknownPositions.incrementAndGet();
+        } else {
+            positions.add(update);
+        }
+    };
+
+    private final MasterListener masterListener = new MasterAdapter() {
+        @Override
+        public void tempoChanged(double tempo) {
+            tempos.add(tempo);
+        }
+    };
+
+    private File file;
+
+    private Recorder recorder;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("beat-link-max", ".log");
+        Dispatcher.getInstance().addPositionListener(2, positionListener);
+        Dispatcher.getInstance().addMasterListener(masterListener);
+        recorder = new Recorder();
+    }
+
+    @After
+    public void tearDown() {
+        recorder.notifyDeleted();
+        Dispatcher.getInstance().removePositionListener(positionListener);
+        Dispatcher.getInstance().removeMasterListener(masterListener);
+        assertTrue(file.delete());
+    }
+
+    /**
+     * Act as the Max scheduler until the recorder reports that it has finished replaying.
+     *
+     * @throws InterruptedException if we are interrupted while waiting
+     */
+    private void awaitFinished() throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (System.nanoTime() < deadline) {
+            MaxClock.fireAll();
+            for (MaxObject.Output output : recorder.getOutputs(0)) {
+                if ("finished".equals(output.message)) {
+                    return;
+                }
+            }
+            Thread.sleep(5);
+        }
+        fail("Replay did not finish, status was " + recorder.getOutputs(0));
+    }
+
+    @Test
+    public void replaysEventsThroughDispatcher() throws Exception {
+        try (EventLog log = new EventLog(file, true)) {
+            log.writeMasterTempo(122.0);
+            log.writePosition(2, new TrackPositionUpdate(System.nanoTime(), 1000L, 3, true, true, 1.0, false, null,
+                    true, false));
+            log.writePosition(3, new TrackPositionUpdate(System.nanoTime(), 5000L, 9, true, true, 1.0, false, null,
+                    true, false));
+            log.writePosition(2, null);
+            log.writeMasterTempo(124.0);
+        }
+        recorder.setAttribute("speed", 100.0f);
+        recorder.replay(file.getPath());
+
+        assertEquals(122.0, tempos.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS), 0.0);
+        final TrackPositionUpdate update = positions.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(update);
+        assertEquals(1000L, update.milliseconds);
+        assertEquals(3, update.beatNumber);
+        assertEquals(124.0, tempos.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS), 0.0);
+        awaitFinished();
+        assertTrue("Player 3 position should not reach player 2 listener", positions.isEmpty());
+        assertEquals(1, unknownPositions.get());
+        assertFalse(Dispatcher.getInstance().isReplaying());
+
+        final List<String> statuses = new ArrayList<>();
+        for (MaxObject.Output output : recorder.getOutputs(0)) {
+            statuses.add(output.message);
+            assertEquals(file.getPath(), output.values.get(0));
+        }
+        assertEquals("replaying", statuses.get(0));
+        assertEquals("finished", statuses.get(statuses.size() - 1));
+    }
+
+    @Test
+    public void replaysAtRecordedPace() throws Exception {
+        try (EventLog log = new EventLog(file, true)) {
+            log.writeMasterTempo(120.0);
+            Thread.sleep(200);
+            log.writeMasterTempo(121.0);
+        }
+        recorder.replay(file.getPath());
+
+        assertEquals(120.0, tempos.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS), 0.0);
+        final long first = System.nanoTime();
+        assertEquals(121.0, tempos.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS), 0.0);
+        final long gap = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - first);
+        assertTrue("Second event arrived after " + gap + "ms rather than about 200ms", gap >= 150);
+        awaitFinished();
+    }
+
+    @Test
+    public void reportsUnreadableRecording() throws Exception {
+        MaxObject.clearWindow();
+        assertTrue(file.delete());
+        recorder.replay(file.getPath());
+        assertEquals(1, MaxObject.getErrors().size());
+        assertTrue(MaxObject.getErrors().get(0).startsWith("Recorder unable to open"));
+        assertTrue(file.createNewFile());  // So tearDown can delete it.
+    }
+}
@@ -0,0 +1,96 @@
+package beatlink;
+
+import org.deepsymmetry.beatlink.data.TrackPositionUpdate;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link StateTable} readers see what was written, and never see a block that is partly written.
+ */
+public class StateTableTest {
+
+    @Test
+    public void readsWhatWasWritten() {
+        final StateTable table = StateTable.getInstance();
+        final StateTable.Reading reading = new StateTable.Reading();
+        final long now = System.nanoTime();
+        table.positionChanged(3, new TrackPositionUpdate(now, 61000L, 122, true, true, 1.02, false, null, true,
+                false));
+        table.read(3, reading);
+        assertTrue(reading.known);
+        assertEquals(now, reading.timestamp);
+        assertEquals(61000.0, reading.time, 0.0);
+        assertEquals(1.02, reading.pitch, 0.0);
+        assertEquals(122, reading.beat);
+        assertEquals(1, reading.beatWithinBar);
+        assertEquals(0.0, reading.beatLength, 0.0);
+        assertTrue(reading.playing);
+        assertFalse(reading.reverse);
+
+        table.positionChanged(3, null);
+        table.read(3, reading);
+        assertFalse(reading.known);
+    }
+
+    @Test
+    public void interpolatesPosition() {
+        final StateTable.Reading reading = new StateTable.Reading();
+        reading.timestamp = 1000000000L;
+        reading.time = 10000.0;
+        reading.pitch = 1.5;
+        reading.playing = true;
+        assertEquals(10750.0, reading.timeAt(1500000000L), 0.000001);
+
+        reading.reverse = true;
+        assertEquals(9250.0, reading.timeAt(1500000000L), 0.000001);
+        assertEquals(0.0, reading.timeAt(100000000000L), 0.0);
+
+        reading.playing = false;
+        assertEquals(10000.0, reading.timeAt(1500000000L), 0.0);
+    }
+
+    @Test
+    public void readersNeverSeePartialWrites() throws InterruptedException {
+        final StateTable table = StateTable.getInstance();
+        final int player = 6;
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final AtomicLong reads = new AtomicLong();
+        final Thread[] readers = new Thread[2];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(() -> {
+                final StateTable.Reading reading = new StateTable.Reading();
+                while (writing.get() && failure.get() == null) {
+                    table.read(player, reading);
+                    // Every value in a block was written from the same counter, so any mismatch is a torn read.
+                    if (reading.known && (reading.time != reading.beat || reading.pitch != reading.beat ||
+                            reading.timestamp != reading.beat || reading.playing != (reading.beat % 2 == 0))) {
+                        failure.set("Torn read: timestamp " + reading.timestamp + ", time " + reading.time +
+                                ", pitch " + reading.pitch + ", beat " + reading.beat + ", playing " +
+                                reading.playing);
+                    }
+                    reads.incrementAndGet();
+                }
+            });
+            readers[i].start();
+        }
+        try {
+            for (int k = 1; k <= 200000 && failure.get() == null; k++) {
+                table.positionChanged(player, new TrackPositionUpdate(k, k, k, true, k % 2 == 0, k, false, null,
+                        true, false));
+            }
+        } finally {
+            writing.set(false);
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get(), failure.get());
+        assertTrue(reads.get() > 0);
+    }
+}
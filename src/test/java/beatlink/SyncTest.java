@@ -0,0 +1,86 @@
+package beatlink;
+
+import com.cycling74.max.MaxObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the pair bookkeeping and phase arithmetic of {@link Sync}, and what it reports when nothing is playing.
+ */
+public class SyncTest {
+
+    /**
+     * The length of a beat at 120 BPM, in nanoseconds.
+     */
+    private static final double BEAT = 500000000.0;
+
+    @Test
+    public void pairIndexesAreDistinctAndSymmetric() {
+        final Set<Integer> seen = new HashSet<>();
+        for (int low = 1; low < Dispatcher.MAX_PLAYER; low++) {
+            for (int high = low + 1; high <= Dispatcher.MAX_PLAYER; high++) {
+                final int index = Sync.pairIndex(low, high);
+                assertEquals(index, Sync.pairIndex(high, low));
+                assertTrue("Index " + index + " out of range", index >= 0 &&
+                        index < Dispatcher.MAX_PLAYER * (Dispatcher.MAX_PLAYER - 1) / 2);
+                assertTrue("Index " + index + " used twice", seen.add(index));
+            }
+        }
+        assertEquals(Dispatcher.MAX_PLAYER * (Dispatcher.MAX_PLAYER - 1) / 2, seen.size());
+    }
+
+    @Test
+    public void phaseIsNearestOffsetFromBeat() {
+        assertEquals(0.0, Sync.phaseSinceBeat(0, BEAT), 0.0);
+        assertEquals(0.2, Sync.phaseSinceBeat(100000000L, BEAT), 0.000001);
+        assertEquals(-0.2, Sync.phaseSinceBeat(400000000L, BEAT), 0.000001);
+        assertEquals(0.1, Sync.phaseSinceBeat(550000000L, BEAT), 0.000001);
+        assertEquals(-0.1, Sync.phaseSinceBeat(1950000000L, BEAT), 0.000001);
+        assertEquals(-0.2, Sync.phaseSinceBeat(-100000000L, BEAT), 0.000001);
+    }
+
+    @Test
+    public void phaseWrapsAtHalfBeat() {
+        assertEquals(-0.5, Sync.phaseSinceBeat(250000000L, BEAT), 0.000001);
+        assertEquals(0.499, Sync.phaseSinceBeat(249500000L, BEAT), 0.000001);
+        assertEquals(-0.5, Sync.phaseSinceBeat(-250000000L, BEAT), 0.000001);
+    }
+
+    @Test
+    public void reportsNothingPlayingWhenIdle() {
+        final Sync sync = new Sync();
+        try {
+            sync.bang();
+            assertTrue(sync.getOutputs(0).isEmpty());
+            final List<MaxObject.Output> consensus = sync.getOutputs(1);
+            assertEquals(1, consensus.size());
+            assertEquals(Arrays.asList((Object) 0.0), consensus.get(0).values);
+            final List<MaxObject.Output> alarm = sync.getOutputs(2);
+            assertEquals(1, alarm.size());
+            assertEquals(Arrays.asList((Object) 0), alarm.get(0).values);
+        } finally {
+            sync.notifyDeleted();
+        }
+    }
+
+    @Test
+    public void rejectsNonPositiveThreshold() throws ReflectiveOperationException {
+        final Sync sync = new Sync();
+        try {
+            MaxObject.clearWindow();
+            sync.setAttribute("threshold", 0.0f);
+            assertEquals(Arrays.asList("Sync object's threshold attribute must be positive"), MaxObject.getErrors());
+            MaxObject.clearWindow();
+            sync.setAttribute("threshold", 5.0f);
+            assertTrue(MaxObject.getErrors().isEmpty());
+        } finally {
+            sync.notifyDeleted();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package beatlink;
+
+import com.cycling74.max.MaxClock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks which tempo values {@link TempoFilter} passes on, and how it smooths them.
+ */
+public class TempoFilterTest {
+
+    /**
+     * The values the filter reported.
+     */
+    private final List<Double> reported = new ArrayList<>();
+
+    private TempoFilter filter;
+
+    @Before
+    public void setUp() {
+        MaxClock.fireAll();  // Don't let clocks set by earlier tests fire during ours.
+        filter = new TempoFilter(reported::add);
+    }
+
+    @After
+    public void tearDown() {
+        filter.release();
+    }
+
+    @Test
+    public void reportsFirstValueImmediately() {
+        filter.offer(120.0);
+        assertEquals(Arrays.asList(120.0), reported);
+    }
+
+    @Test
+    public void ignoresRepeatedValues() {
+        filter.offer(120.0);
+        filter.offer(120.0);
+        filter.offer(120.0);
+        assertEquals(Arrays.asList(120.0), reported);
+    }
+
+    @Test
+    public void withholdsChangesBelowThreshold() {
+        filter.setThreshold(0.5);
+        filter.offer(120.0);
+        filter.offer(120.3);
+        filter.offer(119.8);
+        filter.offer(120.6);
+        assertEquals(Arrays.asList(120.0, 120.6), reported);
+    }
+
+    @Test
+    public void reportsStoppingDespiteThreshold() {
+        filter.setThreshold(5.0);
+        filter.offer(120.0);
+        filter.offer(0.0);
+        filter.offer(1.0);
+        assertEquals(Arrays.asList(120.0, 0.0, 1.0), reported);
+    }
+
+    @Test
+    public void defersValuesWithinInterval() {
+        filter.setInterval(60000);
+        filter.offer(120.0);
+        filter.offer(121.0);
+        filter.offer(122.0);
+        assertEquals(Arrays.asList(120.0), reported);
+        assertEquals(1, MaxClock.fireAll());
+        assertEquals(Arrays.asList(120.0, 122.0), reported);
+        assertEquals(0, MaxClock.fireAll());
+        assertEquals(Arrays.asList(120.0, 122.0), reported);
+    }
+
+    @Test
+    public void dropsDeferredValueWhenTempoReturns() {
+        filter.setInterval(60000);
+        filter.offer(120.0);
+        filter.offer(121.0);
+        filter.offer(120.0);
+        MaxClock.fireAll();
+        assertEquals(Arrays.asList(120.0), reported);
+    }
+
+    @Test
+    public void reportsImmediatelyAfterReset() {
+        filter.setInterval(60000);
+        filter.offer(120.0);
+        filter.offer(125.0);
+        filter.reset();
+        filter.offer(130.0);
+        assertEquals(Arrays.asList(120.0, 130.0), reported);
+        MaxClock.fireAll();
+        assertEquals(Arrays.asList(120.0, 130.0), reported);
+    }
+
+    @Test
+    public void exponentialSmoothingMovesPartway() throws InterruptedException {
+        filter.setSmoothing(TempoFilter.Smoothing.EXPONENTIAL);
+        filter.setTimeConstant(1000.0);
+        filter.offer(120.0);
+        Thread.sleep(10);
+        filter.offer(130.0);
+        assertEquals(2, reported.size());
+        assertTrue("Smoothed value " + reported.get(1) + " should have moved towards 130",
+                reported.get(1) > 120.0 && reported.get(1) < 125.0);
+    }
+
+    @Test
+    public void smoothingDoesNotDelayStopping() throws InterruptedException {
+        filter.setSmoothing(TempoFilter.Smoothing.EXPONENTIAL);
+        filter.setTimeConstant(1000.0);
+        filter.offer(120.0);
+        Thread.sleep(2);
+        filter.offer(0.0);
+        assertEquals(Arrays.asList(120.0, 0.0), reported);
+    }
+
+    @Test
+    public void smoothingSettlesWithoutNewValues() throws InterruptedException {
+        filter.setSmoothing(TempoFilter.Smoothing.EXPONENTIAL);
+        filter.setTimeConstant(20.0);
+        filter.offer(120.0);
+        Thread.sleep(2);
+        filter.offer(126.0);  // A single step, as when the master player's tempo changes once and then holds.
+        assertTrue(reported.get(reported.size() - 1) < 126.0);
+        for (int i = 0; i < 100 && reported.get(reported.size() - 1) != 126.0; i++) {
+            Thread.sleep(5);
+            MaxClock.fireAll();
+        }
+        assertEquals(126.0, reported.get(reported.size() - 1), 0.0);
+        for (int i = 1; i < reported.size(); i++) {
+            assertTrue("Smoothed values should rise steadily", reported.get(i) > reported.get(i - 1));
+        }
+        final int count = reported.size();
+        assertEquals("Nothing left to settle", 0, MaxClock.fireAll());
+        assertEquals(count, reported.size());
+    }
+
+    @Test
+    public void euroFilterConvergesOnSteadyTempo() throws InterruptedException {
+        filter.setSmoothing(TempoFilter.Smoothing.EURO);
+        filter.setTimeConstant(10.0);
+        filter.offer(120.0);
+        for (int i = 0; i < 100; i++) {
+            Thread.sleep(2);
+            filter.offer(130.0);
+        }
+        final double last = reported.get(reported.size() - 1);
+        assertTrue("Smoothed value " + last + " should have reached 130", last > 129.9 && last <= 130.0);
+        for (int i = 1; i < reported.size(); i++) {
+            assertTrue("Smoothed values should rise steadily", reported.get(i) >= reported.get(i - 1));
+        }
+    }
+}
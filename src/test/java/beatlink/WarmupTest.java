@@ -0,0 +1,32 @@
+package beatlink;
+
+import com.cycling74.max.MaxClock;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link Warmup} exercises the real handlers once, and leaves nothing behind in the {@link Metrics}.
+ */
+public class WarmupTest {
+
+    @Test
+    public void runsOnceAndDiscardsItsCallbacks() throws Exception {
+        final CompletableFuture<Boolean> first = CompletableFuture.supplyAsync(() -> Warmup.run(50));
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!first.isDone() && System.nanoTime() < deadline) {
+            MaxClock.fireAll();  // Act as the Max scheduler, so Delivery drains the muted mailboxes.
+            Thread.sleep(1);
+        }
+        assertTrue(first.get(1, TimeUnit.SECONDS));
+        assertFalse(Warmup.run(50));
+
+        final Metrics metrics = Metrics.getInstance();
+        assertFalse(metrics.getCallbacks().containsKey("Tempo"));
+        assertFalse(metrics.getCallbacks().containsKey("Position"));
+        assertFalse(metrics.getCallbacks().containsKey("Metadata"));
+    }
+}
@@ -0,0 +1,163 @@
+package com.cycling74.max;
+
+import java.io.Serializable;
+
+/**
+ * A stand-in for the Max class of the same name, which shadows the one in the Max jar on the test classpath, so
+ * that tests can be compiled and run without it. Like the real thing, an atom holds a single int, float or
+ * symbol value, but floats are kept at double precision so tests can compare them exactly.
+ */
+public abstract class Atom implements Serializable {
+
+    public static final Atom[] emptyArray = new Atom[0];
+
+    /**
+     * An atom holding an integer.
+     */
+    private static final class IntAtom extends Atom {
+
+        private final int value;
+
+        private IntAtom(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean isInt() {
+            return true;
+        }
+
+        @Override
+        public int getInt() {
+            return value;
+        }
+
+        @Override
+        public double getDouble() {
+            return value;
+        }
+
+        @Override
+        public Object toObject() {
+            return value;
+        }
+    }
+
+    /**
+     * An atom holding a floating-point number.
+     */
+    private static final class FloatAtom extends Atom {
+
+        private final double value;
+
+        private FloatAtom(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean isFloat() {
+            return true;
+        }
+
+        @Override
+        public int getInt() {
+            return (int) value;
+        }
+
+        @Override
+        public double getDouble() {
+            return value;
+        }
+
+        @Override
+        public Object toObject() {
+            return value;
+        }
+    }
+
+    /**
+     * An atom holding a symbol.
+     */
+    private static final class StringAtom extends Atom {
+
+        private final String value;
+
+        private StringAtom(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean isString() {
+            return true;
+        }
+
+        @Override
+        public String getString() {
+            return value;
+        }
+
+        @Override
+        public Object toObject() {
+            return value;
+        }
+    }
+
+    public static Atom newAtom(int value) {
+        return new IntAtom(value);
+    }
+
+    public static Atom newAtom(long value) {
+        return new IntAtom((int) value);
+    }
+
+    public static Atom newAtom(boolean value) {
+        return new IntAtom(value ? 1 : 0);
+    }
+
+    public static Atom newAtom(float value) {
+        return new FloatAtom(value);
+    }
+
+    public static Atom newAtom(double value) {
+        return new FloatAtom(value);
+    }
+
+    public static Atom newAtom(String value) {
+        return new StringAtom(value);
+    }
+
+    public boolean isInt() {
+        return false;
+    }
+
+    public boolean isFloat() {
+        return false;
+    }
+
+    public boolean isString() {
+        return false;
+    }
+
+    public int getInt() {
+        return 0;
+    }
+
+    public float getFloat() {
+        return (float) getDouble();
+    }
+
+    public double getDouble() {
+        return 0.0;
+    }
+
+    public String getString() {
+        return String.valueOf(toObject());
+    }
+
+    public abstract Object toObject();
+
+    @Override
+    public String toString() {
+        return getString();
+    }
+}
@@ -0,0 +1,15 @@
+package com.cycling74.max;
+
+/**
+ * A stand-in for the Max class of the same name, which shadows the one in the Max jar on the test classpath, so
+ * that tests can be compiled and run without it. Our code only passes these constants back to {@link MaxObject}
+ * when declaring inlets and outlets, which the test version ignores, so they need only be distinct.
+ */
+public class DataTypes {
+
+    public static final int ALL = 0;
+    public static final int INT = 1;
+    public static final int FLOAT = 2;
+    public static final int LIST = 3;
+    public static final int MESSAGE = 4;
+}
@@ -0,0 +1,106 @@
+package com.cycling74.max;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A stand-in for the Max class of the same name, which shadows the one in the Max jar on the test classpath. There
+ * is no Max scheduler to fire clocks, so setting one simply marks it as due, and tests play the part of the
+ * scheduler by calling {@link #fireAll()}, which lets them decide exactly when deferred work happens.
+ */
+public class MaxClock {
+
+    /**
+     * The clocks which have been set and have not yet fired or been unset.
+     */
+    private static final Set<MaxClock> armed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The code to run when we fire.
+     */
+    private Executable executable;
+
+    /**
+     * The delay most recently requested, in milliseconds.
+     */
+    private volatile double delay = 0.0;
+
+    /**
+     * Set once we have been released, after which we can no longer be set.
+     */
+    private volatile boolean released = false;
+
+    public MaxClock() {
+        this(null);
+    }
+
+    public MaxClock(Executable executable) {
+        this.executable = executable;
+    }
+
+    public void setExecutable(Executable executable) {
+        this.executable = executable;
+    }
+
+    public Executable getExecutable() {
+        return executable;
+    }
+
+    public void delay(double ms) {
+        if (!released) {
+            delay = ms;
+            armed.add(this);
+        }
+    }
+
+    public void unset() {
+        armed.remove(this);
+    }
+
+    public void release() {
+        released = true;
+        armed.remove(this);
+    }
+
+    public static double getTime() {
+        return System.nanoTime() / 1000000.0;
+    }
+
+    /**
+     * Check whether we have been set and have not yet fired.
+     *
+     * @return {@code true} if we are waiting to fire
+     */
+    public boolean isSet() {
+        return armed.contains(this);
+    }
+
+    /**
+     * Get the delay most recently requested.
+     *
+     * @return the delay in milliseconds
+     */
+    public double getDelay() {
+        return delay;
+    }
+
+    /**
+     * Act as the Max scheduler, firing every clock that is currently set, as if all their delays had passed.
+     * Clocks set again by the code that runs will wait for the next call.
+     *
+     * @return the number of clocks that fired
+     */
+    public static int fireAll() {
+        final List<MaxClock> due = new ArrayList<>(armed);
+        int fired = 0;
+        for (MaxClock clock : due) {
+            if (armed.remove(clock) && clock.executable != null) {
+                clock.executable.execute();
+                fired++;
+            }
+        }
+        return fired;
+    }
+}
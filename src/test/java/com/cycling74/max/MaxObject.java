@@ -0,0 +1,322 @@
+package com.cycling74.max;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A stand-in for the Max class of the same name, which shadows the one in the Max jar on the test classpath so that
+ * our MXJ objects can be created and exercised without Max. Rather than sending anything to a patch, it records
+ * every message sent through an outlet, and every message posted to the Max window, so tests can examine them. It
+ * also keeps track of declared attributes, so tests can set them the way Max would.
+ */
+public class MaxObject {
+
+    /**
+     * A message that was sent through one of our outlets.
+     */
+    public static final class Output {
+
+        /**
+         * The index of the outlet the message was sent through.
+         */
+        public final int outlet;
+
+        /**
+         * The message selector, or {@code null} if a bare value or list was sent.
+         */
+        public final String message;
+
+        /**
+         * The values sent, as {@link Integer}, {@link Long}, {@link Float}, {@link Double}, {@link Boolean} or
+         * {@link String} objects, or atoms converted to those types.
+         */
+        public final List<Object> values;
+
+        /**
+         * Record a message.
+         *
+         * @param outlet the outlet index
+         * @param message the message selector, or {@code null}
+         * @param values the values sent
+         */
+        private Output(int outlet, String message, List<Object> values) {
+            this.outlet = outlet;
+            this.message = message;
+            this.values = Collections.unmodifiableList(values);
+        }
+
+        @Override
+        public String toString() {
+            return outlet + ": " + (message == null ? "" : message + " ") + values;
+        }
+    }
+
+    /**
+     * The messages posted to the Max window by any object.
+     */
+    private static final List<String> posts = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * The errors reported to the Max window by any object.
+     */
+    private static final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * The messages sent through our outlets, in the order they were sent.
+     */
+    private final List<Output> outputs = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * The names of the setter methods of our declared attributes, keyed by attribute name.
+     */
+    private final Map<String, String> attributeSetters = new HashMap<>();
+
+    /**
+     * The number of outlets we declared.
+     */
+    private int outletCount = 0;
+
+    /**
+     * Convert an atom to the plain Java value it holds.
+     *
+     * @param atom the atom
+     *
+     * @return the value
+     */
+    private static Object valueOf(Atom atom) {
+        if (atom.isString()) {
+            return atom.getString();
+        }
+        if (atom.isFloat()) {
+            return atom.getDouble();
+        }
+        return atom.getInt();
+    }
+
+    /**
+     * Record a message sent through an outlet.
+     *
+     * @param index the outlet index
+     * @param message the message selector, or {@code null}
+     * @param values the values sent
+     *
+     * @return {@code true}, as Max does when the message was sent
+     */
+    private boolean record(int index, String message, List<Object> values) {
+        if (index < 0 || index >= outletCount) {
+            throw new IllegalArgumentException("No outlet " + index + " declared, only " + outletCount);
+        }
+        outputs.add(new Output(index, message, values));
+        return true;
+    }
+
+    /**
+     * Record a message sent through an outlet.
+     *
+     * @param index the outlet index
+     * @param message the message selector, or {@code null}
+     * @param atoms the values sent
+     *
+     * @return {@code true}, as Max does when the message was sent
+     */
+    private boolean record(int index, String message, Atom[] atoms) {
+        final List<Object> values = new ArrayList<>();
+        for (Atom atom : atoms) {
+            values.add(valueOf(atom));
+        }
+        return record(index, message, values);
+    }
+
+    /**
+     * Record a single value sent through an outlet.
+     *
+     * @param index the outlet index
+     * @param value the value sent
+     *
+     * @return {@code true}, as Max does when the value was sent
+     */
+    private boolean recordValue(int index, Object value) {
+        final List<Object> values = new ArrayList<>();
+        values.add(value);
+        return record(index, null, values);
+    }
+
+    protected void declareInlets(int[] types) {
+        // Nothing to do.
+    }
+
+    protected void declareOutlets(int[] types) {
+        outletCount = types.length;
+    }
+
+    protected void setInletAssist(String[] messages) {
+        // Nothing to do.
+    }
+
+    protected void setOutletAssist(String[] messages) {
+        // Nothing to do.
+    }
+
+    protected void createInfoOutlet(boolean flag) {
+        // Nothing to do.
+    }
+
+    protected void declareAttribute(String name, String getter, String setter) {
+        attributeSetters.put(name, setter);
+    }
+
+    protected void bang() {
+        // Nothing to do.
+    }
+
+    protected void loadbang() {
+        // Nothing to do.
+    }
+
+    protected void notifyDeleted() {
+        // Nothing to do.
+    }
+
+    public boolean outletBang(int index) {
+        return record(index, "bang", new ArrayList<>());
+    }
+
+    public boolean outlet(int index, boolean value) {
+        return recordValue(index, value);
+    }
+
+    public boolean outlet(int index, int value) {
+        return recordValue(index, value);
+    }
+
+    public boolean outlet(int index, long value) {
+        return recordValue(index, value);
+    }
+
+    public boolean outlet(int index, float value) {
+        return recordValue(index, value);
+    }
+
+    public boolean outlet(int index, double value) {
+        return recordValue(index, value);
+    }
+
+    public boolean outlet(int index, String value) {
+        return record(index, value, new ArrayList<>());
+    }
+
+    public boolean outlet(int index, Atom value) {
+        return record(index, null, new Atom[]{value});
+    }
+
+    public boolean outlet(int index, Atom[] values) {
+        return record(index, null, values);
+    }
+
+    public boolean outlet(int index, String message, Atom[] values) {
+        return record(index, message, values);
+    }
+
+    public static void post(String message) {
+        posts.add(message);
+    }
+
+    public static void error(String message) {
+        errors.add(message);
+    }
+
+    /**
+     * Get the messages sent through our outlets so far.
+     *
+     * @return a copy of the messages, oldest first
+     */
+    public List<Output> getOutputs() {
+        synchronized (outputs) {
+            return new ArrayList<>(outputs);
+        }
+    }
+
+    /**
+     * Get the messages sent through one of our outlets so far.
+     *
+     * @param index the outlet index
+     *
+     * @return a copy of the messages sent through that outlet, oldest first
+     */
+    public List<Output> getOutputs(int index) {
+        final List<Output> result = new ArrayList<>();
+        for (Output output : getOutputs()) {
+            if (output.outlet == index) {
+                result.add(output);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forget the messages sent through our outlets so far.
+     */
+    public void clearOutputs() {
+        outputs.clear();
+    }
+
+    /**
+     * Set one of our declared attributes, by calling its setter method the way Max does.
+     *
+     * @param name the attribute name
+     * @param value the value to set, whose type must match the setter's parameter
+     *
+     * @throws IllegalArgumentException if there is no such attribute
+     * @throws ReflectiveOperationException if the setter could not be called
+     */
+    public void setAttribute(String name, Object value) throws ReflectiveOperationException {
+        final String setter = attributeSetters.get(name);
+        if (setter == null) {
+            throw new IllegalArgumentException("No attribute named " + name);
+        }
+        for (Class<?> type = getClass(); type != null; type = type.getSuperclass()) {
+            for (Method method : type.getDeclaredMethods()) {
+                if (method.getName().equals(setter) && method.getParameterCount() == 1) {
+                    method.setAccessible(true);
+                    method.invoke(this, value);
+                    return;
+                }
+            }
+        }
+        throw new NoSuchMethodException("No setter " + setter + " for attribute " + name);
+    }
+
+    /**
+     * Get the messages posted to the Max window so far.
+     *
+     * @return a copy of the messages, oldest first
+     */
+    public static List<String> getPosts() {
+        synchronized (posts) {
+            return new ArrayList<>(posts);
+        }
+    }
+
+    /**
+     * Get the errors reported to the Max window so far.
+     *
+     * @return a copy of the errors, oldest first
+     */
+    public static List<String> getErrors() {
+        synchronized (errors) {
+            return new ArrayList<>(errors);
+        }
+    }
+
+    /**
+     * Forget the messages and errors reported to the Max window so far.
+     */
+    public static void clearWindow() {
+        posts.clear();
+        errors.clear();
+    }
+}